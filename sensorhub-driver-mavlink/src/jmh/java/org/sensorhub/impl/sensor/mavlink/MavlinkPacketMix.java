@@ -0,0 +1,227 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.ardupilotmega.msg_gimbal_report;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_battery_status;
+import com.MAVLink.common.msg_global_position_int;
+
+
+/**
+ * <p>
+ * Packet mix used by the receive path benchmarks.<br/>
+ * The synthetic mix follows the rates usually configured on a Solo type
+ * vehicle (attitude, position and gimbal report at 10Hz, battery at 1Hz),
+ * with a fixed random seed so that all runs process exactly the same bytes.
+ * A mix can also be extracted from a recorded tlog.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkPacketMix
+{
+    final byte[] stream;
+    final int[] frameOffsets;
+    final int[] frameLengths;
+    final MAVLinkPacket[] packets;
+
+
+    private MavlinkPacketMix(List<byte[]> frames)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        frameOffsets = new int[frames.size()];
+        frameLengths = new int[frames.size()];
+        for (int i = 0; i < frames.size(); i++)
+        {
+            byte[] frame = frames.get(i);
+            frameOffsets[i] = os.size();
+            frameLengths[i] = frame.length;
+            os.write(frame, 0, frame.length);
+        }
+        stream = os.toByteArray();
+
+        // decode packets once so unpack and publish stages don't include framing
+        packets = new MAVLinkPacket[frames.size()];
+        for (int i = 0; i < frames.size(); i++)
+            packets[i] = parseFrame(frames.get(i));
+    }
+
+
+    /**
+     * Generates a synthetic mix of packets
+     * @param numPackets number of packets in the mix
+     * @param mavlink2 true to frame packets with MAVLink 2
+     * @return the packet mix
+     */
+    public static MavlinkPacketMix generate(int numPackets, boolean mavlink2)
+    {
+        Random rand = new Random(42);
+        List<byte[]> frames = new ArrayList<byte[]>(numPackets);
+        int timeMs = 0;
+
+        while (frames.size() < numPackets)
+        {
+            // one cycle is 100ms
+            timeMs += 100;
+            List<MAVLinkMessage> msgs = new ArrayList<MAVLinkMessage>();
+
+            msg_attitude att = new msg_attitude();
+            att.time_boot_ms = timeMs;
+            att.roll = (float)rand.nextGaussian() * 0.1f;
+            att.pitch = (float)rand.nextGaussian() * 0.1f;
+            att.yaw = rand.nextFloat() * 6.28f;
+            msgs.add(att);
+
+            msg_global_position_int pos = new msg_global_position_int();
+            pos.time_boot_ms = timeMs;
+            pos.lat = 346000000 + rand.nextInt(10000);
+            pos.lon = -866000000 + rand.nextInt(10000);
+            pos.alt = 200000 + rand.nextInt(1000);
+            pos.relative_alt = 20000 + rand.nextInt(1000);
+            pos.hdg = rand.nextInt(36000);
+            msgs.add(pos);
+
+            msg_gimbal_report gimbal = new msg_gimbal_report();
+            gimbal.delta_time = 0.1f;
+            gimbal.joint_roll = (float)rand.nextGaussian() * 0.01f;
+            gimbal.joint_el = -0.5f + (float)rand.nextGaussian() * 0.01f;
+            gimbal.joint_az = (float)rand.nextGaussian() * 0.01f;
+            msgs.add(gimbal);
+
+            if (timeMs % 1000 == 0)
+            {
+                msg_battery_status batt = new msg_battery_status();
+                batt.battery_remaining = (byte)(100 - timeMs / 60000);
+                batt.current_battery = (short)(1500 + rand.nextInt(200));
+                msgs.add(batt);
+            }
+
+            for (MAVLinkMessage msg: msgs)
+            {
+                if (frames.size() >= numPackets)
+                    break;
+
+                MAVLinkPacket pkt = msg.pack();
+                pkt.sysid = 1;
+                pkt.compid = 1;
+                pkt.seq = frames.size() & 0xFF;
+                pkt.isMavlink2 = mavlink2;
+                frames.add(pkt.encodePacket());
+            }
+        }
+
+        return new MavlinkPacketMix(frames);
+    }
+
+
+    /**
+     * Extracts a mix of packets from a recorded tlog.<br/>
+     * Packets are repeated if the log contains less than the requested number.
+     * @param tlogFile telemetry log file
+     * @param numPackets number of packets in the mix
+     * @return the packet mix
+     * @throws IOException if the log cannot be read
+     */
+    public static MavlinkPacketMix load(File tlogFile, int numPackets) throws IOException
+    {
+        TLogReader reader = new TLogReader(tlogFile);
+        final List<byte[]> logFrames = new ArrayList<byte[]>();
+        final byte[] frame = new byte[Parser.MAX_FRAME_LEN];
+
+        try
+        {
+            final Parser parser = new Parser();
+            InputStream is = reader.getInputStream(reader.getStartTime(), 0.0);
+            byte[] buf = new byte[4096];
+            int nBytes;
+            while ((nBytes = is.read(buf)) > 0)
+            {
+                parser.parse(buf, 0, nBytes, new Parser.PacketHandler() {
+                    public void handlePacket(MAVLinkPacket packet)
+                    {
+                        // skip messages not in our dialect
+                        if (packet.unpack() == null)
+                            return;
+
+                        int frameLen = parser.getCurrentFrame(frame, 0);
+                        byte[] copy = new byte[frameLen];
+                        System.arraycopy(frame, 0, copy, 0, frameLen);
+                        logFrames.add(copy);
+                    }
+                });
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if (logFrames.isEmpty())
+            throw new IOException("No MAVLink packet found in " + tlogFile);
+
+        List<byte[]> frames = new ArrayList<byte[]>(numPackets);
+        for (int i = 0; i < numPackets; i++)
+            frames.add(logFrames.get(i % logFrames.size()));
+        return new MavlinkPacketMix(frames);
+    }
+
+
+    /*
+     * Parse a single frame to a new packet object
+     * Packets delivered by the parser are recycled so we keep a copy of the payload
+     */
+    private static MAVLinkPacket parseFrame(byte[] frame)
+    {
+        final MAVLinkPacket[] result = new MAVLinkPacket[1];
+        new Parser().parse(ByteBuffer.wrap(frame), new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                MAVLinkMessage msg = packet.unpack();
+                if (msg == null)
+                    return;
+
+                MAVLinkPacket copy = msg.pack();
+                copy.sysid = packet.sysid;
+                copy.compid = packet.compid;
+                copy.seq = packet.seq;
+                copy.isMavlink2 = packet.isMavlink2;
+                result[0] = copy;
+            }
+        });
+
+        if (result[0] == null)
+            throw new IllegalStateException("Unsupported or invalid MAVLink frame");
+        return result[0];
+    }
+
+
+    public int getNumPackets()
+    {
+        return packets.length;
+    }
+}
@@ -0,0 +1,175 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.sensor.ISensorDataInterface;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.MsgTypes;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.ardupilotmega.CRC;
+
+
+/**
+ * <p>
+ * Microbenchmarks of each stage of the MAVLink receive path:
+ * <ul>
+ * <li>parse: framing and CRC check of a byte stream (framing cost is parse minus crc)</li>
+ * <li>crc: CRC computation alone over the same frames</li>
+ * <li>unpack: decoding of packets to msg_* objects</li>
+ * <li>publish: dispatch to outputs, DataBlock fill and event publication</li>
+ * </ul>
+ * All benchmarks process the whole packet mix in each invocation and
+ * results are normalized per packet, so the throughput is in packets/us
+ * (i.e. millions of packets/s) and the average time in us/packet. Run with
+ * the GC profiler (as done by the 'jmh' gradle task) to also get the number
+ * of bytes allocated per packet (gc.alloc.rate.norm).
+ * </p><p>
+ * Set the 'tlog' parameter to run on packets extracted from a recorded log
+ * instead of the synthetic mix, e.g. -PjmhArgs="-p tlog=/path/to/flight.tlog"
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class MavlinkReceiveBenchmark
+{
+    static final int NUM_PACKETS = 1000;
+
+    @Param({"false", "true"})
+    boolean mavlink2;
+
+    @Param({""})
+    String tlog;
+
+    MavlinkPacketMix mix;
+    ByteBuffer streamBuf;
+    Parser parser;
+    CRC crc;
+    MavlinkDriver driver;
+    Parser.PacketHandler parseHandler;
+    int msgIdSum;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        if (tlog == null || tlog.isEmpty())
+            mix = MavlinkPacketMix.generate(NUM_PACKETS, mavlink2);
+        else
+            mix = MavlinkPacketMix.load(new File(tlog), NUM_PACKETS);
+
+        streamBuf = ByteBuffer.wrap(mix.stream);
+        parser = new Parser();
+        crc = new CRC();
+        parseHandler = new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                msgIdSum += packet.msgid;
+            }
+        };
+
+        // driver with outputs for all messages in the mix
+        // it is never started so packets are only fed by the benchmark
+        MavlinkConfig config = new MavlinkConfig();
+        config.id = UUID.randomUUID().toString();
+        config.vehicleID = "bench";
+        config.activeMessages = EnumSet.of(MsgTypes.ATTITUDE, MsgTypes.GLOBAL_POSITION,
+                                           MsgTypes.BATTERY_STATUS, MsgTypes.GIMBAL_REPORT);
+        driver = new MavlinkDriver();
+        driver.init(config);
+        driver.buildDispatchTable();
+
+        // publish to a single listener that does nothing
+        IEventListener listener = new IEventListener() {
+            public void handleEvent(Event<?> e) { }
+        };
+        for (ISensorDataInterface output: driver.getAllOutputs().values())
+            output.registerListener(listener);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PACKETS)
+    public int parse()
+    {
+        streamBuf.clear();
+        parser.parse(streamBuf, parseHandler);
+        return msgIdSum;
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PACKETS)
+    public void crc(Blackhole bh)
+    {
+        byte[] stream = mix.stream;
+        for (int i = 0; i < mix.frameOffsets.length; i++)
+        {
+            // CRC covers everything but the start byte and the CRC itself
+            int off = mix.frameOffsets[i];
+            int end = off + mix.frameLengths[i] - 2;
+            crc.start_checksum();
+            for (int j = off+1; j < end; j++)
+                crc.update_checksum(stream[j]);
+            crc.finish_checksum(mix.packets[i].msgid);
+            bh.consume(crc.getMSB());
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PACKETS)
+    public void unpack(Blackhole bh)
+    {
+        for (MAVLinkPacket packet: mix.packets)
+            bh.consume(packet.unpack());
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PACKETS)
+    public void publish()
+    {
+        for (MAVLinkPacket packet: mix.packets)
+            driver.handleMessage(packet);
+    }
+}
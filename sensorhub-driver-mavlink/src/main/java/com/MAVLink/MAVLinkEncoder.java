@@ -0,0 +1,185 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.ardupilotmega.CRC;
+
+/**
+ * Reusable encoder serializing MAVLink messages directly into a byte buffer.<br/>
+ * Contrary to {@link MAVLinkPacket#encodePacket()}, no object is allocated:
+ * messages are packed into a recycled packet, and the frame (including
+ * sequence number and CRC) is written at the current position of the
+ * destination buffer, which can be a pooled direct buffer.<br/>
+ * An encoder keeps its own sequence counter so it should be used by a single
+ * thread at a time, or with external synchronization.
+ */
+public class MAVLinkEncoder {
+
+    static final int HEADER_LEN = 6;
+    static final int HEADER_LEN_V2 = 10;
+    static final int CRC_LEN = 2;
+
+    /**
+     * Maximum length of an encoded frame (signatures are never added)
+     */
+    public static final int MAX_FRAME_LEN = HEADER_LEN_V2 + 255 + CRC_LEN;
+
+    private final MAVLinkPacket scratch = new MAVLinkPacket();
+    private boolean mavlink2;
+    private int seq;
+
+    public MAVLinkEncoder(boolean mavlink2) {
+        this.mavlink2 = mavlink2;
+    }
+
+    /**
+     * Encode a message at the current position of the buffer.<br/>
+     * The message can be modified or reused as soon as this method returns.
+     *
+     * @param msg
+     *            Message to encode
+     * @param dst
+     *            Destination buffer, its position is advanced by the frame length
+     * @return The length of the encoded frame
+     * @throws BufferOverflowException
+     *            if the remaining space in the buffer is too small
+     */
+    public int encode(MAVLinkMessage msg, ByteBuffer dst) {
+        msg.pack(scratch);
+        return encode(scratch, dst);
+    }
+
+    /**
+     * Encode a packet at the current position of the buffer.<br/>
+     * The next sequence number of this encoder is assigned to the packet.
+     *
+     * @param pkt
+     *            Packet to encode
+     * @param dst
+     *            Destination buffer, its position is advanced by the frame length
+     * @return The length of the encoded frame
+     * @throws BufferOverflowException
+     *            if the remaining space in the buffer is too small
+     */
+    public int encode(MAVLinkPacket pkt, ByteBuffer dst) {
+        pkt.isMavlink2 = mavlink2;
+        pkt.seq = seq;
+
+        int payloadLen = mavlink2 ? pkt.getTruncatedLength() : pkt.len;
+        int headerLen = mavlink2 ? HEADER_LEN_V2 : HEADER_LEN;
+        int frameLen = headerLen + payloadLen + CRC_LEN;
+        if (dst.remaining() < frameLen)
+            throw new BufferOverflowException();
+
+        // header
+        int start = dst.position();
+        if (mavlink2) {
+            dst.put((byte) MAVLinkPacket.MAVLINK_STX_MAVLINK2);
+            dst.put((byte) payloadLen);
+            dst.put((byte) (pkt.incompatFlags & ~MAVLinkPacket.MAVLINK_IFLAG_SIGNED));
+            dst.put((byte) pkt.compatFlags);
+            dst.put((byte) pkt.seq);
+            dst.put((byte) pkt.sysid);
+            dst.put((byte) pkt.compid);
+            dst.put((byte) pkt.msgid);
+            dst.put((byte) (pkt.msgid >> 8));
+            dst.put((byte) (pkt.msgid >> 16));
+        } else {
+            dst.put((byte) MAVLinkPacket.MAVLINK_STX);
+            dst.put((byte) payloadLen);
+            dst.put((byte) pkt.seq);
+            dst.put((byte) pkt.sysid);
+            dst.put((byte) pkt.compid);
+            dst.put((byte) pkt.msgid);
+        }
+
+        // payload
+        ByteBuffer payload = pkt.payload.payload;
+        for (int i = 0; i < payloadLen; i++)
+            dst.put(payload.get(i));
+
+        // CRC over everything but STX, read back from destination buffer
+        int crc = CRC.CRC_INIT_VALUE;
+        int end = start + headerLen + payloadLen;
+        for (int i = start + 1; i < end; i++)
+            crc = CRC.accumulate(dst.get(i), crc);
+        crc = CRC.accumulate(CRC.getCrcExtra(pkt.msgid), crc);
+        dst.put((byte) crc);
+        dst.put((byte) (crc >> 8));
+
+        seq = (seq + 1) & 0xFF;
+        return frameLen;
+    }
+
+    /**
+     * Change the sequence number of an encoded frame and update its CRC.<br/>
+     * This allows sequence numbers to be assigned when frames are actually
+     * written to the link, after they have been queued.
+     *
+     * @param frame
+     *            Buffer containing a single unsigned frame, between its
+     *            position and limit. Position and limit are not modified.
+     * @param seq
+     *            New sequence number
+     */
+    public static void updateSequence(ByteBuffer frame, int seq) {
+        int start = frame.position();
+        boolean mavlink2 = (frame.get(start) & 0xFF) == MAVLinkPacket.MAVLINK_STX_MAVLINK2;
+        int headerLen = mavlink2 ? HEADER_LEN_V2 : HEADER_LEN;
+        int payloadLen = frame.get(start + 1) & 0xFF;
+        int msgid;
+        if (mavlink2) {
+            frame.put(start + 4, (byte) seq);
+            msgid = (frame.get(start + 7) & 0xFF) | (frame.get(start + 8) & 0xFF) << 8 | (frame.get(start + 9) & 0xFF) << 16;
+        } else {
+            frame.put(start + 2, (byte) seq);
+            msgid = frame.get(start + 5) & 0xFF;
+        }
+
+        int crc = CRC.CRC_INIT_VALUE;
+        int end = start + headerLen + payloadLen;
+        for (int i = start + 1; i < end; i++)
+            crc = CRC.accumulate(frame.get(i), crc);
+        crc = CRC.accumulate(CRC.getCrcExtra(msgid), crc);
+        frame.put(end, (byte) crc);
+        frame.put(end + 1, (byte) (crc >> 8));
+    }
+
+    /**
+     * @return The sequence number that will be assigned to the next packet
+     */
+    public int getSequence() {
+        return seq;
+    }
+
+    /**
+     * @param seq
+     *            The sequence number to assign to the next packet
+     */
+    public void setSequence(int seq) {
+        this.seq = seq & 0xFF;
+    }
+
+    /**
+     * @param mavlink2
+     *            True to encode frames with MAVLink 2, false for MAVLink 1
+     */
+    public void setMavlink2(boolean mavlink2) {
+        this.mavlink2 = mavlink2;
+    }
+}
@@ -33,17 +33,55 @@ import com.MAVLink.ardupilotmega.*;
 * The minimum packet length is 8 bytes for acknowledgement packets without payload
 * The maximum packet length is 263 bytes for full payload
 *
+* MAVLink 2 packets start with 0xFD and add incompatibility and compatibility flags
+* after the length byte, as well as a 24-bit message ID (low byte first). Trailing
+* zero bytes of the payload are truncated by the sender and the checksum is computed
+* over the truncated payload. Signed packets (incompat flag 0x01) are followed by a
+* 13 bytes signature.
+*
 */
 public class MAVLinkPacket implements Serializable {
     private static final long serialVersionUID = 2095947771227815314L;
 
     public static final int MAVLINK_STX = 254;
 
+    public static final int MAVLINK_STX_MAVLINK2 = 253;
+
+    /**
+    * Incompatibility flag set when a MAVLink 2 packet is signed
+    */
+    public static final int MAVLINK_IFLAG_SIGNED = 0x01;
+
+    /**
+    * Number of bytes before the payload in MAVLink 1 packets
+    */
+    public static final int MAVLINK1_HEADER_LEN = 6;
+
+    /**
+    * Number of bytes before the payload in MAVLink 2 packets
+    */
+    public static final int MAVLINK2_HEADER_LEN = 10;
+
     /**
     * Message length. NOT counting STX, LENGTH, SEQ, SYSID, COMPID, MSGID, CRC1 and CRC2
     */
     public int len;
 
+    /**
+    * True if this packet is (or will be) framed with the MAVLink 2 format
+    */
+    public boolean isMavlink2;
+
+    /**
+    * MAVLink 2 flags that must be understood to process the packet
+    */
+    public int incompatFlags;
+
+    /**
+    * MAVLink 2 flags that can be ignored if not understood
+    */
+    public int compatFlags;
+
     /**
     * Message sequence
     */
@@ -63,7 +101,7 @@ public class MAVLinkPacket implements Serializable {
 
     /**
     * ID of the message - the id defines what the payload means and how it
-    * should be correctly decoded.
+    * should be correctly decoded. Up to 24-bits with MAVLink 2.
     */
     public int msgid;
 
@@ -104,6 +142,24 @@ public class MAVLinkPacket implements Serializable {
         else{
             crc.start_checksum();
         }
+
+        if (isMavlink2) {
+            int payloadLen = getTruncatedLength();
+            crc.update_checksum(payloadLen);
+            crc.update_checksum(incompatFlags & ~MAVLINK_IFLAG_SIGNED);
+            crc.update_checksum(compatFlags);
+            crc.update_checksum(seq);
+            crc.update_checksum(sysid);
+            crc.update_checksum(compid);
+            crc.update_checksum(msgid & 0xFF);
+            crc.update_checksum((msgid >> 8) & 0xFF);
+            crc.update_checksum((msgid >> 16) & 0xFF);
+            for (int i = 0; i < payloadLen; i++) {
+                crc.update_checksum(payload.payload.get(i));
+            }
+            crc.finish_checksum(msgid);
+            return;
+        }
         
         crc.update_checksum(len);
         crc.update_checksum(seq);
@@ -125,6 +181,10 @@ public class MAVLinkPacket implements Serializable {
     * @return Array with bytes to be transmitted
     */
     public byte[] encodePacket() {
+        if (isMavlink2) {
+            return encodeMavlink2Packet();
+        }
+
         byte[] buffer = new byte[6 + len + 2];
         
         int i = 0;
@@ -145,6 +205,51 @@ public class MAVLinkPacket implements Serializable {
         return buffer;
     }
 
+    /**
+    * Encode this packet using the MAVLink 2 format.<br/>
+    * Trailing zeros are removed from the payload, and the packet is always
+    * sent unsigned.
+    *
+    * @return Array with bytes to be transmitted
+    */
+    private byte[] encodeMavlink2Packet() {
+        int payloadLen = getTruncatedLength();
+        byte[] buffer = new byte[MAVLINK2_HEADER_LEN + payloadLen + 2];
+
+        int i = 0;
+        buffer[i++] = (byte) MAVLINK_STX_MAVLINK2;
+        buffer[i++] = (byte) payloadLen;
+        buffer[i++] = (byte) (incompatFlags & ~MAVLINK_IFLAG_SIGNED);
+        buffer[i++] = (byte) compatFlags;
+        buffer[i++] = (byte) seq;
+        buffer[i++] = (byte) sysid;
+        buffer[i++] = (byte) compid;
+        buffer[i++] = (byte) msgid;
+        buffer[i++] = (byte) (msgid >> 8);
+        buffer[i++] = (byte) (msgid >> 16);
+
+        for (int j = 0; j < payloadLen; j++) {
+            buffer[i++] = payload.payload.get(j);
+        }
+
+        generateCRC();
+        buffer[i++] = (byte) (crc.getLSB());
+        buffer[i++] = (byte) (crc.getMSB());
+        return buffer;
+    }
+
+    /**
+    * Compute the payload length once trailing zeros are removed, as required
+    * by MAVLink 2. At least one byte is always kept.
+    */
+    public int getTruncatedLength() {
+        int payloadLen = len;
+        while (payloadLen > 1 && payload.payload.get(payloadLen - 1) == 0) {
+            payloadLen--;
+        }
+        return payloadLen;
+    }
+
     /**
     * Unpack the data in this packet and return a MAVLink message
     *
@@ -433,6 +538,9 @@ public class MAVLinkPacket implements Serializable {
             case msg_param_map_rc.MAVLINK_MSG_ID_PARAM_MAP_RC:
                 return  new msg_param_map_rc(this);
                  
+            case msg_mission_request_int.MAVLINK_MSG_ID_MISSION_REQUEST_INT:
+                return  new msg_mission_request_int(this);
+                 
             case msg_safety_set_allowed_area.MAVLINK_MSG_ID_SAFETY_SET_ALLOWED_AREA:
                 return  new msg_safety_set_allowed_area(this);
                  
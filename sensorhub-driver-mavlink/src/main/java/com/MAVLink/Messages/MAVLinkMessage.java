@@ -7,6 +7,7 @@
 package com.MAVLink.Messages;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import com.MAVLink.MAVLinkPacket;
 
@@ -24,5 +25,24 @@ public abstract class MAVLinkMessage implements Serializable {
     public int msgid;
     public abstract MAVLinkPacket pack();
     public abstract void unpack(MAVLinkPayload payload);
+
+    /**
+     * Pack this message into an existing packet, so that the same packet can
+     * be reused for encoding many messages.<br/>
+     * This default implementation allocates a new packet and copies it, and
+     * should be overriden by messages sent at high rate.
+     */
+    public void pack(MAVLinkPacket packet) {
+        MAVLinkPacket tmp = pack();
+        packet.len = tmp.len;
+        packet.sysid = tmp.sysid;
+        packet.compid = tmp.compid;
+        packet.msgid = tmp.msgid;
+        packet.payload.clear();
+        ByteBuffer src = tmp.payload.payload;
+        for (int i = 0; i < tmp.len; i++) {
+            packet.payload.add(src.get(i));
+        }
+    }
 }
     
\ No newline at end of file
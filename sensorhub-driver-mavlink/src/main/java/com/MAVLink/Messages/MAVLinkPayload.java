@@ -7,6 +7,7 @@
 package com.MAVLink.Messages;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class MAVLinkPayload {
 
@@ -28,6 +29,7 @@ public class MAVLinkPayload {
 
     public MAVLinkPayload() {
         payload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+        payload.order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public ByteBuffer getData() {
@@ -46,6 +48,11 @@ public class MAVLinkPayload {
         index = 0;
     }
 
+    public void clear() {
+        payload.clear();
+        index = 0;
+    }
+
     public byte getByte() {
         byte result = 0;
         result |= (payload.get(index + 0) & 0xFF);
@@ -60,52 +67,35 @@ public class MAVLinkPayload {
         return result; 
     }
 
+    // multi-byte values are read with little-endian absolute gets
+    // rather than assembled byte by byte
+
     public short getShort() {
-        short result = 0;
-        result |= (payload.get(index + 1) & 0xFF) << 8;
-        result |= (payload.get(index + 0) & 0xFF);
+        short result = payload.getShort(index);
         index += 2;
         return result;
     }
 
     public int getUnsignedShort(){
-        int result = 0;
-        result |= (payload.get(index + 1) & 0xFF) << 8;
-        result |= (payload.get(index + 0) & 0xFF);
+        int result = payload.getShort(index) & 0xFFFF;
         index += 2;
         return result;
     }
 
     public int getInt() {
-        int result = 0;
-        result |= (payload.get(index + 3) & 0xFF) << 24;
-        result |= (payload.get(index + 2) & 0xFF) << 16;
-        result |= (payload.get(index + 1) & 0xFF) << 8;
-        result |= (payload.get(index + 0) & 0xFF);
+        int result = payload.getInt(index);
         index += 4;
         return result;
     }
 
     public long getUnsignedInt(){
-        long result = 0;
-        result |= (payload.get(index + 3) & 0xFFFFL) << 24;
-        result |= (payload.get(index + 2) & 0xFFFFL) << 16;
-        result |= (payload.get(index + 1) & 0xFFFFL) << 8;
-        result |= (payload.get(index + 0) & 0xFFFFL);
+        long result = payload.getInt(index) & 0xFFFFFFFFL;
         index += 4;
         return result;
     }
 
     public long getLong() {
-        long result = 0;
-        result |= (payload.get(index + 7) & 0xFFFFL) << 56;
-        result |= (payload.get(index + 6) & 0xFFFFL) << 48;
-        result |= (payload.get(index + 5) & 0xFFFFL) << 40;
-        result |= (payload.get(index + 4) & 0xFFFFL) << 32;
-        result |= (payload.get(index + 3) & 0xFFFFL) << 24;
-        result |= (payload.get(index + 2) & 0xFFFFL) << 16;
-        result |= (payload.get(index + 1) & 0xFFFFL) << 8;
-        result |= (payload.get(index + 0) & 0xFFFFL);
+        long result = payload.getLong(index);
         index += 8;
         return result;
     }
@@ -115,21 +105,13 @@ public class MAVLinkPayload {
     }
     
     public long getLongReverse() {
-        long result = 0;
-        result |= (payload.get(index + 0) & 0xFFFFL) << 56;
-        result |= (payload.get(index + 1) & 0xFFFFL) << 48;
-        result |= (payload.get(index + 2) & 0xFFFFL) << 40;
-        result |= (payload.get(index + 3) & 0xFFFFL) << 32;
-        result |= (payload.get(index + 4) & 0xFFFFL) << 24;
-        result |= (payload.get(index + 5) & 0xFFFFL) << 16;
-        result |= (payload.get(index + 6) & 0xFFFFL) << 8;
-        result |= (payload.get(index + 7) & 0xFFFFL);
-        index += 8;
-        return result;
+        return Long.reverseBytes(getLong());
     }
 
     public float getFloat() {
-        return Float.intBitsToFloat(getInt());
+        float result = payload.getFloat(index);
+        index += 4;
+        return result;
     }
     
     public void putByte(byte data) {
@@ -0,0 +1,79 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.Messages;
+
+import java.nio.ByteBuffer;
+import com.MAVLink.MAVLinkPacket;
+
+
+/**
+ * <p>
+ * Base for flyweight views on MAVLink packets.<br/>
+ * A view is wrapped around a received packet and decodes individual fields
+ * on demand directly from the payload buffer, using little-endian absolute
+ * reads. Contrary to the msg_* classes, no object is allocated when decoding
+ * a packet so a single view instance can be reused for all packets with the
+ * same message ID. A view is only valid as long as the wrapped packet is not
+ * recycled; use {@link MAVLinkPacket#unpack()} to obtain a detached copy.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public abstract class MAVLinkView
+{
+    protected ByteBuffer payload;
+    protected MAVLinkPacket packet;
+
+
+    /**
+     * @return the ID of the message type this view can decode
+     */
+    public abstract int getMsgId();
+
+
+    /**
+     * Wraps this view around the given packet
+     * @param packet packet to decode, must have the same message ID as the view
+     * @return true if the packet was wrapped, false if the message ID doesn't match
+     */
+    public boolean wrap(MAVLinkPacket packet)
+    {
+        if (packet.msgid != getMsgId())
+            return false;
+
+        this.packet = packet;
+        this.payload = packet.payload.payload;
+        return true;
+    }
+
+
+    /**
+     * @return the ID of the sending system
+     */
+    public int sysid()
+    {
+        return packet.sysid;
+    }
+
+
+    /**
+     * @return the ID of the sending component
+     */
+    public int compid()
+    {
+        return packet.compid;
+    }
+}
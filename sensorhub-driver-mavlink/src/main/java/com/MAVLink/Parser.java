@@ -6,8 +6,11 @@
 
 package com.MAVLink;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import com.MAVLink.MAVLinkPacket;
 import com.MAVLink.Messages.MAVLinkStats;
+import com.MAVLink.ardupilotmega.CRC;
 
 public class Parser {
 
@@ -25,6 +28,65 @@ public class Parser {
     public MAVLinkStats stats = new MAVLinkStats();
     private MAVLinkPacket m;
 
+    /**
+     * Callback used by the block parser to deliver each complete packet
+     */
+    public interface PacketHandler {
+
+        /**
+         * Called for each valid packet framed from the input buffer.<br/>
+         * The packet object is recycled by the parser so it must not be
+         * retained after this method returns (use {@link MAVLinkPacket#unpack()}
+         * to obtain a detached message if needed).
+         *
+         * @param packet
+         *            The framed packet
+         */
+        void handlePacket(MAVLinkPacket packet);
+    }
+
+    /**
+     * Number of bytes before the payload (STX, LEN, SEQ, SYSID, COMPID, MSGID)
+     */
+    static final int HEADER_LEN = 6;
+
+    /**
+     * Number of bytes before the payload in MAVLink 2 frames (STX, LEN,
+     * INCOMPAT_FLAGS, COMPAT_FLAGS, SEQ, SYSID, COMPID, MSGID x 3)
+     */
+    static final int HEADER_LEN_V2 = 10;
+
+    /**
+     * Number of checksum bytes after the payload
+     */
+    static final int CRC_LEN = 2;
+
+    /**
+     * Number of signature bytes after the checksum of signed MAVLink 2 frames
+     */
+    static final int SIGNATURE_LEN = 13;
+
+    /**
+     * Maximum size of a complete frame
+     */
+    public static final int MAX_FRAME_LEN = HEADER_LEN_V2 + 255 + CRC_LEN + SIGNATURE_LEN;
+
+    /**
+     * Number of packets recycled by the block parser
+     */
+    static final int PACKET_POOL_SIZE = 4;
+
+    // block parser state
+    private final MAVLinkPacket[] packetPool = new MAVLinkPacket[PACKET_POOL_SIZE];
+    private final int[] poolDirtyLen = new int[PACKET_POOL_SIZE];
+    private int poolIndex;
+    private final byte[] pendingFrame = new byte[MAX_FRAME_LEN];
+    private final ByteBuffer pendingBuf = ByteBuffer.wrap(pendingFrame);
+    private int pendingLen;
+    private ByteBuffer currentFrameBuf;
+    private int currentFrameOff;
+    private int currentFrameLen;
+
     /**
      * This is a convenience function which handles the complete MAVLink
      * parsing. the function will parse one byte at a time and return the
@@ -130,4 +192,302 @@ public class Parser {
         }
     }
 
+
+    /**
+     * Frame all complete packets contained in the given array.
+     *
+     * @see #parse(ByteBuffer, PacketHandler)
+     * @param buf
+     *            Array containing the bytes to parse
+     * @param off
+     *            Offset of the first byte to parse
+     * @param len
+     *            Number of bytes to parse
+     * @param handler
+     *            Handler called for each valid packet
+     * @return The number of packets delivered to the handler
+     */
+    public int parse(byte[] buf, int off, int len, PacketHandler handler) {
+        return parse(ByteBuffer.wrap(buf, off, len), handler);
+    }
+
+    /**
+     * Frame all complete packets contained in the remaining bytes of the
+     * given buffer (e.g. a whole UDP datagram or a chunk read from a serial
+     * port) in a single pass. Both MAVLink 1 and MAVLink 2 frames are
+     * accepted, and can be mixed in the same stream.<br/>
+     * The CRC is computed while the payload is copied, and packets are taken
+     * from a small recycled pool so that no object is allocated per packet.
+     * A trailing incomplete frame is kept internally and completed with the
+     * bytes of the next call. On return, the buffer position is set to its
+     * limit.
+     *
+     * @param buf
+     *            Buffer containing the bytes to parse
+     * @param handler
+     *            Handler called for each valid packet
+     * @return The number of packets delivered to the handler
+     */
+    public int parse(ByteBuffer buf, PacketHandler handler) {
+        int count = 0;
+
+        // first complete frame carried over from previous call
+        while (pendingLen > 0) {
+            if (!isStartSign(pendingFrame[0])) {
+                dropPendingBytes(1);
+                continue;
+            }
+
+            int frameLen = getFrameLength(pendingBuf, 0, pendingLen);
+            int needed = (frameLen > 0 ? frameLen : 3) - pendingLen;
+            if (needed > 0) {
+                int n = Math.min(needed, buf.remaining());
+                buf.get(pendingFrame, pendingLen, n);
+                pendingLen += n;
+                if (n < needed)
+                    return count;
+                continue;
+            }
+
+            if (checkAndDeliver(pendingBuf, 0, frameLen, handler)) {
+                count++;
+                dropPendingBytes(frameLen);
+            } else {
+                dropPendingBytes(1);
+            }
+        }
+
+        // then frame packets directly from the input buffer
+        int pos = buf.position();
+        int limit = buf.limit();
+        while (pos < limit) {
+            if (!isStartSign(buf.get(pos))) {
+                pos++;
+                continue;
+            }
+
+            int frameLen = getFrameLength(buf, pos, limit - pos);
+            if (frameLen < 0 || pos + frameLen > limit) {
+                // incomplete frame, keep it for next call
+                pendingLen = limit - pos;
+                for (int i = 0; i < pendingLen; i++)
+                    pendingFrame[i] = buf.get(pos + i);
+                break;
+            }
+
+            if (checkAndDeliver(buf, pos, frameLen, handler)) {
+                count++;
+                pos += frameLen;
+            } else {
+                pos++;
+            }
+        }
+
+        buf.position(limit);
+        return count;
+    }
+
+    /**
+     * Remove bytes from the beginning of the pending frame buffer and skip
+     * to the next start sign
+     */
+    private void dropPendingBytes(int n) {
+        while (n < pendingLen && !isStartSign(pendingFrame[n]))
+            n++;
+        pendingLen -= n;
+        System.arraycopy(pendingFrame, n, pendingFrame, 0, pendingLen);
+    }
+
+    /**
+     * Check if the byte is a MAVLink 1 or MAVLink 2 start sign
+     */
+    private static boolean isStartSign(byte b) {
+        int stx = b & 0xFF;
+        return stx == MAVLinkPacket.MAVLINK_STX || stx == MAVLinkPacket.MAVLINK_STX_MAVLINK2;
+    }
+
+    /**
+     * Compute the total length of the frame starting at the given offset
+     *
+     * @return The frame length or -1 if not enough bytes are available to
+     *         know it
+     */
+    private static int getFrameLength(ByteBuffer buf, int off, int avail) {
+        if ((buf.get(off) & 0xFF) == MAVLinkPacket.MAVLINK_STX) {
+            if (avail < 2)
+                return -1;
+            return HEADER_LEN + (buf.get(off + 1) & 0xFF) + CRC_LEN;
+        }
+
+        // MAVLink 2 frames need the incompat flags to know if a signature follows
+        if (avail < 3)
+            return -1;
+        int frameLen = HEADER_LEN_V2 + (buf.get(off + 1) & 0xFF) + CRC_LEN;
+        if ((buf.get(off + 2) & MAVLinkPacket.MAVLINK_IFLAG_SIGNED) != 0)
+            frameLen += SIGNATURE_LEN;
+        return frameLen;
+    }
+
+    /**
+     * Check the CRC of a complete frame while copying its content to the next
+     * pooled packet, and call the handler if the frame is valid.<br/>
+     * MAVLink 2 payloads truncated by the sender are zero-extended so that
+     * all fields can be decoded as with a MAVLink 1 packet. The signature of
+     * signed frames is skipped but not verified.
+     */
+    private boolean checkAndDeliver(ByteBuffer buf, int off, int frameLen, PacketHandler handler) {
+        MAVLinkPacket pkt = packetPool[poolIndex];
+        if (pkt == null)
+            pkt = packetPool[poolIndex] = new MAVLinkPacket();
+
+        boolean isMavlink2 = (buf.get(off) & 0xFF) == MAVLinkPacket.MAVLINK_STX_MAVLINK2;
+        int headerLen, msgid, incompatFlags = 0;
+        if (isMavlink2) {
+            // drop frames using features we don't understand
+            incompatFlags = buf.get(off + 2) & 0xFF;
+            if ((incompatFlags & ~MAVLinkPacket.MAVLINK_IFLAG_SIGNED) != 0)
+                return false;
+            headerLen = HEADER_LEN_V2;
+            msgid = (buf.get(off + 7) & 0xFF) | ((buf.get(off + 8) & 0xFF) << 8) | ((buf.get(off + 9) & 0xFF) << 16);
+        } else {
+            headerLen = HEADER_LEN;
+            msgid = buf.get(off + 5) & 0xFF;
+        }
+
+        // frames of unknown messages cannot be checked
+        int crcExtra = CRC.getCrcExtra(msgid);
+        if (crcExtra < 0)
+            return false;
+
+        // CRC over header
+        int len = buf.get(off + 1) & 0xFF;
+        int crc = CRC.CRC_INIT_VALUE;
+        for (int i = 1; i < headerLen; i++)
+            crc = CRC.accumulate(buf.get(off + i), crc);
+
+        // CRC over payload, copying it at the same time
+        ByteBuffer payload = pkt.payload.payload;
+        byte[] dst = payload.array();
+        int payloadOff = off + headerLen;
+        for (int i = 0; i < len; i++) {
+            byte b = buf.get(payloadOff + i);
+            dst[i] = b;
+            crc = CRC.accumulate(b, crc);
+        }
+        crc = CRC.accumulate(crcExtra, crc);
+        if (len > poolDirtyLen[poolIndex])
+            poolDirtyLen[poolIndex] = len;
+
+        // compare with checksum bytes
+        int crcOff = payloadOff + len;
+        if ((buf.get(crcOff) & 0xFF) != (crc & 0xFF) || (buf.get(crcOff + 1) & 0xFF) != ((crc >> 8) & 0xFF)) {
+            stats.crcError();
+            return false;
+        }
+
+        // zero-extend payload by clearing bytes left over from previous frames
+        if (poolDirtyLen[poolIndex] > len) {
+            Arrays.fill(dst, len, poolDirtyLen[poolIndex], (byte) 0);
+            poolDirtyLen[poolIndex] = len;
+        }
+
+        pkt.isMavlink2 = isMavlink2;
+        pkt.len = len;
+        if (isMavlink2) {
+            pkt.incompatFlags = incompatFlags;
+            pkt.compatFlags = buf.get(off + 3) & 0xFF;
+            pkt.seq = buf.get(off + 4) & 0xFF;
+            pkt.sysid = buf.get(off + 5) & 0xFF;
+            pkt.compid = buf.get(off + 6) & 0xFF;
+        } else {
+            pkt.incompatFlags = 0;
+            pkt.compatFlags = 0;
+            pkt.seq = buf.get(off + 2) & 0xFF;
+            pkt.sysid = buf.get(off + 3) & 0xFF;
+            pkt.compid = buf.get(off + 4) & 0xFF;
+        }
+        pkt.msgid = msgid;
+        payload.clear();
+        payload.position(len);
+
+        stats.newPacket(pkt);
+        poolIndex = (poolIndex + 1) % PACKET_POOL_SIZE;
+        currentFrameBuf = buf;
+        currentFrameOff = off;
+        currentFrameLen = frameLen;
+        try {
+            handler.handlePacket(pkt);
+        } finally {
+            currentFrameBuf = null;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the raw bytes of the frame of the packet currently delivered to
+     * the handler (including the signature of signed MAVLink 2 frames).<br/>
+     * This is only valid when called from within
+     * {@link PacketHandler#handlePacket(MAVLinkPacket)}.
+     *
+     * @param dst
+     *            Destination array, must have room for at least
+     *            {@link #MAX_FRAME_LEN} bytes
+     * @param off
+     *            Offset in destination array
+     * @return The frame length or -1 if no packet is currently being handled
+     */
+    public int getCurrentFrame(byte[] dst, int off) {
+        ByteBuffer buf = currentFrameBuf;
+        if (buf == null)
+            return -1;
+
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + currentFrameOff, dst, off, currentFrameLen);
+        } else {
+            for (int i = 0; i < currentFrameLen; i++)
+                dst[off + i] = buf.get(currentFrameOff + i);
+        }
+
+        return currentFrameLen;
+    }
+
+    /**
+     * Copy the raw bytes of the frame of the packet currently delivered to
+     * the handler at the current position of the destination buffer, which
+     * is advanced by the frame length.<br/>
+     * This is only valid when called from within
+     * {@link PacketHandler#handlePacket(MAVLinkPacket)}.
+     *
+     * @param dst
+     *            Destination buffer, must have at least
+     *            {@link #getCurrentFrameLength()} bytes remaining
+     * @return The frame length or -1 if no packet is currently being handled
+     */
+    public int getCurrentFrame(ByteBuffer dst) {
+        ByteBuffer buf = currentFrameBuf;
+        if (buf == null)
+            return -1;
+
+        if (buf.hasArray()) {
+            dst.put(buf.array(), buf.arrayOffset() + currentFrameOff, currentFrameLen);
+        } else {
+            for (int i = 0; i < currentFrameLen; i++)
+                dst.put(buf.get(currentFrameOff + i));
+        }
+
+        return currentFrameLen;
+    }
+
+    /**
+     * Get the length of the frame of the packet currently delivered to the
+     * handler, as received on the link.<br/>
+     * This is only valid when called from within
+     * {@link PacketHandler#handlePacket(MAVLinkPacket)}.
+     *
+     * @return The frame length or -1 if no packet is currently being handled
+     */
+    public int getCurrentFrameLength() {
+        return (currentFrameBuf != null) ? currentFrameLen : -1;
+    }
+
 }
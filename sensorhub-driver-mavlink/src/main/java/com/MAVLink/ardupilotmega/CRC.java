@@ -6,6 +6,8 @@
 
 package com.MAVLink.ardupilotmega;
 
+import java.util.Arrays;
+
 /**
 * X.25 CRC calculation for MAVlink messages. The checksum must be initialized,
 * updated with witch field of the message, and then finished with the message
@@ -13,8 +15,40 @@ package com.MAVLink.ardupilotmega;
 *
 */
 public class CRC {
-    private static final int[] MAVLINK_MESSAGE_CRCS = {50, 124, 137, 0, 237, 217, 104, 119, 0, 0, 0, 89, 0, 0, 0, 0, 0, 0, 0, 0, 214, 159, 220, 168, 24, 23, 170, 144, 67, 115, 39, 246, 185, 104, 237, 244, 222, 212, 9, 254, 230, 28, 28, 132, 221, 232, 11, 153, 41, 39, 78, 0, 0, 0, 15, 3, 0, 0, 0, 0, 0, 153, 183, 51, 59, 118, 148, 21, 0, 243, 124, 0, 0, 38, 20, 158, 152, 143, 0, 0, 0, 106, 49, 22, 143, 140, 5, 150, 0, 231, 183, 63, 54, 0, 0, 0, 0, 0, 0, 0, 175, 102, 158, 208, 56, 93, 138, 108, 32, 185, 84, 34, 174, 124, 237, 4, 76, 128, 56, 116, 134, 237, 203, 250, 87, 203, 220, 25, 226, 46, 29, 223, 85, 6, 229, 203, 1, 195, 109, 168, 181, 47, 72, 131, 0, 0, 103, 154, 178, 200, 134, 219, 208, 188, 84, 22, 19, 21, 134, 0, 78, 68, 189, 127, 154, 21, 21, 144, 1, 234, 73, 181, 22, 83, 167, 138, 234, 240, 47, 189, 52, 174, 229, 85, 0, 0, 72, 0, 0, 0, 0, 92, 36, 71, 98, 0, 0, 0, 0, 0, 134, 205, 94, 128, 54, 63, 112, 201, 221, 226, 238, 0, 0, 0, 0, 241, 155, 43, 149, 0, 0, 0, 0, 0, 0, 0, 207, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 90, 104, 85, 95, 130, 223, 0, 8, 204, 49, 170, 44, 83, 46, 0};
-    private static final int CRC_INIT_VALUE = 0xffff;
+    private static final int[] MAVLINK_MESSAGE_CRCS = {50, 124, 137, 0, 237, 217, 104, 119, 0, 0, 0, 89, 0, 0, 0, 0, 0, 0, 0, 0, 214, 159, 220, 168, 24, 23, 170, 144, 67, 115, 39, 246, 185, 104, 237, 244, 222, 212, 9, 254, 230, 28, 28, 132, 221, 232, 11, 153, 41, 39, 78, 196, 0, 0, 15, 3, 0, 0, 0, 0, 0, 153, 183, 51, 59, 118, 148, 21, 0, 243, 124, 0, 0, 38, 20, 158, 152, 143, 0, 0, 0, 106, 49, 22, 143, 140, 5, 150, 0, 231, 183, 63, 54, 0, 0, 0, 0, 0, 0, 0, 175, 102, 158, 208, 56, 93, 138, 108, 32, 185, 84, 34, 174, 124, 237, 4, 76, 128, 56, 116, 134, 237, 203, 250, 87, 203, 220, 25, 226, 46, 29, 223, 85, 6, 229, 203, 1, 195, 109, 168, 181, 47, 72, 131, 0, 0, 103, 154, 178, 200, 134, 219, 208, 188, 84, 22, 19, 21, 134, 0, 78, 68, 189, 127, 154, 21, 21, 144, 1, 234, 73, 181, 22, 83, 167, 138, 234, 240, 47, 189, 52, 174, 229, 85, 0, 0, 72, 0, 0, 0, 0, 92, 36, 71, 98, 0, 0, 0, 0, 0, 134, 205, 94, 128, 54, 63, 112, 201, 221, 226, 238, 0, 0, 0, 0, 241, 155, 43, 149, 0, 0, 0, 0, 0, 0, 0, 207, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 90, 104, 85, 95, 130, 184, 0, 8, 204, 49, 170, 44, 83, 46, 0};
+    public static final int CRC_INIT_VALUE = 0xffff;
+
+    /**
+    * CRC_EXTRA bytes of MAVLink 2 messages with 24-bit ids (msgid, crc_extra),
+    * sorted by msgid
+    */
+    private static final int[] MAVLINK_EXT_MESSAGE_CRCS_INIT = {
+        256, 71,  // SETUP_SIGNING
+        257, 131, // BUTTON_CHANGE
+        258, 187, // PLAY_TUNE
+        259, 92,  // CAMERA_INFORMATION
+        260, 146, // CAMERA_SETTINGS
+        261, 179, // STORAGE_INFORMATION
+        262, 12,  // CAMERA_CAPTURE_STATUS
+        263, 133, // CAMERA_IMAGE_CAPTURED
+        264, 49,  // FLIGHT_INFORMATION
+        265, 26,  // MOUNT_ORIENTATION
+        266, 193, // LOGGING_DATA
+        267, 35,  // LOGGING_DATA_ACKED
+        268, 14,  // LOGGING_ACK
+        299, 19,  // WIFI_CONFIG_AP
+        300, 217, // PROTOCOL_VERSION
+        310, 28,  // UAVCAN_NODE_STATUS
+        311, 95,  // UAVCAN_NODE_INFO
+        330, 23,  // OBSTACLE_DISTANCE
+        331, 91,  // ODOMETRY
+    };
+
+    /**
+    * Sorted message ids and corresponding CRC_EXTRA bytes, replaced as a whole
+    * when a message is registered so that lookups need no lock
+    */
+    private static volatile int[][] extMessageCrcs = splitPairs(MAVLINK_EXT_MESSAGE_CRCS_INIT);
     private int crcValue;
 
     /**
@@ -41,7 +75,7 @@ public class CRC {
     *            The message id number
     */
     public void finish_checksum(int msgid) {
-        update_checksum(MAVLINK_MESSAGE_CRCS[msgid]);
+        update_checksum(getCrcExtra(msgid));
     }
 
     /**
@@ -52,6 +86,88 @@ public class CRC {
         crcValue = CRC_INIT_VALUE;
     }
 
+    /**
+    * Accumulate one byte into a CRC value held by the caller. This is the
+    * same computation as {@link #update_checksum(int)} but without any object
+    * state so it can be inlined in tight framing loops.
+    *
+    * @param data
+    *            new char to hash
+    * @param crc
+    *            current CRC value
+    * @return the updated CRC value
+    **/
+    public static int accumulate(int data, int crc) {
+        int tmp = (data & 0xff) ^ (crc & 0xff);
+        tmp ^= (tmp << 4) & 0xff;
+        return ((crc >> 8) & 0xff) ^ (tmp << 8) ^ (tmp << 3) ^ ((tmp >> 4) & 0xf);
+    }
+
+    /**
+    * Get the CRC_EXTRA seed byte used to finish the checksum of a message
+    *
+    * @param msgid
+    *            The message id number (up to 24-bits with MAVLink 2)
+    * @return the CRC_EXTRA byte or -1 if the message id is unknown
+    */
+    public static int getCrcExtra(int msgid) {
+        if (msgid < MAVLINK_MESSAGE_CRCS.length)
+            return MAVLINK_MESSAGE_CRCS[msgid];
+
+        int[][] table = extMessageCrcs;
+        int i = Arrays.binarySearch(table[0], msgid);
+        return (i >= 0) ? table[1][i] : -1;
+    }
+
+    /**
+    * Register the CRC_EXTRA byte of a MAVLink 2 message with an id above 255
+    * so that it can be validated by the parser.
+    *
+    * @param msgid
+    *            The message id number
+    * @param crcExtra
+    *            The CRC_EXTRA byte of this message
+    */
+    public static void registerCrcExtra(int msgid, int crcExtra) {
+        if (msgid < MAVLINK_MESSAGE_CRCS.length || msgid > 0xFFFFFF)
+            throw new IllegalArgumentException("Extended message id must be between 256 and 2^24-1");
+
+        synchronized (CRC.class) {
+            int[][] table = extMessageCrcs;
+            int i = Arrays.binarySearch(table[0], msgid);
+            if (i >= 0) {
+                int[] crcs = table[1].clone();
+                crcs[i] = crcExtra & 0xff;
+                extMessageCrcs = new int[][] {table[0], crcs};
+                return;
+            }
+
+            // insert at the right place to keep ids sorted
+            i = -i - 1;
+            int len = table[0].length;
+            int[] ids = new int[len + 1];
+            int[] crcs = new int[len + 1];
+            System.arraycopy(table[0], 0, ids, 0, i);
+            System.arraycopy(table[1], 0, crcs, 0, i);
+            ids[i] = msgid;
+            crcs[i] = crcExtra & 0xff;
+            System.arraycopy(table[0], i, ids, i + 1, len - i);
+            System.arraycopy(table[1], i, crcs, i + 1, len - i);
+            extMessageCrcs = new int[][] {ids, crcs};
+        }
+    }
+
+    private static int[][] splitPairs(int[] pairs) {
+        int n = pairs.length / 2;
+        int[] ids = new int[n];
+        int[] crcs = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = pairs[2*i];
+            crcs[i] = pairs[2*i+1];
+        }
+        return new int[][] {ids, crcs};
+    }
+
     public int getMSB() {
         return ((crcValue >> 8) & 0xff);
     }
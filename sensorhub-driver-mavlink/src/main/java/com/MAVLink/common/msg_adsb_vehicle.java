@@ -16,7 +16,7 @@ import com.MAVLink.Messages.MAVLinkPayload;
 public class msg_adsb_vehicle extends MAVLinkMessage{
 
     public static final int MAVLINK_MSG_ID_ADSB_VEHICLE = 246;
-    public static final int MAVLINK_MSG_LENGTH = 40;
+    public static final int MAVLINK_MSG_LENGTH = 38;
     private static final long serialVersionUID = MAVLINK_MSG_ID_ADSB_VEHICLE;
 
 
@@ -37,30 +37,35 @@ public class msg_adsb_vehicle extends MAVLinkMessage{
     public int lon;
       
     /**
-    * Altitude(ASL) in meters
+    * Altitude(ASL) in millimeters
     */
-    public float altitude;
+    public int altitude;
       
     /**
-    * The horizontal velocity in meters/second
+    * Course over ground in centidegrees
     */
-    public float hor_velocity;
+    public int heading;
       
     /**
-    * The vertical velocity in meters/second, positive is up
+    * The horizontal velocity in centimeters/second
     */
-    public float ver_velocity;
+    public int hor_velocity;
       
     /**
-    * Course over ground in centidegrees
+    * The vertical velocity in centimeters/second, positive is up
     */
-    public int heading;
+    public short ver_velocity;
       
     /**
     * Flags to indicate various statuses including valid data fields
     */
     public int flags;
       
+    /**
+    * Squawk code
+    */
+    public int squawk;
+      
     /**
     * Type from ADSB_ALTITUDE_TYPE enum
     */
@@ -99,16 +104,18 @@ public class msg_adsb_vehicle extends MAVLinkMessage{
               
         packet.payload.putInt(lon);
               
-        packet.payload.putFloat(altitude);
+        packet.payload.putInt(altitude);
               
-        packet.payload.putFloat(hor_velocity);
+        packet.payload.putUnsignedShort(heading);
               
-        packet.payload.putFloat(ver_velocity);
+        packet.payload.putUnsignedShort(hor_velocity);
               
-        packet.payload.putUnsignedShort(heading);
+        packet.payload.putShort(ver_velocity);
               
         packet.payload.putUnsignedShort(flags);
               
+        packet.payload.putUnsignedShort(squawk);
+              
         packet.payload.putUnsignedByte(altitude_type);
               
         
@@ -138,16 +145,18 @@ public class msg_adsb_vehicle extends MAVLinkMessage{
               
         this.lon = payload.getInt();
               
-        this.altitude = payload.getFloat();
+        this.altitude = payload.getInt();
               
-        this.hor_velocity = payload.getFloat();
+        this.heading = payload.getUnsignedShort();
               
-        this.ver_velocity = payload.getFloat();
+        this.hor_velocity = payload.getUnsignedShort();
               
-        this.heading = payload.getUnsignedShort();
+        this.ver_velocity = payload.getShort();
               
         this.flags = payload.getUnsignedShort();
               
+        this.squawk = payload.getUnsignedShort();
+              
         this.altitude_type = payload.getUnsignedByte();
               
          
@@ -215,7 +224,7 @@ public class msg_adsb_vehicle extends MAVLinkMessage{
     * Returns a string with the MSG name and data
     */
     public String toString(){
-        return "MAVLINK_MSG_ID_ADSB_VEHICLE -"+" ICAO_address:"+ICAO_address+" lat:"+lat+" lon:"+lon+" altitude:"+altitude+" hor_velocity:"+hor_velocity+" ver_velocity:"+ver_velocity+" heading:"+heading+" flags:"+flags+" altitude_type:"+altitude_type+" callsign:"+callsign+" emitter_type:"+emitter_type+" tslc:"+tslc+"";
+        return "MAVLINK_MSG_ID_ADSB_VEHICLE -"+" ICAO_address:"+ICAO_address+" lat:"+lat+" lon:"+lon+" altitude:"+altitude+" heading:"+heading+" hor_velocity:"+hor_velocity+" ver_velocity:"+ver_velocity+" flags:"+flags+" squawk:"+squawk+" altitude_type:"+altitude_type+" callsign:"+callsign+" emitter_type:"+emitter_type+" tslc:"+tslc+"";
     }
 }
         
\ No newline at end of file
@@ -94,6 +94,17 @@ public class msg_hil_gps extends MAVLinkMessage{
     */
     public MAVLinkPacket pack(){
         MAVLinkPacket packet = new MAVLinkPacket();
+        pack(packet);
+        return packet;
+    }
+
+    /**
+    * Generates the payload into an existing packet so it can be reused
+    * @param packet
+    */
+    @Override
+    public void pack(MAVLinkPacket packet){
+        packet.payload.clear();
         packet.len = MAVLINK_MSG_LENGTH;
         packet.sysid = 255;
         packet.compid = 190;
@@ -125,7 +136,6 @@ public class msg_hil_gps extends MAVLinkMessage{
               
         packet.payload.putUnsignedByte(satellites_visible);
         
-        return packet;
     }
 
     /**
@@ -108,6 +108,17 @@ public class msg_hil_state_quaternion extends MAVLinkMessage{
     */
     public MAVLinkPacket pack(){
         MAVLinkPacket packet = new MAVLinkPacket();
+        pack(packet);
+        return packet;
+    }
+
+    /**
+    * Generates the payload into an existing packet so it can be reused
+    * @param packet
+    */
+    @Override
+    public void pack(MAVLinkPacket packet){
+        packet.payload.clear();
         packet.len = MAVLINK_MSG_LENGTH;
         packet.sysid = 255;
         packet.compid = 190;
@@ -149,7 +160,6 @@ public class msg_hil_state_quaternion extends MAVLinkMessage{
               
         packet.payload.putShort(zacc);
         
-        return packet;
     }
 
     /**
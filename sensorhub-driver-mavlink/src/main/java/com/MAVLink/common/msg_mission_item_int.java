@@ -99,6 +99,17 @@ public class msg_mission_item_int extends MAVLinkMessage{
     */
     public MAVLinkPacket pack(){
         MAVLinkPacket packet = new MAVLinkPacket();
+        pack(packet);
+        return packet;
+    }
+
+    /**
+    * Generates the payload into an existing packet so it can be reused
+    * @param packet
+    */
+    @Override
+    public void pack(MAVLinkPacket packet){
+        packet.payload.clear();
         packet.len = MAVLINK_MSG_LENGTH;
         packet.sysid = 255;
         packet.compid = 190;
@@ -132,7 +143,6 @@ public class msg_mission_item_int extends MAVLinkMessage{
               
         packet.payload.putUnsignedByte(autocontinue);
         
-        return packet;
     }
 
     /**
@@ -0,0 +1,103 @@
+/* AUTO-GENERATED FILE.  DO NOT MODIFY.
+ *
+ * This class was automatically generated by the
+ * java mavlink generator tool. It should not be modified by hand.
+ */
+
+// MESSAGE MISSION_REQUEST_INT PACKING
+package com.MAVLink.common;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.Messages.MAVLinkPayload;
+        
+/**
+* Request the information of the mission item with the sequence number seq. The response of the system to this message should be a MISSION_ITEM_INT message. http://qgroundcontrol.org/mavlink/waypoint_protocol
+*/
+public class msg_mission_request_int extends MAVLinkMessage{
+
+    public static final int MAVLINK_MSG_ID_MISSION_REQUEST_INT = 51;
+    public static final int MAVLINK_MSG_LENGTH = 4;
+    private static final long serialVersionUID = MAVLINK_MSG_ID_MISSION_REQUEST_INT;
+
+
+      
+    /**
+    * Sequence
+    */
+    public int seq;
+      
+    /**
+    * System ID
+    */
+    public short target_system;
+      
+    /**
+    * Component ID
+    */
+    public short target_component;
+    
+
+    /**
+    * Generates the payload for a mavlink message for a message of this type
+    * @return
+    */
+    public MAVLinkPacket pack(){
+        MAVLinkPacket packet = new MAVLinkPacket();
+        packet.len = MAVLINK_MSG_LENGTH;
+        packet.sysid = 255;
+        packet.compid = 190;
+        packet.msgid = MAVLINK_MSG_ID_MISSION_REQUEST_INT;
+              
+        packet.payload.putUnsignedShort(seq);
+              
+        packet.payload.putUnsignedByte(target_system);
+              
+        packet.payload.putUnsignedByte(target_component);
+        
+        return packet;
+    }
+
+    /**
+    * Decode a mission_request_int message into this class fields
+    *
+    * @param payload The message to decode
+    */
+    public void unpack(MAVLinkPayload payload) {
+        payload.resetIndex();
+              
+        this.seq = payload.getUnsignedShort();
+              
+        this.target_system = payload.getUnsignedByte();
+              
+        this.target_component = payload.getUnsignedByte();
+        
+    }
+
+    /**
+    * Constructor for a new message, just initializes the msgid
+    */
+    public msg_mission_request_int(){
+        msgid = MAVLINK_MSG_ID_MISSION_REQUEST_INT;
+    }
+
+    /**
+    * Constructor for a new message, initializes the message with the payload
+    * from a mavlink packet
+    *
+    */
+    public msg_mission_request_int(MAVLinkPacket mavLinkPacket){
+        this.sysid = mavLinkPacket.sysid;
+        this.compid = mavLinkPacket.compid;
+        this.msgid = MAVLINK_MSG_ID_MISSION_REQUEST_INT;
+        unpack(mavLinkPacket.payload);        
+    }
+
+          
+    /**
+    * Returns a string with the MSG name and data
+    */
+    public String toString(){
+        return "MAVLINK_MSG_ID_MISSION_REQUEST_INT -"+" seq:"+seq+" target_system:"+target_system+" target_component:"+target_component+"";
+    }
+}
+        
\ No newline at end of file
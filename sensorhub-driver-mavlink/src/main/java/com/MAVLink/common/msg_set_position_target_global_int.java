@@ -108,6 +108,17 @@ public class msg_set_position_target_global_int extends MAVLinkMessage{
     */
     public MAVLinkPacket pack(){
         MAVLinkPacket packet = new MAVLinkPacket();
+        pack(packet);
+        return packet;
+    }
+
+    /**
+    * Generates the payload into an existing packet so it can be reused
+    * @param packet
+    */
+    @Override
+    public void pack(MAVLinkPacket packet){
+        packet.payload.clear();
         packet.len = MAVLINK_MSG_LENGTH;
         packet.sysid = 255;
         packet.compid = 190;
@@ -145,7 +156,6 @@ public class msg_set_position_target_global_int extends MAVLinkMessage{
               
         packet.payload.putUnsignedByte(coordinate_frame);
         
-        return packet;
     }
 
     /**
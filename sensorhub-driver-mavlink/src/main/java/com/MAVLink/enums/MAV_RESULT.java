@@ -15,6 +15,7 @@ public class MAV_RESULT {
    public static final int MAV_RESULT_DENIED = 2; /* Command PERMANENTLY DENIED | */
    public static final int MAV_RESULT_UNSUPPORTED = 3; /* Command UNKNOWN/UNSUPPORTED | */
    public static final int MAV_RESULT_FAILED = 4; /* Command executed, but failed | */
-   public static final int MAV_RESULT_ENUM_END = 5; /*  | */
+   public static final int MAV_RESULT_IN_PROGRESS = 5; /* Command is valid and is being executed. This will be followed by further progress updates, i.e. the component may send further COMMAND_ACK messages with result MAV_RESULT_IN_PROGRESS (at a rate decided by the implementation), and must terminate by sending a COMMAND_ACK message with final result of the operation | */
+   public static final int MAV_RESULT_ENUM_END = 6; /*  | */
 }
             
\ No newline at end of file
@@ -0,0 +1,167 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_adsb_vehicle;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of ADSB_VEHICLE messages
+ * </p>
+ *
+ * @see msg_adsb_vehicle
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_adsb_vehicle extends MAVLinkView
+{
+    /**
+     * Offset of tslc field, the only one changing when an aircraft is not moving
+     */
+    public static final int TSLC_OFFSET = 37;
+
+    /**
+     * Offset and length of callsign field, including the terminating null
+     */
+    public static final int CALLSIGN_OFFSET = 27;
+    public static final int CALLSIGN_LEN = 9;
+
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_adsb_vehicle.MAVLINK_MSG_ID_ADSB_VEHICLE;
+    }
+
+
+    /**
+     * ICAO address
+     */
+    public int ICAO_address()
+    {
+        return payload.getInt(0);
+    }
+
+
+    /**
+     * Latitude, expressed as degrees * 1E7
+     */
+    public int lat()
+    {
+        return payload.getInt(4);
+    }
+
+
+    /**
+     * Longitude, expressed as degrees * 1E7
+     */
+    public int lon()
+    {
+        return payload.getInt(8);
+    }
+
+
+    /**
+     * Altitude(ASL) in millimeters
+     */
+    public int altitude()
+    {
+        return payload.getInt(12);
+    }
+
+
+    /**
+     * Course over ground in centidegrees
+     */
+    public int heading()
+    {
+        return payload.getShort(16) & 0xFFFF;
+    }
+
+
+    /**
+     * The horizontal velocity in centimeters/second
+     */
+    public int hor_velocity()
+    {
+        return payload.getShort(18) & 0xFFFF;
+    }
+
+
+    /**
+     * The vertical velocity in centimeters/second, positive is up
+     */
+    public short ver_velocity()
+    {
+        return payload.getShort(20);
+    }
+
+
+    /**
+     * Flags to indicate various statuses including valid data fields
+     */
+    public int flags()
+    {
+        return payload.getShort(22) & 0xFFFF;
+    }
+
+
+    /**
+     * Squawk code
+     */
+    public int squawk()
+    {
+        return payload.getShort(24) & 0xFFFF;
+    }
+
+
+    /**
+     * Type from ADSB_ALTITUDE_TYPE enum
+     */
+    public short altitude_type()
+    {
+        return (short)(payload.get(26) & 0xFF);
+    }
+
+
+    /**
+     * The callsign, 8+null
+     */
+    public byte callsign(int i)
+    {
+        return payload.get(CALLSIGN_OFFSET + i);
+    }
+
+
+    /**
+     * Type from ADSB_EMITTER_TYPE enum
+     */
+    public short emitter_type()
+    {
+        return (short)(payload.get(36) & 0xFF);
+    }
+
+
+    /**
+     * Time since last communication in seconds
+     */
+    public short tslc()
+    {
+        return (short)(payload.get(TSLC_OFFSET) & 0xFF);
+    }
+}
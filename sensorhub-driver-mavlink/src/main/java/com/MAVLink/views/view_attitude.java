@@ -0,0 +1,101 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_attitude;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of ATTITUDE messages
+ * </p>
+ *
+ * @see msg_attitude
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_attitude extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_attitude.MAVLINK_MSG_ID_ATTITUDE;
+    }
+
+
+    /**
+     * Timestamp (milliseconds since system boot)
+     */
+    public long time_boot_ms()
+    {
+        return payload.getInt(0) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Roll angle (rad, -pi..+pi)
+     */
+    public float roll()
+    {
+        return payload.getFloat(4);
+    }
+
+
+    /**
+     * Pitch angle (rad, -pi..+pi)
+     */
+    public float pitch()
+    {
+        return payload.getFloat(8);
+    }
+
+
+    /**
+     * Yaw angle (rad, -pi..+pi)
+     */
+    public float yaw()
+    {
+        return payload.getFloat(12);
+    }
+
+
+    /**
+     * Roll angular speed (rad/s)
+     */
+    public float rollspeed()
+    {
+        return payload.getFloat(16);
+    }
+
+
+    /**
+     * Pitch angular speed (rad/s)
+     */
+    public float pitchspeed()
+    {
+        return payload.getFloat(20);
+    }
+
+
+    /**
+     * Yaw angular speed (rad/s)
+     */
+    public float yawspeed()
+    {
+        return payload.getFloat(24);
+    }
+}
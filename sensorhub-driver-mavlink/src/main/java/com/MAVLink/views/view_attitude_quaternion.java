@@ -0,0 +1,110 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_attitude_quaternion;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of ATTITUDE_QUATERNION messages
+ * </p>
+ *
+ * @see msg_attitude_quaternion
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_attitude_quaternion extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_attitude_quaternion.MAVLINK_MSG_ID_ATTITUDE_QUATERNION;
+    }
+
+
+    /**
+     * Timestamp (milliseconds since system boot)
+     */
+    public long time_boot_ms()
+    {
+        return payload.getInt(0) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Quaternion component 1, w (1 in null-rotation)
+     */
+    public float q1()
+    {
+        return payload.getFloat(4);
+    }
+
+
+    /**
+     * Quaternion component 2, x (0 in null-rotation)
+     */
+    public float q2()
+    {
+        return payload.getFloat(8);
+    }
+
+
+    /**
+     * Quaternion component 3, y (0 in null-rotation)
+     */
+    public float q3()
+    {
+        return payload.getFloat(12);
+    }
+
+
+    /**
+     * Quaternion component 4, z (0 in null-rotation)
+     */
+    public float q4()
+    {
+        return payload.getFloat(16);
+    }
+
+
+    /**
+     * Roll angular speed (rad/s)
+     */
+    public float rollspeed()
+    {
+        return payload.getFloat(20);
+    }
+
+
+    /**
+     * Pitch angular speed (rad/s)
+     */
+    public float pitchspeed()
+    {
+        return payload.getFloat(24);
+    }
+
+
+    /**
+     * Yaw angular speed (rad/s)
+     */
+    public float yawspeed()
+    {
+        return payload.getFloat(28);
+    }
+}
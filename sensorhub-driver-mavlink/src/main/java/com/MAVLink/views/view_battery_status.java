@@ -0,0 +1,119 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_battery_status;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of BATTERY_STATUS messages
+ * </p>
+ *
+ * @see msg_battery_status
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_battery_status extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_battery_status.MAVLINK_MSG_ID_BATTERY_STATUS;
+    }
+
+
+    /**
+     * Consumed charge, in milliampere hours (1 = 1 mAh), -1: autopilot does not provide mAh consumption estimate
+     */
+    public int current_consumed()
+    {
+        return payload.getInt(0);
+    }
+
+
+    /**
+     * Consumed energy, in 100*Joules (intergrated U*I*dt)  (1 = 100 Joule), -1: autopilot does not provide energy consumption estimate
+     */
+    public int energy_consumed()
+    {
+        return payload.getInt(4);
+    }
+
+
+    /**
+     * Temperature of the battery in centi-degrees celsius. INT16_MAX for unknown temperature.
+     */
+    public short temperature()
+    {
+        return payload.getShort(8);
+    }
+
+
+    /**
+     * Battery voltage of cells, in millivolts (1 = 1 millivolt)
+     */
+    public int voltages(int i)
+    {
+        return payload.getShort(10 + i*2) & 0xFFFF;
+    }
+
+
+    /**
+     * Battery current, in 10*milliamperes (1 = 10 milliampere), -1: autopilot does not measure the current
+     */
+    public short current_battery()
+    {
+        return payload.getShort(30);
+    }
+
+
+    /**
+     * Battery ID
+     */
+    public short id()
+    {
+        return (short)(payload.get(32) & 0xFF);
+    }
+
+
+    /**
+     * Function of the battery
+     */
+    public short battery_function()
+    {
+        return (short)(payload.get(33) & 0xFF);
+    }
+
+
+    /**
+     * Type (chemistry) of the battery
+     */
+    public short type()
+    {
+        return (short)(payload.get(34) & 0xFF);
+    }
+
+
+    /**
+     * Remaining battery energy: (0%: 0, 100%: 100), -1: autopilot does not estimate the remaining battery
+     */
+    public byte battery_remaining()
+    {
+        return payload.get(35);
+    }
+}
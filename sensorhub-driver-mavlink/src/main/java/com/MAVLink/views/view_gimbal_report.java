@@ -0,0 +1,146 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.ardupilotmega.msg_gimbal_report;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of GIMBAL_REPORT messages
+ * </p>
+ *
+ * @see msg_gimbal_report
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_gimbal_report extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_gimbal_report.MAVLINK_MSG_ID_GIMBAL_REPORT;
+    }
+
+
+    /**
+     * Time since last update (seconds)
+     */
+    public float delta_time()
+    {
+        return payload.getFloat(0);
+    }
+
+
+    /**
+     * Delta angle X (radians)
+     */
+    public float delta_angle_x()
+    {
+        return payload.getFloat(4);
+    }
+
+
+    /**
+     * Delta angle Y (radians)
+     */
+    public float delta_angle_y()
+    {
+        return payload.getFloat(8);
+    }
+
+
+    /**
+     * Delta angle X (radians)
+     */
+    public float delta_angle_z()
+    {
+        return payload.getFloat(12);
+    }
+
+
+    /**
+     * Delta velocity X (m/s)
+     */
+    public float delta_velocity_x()
+    {
+        return payload.getFloat(16);
+    }
+
+
+    /**
+     * Delta velocity Y (m/s)
+     */
+    public float delta_velocity_y()
+    {
+        return payload.getFloat(20);
+    }
+
+
+    /**
+     * Delta velocity Z (m/s)
+     */
+    public float delta_velocity_z()
+    {
+        return payload.getFloat(24);
+    }
+
+
+    /**
+     * Joint ROLL (radians)
+     */
+    public float joint_roll()
+    {
+        return payload.getFloat(28);
+    }
+
+
+    /**
+     * Joint EL (radians)
+     */
+    public float joint_el()
+    {
+        return payload.getFloat(32);
+    }
+
+
+    /**
+     * Joint AZ (radians)
+     */
+    public float joint_az()
+    {
+        return payload.getFloat(36);
+    }
+
+
+    /**
+     * System ID
+     */
+    public short target_system()
+    {
+        return (short)(payload.get(40) & 0xFF);
+    }
+
+
+    /**
+     * Component ID
+     */
+    public short target_component()
+    {
+        return (short)(payload.get(41) & 0xFF);
+    }
+}
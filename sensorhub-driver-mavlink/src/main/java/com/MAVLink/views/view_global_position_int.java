@@ -0,0 +1,119 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_global_position_int;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of GLOBAL_POSITION_INT messages
+ * </p>
+ *
+ * @see msg_global_position_int
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_global_position_int extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT;
+    }
+
+
+    /**
+     * Timestamp (milliseconds since system boot)
+     */
+    public long time_boot_ms()
+    {
+        return payload.getInt(0) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Latitude, expressed as * 1E7
+     */
+    public int lat()
+    {
+        return payload.getInt(4);
+    }
+
+
+    /**
+     * Longitude, expressed as * 1E7
+     */
+    public int lon()
+    {
+        return payload.getInt(8);
+    }
+
+
+    /**
+     * Altitude in meters, expressed as * 1000 (millimeters), AMSL (not WGS84 - note that virtually all GPS modules provide the AMSL as well)
+     */
+    public int alt()
+    {
+        return payload.getInt(12);
+    }
+
+
+    /**
+     * Altitude above ground in meters, expressed as * 1000 (millimeters)
+     */
+    public int relative_alt()
+    {
+        return payload.getInt(16);
+    }
+
+
+    /**
+     * Ground X Speed (Latitude), expressed as m/s * 100
+     */
+    public short vx()
+    {
+        return payload.getShort(20);
+    }
+
+
+    /**
+     * Ground Y Speed (Longitude), expressed as m/s * 100
+     */
+    public short vy()
+    {
+        return payload.getShort(22);
+    }
+
+
+    /**
+     * Ground Z Speed (Altitude), expressed as m/s * 100
+     */
+    public short vz()
+    {
+        return payload.getShort(24);
+    }
+
+
+    /**
+     * Compass heading in degrees * 100, 0.0..359.99 degrees. If unknown, set to: UINT16_MAX
+     */
+    public int hdg()
+    {
+        return payload.getShort(26) & 0xFFFF;
+    }
+}
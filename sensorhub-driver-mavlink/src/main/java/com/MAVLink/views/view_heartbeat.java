@@ -0,0 +1,92 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package com.MAVLink.views;
+
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_heartbeat;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of HEARTBEAT messages
+ * </p>
+ *
+ * @see msg_heartbeat
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_heartbeat extends MAVLinkView
+{
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT;
+    }
+
+
+    /**
+     * A bitfield for use for autopilot-specific flags.
+     */
+    public long custom_mode()
+    {
+        return payload.getInt(0) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Type of the MAV (quadrotor, helicopter, etc., up to 15 types, defined in MAV_TYPE ENUM)
+     */
+    public short type()
+    {
+        return (short)(payload.get(4) & 0xFF);
+    }
+
+
+    /**
+     * Autopilot type / class. defined in MAV_AUTOPILOT ENUM
+     */
+    public short autopilot()
+    {
+        return (short)(payload.get(5) & 0xFF);
+    }
+
+
+    /**
+     * System mode bitfield, see MAV_MODE_FLAG ENUM in mavlink/include/mavlink_types.h
+     */
+    public short base_mode()
+    {
+        return (short)(payload.get(6) & 0xFF);
+    }
+
+
+    /**
+     * System status flag, see MAV_STATE ENUM
+     */
+    public short system_status()
+    {
+        return (short)(payload.get(7) & 0xFF);
+    }
+
+
+    /**
+     * MAVLink version, not writable by user, gets added by protocol because of magic data type: uint8_t_mavlink_version
+     */
+    public short mavlink_version()
+    {
+        return (short)(payload.get(8) & 0xFF);
+    }
+}
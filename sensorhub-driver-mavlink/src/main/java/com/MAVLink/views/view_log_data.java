@@ -0,0 +1,90 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package com.MAVLink.views;
+
+import java.nio.ByteBuffer;
+import com.MAVLink.Messages.MAVLinkView;
+import com.MAVLink.common.msg_log_data;
+
+
+/**
+ * <p>
+ * Flyweight view on the payload of LOG_DATA messages
+ * </p>
+ *
+ * @see msg_log_data
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class view_log_data extends MAVLinkView
+{
+    static final int DATA_OFFSET = 7;
+
+
+    @Override
+    public int getMsgId()
+    {
+        return msg_log_data.MAVLINK_MSG_ID_LOG_DATA;
+    }
+
+
+    /**
+     * Offset into the log
+     */
+    public long ofs()
+    {
+        return payload.getInt(0) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Log id (from LOG_ENTRY reply)
+     */
+    public int id()
+    {
+        return payload.getShort(4) & 0xFFFF;
+    }
+
+
+    /**
+     * Number of bytes (zero for end of log)
+     */
+    public short count()
+    {
+        return (short)(payload.get(6) & 0xFF);
+    }
+
+
+    /**
+     * log data
+     */
+    public short data(int i)
+    {
+        return (short)(payload.get(DATA_OFFSET + i) & 0xFF);
+    }
+
+
+    /**
+     * Copies log data to a buffer without going through a message object
+     * @param dst destination buffer
+     * @param len number of bytes to copy
+     */
+    public void copyData(ByteBuffer dst, int len)
+    {
+        for (int i = 0; i < len; i++)
+            dst.put(payload.get(DATA_OFFSET + i));
+    }
+}
@@ -0,0 +1,359 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.Vector;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEConstants;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.helper.GeoPosHelper;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_adsb_vehicle;
+
+
+/**
+ * <p>
+ * Output for MAVLink ADSB_VEHICLE messages, publishing the air traffic seen
+ * by the vehicle ADS-B receiver.<br/>
+ * Each aircraft is exposed as a separate entity whose ID is derived from its
+ * ICAO address, and a record is only published when the state reported for
+ * an aircraft changes, since autopilots typically resend the same state at a
+ * fixed rate. State of aircraft is kept in an {@link AdsbTrafficTable} and
+ * in flat arrays indexed by table slot, so the cost of handling a message
+ * and the memory used don't grow with the amount of traffic.
+ * </p><p>
+ * Aircraft entities and their features of interest are registered with the
+ * driver when an aircraft is first seen, and removed when it times out. A
+ * last record flagged as lost is then published for this aircraft.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class AdsbTrafficOutput extends MavlinkOutput
+{
+    static final String ENTITY_ID_PREFIX = "ICAO-";
+    static final long EVICTION_PERIOD = 1000L;
+    static final int STATE_LEN = view_adsb_vehicle.TSLC_OFFSET; // all fields except tslc
+
+    private final view_adsb_vehicle msg = new view_adsb_vehicle();
+    final AdsbTrafficTable table;
+    final byte[] states;
+    final DataBlock[] records;
+    final String[] entityIDs;
+    final String[] hexAddresses;
+    final String[] callsigns;
+    final int[] evictedSlots;
+    long lastEvictionTime;
+
+
+    public AdsbTrafficOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+        this.samplingPeriod = 1.0;
+
+        MavlinkConfig config = parentSensor.getConfiguration();
+        int capacity = Math.max(1, config.adsbMaxAircraft);
+        this.table = new AdsbTrafficTable(capacity, config.adsbTimeout * 1000L);
+        this.states = new byte[capacity * STATE_LEN];
+        this.records = new DataBlock[capacity];
+        this.entityIDs = new String[capacity];
+        this.hexAddresses = new String[capacity];
+        this.callsigns = new String[capacity];
+        this.evictedSlots = new int[capacity];
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "adsbTraffic";
+    }
+
+
+    protected void init()
+    {
+        GeoPosHelper fac = new GeoPosHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(9);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("icao", fac.newText(SWEHelper.getPropertyUri("IcaoAddress"), "ICAO Address", "24-bit ICAO address of aircraft, in hexadecimal"));
+        dataStruct.addComponent("callsign", fac.newText(SWEHelper.getPropertyUri("Callsign"), "Callsign", "Aircraft callsign or flight number"));
+        dataStruct.addComponent("emitterType", fac.newCount(SWEHelper.getPropertyUri("AdsbEmitterType"), "Emitter Type", "ADSB_EMITTER_TYPE code of aircraft"));
+
+        Vector loc = fac.newLocationVectorLLA(SWEConstants.DEF_PLATFORM_LOC);
+        loc.getCoordinate("alt").setReferenceFrame(SWEConstants.VERT_DATUM_EGM96_MSL);
+        dataStruct.addComponent("loc", loc);
+
+        dataStruct.addComponent("heading", fac.newQuantity(SWEHelper.getPropertyUri("GroundTrack"), "Course", "Course over ground, measured clockwise from true north", "deg"));
+        dataStruct.addComponent("hSpeed", fac.newQuantity(SWEHelper.getPropertyUri("GroundSpeed"), "Horizontal Speed", null, "m/s"));
+        dataStruct.addComponent("vSpeed", fac.newQuantity(SWEHelper.getPropertyUri("VerticalSpeed"), "Vertical Speed", "Vertical speed, positive up", "m/s"));
+        dataStruct.addComponent("lost", fac.newBoolean(SWEHelper.getPropertyUri("TrackLost"), "Track Lost", "Set in the last record of an aircraft that is no longer received"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+
+
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
+    {
+        if (!msg.wrap(pkt))
+            return;
+
+        DataBlock dataBlock;
+        String entityID;
+        String newEntityID = null;
+        String newCallsign = null;
+
+        // periodically forget aircraft we haven't heard of in a while
+        evictLostAircraft(msgTime);
+
+        synchronized (table)
+        {
+            // lookup aircraft and only continue if its state changed
+            int icao = msg.ICAO_address();
+            ByteBuffer payload = pkt.payload.payload;
+            int slot = table.get(icao);
+            if (slot < 0)
+            {
+                slot = table.add(icao, msgTime);
+                if (slot < 0)
+                {
+                    parentSensor.getLogger().trace("ADS-B table full, aircraft {} ignored", Integer.toHexString(icao));
+                    return;
+                }
+
+                hexAddresses[slot] = getHexAddress(icao);
+                entityIDs[slot] = newEntityID = ENTITY_ID_PREFIX + hexAddresses[slot];
+                callsigns[slot] = newCallsign = getCallsign();
+            }
+            else
+            {
+                table.touch(slot, msgTime);
+                if (!hasStateChanged(slot, payload))
+                    return;
+                if (hasCallsignChanged(slot, payload))
+                    callsigns[slot] = getCallsign();
+            }
+
+            saveState(slot, payload);
+
+            // populate datablock
+            dataBlock = getNewDataBlock();
+            dataBlock.setDoubleValue(0, msgTime / 1000.);
+            dataBlock.setStringValue(1, hexAddresses[slot]);
+            dataBlock.setStringValue(2, callsigns[slot]);
+            dataBlock.setIntValue(3, msg.emitter_type());
+            dataBlock.setDoubleValue(4, ((double)msg.lat()) / 1e7);
+            dataBlock.setDoubleValue(5, ((double)msg.lon()) / 1e7);
+            dataBlock.setDoubleValue(6, msg.altitude() / 1000.);
+            dataBlock.setDoubleValue(7, msg.heading() / 100.);
+            dataBlock.setFloatValue(8, msg.hor_velocity() / 100f);
+            dataBlock.setFloatValue(9, msg.ver_velocity() / 100f);
+            dataBlock.setBooleanValue(10, false);
+
+            records[slot] = dataBlock;
+            entityID = entityIDs[slot];
+            latestRecord = dataBlock;
+            latestRecordTime = msgTime;
+            updateSamplingPeriod(msgTime);
+        }
+
+        if (newEntityID != null)
+            parentSensor.addTrafficEntity(newEntityID, newCallsign, msgTime);
+
+        eventHandler.publishEvent(new SensorDataEvent(msgTime, entityID, this, dataBlock));
+    }
+
+
+    /*
+     * Remove aircraft that timed out, publish their last record flagged
+     * as lost and unregister their entity
+     */
+    private void evictLostAircraft(long now)
+    {
+        List<DataBlock> lostRecords;
+        List<String> lostEntityIDs;
+
+        synchronized (table)
+        {
+            if (now - lastEvictionTime < EVICTION_PERIOD)
+                return;
+            lastEvictionTime = now;
+
+            int count = table.evictStale(now, evictedSlots);
+            if (count == 0)
+                return;
+
+            parentSensor.getLogger().debug("{} ADS-B aircraft timed out", count);
+            lostRecords = new ArrayList<DataBlock>(count);
+            lostEntityIDs = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++)
+            {
+                int slot = evictedSlots[i];
+                lostRecords.add(getLostRecord(records[slot], now));
+                lostEntityIDs.add(entityIDs[slot]);
+                records[slot] = null;
+            }
+        }
+
+        for (int i = 0; i < lostRecords.size(); i++)
+        {
+            String entityID = lostEntityIDs.get(i);
+            DataBlock lostRecord = lostRecords.get(i);
+            if (lostRecord != null)
+                eventHandler.publishEvent(new SensorDataEvent(now, entityID, this, lostRecord));
+            parentSensor.removeTrafficEntity(entityID);
+        }
+    }
+
+
+    /*
+     * Compare state in message with state saved for this aircraft
+     * Returns true if it changed
+     */
+    private boolean hasStateChanged(int slot, ByteBuffer payload)
+    {
+        int offset = slot * STATE_LEN;
+        for (int i = 0; i < STATE_LEN; i++)
+        {
+            if (states[offset + i] != payload.get(i))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /*
+     * Save raw state of aircraft so we can detect changes without decoding
+     */
+    private void saveState(int slot, ByteBuffer payload)
+    {
+        int offset = slot * STATE_LEN;
+        for (int i = 0; i < STATE_LEN; i++)
+            states[offset + i] = payload.get(i);
+    }
+
+
+    /*
+     * Compare callsign in message with the one saved for this aircraft
+     * so it is only decoded again when it changes
+     */
+    private boolean hasCallsignChanged(int slot, ByteBuffer payload)
+    {
+        int offset = slot * STATE_LEN + view_adsb_vehicle.CALLSIGN_OFFSET;
+        for (int i = 0; i < view_adsb_vehicle.CALLSIGN_LEN; i++)
+        {
+            if (states[offset + i] != payload.get(view_adsb_vehicle.CALLSIGN_OFFSET + i))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /*
+     * Copy of last record of an aircraft, flagged as lost
+     */
+    private DataBlock getLostRecord(DataBlock lastRecord, long time)
+    {
+        if (lastRecord == null)
+            return null;
+
+        DataBlock lostRecord = lastRecord.clone();
+        lostRecord.setDoubleValue(0, time / 1000.);
+        lostRecord.setBooleanValue(10, true);
+        return lostRecord;
+    }
+
+
+    private String getCallsign()
+    {
+        char[] chars = new char[8];
+        int len = 0;
+        byte b;
+        while (len < chars.length && (b = msg.callsign(len)) != 0)
+            chars[len++] = (char)(b & 0xFF);
+        return new String(chars, 0, len).trim();
+    }
+
+
+    /**
+     * Retrieves the latest record produced by this output for the given aircraft
+     * @param entityID ID of aircraft entity, derived from its ICAO address
+     * @return the latest record or null if aircraft is not currently tracked
+     */
+    @Override
+    public DataBlock getLatestRecord(String entityID)
+    {
+        if (entityID == null || !entityID.startsWith(ENTITY_ID_PREFIX))
+            return null;
+
+        int icao;
+        try
+        {
+            icao = (int)Long.parseLong(entityID.substring(ENTITY_ID_PREFIX.length()), 16);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+
+        synchronized (table)
+        {
+            int slot = table.get(icao);
+            if (slot < 0 || table.isStale(slot, System.currentTimeMillis()))
+                return null;
+            return records[slot];
+        }
+    }
+
+
+    /**
+     * @return number of aircraft currently tracked
+     */
+    public int getNumAircraft()
+    {
+        synchronized (table)
+        {
+            return table.size();
+        }
+    }
+
+
+    protected static String getHexAddress(int icao)
+    {
+        String hex = Integer.toHexString(icao).toUpperCase();
+        if (hex.length() >= 6)
+            return hex;
+        return "000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,246 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Arrays;
+
+
+/**
+ * <p>
+ * Fixed capacity table of aircraft tracked with ADS-B, keyed by ICAO address.<br/>
+ * Each aircraft is assigned a slot number that outputs use as an index in
+ * their own per-aircraft arrays. Addresses are mapped to slots by an open
+ * addressing hash index with linear probing on primitive int keys, so lookups
+ * never allocate and cost the same regardless of the number of aircraft.
+ * Aircraft not seen for longer than the eviction timeout are removed and their
+ * slot is reused, which bounds memory even with a lot of traffic.
+ * </p><p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class AdsbTrafficTable
+{
+    static final int EMPTY = -1;
+
+    final int capacity;
+    final long timeout;
+    final int[] index; // hash bucket -> slot
+    final int indexMask;
+    final int[] keys; // slot -> ICAO address
+    final long[] lastSeen; // slot -> last update time
+    final int[] freeSlots;
+    int numFree;
+
+
+    /**
+     * @param capacity maximum number of aircraft tracked simultaneously
+     * @param timeout time after which an aircraft is evicted if no message was received from it, in ms
+     */
+    public AdsbTrafficTable(int capacity, long timeout)
+    {
+        this.capacity = capacity;
+        this.timeout = timeout;
+
+        // keep index at most half full so probe sequences stay short
+        int indexSize = Integer.highestOneBit(Math.max(capacity, 1) * 4 - 1);
+        this.index = new int[indexSize];
+        this.indexMask = indexSize - 1;
+        Arrays.fill(index, EMPTY);
+
+        this.keys = new int[capacity];
+        this.lastSeen = new long[capacity];
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            freeSlots[i] = capacity - 1 - i;
+        this.numFree = capacity;
+    }
+
+
+    /**
+     * @param icao ICAO address of aircraft
+     * @return slot of aircraft or -1 if it is not in the table
+     */
+    public int get(int icao)
+    {
+        int bucket = hash(icao);
+        int slot;
+        while ((slot = index[bucket]) != EMPTY)
+        {
+            if (keys[slot] == icao)
+                return slot;
+            bucket = (bucket + 1) & indexMask;
+        }
+
+        return EMPTY;
+    }
+
+
+    /**
+     * Adds an aircraft to the table.<br/>
+     * Must only be called when {@link #get(int)} returned -1 for this address.
+     * @param icao ICAO address of aircraft
+     * @param time time of first message received from aircraft, in ms
+     * @return slot assigned to aircraft or -1 if table is full
+     */
+    public int add(int icao, long time)
+    {
+        if (numFree == 0)
+            return EMPTY;
+
+        int slot = freeSlots[--numFree];
+        keys[slot] = icao;
+        lastSeen[slot] = time;
+
+        int bucket = hash(icao);
+        while (index[bucket] != EMPTY)
+            bucket = (bucket + 1) & indexMask;
+        index[bucket] = slot;
+
+        return slot;
+    }
+
+
+    /**
+     * Marks aircraft as seen at the given time
+     * @param slot slot of aircraft
+     * @param time time of message, in ms
+     */
+    public void touch(int slot, long time)
+    {
+        lastSeen[slot] = time;
+    }
+
+
+    /**
+     * Removes all aircraft not seen since more than the eviction timeout.<br/>
+     * This scans the whole table so it should only be called periodically,
+     * not for each message.
+     * @param now current time in ms
+     * @return number of aircraft removed
+     */
+    public int evictStale(long now)
+    {
+        return evictStale(now, null);
+    }
+
+
+    /**
+     * Removes all aircraft not seen since more than the eviction timeout,
+     * and reports the slots they occupied.<br/>
+     * Removed slots are only reused by the next call to {@link #add(int, long)}
+     * so the caller can still read the state it keeps for them.
+     * @param now current time in ms
+     * @param evictedSlots array receiving the slots of removed aircraft, of
+     * size at least {@link #getCapacity()}, or null if not needed
+     * @return number of aircraft removed
+     */
+    public int evictStale(long now, int[] evictedSlots)
+    {
+        int count = 0;
+        for (int bucket = 0; bucket < index.length; bucket++)
+        {
+            // check bucket again after removal since entries can be shifted back into it
+            // (entries shifted across the end of the index are checked on the next call)
+            int slot;
+            while ((slot = index[bucket]) != EMPTY && now - lastSeen[slot] > timeout)
+            {
+                removeAt(bucket);
+                if (evictedSlots != null)
+                    evictedSlots[count] = slot;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    /*
+     * Remove entry from index using backward shift deletion, so that
+     * lookups don't need tombstones, and release its slot
+     */
+    private void removeAt(int bucket)
+    {
+        freeSlots[numFree++] = index[bucket];
+
+        int hole = bucket;
+        int next = (bucket + 1) & indexMask;
+        int slot;
+        while ((slot = index[next]) != EMPTY)
+        {
+            // move entry to hole unless its home bucket lies cyclically in (hole, next]
+            int home = hash(keys[slot]);
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask))
+            {
+                index[hole] = slot;
+                hole = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+
+        index[hole] = EMPTY;
+    }
+
+
+    /**
+     * @param slot slot of aircraft
+     * @param now current time in ms
+     * @return true if the aircraft in this slot was not seen since more than the eviction timeout
+     */
+    public boolean isStale(int slot, long now)
+    {
+        return now - lastSeen[slot] > timeout;
+    }
+
+
+    /**
+     * @param slot slot of aircraft
+     * @return ICAO address of aircraft
+     */
+    public int getAddress(int slot)
+    {
+        return keys[slot];
+    }
+
+
+    /**
+     * @return number of aircraft currently tracked
+     */
+    public int size()
+    {
+        return capacity - numFree;
+    }
+
+
+    /**
+     * @return maximum number of aircraft that can be tracked
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+
+    private int hash(int icao)
+    {
+        // ICAO addresses are allocated in blocks so mix bits before masking
+        int h = icao * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & indexMask;
+    }
+}
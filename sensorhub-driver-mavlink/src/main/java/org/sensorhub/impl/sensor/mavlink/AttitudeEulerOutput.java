@@ -21,8 +21,8 @@ import org.sensorhub.api.sensor.SensorException;
 import org.vast.data.TextEncodingImpl;
 import org.vast.swe.SWEConstants;
 import org.vast.swe.helper.GeoPosHelper;
-import com.MAVLink.Messages.MAVLinkMessage;
-import com.MAVLink.common.msg_attitude;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_attitude;
 
 
 /**
@@ -35,6 +35,8 @@ import com.MAVLink.common.msg_attitude;
  */
 public class AttitudeEulerOutput extends MavlinkOutput
 {
+    private final view_attitude msg = new view_attitude();
+    
     
     public AttitudeEulerOutput(MavlinkDriver parentSensor)
     {
@@ -50,6 +52,13 @@ public class AttitudeEulerOutput extends MavlinkOutput
     }
     
     
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+    
+    
     protected void init() throws SensorException
     {
         GeoPosHelper fac = new GeoPosHelper();
@@ -72,21 +81,26 @@ public class AttitudeEulerOutput extends MavlinkOutput
     }
     
     
-    protected void handleMessage(long msgTime, MAVLinkMessage m)
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+    
+    
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
     {
         DataBlock dataBlock = null;
                 
         // process different message types
-        if (m instanceof msg_attitude)
+        if (msg.wrap(pkt))
         {
-            msg_attitude msg = (msg_attitude)m;
-            
             // populate datablock
             dataBlock = getNewDataBlock();
-            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms));
-            dataBlock.setFloatValue(1, (float)Math.toDegrees(msg.yaw));
-            dataBlock.setFloatValue(2, (float)Math.toDegrees(msg.pitch));
-            dataBlock.setFloatValue(3, (float)Math.toDegrees(msg.roll));
+            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms()));
+            dataBlock.setFloatValue(1, (float)Math.toDegrees(msg.yaw()));
+            dataBlock.setFloatValue(2, (float)Math.toDegrees(msg.pitch()));
+            dataBlock.setFloatValue(3, (float)Math.toDegrees(msg.roll()));
             
             updateSamplingPeriod(msgTime);//msg.time_boot_ms);
         }        
@@ -20,8 +20,8 @@ import net.opengis.swe.v20.Vector;
 import org.sensorhub.api.sensor.SensorException;
 import org.vast.data.TextEncodingImpl;
 import org.vast.swe.helper.GeoPosHelper;
-import com.MAVLink.Messages.MAVLinkMessage;
-import com.MAVLink.common.msg_attitude_quaternion;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_attitude_quaternion;
 
 
 /**
@@ -35,6 +35,7 @@ import com.MAVLink.common.msg_attitude_quaternion;
 public class AttitudeQuatOutput extends MavlinkOutput
 {
     private static final String ORIENT_DEF = "http://sensorml.com/ont/swe/property/OrientationQuaternion";
+    private final view_attitude_quaternion msg = new view_attitude_quaternion();
     
     
     public AttitudeQuatOutput(MavlinkDriver parentSensor)
@@ -51,6 +52,13 @@ public class AttitudeQuatOutput extends MavlinkOutput
     }
     
     
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+    
+    
     protected void init() throws SensorException
     {
         GeoPosHelper fac = new GeoPosHelper();
@@ -73,22 +81,27 @@ public class AttitudeQuatOutput extends MavlinkOutput
     }
     
     
-    protected void handleMessage(long msgTime, MAVLinkMessage m)
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+    
+    
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
     {
         DataBlock dataBlock = null;
                 
         // process different message types
-        if (m instanceof msg_attitude_quaternion)
+        if (msg.wrap(pkt))
         {
-            msg_attitude_quaternion msg = (msg_attitude_quaternion)m;
-
             // populate datablock
             dataBlock = getNewDataBlock();
-            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms));
-            dataBlock.setFloatValue(1, msg.q2);
-            dataBlock.setFloatValue(2, msg.q3);
-            dataBlock.setFloatValue(3, msg.q4);
-            dataBlock.setFloatValue(4, msg.q1);            
+            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms()));
+            dataBlock.setFloatValue(1, msg.q2());
+            dataBlock.setFloatValue(2, msg.q3());
+            dataBlock.setFloatValue(3, msg.q4());
+            dataBlock.setFloatValue(4, msg.q1());            
             
             updateSamplingPeriod(msgTime);//msg.time_boot_ms);
         }        
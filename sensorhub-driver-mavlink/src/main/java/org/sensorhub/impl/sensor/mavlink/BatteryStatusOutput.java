@@ -19,8 +19,8 @@ import org.sensorhub.api.sensor.SensorException;
 import org.vast.data.TextEncodingImpl;
 import org.vast.swe.SWEHelper;
 import org.vast.swe.helper.GeoPosHelper;
-import com.MAVLink.Messages.MAVLinkMessage;
-import com.MAVLink.common.msg_battery_status;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_battery_status;
 
 
 /**
@@ -33,6 +33,7 @@ import com.MAVLink.common.msg_battery_status;
  */
 public class BatteryStatusOutput extends MavlinkOutput
 {
+    private final view_battery_status msg = new view_battery_status();
     
     
     public BatteryStatusOutput(MavlinkDriver parentSensor)
@@ -66,19 +67,32 @@ public class BatteryStatusOutput extends MavlinkOutput
     }
     
     
-    protected void handleMessage(long msgTime, MAVLinkMessage m)
+    @Override
+    protected double getRequiredSamplingPeriod()
+    {
+        // battery level doesn't need to be updated faster than 1Hz
+        return Math.max(1.0, super.getRequiredSamplingPeriod());
+    }
+    
+    
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+    
+    
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
     {
         DataBlock dataBlock = null;
                 
         // process different message types
-        if (m instanceof msg_battery_status)
+        if (msg.wrap(pkt))
         {
-            msg_battery_status msg = (msg_battery_status)m;
-
             // populate datablock
             dataBlock = getNewDataBlock();
             dataBlock.setDoubleValue(0, msgTime/1000.);
-            dataBlock.setFloatValue(1, msg.battery_remaining);
+            dataBlock.setFloatValue(1, msg.battery_remaining());
             
             updateSamplingPeriod(msgTime);//msg.time_boot_ms);
         }        
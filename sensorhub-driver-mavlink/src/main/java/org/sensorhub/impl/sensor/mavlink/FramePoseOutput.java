@@ -0,0 +1,288 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataType;
+import net.opengis.swe.v20.Vector;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.module.IModule;
+import org.sensorhub.api.sensor.ISensorDataInterface;
+import org.sensorhub.api.sensor.ISensorModule;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.api.sensor.SensorException;
+import org.sensorhub.impl.SensorHub;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.FramePoseSource;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEConstants;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.helper.GeoPosHelper;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_attitude;
+import com.MAVLink.views.view_gimbal_report;
+import com.MAVLink.views.view_global_position_int;
+
+
+/**
+ * <p>
+ * Output publishing the pose of the vehicle and of its gimbal at the time
+ * of each frame of the configured video streams, so frames can be
+ * georeferenced without joining telemetry and video downstream.<br/>
+ * GLOBAL_POSITION_INT, ATTITUDE and GIMBAL_REPORT samples are kept in a
+ * short history for each vehicle (see {@link MavlinkPoseHistory}), and
+ * the pose is interpolated at the time stamp of every frame record
+ * received from the video outputs. Frames are tagged on the thread
+ * delivering them, and the only objects created per frame are the
+ * published record and its event.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class FramePoseOutput extends MavlinkOutput
+{
+    private final view_global_position_int posMsg = new view_global_position_int();
+    private final view_attitude attMsg = new view_attitude();
+    private final view_gimbal_report gimbalMsg = new view_gimbal_report();
+    final List<FrameListener> frameListeners = new ArrayList<FrameListener>();
+    final double[] pose = new double[MavlinkPoseHistory.POSE_SIZE]; // guarded by this
+    final double[] ages = new double[3]; // guarded by this
+    double maxAge;
+
+
+    /*
+     * Listener tagging frames of one video output
+     */
+    class FrameListener implements IEventListener
+    {
+        final FramePoseSource source;
+        ISensorDataInterface videoOutput;
+
+        FrameListener(FramePoseSource source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public void handleEvent(Event<?> e)
+        {
+            if (e instanceof SensorDataEvent)
+            {
+                MavlinkVehicle vehicle = getVehicle(source.systemID);
+                if (vehicle == null)
+                    return;
+
+                for (DataBlock frame: ((SensorDataEvent)e).getRecords())
+                    tagFrame(vehicle, frame.getDoubleValue(0));
+            }
+        }
+    }
+
+
+    public FramePoseOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "framePose";
+    }
+
+
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+
+
+    protected void init() throws SensorException
+    {
+        MavlinkConfig config = parentSensor.getConfiguration();
+        this.maxAge = config.framePoseMaxAge;
+
+        GeoPosHelper fac = new GeoPosHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(7);
+        dataStruct.setName(getName());
+
+        // frame time stamp
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+
+        // lat/lon/alt location
+        Vector loc = fac.newLocationVectorLLA(SWEConstants.DEF_PLATFORM_LOC);
+        loc.setLocalFrame("#" + MavlinkDriver.BODY_FRAME);
+        loc.getCoordinate("alt").setReferenceFrame(SWEConstants.VERT_DATUM_EGM96_MSL);
+        dataStruct.addComponent("loc", loc);
+
+        // platform attitude
+        Vector att = fac.newEulerOrientationNED(SWEConstants.DEF_PLATFORM_ORIENT);
+        att.setLocalFrame("#" + MavlinkDriver.BODY_FRAME);
+        att.setDataType(DataType.FLOAT);
+        dataStruct.addComponent("attitude", att);
+
+        // gimbal attitude relative to platform
+        Vector gimbalAtt = fac.newEulerOrientationNED(SWEConstants.SWE_PROP_URI_PREFIX + "OSH/0/GimbalOrientation");
+        gimbalAtt.setReferenceFrame("#" + MavlinkDriver.BODY_FRAME);
+        gimbalAtt.setLocalFrame("#" + MavlinkDriver.GIMBAL_FRAME);
+        gimbalAtt.setDataType(DataType.FLOAT);
+        dataStruct.addComponent("gimbalAtt", gimbalAtt);
+
+        // staleness flags
+        dataStruct.addComponent("posStale", fac.newBoolean(SWEHelper.getPropertyUri("PositionStale"), "Position Stale", "Set when no position sample was received close enough to the frame time"));
+        dataStruct.addComponent("attStale", fac.newBoolean(SWEHelper.getPropertyUri("AttitudeStale"), "Attitude Stale", "Set when no attitude sample was received close enough to the frame time"));
+        dataStruct.addComponent("gimbalStale", fac.newBoolean(SWEHelper.getPropertyUri("GimbalStale"), "Gimbal Stale", "Set when no gimbal sample was received close enough to the frame time"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    /**
+     * Subscribes to the video outputs listed in the configuration
+     */
+    protected void start()
+    {
+        for (FramePoseSource source: parentSensor.getConfiguration().framePoseSources)
+        {
+            FrameListener listener = new FrameListener(source);
+
+            try
+            {
+                IModule<?> module = SensorHub.getInstance().getModuleRegistry().getModuleById(source.moduleID);
+                if (!(module instanceof ISensorModule))
+                    throw new SensorHubException("Module " + source.moduleID + " is not a sensor");
+
+                listener.videoOutput = ((ISensorModule<?>)module).getObservationOutputs().get(source.outputName);
+                if (listener.videoOutput == null)
+                    throw new SensorHubException("No output " + source.outputName + " on module " + source.moduleID);
+            }
+            catch (SensorHubException e)
+            {
+                parentSensor.getLogger().error("Cannot tag video frames with vehicle pose", e);
+                continue;
+            }
+
+            listener.videoOutput.registerListener(listener);
+            frameListeners.add(listener);
+            parentSensor.getLogger().info("Tagging frames of {}/{} with pose of system {}", source.moduleID, source.outputName, source.systemID);
+        }
+    }
+
+
+    protected void stop()
+    {
+        for (FrameListener listener: frameListeners)
+            listener.videoOutput.unregisterListener(listener);
+        frameListeners.clear();
+    }
+
+
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {posMsg.getMsgId(), attMsg.getMsgId(), gimbalMsg.getMsgId()};
+    }
+
+
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
+    {
+        MavlinkPoseHistory history = vehicle.poseHistory;
+        if (history == null)
+            history = vehicle.poseHistory = new MavlinkPoseHistory();
+
+        if (posMsg.wrap(pkt))
+        {
+            double time = parentSensor.getUtcTimeFromBootMillis(posMsg.time_boot_ms());
+            history.addPosition(time, posMsg.lat() / 1e7, posMsg.lon() / 1e7, posMsg.alt() / 1e3);
+        }
+        else if (attMsg.wrap(pkt))
+        {
+            double time = parentSensor.getUtcTimeFromBootMillis(attMsg.time_boot_ms());
+            history.addAttitude(time, attMsg.roll(), attMsg.pitch(), attMsg.yaw());
+        }
+        else if (gimbalMsg.wrap(pkt))
+        {
+            // gimbal reports are not time stamped by the vehicle
+            history.addGimbal(msgTime / 1000., gimbalMsg.joint_roll(), gimbalMsg.joint_el(), gimbalMsg.joint_az());
+        }
+    }
+
+
+    /**
+     * Publishes the pose of the vehicle at the time of a video frame
+     * @param vehicle vehicle carrying the camera
+     * @param frameTime frame time stamp in seconds since 01/01/1970 UTC
+     */
+    public synchronized void tagFrame(MavlinkVehicle vehicle, double frameTime)
+    {
+        MavlinkPoseHistory history = vehicle.poseHistory;
+        if (history == null)
+            return;
+        history.getPose(frameTime, pose, ages);
+
+        DataBlock dataBlock = getNewDataBlock();
+        int i = 0;
+        dataBlock.setDoubleValue(i++, frameTime);
+        dataBlock.setDoubleValue(i++, pose[0]);
+        dataBlock.setDoubleValue(i++, pose[1]);
+        dataBlock.setDoubleValue(i++, pose[2]);
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[5]));
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[4]));
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[3]));
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[8]));
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[7]));
+        dataBlock.setFloatValue(i++, (float)Math.toDegrees(pose[6]));
+        dataBlock.setBooleanValue(i++, isStale(ages[0]));
+        dataBlock.setBooleanValue(i++, isStale(ages[1]));
+        dataBlock.setBooleanValue(i++, isStale(ages[2]));
+
+        // don't use sendOutput() since we're not on the reader thread
+        long now = System.currentTimeMillis();
+        latestRecord = dataBlock;
+        latestRecordTime = now;
+        updateSamplingPeriod(vehicle, now);
+        if (parentSensor.isMultiVehicle())
+            eventHandler.publishEvent(new SensorDataEvent(now, vehicle.entityID, this, dataBlock));
+        else
+            eventHandler.publishEvent(new SensorDataEvent(now, this, dataBlock));
+    }
+
+
+    protected boolean isStale(double age)
+    {
+        return Double.isNaN(age) || age > maxAge;
+    }
+
+
+    /*
+     * Find vehicle carrying a camera
+     */
+    protected MavlinkVehicle getVehicle(int sysid)
+    {
+        if (sysid <= 0 || !parentSensor.isMultiVehicle())
+            return parentSensor.getDefaultVehicle();
+        return parentSensor.vehiclesBySysId[sysid & 0xFF];
+    }
+}
@@ -21,8 +21,8 @@ import org.sensorhub.api.sensor.SensorException;
 import org.vast.data.TextEncodingImpl;
 import org.vast.swe.SWEConstants;
 import org.vast.swe.helper.GeoPosHelper;
-import com.MAVLink.Messages.MAVLinkMessage;
-import com.MAVLink.ardupilotmega.msg_gimbal_report;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_gimbal_report;
 
 
 /**
@@ -35,6 +35,8 @@ import com.MAVLink.ardupilotmega.msg_gimbal_report;
  */
 public class GimbalEulerOutput extends MavlinkOutput
 {
+    private final view_gimbal_report msg = new view_gimbal_report();
+    
     
     public GimbalEulerOutput(MavlinkDriver parentSensor)
     {
@@ -50,6 +52,13 @@ public class GimbalEulerOutput extends MavlinkOutput
     }
     
     
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.LOW;
+    }
+    
+    
     protected void init() throws SensorException
     {
         GeoPosHelper fac = new GeoPosHelper();
@@ -73,21 +82,26 @@ public class GimbalEulerOutput extends MavlinkOutput
     }
     
     
-    protected void handleMessage(long msgTime, MAVLinkMessage m)
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+    
+    
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
     {
         DataBlock dataBlock = null;
                 
         // process different message types
-        if (m instanceof msg_gimbal_report)
+        if (msg.wrap(pkt))
         {
-            msg_gimbal_report msg = (msg_gimbal_report)m;
-            
             // populate datablock
             dataBlock = getNewDataBlock();
             dataBlock.setDoubleValue(0, msgTime / 1000.0);
-            dataBlock.setFloatValue(1, (float)Math.toDegrees(msg.joint_az));
-            dataBlock.setFloatValue(2, (float)Math.toDegrees(msg.joint_el));
-            dataBlock.setFloatValue(3, (float)Math.toDegrees(msg.joint_roll));
+            dataBlock.setFloatValue(1, (float)Math.toDegrees(msg.joint_az()));
+            dataBlock.setFloatValue(2, (float)Math.toDegrees(msg.joint_el()));
+            dataBlock.setFloatValue(3, (float)Math.toDegrees(msg.joint_roll()));
             
             updateSamplingPeriod(msgTime);
         }        
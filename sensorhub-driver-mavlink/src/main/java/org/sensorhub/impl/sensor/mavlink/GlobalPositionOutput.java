@@ -20,8 +20,8 @@ import org.sensorhub.api.sensor.SensorException;
 import org.vast.data.TextEncodingImpl;
 import org.vast.swe.SWEConstants;
 import org.vast.swe.helper.GeoPosHelper;
-import com.MAVLink.Messages.MAVLinkMessage;
-import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_global_position_int;
 
 
 /**
@@ -33,7 +33,9 @@ import com.MAVLink.common.msg_global_position_int;
  * @since Dec 12, 2015
  */
 public class GlobalPositionOutput extends MavlinkOutput
-{        
+{
+    private final view_global_position_int msg = new view_global_position_int();
+    
     
     public GlobalPositionOutput(MavlinkDriver parentSensor)
     {
@@ -49,6 +51,13 @@ public class GlobalPositionOutput extends MavlinkOutput
     }
     
     
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+    
+    
     protected void init() throws SensorException
     {
         GeoPosHelper fac = new GeoPosHelper();
@@ -71,21 +80,26 @@ public class GlobalPositionOutput extends MavlinkOutput
     }
     
     
-    protected void handleMessage(long msgTime, MAVLinkMessage m)
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {msg.getMsgId()};
+    }
+    
+    
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
     {
         DataBlock dataBlock = null;
                 
         // process different message types
-        if (m instanceof msg_global_position_int)
+        if (msg.wrap(pkt))
         {
-            msg_global_position_int msg = (msg_global_position_int)m;
-            
             // populate datablock
             dataBlock = getNewDataBlock();
-            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms));
-            dataBlock.setDoubleValue(1, ((double)msg.lat) / 1e7);
-            dataBlock.setDoubleValue(2, ((double)msg.lon) / 1e7);
-            dataBlock.setDoubleValue(3, ((double)msg.alt) / 1e3);
+            dataBlock.setDoubleValue(0, parentSensor.getUtcTimeFromBootMillis(msg.time_boot_ms()));
+            dataBlock.setDoubleValue(1, ((double)msg.lat()) / 1e7);
+            dataBlock.setDoubleValue(2, ((double)msg.lon()) / 1e7);
+            dataBlock.setDoubleValue(3, ((double)msg.alt()) / 1e3);
             
             updateSamplingPeriod(msgTime);//msg.time_boot_ms);
         }        
@@ -0,0 +1,126 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Monitoring output publishing the achieved rate of each HIL message type
+ * and the timing jitter of the HIL injection thread.<br/>
+ * Rates and jitter percentiles are computed over each publication period,
+ * while counters of dropped samples, resynchronizations and overruns are
+ * totals since the driver was started.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class HilStatsOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public HilStatsOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "hilStats";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(10);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("sensorRate", fac.newQuantity(SWEHelper.getPropertyUri("MessageRate"), "HIL_SENSOR Rate", "Number of HIL_SENSOR messages sent per second", "Hz"));
+        dataStruct.addComponent("gpsRate", fac.newQuantity(SWEHelper.getPropertyUri("MessageRate"), "HIL_GPS Rate", "Number of HIL_GPS messages sent per second", "Hz"));
+        dataStruct.addComponent("stateRate", fac.newQuantity(SWEHelper.getPropertyUri("MessageRate"), "HIL_STATE_QUATERNION Rate", "Number of HIL_STATE_QUATERNION messages sent per second", "Hz"));
+        dataStruct.addComponent("jitterP50", fac.newQuantity(SWEHelper.getPropertyUri("TimingJitter"), "Median Jitter", "Median delay between scheduled and actual wake-up of the injection thread", "ms"));
+        dataStruct.addComponent("jitterP99", fac.newQuantity(SWEHelper.getPropertyUri("TimingJitter"), "99th Percentile Jitter", null, "ms"));
+        dataStruct.addComponent("jitterMax", fac.newQuantity(SWEHelper.getPropertyUri("TimingJitter"), "Max Jitter", null, "ms"));
+        dataStruct.addComponent("numDropped", fac.newCount(SWEHelper.getPropertyUri("DroppedSamples"), "Dropped Samples", "Number of samples dropped because a queue was full"));
+        dataStruct.addComponent("numResyncs", fac.newCount(SWEHelper.getPropertyUri("ClockResyncs"), "Resynchronizations", "Number of times simulation time was mapped again to system time because samples arrived too late or too early"));
+        dataStruct.addComponent("numOverruns", fac.newCount(SWEHelper.getPropertyUri("Overruns"), "Overruns", "Number of times the injection thread woke up more than one period late"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    /*
+     * Called by HIL injection thread at the end of each period
+     */
+    protected void publishStats(double[] rates, LatencyHistogram.Snapshot jitter, long numDropped, long numResyncs, long numOverruns)
+    {
+        boolean empty = (jitter.getCount() == 0);
+
+        DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+        dataBlock.setDoubleValue(0, System.currentTimeMillis() / 1000.);
+        dataBlock.setDoubleValue(1, rates[MavlinkHilInjector.HIL_SENSOR]);
+        dataBlock.setDoubleValue(2, rates[MavlinkHilInjector.HIL_GPS]);
+        dataBlock.setDoubleValue(3, rates[MavlinkHilInjector.HIL_STATE_QUATERNION]);
+        dataBlock.setDoubleValue(4, empty ? Double.NaN : jitter.getPercentile(50));
+        dataBlock.setDoubleValue(5, empty ? Double.NaN : jitter.getPercentile(99));
+        dataBlock.setDoubleValue(6, empty ? Double.NaN : jitter.getMax());
+        dataBlock.setLongValue(7, numDropped);
+        dataBlock.setLongValue(8, numResyncs);
+        dataBlock.setLongValue(9, numOverruns);
+
+        latestRecord = dataBlock;
+        latestRecordTime = System.currentTimeMillis();
+        eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return MavlinkHilInjector.STATS_PERIOD_NANOS / 1e9;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
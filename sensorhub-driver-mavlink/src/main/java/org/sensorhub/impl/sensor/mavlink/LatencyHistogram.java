@@ -0,0 +1,150 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * <p>
+ * Lock-free latency histogram with logarithmic buckets.<br/>
+ * Each power of two of microseconds is split in 4 sub-buckets, so values
+ * are known within 19% over the whole range (1us to about 17s). Values are
+ * recorded by one thread and the histogram can be read and reset by
+ * another one at any time.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LatencyHistogram
+{
+    static final int SUB_BUCKET_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 24; // 2^24 us ~ 17s
+    static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+
+    /**
+     * Adds a value to the histogram
+     * @param latencyNanos latency in nanoseconds
+     */
+    public void record(long latencyNanos)
+    {
+        counts.incrementAndGet(getBucketIndex(latencyNanos / 1000));
+    }
+
+
+    static int getBucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+            return (int)Math.max(micros, 0);
+
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        if (exp > MAX_EXPONENT)
+            return NUM_BUCKETS - 1;
+
+        int subBucket = (int)(micros >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+
+    /*
+     * Upper bound of bucket, in microseconds
+     */
+    static long getBucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index + 1;
+
+        int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + subBucket + 1) << (exp - SUB_BUCKET_BITS);
+    }
+
+
+    /**
+     * Copies the histogram content and resets it
+     * @return snapshot of the histogram
+     */
+    public Snapshot getSnapshotAndReset()
+    {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            snapshot[i] = counts.getAndSet(i, 0);
+            total += snapshot[i];
+        }
+
+        return new Snapshot(snapshot, total);
+    }
+
+
+    /**
+     * Immutable copy of the histogram counts
+     */
+    public static class Snapshot
+    {
+        final long[] counts;
+        final long totalCount;
+
+        Snapshot(long[] counts, long totalCount)
+        {
+            this.counts = counts;
+            this.totalCount = totalCount;
+        }
+
+
+        public long getCount()
+        {
+            return totalCount;
+        }
+
+
+        /**
+         * @param percentile percentile between 0 and 100
+         * @return upper bound of the latency at the given percentile, in
+         * milliseconds, or NaN if the histogram is empty
+         */
+        public double getPercentile(double percentile)
+        {
+            if (totalCount == 0)
+                return Double.NaN;
+
+            long threshold = (long)Math.ceil(totalCount * percentile / 100.0);
+            long count = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                count += counts[i];
+                if (count >= Math.max(threshold, 1))
+                    return getBucketUpperBound(i) / 1000.0;
+            }
+
+            return getBucketUpperBound(counts.length - 1) / 1000.0;
+        }
+
+
+        /**
+         * @return upper bound of the maximum latency in milliseconds
+         */
+        public double getMax()
+        {
+            return getPercentile(100.0);
+        }
+    }
+}
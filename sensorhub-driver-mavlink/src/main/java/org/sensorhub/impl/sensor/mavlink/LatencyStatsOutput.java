@@ -0,0 +1,204 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Monitoring output publishing latency statistics for each MAVLink message
+ * type.<br/>
+ * Link latency is measured from the vehicle time stamp (converted to UTC
+ * using the clock offset estimate) to the reception of the message, and
+ * publish latency from the reception of the message until all listeners of
+ * the corresponding output have been notified. Percentiles are computed over
+ * each publication period.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LatencyStatsOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    static final int MAX_MSG_ID = 1024; // ignore higher message IDs
+
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+    LatencyHistogram[] linkLatency = new LatencyHistogram[MAX_MSG_ID];
+    LatencyHistogram[] publishLatency = new LatencyHistogram[MAX_MSG_ID];
+    long publishPeriod;
+    Timer timer;
+
+
+    public LatencyStatsOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+        this.publishPeriod = Math.max(1, parentSensor.getConfiguration().latencyStatsPeriod) * 1000L;
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "latencyStats";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(9);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("msgId", fac.newCount(SWEHelper.getPropertyUri("MessageID"), "Message ID", "MAVLink message ID"));
+        dataStruct.addComponent("numMsgs", fac.newCount(SWEHelper.getPropertyUri("MessageCount"), "Message Count", "Number of messages received during the period"));
+        dataStruct.addComponent("linkP50", fac.newQuantity(SWEHelper.getPropertyUri("LinkLatency"), "Median Link Latency", "Median delay between vehicle time stamp and reception", "ms"));
+        dataStruct.addComponent("linkP99", fac.newQuantity(SWEHelper.getPropertyUri("LinkLatency"), "99th Percentile Link Latency", null, "ms"));
+        dataStruct.addComponent("linkMax", fac.newQuantity(SWEHelper.getPropertyUri("LinkLatency"), "Max Link Latency", null, "ms"));
+        dataStruct.addComponent("publishP50", fac.newQuantity(SWEHelper.getPropertyUri("PublishLatency"), "Median Publish Latency", "Median delay between reception and notification of all listeners", "ms"));
+        dataStruct.addComponent("publishP99", fac.newQuantity(SWEHelper.getPropertyUri("PublishLatency"), "99th Percentile Publish Latency", null, "ms"));
+        dataStruct.addComponent("publishMax", fac.newQuantity(SWEHelper.getPropertyUri("PublishLatency"), "Max Publish Latency", null, "ms"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void start()
+    {
+        timer = new Timer("MAVLink Latency Stats", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run()
+            {
+                publishStats();
+            }
+        }, publishPeriod, publishPeriod);
+    }
+
+
+    /*
+     * Called by driver thread when a message with a vehicle time stamp is received
+     */
+    protected void recordLinkLatency(int msgId, long latencyNanos)
+    {
+        if (msgId >= MAX_MSG_ID)
+            return;
+
+        LatencyHistogram h = linkLatency[msgId];
+        if (h == null)
+            linkLatency[msgId] = h = new LatencyHistogram();
+        h.record(latencyNanos);
+    }
+
+
+    /*
+     * Called by driver thread after a record was published by an output
+     */
+    protected void recordPublishLatency(int msgId, long latencyNanos)
+    {
+        if (msgId >= MAX_MSG_ID)
+            return;
+
+        LatencyHistogram h = publishLatency[msgId];
+        if (h == null)
+            publishLatency[msgId] = h = new LatencyHistogram();
+        h.record(latencyNanos);
+    }
+
+
+    protected void publishStats()
+    {
+        double time = System.currentTimeMillis() / 1000.;
+
+        for (int msgId = 0; msgId < MAX_MSG_ID; msgId++)
+        {
+            LatencyHistogram.Snapshot link = getSnapshot(linkLatency[msgId]);
+            LatencyHistogram.Snapshot publish = getSnapshot(publishLatency[msgId]);
+            long numMsgs = Math.max(link != null ? link.getCount() : 0, publish != null ? publish.getCount() : 0);
+            if (numMsgs == 0)
+                continue;
+
+            DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+            dataBlock.setDoubleValue(0, time);
+            dataBlock.setIntValue(1, msgId);
+            dataBlock.setLongValue(2, numMsgs);
+            setPercentiles(dataBlock, 3, link);
+            setPercentiles(dataBlock, 6, publish);
+
+            latestRecord = dataBlock;
+            latestRecordTime = System.currentTimeMillis();
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+        }
+    }
+
+
+    private LatencyHistogram.Snapshot getSnapshot(LatencyHistogram h)
+    {
+        return (h != null) ? h.getSnapshotAndReset() : null;
+    }
+
+
+    private void setPercentiles(DataBlock dataBlock, int index, LatencyHistogram.Snapshot snapshot)
+    {
+        boolean empty = (snapshot == null || snapshot.getCount() == 0);
+        dataBlock.setDoubleValue(index, empty ? Double.NaN : snapshot.getPercentile(50));
+        dataBlock.setDoubleValue(index+1, empty ? Double.NaN : snapshot.getPercentile(99));
+        dataBlock.setDoubleValue(index+2, empty ? Double.NaN : snapshot.getMax());
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return publishPeriod / 1000.;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+
+
+    @Override
+    protected void stop()
+    {
+        if (timer != null)
+        {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Monitoring output publishing one record per MAVLink message type received
+ * on the link, with its rate, the bandwidth it uses and the average time
+ * needed to handle it (i.e. dispatch to outputs and publish).<br/>
+ * Records are published by {@link LinkStatsOutput} at the end of each period.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LinkMsgStatsOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    final MavlinkLinkStats stats;
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public LinkMsgStatsOutput(MavlinkDriver parentSensor, MavlinkLinkStats stats)
+    {
+        super(parentSensor);
+        this.stats = stats;
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "linkMsgStats";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(5);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("msgId", fac.newCount(SWEHelper.getPropertyUri("MessageID"), "Message ID", "MAVLink message ID"));
+        dataStruct.addComponent("msgRate", fac.newQuantity(SWEHelper.getPropertyUri("MessageRate"), "Message Rate", "Number of messages received per second", "Hz"));
+        dataStruct.addComponent("byteRate", fac.newQuantity(SWEHelper.getPropertyUri("ByteRate"), "Byte Rate", "Number of bytes used by this message type per second", "By/s"));
+        dataStruct.addComponent("handleTime", fac.newQuantity(SWEHelper.getPropertyUri("ProcessingTime"), "Handling Time", "Average time needed to dispatch and publish a message", "us"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void publishStats(double time, double dt)
+    {
+        for (int msgId = 0; msgId < MavlinkLinkStats.MAX_MSG_ID; msgId++)
+        {
+            long numMsgs = stats.msgCounts.getAndSet(msgId, 0);
+            if (numMsgs == 0)
+                continue;
+            long numBytes = stats.msgBytes.getAndSet(msgId, 0);
+            long nanos = stats.msgNanos.getAndSet(msgId, 0);
+
+            DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+            dataBlock.setDoubleValue(0, time);
+            dataBlock.setIntValue(1, msgId);
+            dataBlock.setDoubleValue(2, numMsgs / dt);
+            dataBlock.setDoubleValue(3, numBytes / dt);
+            dataBlock.setDoubleValue(4, nanos / 1000. / numMsgs);
+
+            latestRecord = dataBlock;
+            latestRecordTime = System.currentTimeMillis();
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+        }
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return Math.max(1, parentSensor.getConfiguration().linkStatsPeriod);
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
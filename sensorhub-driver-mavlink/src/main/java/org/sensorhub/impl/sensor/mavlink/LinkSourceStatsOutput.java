@@ -0,0 +1,122 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.sensorhub.impl.sensor.mavlink.MavlinkLinkStats.SourceStats;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Monitoring output publishing one record per MAVLink component seen on the
+ * link, with its packet rate and the number of packets lost according to
+ * its sequence numbers.<br/>
+ * Records are published by {@link LinkStatsOutput} at the end of each period.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LinkSourceStatsOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    final MavlinkLinkStats stats;
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public LinkSourceStatsOutput(MavlinkDriver parentSensor, MavlinkLinkStats stats)
+    {
+        super(parentSensor);
+        this.stats = stats;
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "linkSourceStats";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(6);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("sysId", fac.newCount(SWEHelper.getPropertyUri("SystemID"), "System ID", "MAVLink system ID of source"));
+        dataStruct.addComponent("compId", fac.newCount(SWEHelper.getPropertyUri("ComponentID"), "Component ID", "MAVLink component ID of source"));
+        dataStruct.addComponent("packetRate", fac.newQuantity(SWEHelper.getPropertyUri("PacketRate"), "Packet Rate", "Number of packets received from this source per second", "Hz"));
+        dataStruct.addComponent("lostPackets", fac.newCount(SWEHelper.getPropertyUri("LostPacketCount"), "Lost Packets", "Number of packets missing from sequence numbers during the period"));
+        dataStruct.addComponent("lossRatio", fac.newQuantity(SWEHelper.getPropertyUri("PacketLossRatio"), "Packet Loss Ratio", null, "%"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void publishStats(double time, double dt)
+    {
+        for (SourceStats source: stats.getSources())
+        {
+            long numPackets = source.numPackets.getAndSet(0);
+            long numLost = source.numLost.getAndSet(0);
+            if (numPackets == 0 && numLost == 0)
+                continue;
+
+            DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+            dataBlock.setDoubleValue(0, time);
+            dataBlock.setIntValue(1, source.sysid);
+            dataBlock.setIntValue(2, source.compid);
+            dataBlock.setDoubleValue(3, numPackets / dt);
+            dataBlock.setLongValue(4, numLost);
+            dataBlock.setDoubleValue(5, 100.0 * numLost / (numPackets + numLost));
+
+            latestRecord = dataBlock;
+            latestRecordTime = System.currentTimeMillis();
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+        }
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return Math.max(1, parentSensor.getConfiguration().linkStatsPeriod);
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
@@ -0,0 +1,166 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Monitoring output publishing traffic statistics of the MAVLink link:
+ * throughput, CRC errors, packets lost (detected with sequence numbers),
+ * average parse time per packet, and the number of outgoing frames that
+ * were coalesced or dropped by the sender.<br/>
+ * This output also samples the counters published by the per-source and
+ * per-message statistics outputs so all values cover the same period.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LinkStatsOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    final MavlinkLinkStats stats;
+    final LinkSourceStatsOutput sourceStatsOutput;
+    final LinkMsgStatsOutput msgStatsOutput;
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+    long publishPeriod;
+    long lastPublishTime;
+    Timer timer;
+
+
+    public LinkStatsOutput(MavlinkDriver parentSensor, MavlinkLinkStats stats,
+                           LinkSourceStatsOutput sourceStatsOutput, LinkMsgStatsOutput msgStatsOutput)
+    {
+        super(parentSensor);
+        this.stats = stats;
+        this.sourceStatsOutput = sourceStatsOutput;
+        this.msgStatsOutput = msgStatsOutput;
+        this.publishPeriod = Math.max(1, parentSensor.getConfiguration().linkStatsPeriod) * 1000L;
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "linkStats";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(8);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("byteRate", fac.newQuantity(SWEHelper.getPropertyUri("ByteRate"), "Byte Rate", "Number of bytes received per second", "By/s"));
+        dataStruct.addComponent("packetRate", fac.newQuantity(SWEHelper.getPropertyUri("PacketRate"), "Packet Rate", "Number of valid packets received per second", "Hz"));
+        dataStruct.addComponent("crcErrors", fac.newCount(SWEHelper.getPropertyUri("CrcErrorCount"), "CRC Errors", "Number of frames rejected because of a bad checksum during the period"));
+        dataStruct.addComponent("lostPackets", fac.newCount(SWEHelper.getPropertyUri("LostPacketCount"), "Lost Packets", "Number of packets missing from sequence numbers of all sources during the period"));
+        dataStruct.addComponent("parseTime", fac.newQuantity(SWEHelper.getPropertyUri("ParseTime"), "Parse Time", "Average time needed to frame and check a packet", "us"));
+        dataStruct.addComponent("txCoalesced", fac.newCount(SWEHelper.getPropertyUri("CoalescedFrameCount"), "Coalesced Setpoints", "Number of outgoing setpoints replaced by a newer one, or discarded by a safety command, before being sent during the period"));
+        dataStruct.addComponent("txDropped", fac.newCount(SWEHelper.getPropertyUri("DroppedFrameCount"), "Dropped Frames", "Number of outgoing frames dropped because the send queue was full during the period"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void start()
+    {
+        lastPublishTime = System.currentTimeMillis();
+        timer = new Timer("MAVLink Link Stats", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run()
+            {
+                publishStats();
+            }
+        }, publishPeriod, publishPeriod);
+    }
+
+
+    protected void publishStats()
+    {
+        long now = System.currentTimeMillis();
+        double dt = Math.max(now - lastPublishTime, 1) / 1000.;
+        double time = now / 1000.;
+        lastPublishTime = now;
+
+        long numBytes = stats.numBytes.getAndSet(0);
+        long numPackets = stats.numPackets.getAndSet(0);
+        long parseNanos = stats.parseNanos.getAndSet(0);
+
+        DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+        dataBlock.setDoubleValue(0, time);
+        dataBlock.setDoubleValue(1, numBytes / dt);
+        dataBlock.setDoubleValue(2, numPackets / dt);
+        dataBlock.setLongValue(3, stats.numCrcErrors.getAndSet(0));
+        dataBlock.setLongValue(4, stats.numLost.getAndSet(0));
+        dataBlock.setDoubleValue(5, numPackets > 0 ? parseNanos / 1000. / numPackets : Double.NaN);
+        dataBlock.setLongValue(6, parentSensor.sender.numCoalesced.getAndSet(0));
+        dataBlock.setLongValue(7, parentSensor.sender.numDropped.getAndSet(0));
+
+        latestRecord = dataBlock;
+        latestRecordTime = now;
+        eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+
+        sourceStatsOutput.publishStats(time, dt);
+        msgStatsOutput.publishStats(time, dt);
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return publishPeriod / 1000.;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+
+
+    @Override
+    protected void stop()
+    {
+        if (timer != null)
+        {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
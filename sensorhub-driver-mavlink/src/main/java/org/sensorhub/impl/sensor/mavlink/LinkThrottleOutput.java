@@ -0,0 +1,131 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.sensorhub.impl.sensor.mavlink.MavlinkLinkThrottle.Action;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+import com.MAVLink.common.msg_radio_status;
+
+
+/**
+ * <p>
+ * Monitoring output publishing the radio status reports received on the
+ * link along with the decisions taken by the {@link MavlinkLinkThrottle}.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LinkThrottleOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+    long lastPublishTime;
+    double samplingPeriod = 1.0;
+
+
+    public LinkThrottleOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "linkThrottle";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(9);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("txbuf", fac.newQuantity(SWEHelper.getPropertyUri("RadioTxBuffer"), "TX Buffer", "Free space in radio transmit buffer", "%"));
+        dataStruct.addComponent("rssi", fac.newCount(SWEHelper.getPropertyUri("RadioRSSI"), "Local RSSI", "Signal strength measured by local radio, in radio units"));
+        dataStruct.addComponent("remRssi", fac.newCount(SWEHelper.getPropertyUri("RadioRSSI"), "Remote RSSI", "Signal strength measured by remote radio, in radio units"));
+        dataStruct.addComponent("noise", fac.newCount(SWEHelper.getPropertyUri("RadioNoise"), "Local Noise", "Background noise level of local radio, in radio units"));
+        dataStruct.addComponent("remNoise", fac.newCount(SWEHelper.getPropertyUri("RadioNoise"), "Remote Noise", "Background noise level of remote radio, in radio units"));
+        dataStruct.addComponent("rxErrors", fac.newCount(SWEHelper.getPropertyUri("RadioErrorCount"), "Receive Errors", "Number of receive errors since previous report"));
+        dataStruct.addComponent("level", fac.newCount(SWEHelper.getPropertyUri("ThrottleLevel"), "Throttle Level", "Each level doubles the interval of the lowest priority messages still throttled, 0 means nominal rates"));
+        dataStruct.addComponent("action", fac.newCategory(SWEHelper.getPropertyUri("ThrottleAction"), "Action", "Decision taken after this report (HOLD, THROTTLE, RECOVER or RESET)", null));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    /*
+     * Called by throttle controller after each decision
+     * Status is null if throttling was reset after reports stopped
+     */
+    protected void publishStatus(long time, msg_radio_status status, int rxErrors, int level, Action action)
+    {
+        DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+        dataBlock.setDoubleValue(0, time / 1000.);
+        if (status != null)
+        {
+            dataBlock.setIntValue(1, status.txbuf);
+            dataBlock.setIntValue(2, status.rssi);
+            dataBlock.setIntValue(3, status.remrssi);
+            dataBlock.setIntValue(4, status.noise);
+            dataBlock.setIntValue(5, status.remnoise);
+        }
+        dataBlock.setIntValue(6, rxErrors);
+        dataBlock.setIntValue(7, level);
+        dataBlock.setStringValue(8, action.name());
+
+        if (lastPublishTime > 0)
+            samplingPeriod = (time - lastPublishTime) / 1000.;
+        lastPublishTime = time;
+
+        latestRecord = dataBlock;
+        latestRecordTime = time;
+        eventHandler.publishEvent(new SensorDataEvent(time, this, dataBlock));
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return samplingPeriod;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
@@ -0,0 +1,113 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Output publishing the progress and throughput of log downloads, about
+ * once per second during download and once when the download completes.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LogDownloadOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public LogDownloadOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "logDownload";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(6);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("logId", fac.newCount(SWEHelper.getPropertyUri("LogID"), "Log ID", "ID of log being downloaded"));
+        dataStruct.addComponent("received", fac.newQuantity(SWEHelper.getPropertyUri("BytesReceived"), "Bytes Received", "Number of bytes of log received so far", "By"));
+        dataStruct.addComponent("size", fac.newQuantity(SWEHelper.getPropertyUri("LogSize"), "Log Size", "Size of log file", "By"));
+        dataStruct.addComponent("byteRate", fac.newQuantity(SWEHelper.getPropertyUri("ByteRate"), "Byte Rate", "Average download throughput since start of download", "By/s"));
+        dataStruct.addComponent("file", fac.newText(SWEHelper.getPropertyUri("FilePath"), "File", "Path of local file where log is written"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void publishProgress(MavlinkVehicle vehicle, int logId, long received, long size, double byteRate, String path)
+    {
+        DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+        dataBlock.setDoubleValue(0, System.currentTimeMillis() / 1000.);
+        dataBlock.setIntValue(1, logId);
+        dataBlock.setLongValue(2, received);
+        dataBlock.setLongValue(3, size);
+        dataBlock.setDoubleValue(4, byteRate);
+        dataBlock.setStringValue(5, path);
+
+        latestRecord = dataBlock;
+        latestRecordTime = System.currentTimeMillis();
+        if (parentSensor.isMultiVehicle())
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, vehicle.entityID, this, dataBlock));
+        else
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return 1.0;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
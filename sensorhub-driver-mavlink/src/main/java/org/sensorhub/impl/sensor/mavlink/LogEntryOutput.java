@@ -0,0 +1,112 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+import com.MAVLink.common.msg_log_entry;
+
+
+/**
+ * <p>
+ * Output publishing one record per onboard log each time the log list
+ * is requested from a vehicle.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class LogEntryOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public LogEntryOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "logEntries";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(5);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("logId", fac.newCount(SWEHelper.getPropertyUri("LogID"), "Log ID", "ID of log on vehicle, used to download it"));
+        dataStruct.addComponent("numLogs", fac.newCount(SWEHelper.getPropertyUri("LogCount"), "Log Count", "Total number of logs on vehicle"));
+        dataStruct.addComponent("logTime", fac.newTimeIsoUTC(SWEHelper.getPropertyUri("LogCreationTime"), "Log Time", "UTC time at which log was created, if vehicle had a GPS fix"));
+        dataStruct.addComponent("size", fac.newQuantity(SWEHelper.getPropertyUri("LogSize"), "Log Size", "Size of log file", "By"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void publishEntry(MavlinkVehicle vehicle, msg_log_entry entry)
+    {
+        DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+        dataBlock.setDoubleValue(0, System.currentTimeMillis() / 1000.);
+        dataBlock.setIntValue(1, entry.id);
+        dataBlock.setIntValue(2, entry.num_logs);
+        dataBlock.setDoubleValue(3, (entry.time_utc > 0) ? entry.time_utc : Double.NaN);
+        dataBlock.setLongValue(4, entry.size);
+
+        latestRecord = dataBlock;
+        latestRecordTime = System.currentTimeMillis();
+        if (parentSensor.isMultiVehicle())
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, vehicle.entityID, this, dataBlock));
+        else
+            eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return Double.NaN;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
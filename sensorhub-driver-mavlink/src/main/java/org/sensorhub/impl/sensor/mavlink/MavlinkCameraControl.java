@@ -14,7 +14,6 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.sensor.mavlink;
 
-import java.io.IOException;
 import java.util.EnumSet;
 import net.opengis.swe.v20.AllowedValues;
 import net.opengis.swe.v20.DataBlock;
@@ -23,7 +22,6 @@ import net.opengis.swe.v20.DataType;
 import net.opengis.swe.v20.Quantity;
 import net.opengis.swe.v20.Vector;
 import org.sensorhub.api.common.CommandStatus;
-import org.sensorhub.api.common.CommandStatus.StatusCode;
 import org.sensorhub.api.sensor.SensorException;
 import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
 import org.vast.swe.SWEHelper;
@@ -102,58 +100,49 @@ public class MavlinkCameraControl extends MavlinkControlInput
             lla.setLabel("Pointing Target Location");
             commandData.addItem(CmdTypes.MOUNT_TARGET.name(), lla);
         }
+        
+        addVehicleSelector();
     }
 
 
     @Override
-    public CommandStatus execCommand(DataBlock command) throws SensorException
+    public CommandStatus sendCommand(DataBlock command) throws SensorException
     {
         msg_command_long cmd = null;
         
-        try
+        MavlinkVehicle target = getTargetVehicle(command);
+        int i = getCommandIndex();
+        int cmdIndex = command.getIntValue(i);
+        String cmdName = commandData.getComponent(cmdIndex).getName();
+        
+        // switch on command type
+        CmdTypes cmdType = CmdTypes.valueOf(cmdName);
+        parentSensor.getLogger().info("Sending {} command", cmdType);
+        switch (cmdType)
         {
-            int cmdIndex = command.getIntValue(0);
-            String cmdName = commandData.getComponent(cmdIndex).getName();
-            
-            // switch on command type
-            CmdTypes cmdType = CmdTypes.valueOf(cmdName);
-            parentSensor.getLogger().info("Sending {} command", cmdType);
-            switch (cmdType)
-            {
-                case MOUNT_CONTROL:
-                    cmd = new msg_command_long();
-                    cmd.target_system = 1;
-                    cmd.target_component = 1;
-                    cmd.command = MAV_CMD.MAV_CMD_DO_MOUNT_CONTROL;
-                    cmd.param1 = command.getFloatValue(1); // pitch (deg)
-                    cmd.param2 = command.getFloatValue(2); // roll (deg)
-                    cmd.param3 = command.getFloatValue(3); // yaw (deg)
-                    parentSensor.sendCommand(cmd.pack());
-                    break;
-                    
-                case MOUNT_TARGET:
-                    cmd = new msg_command_long();
-                    cmd.target_system = 1;
-                    cmd.target_component = 1;
-                    cmd.command = MAV_CMD.MAV_CMD_DO_SET_ROI;
-                    cmd.param5 = (float)(command.getFloatValue(1)*1e7); // lat (deg)
-                    cmd.param6 = (float)(command.getFloatValue(2)*1e7); // lon (deg)
-                    cmd.param7 = command.getFloatValue(3); // alt (deg)
-                    parentSensor.sendCommand(cmd.pack());
-                    break;
-                    
-                default:
-                    throw new SensorException("Unsupported command " + cmdType);
-            }
+            case MOUNT_CONTROL:
+                cmd = new msg_command_long();
+                cmd.target_system = (short)target.sysid;
+                cmd.target_component = (short)target.compid;
+                cmd.command = MAV_CMD.MAV_CMD_DO_MOUNT_CONTROL;
+                cmd.param1 = command.getFloatValue(i+1); // pitch (deg)
+                cmd.param2 = command.getFloatValue(i+2); // roll (deg)
+                cmd.param3 = command.getFloatValue(i+3); // yaw (deg)
+                return parentSensor.sendCommand(cmd);
+                
+            case MOUNT_TARGET:
+                cmd = new msg_command_long();
+                cmd.target_system = (short)target.sysid;
+                cmd.target_component = (short)target.compid;
+                cmd.command = MAV_CMD.MAV_CMD_DO_SET_ROI;
+                cmd.param5 = (float)(command.getFloatValue(i+1)*1e7); // lat (deg)
+                cmd.param6 = (float)(command.getFloatValue(i+2)*1e7); // lon (deg)
+                cmd.param7 = command.getFloatValue(i+3); // alt (deg)
+                return parentSensor.sendCommand(cmd);
+                
+            default:
+                throw new SensorException("Unsupported command " + cmdType);
         }
-        catch (IOException e)
-        {
-            throw new SensorException("Cannot execute command", e);
-        }
-        
-        CommandStatus cmdStatus = new CommandStatus();
-        cmdStatus.status = StatusCode.COMPLETED;
-        return cmdStatus;
     }
 
 }
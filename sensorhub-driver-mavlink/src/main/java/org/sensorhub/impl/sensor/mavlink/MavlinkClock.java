@@ -0,0 +1,186 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+
+/**
+ * <p>
+ * Estimator of the offset between a vehicle clock (time since boot) and
+ * the local UTC clock.<br/>
+ * The offset is primarily computed from TIMESYNC exchanges: samples with
+ * a round trip time much larger than the best one seen recently are
+ * rejected, and the others are averaged with a first order filter. Until
+ * TIMESYNC replies are received (or if the vehicle doesn't support them),
+ * a passive estimate is derived from the time stamps of received messages,
+ * taking the smallest observed delay as the reference.
+ * </p><p>
+ * All times are in nanoseconds. Local times are UTC times given by
+ * {@link #currentTimeNanos()}.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkClock
+{
+    static final long NANOS_PER_MILLI = 1000000L;
+    static final int NUM_INIT_SAMPLES = 8; // samples averaged before switching to filter
+    static final double FILTER_GAIN = 0.1;
+    static final long RTT_MARGIN = 5 * NANOS_PER_MILLI;
+    static final long RESET_THRESHOLD = 5000 * NANOS_PER_MILLI; // assume vehicle rebooted
+    static final double MAX_DRIFT = 100e-6; // 100ppm, allowed for passive estimate
+
+    // UTC anchor so we can use the monotonic clock with ns resolution
+    static final long START_UTC_NANOS = System.currentTimeMillis() * NANOS_PER_MILLI;
+    static final long START_NANOS = System.nanoTime();
+
+    // TIMESYNC estimate
+    volatile boolean synced;
+    volatile long offset; // vehicle time minus local time
+    volatile long lastRtt;
+    long minRtt = Long.MAX_VALUE;
+    int numSamples;
+    int numRejected;
+
+    // passive estimate
+    volatile long passiveOffset = Long.MIN_VALUE;
+    long lastPassiveTime;
+
+
+    /**
+     * @return current UTC time in nanoseconds since 01/01/1970, based on
+     * the monotonic system clock
+     */
+    public static long currentTimeNanos()
+    {
+        return START_UTC_NANOS + (System.nanoTime() - START_NANOS);
+    }
+
+
+    /**
+     * Updates the estimate with a TIMESYNC reply
+     * @param tc1 vehicle time at which the request was processed
+     * @param ts1 local time at which the request was sent (echoed by vehicle)
+     * @param now local time at which the reply was received
+     * @return true if the sample was used, false if it was rejected
+     */
+    public boolean handleTimesync(long tc1, long ts1, long now)
+    {
+        long rtt = now - ts1;
+        if (rtt < 0 || rtt > RESET_THRESHOLD)
+            return false;
+        lastRtt = rtt;
+
+        long sample = tc1 - (ts1 + rtt / 2);
+
+        // restart estimation if vehicle clock jumped
+        if (numSamples > 0 && Math.abs(sample - offset) > RESET_THRESHOLD)
+            reset();
+
+        // reject samples delayed on the link, but let the reference
+        // round trip time increase slowly if link conditions change
+        if (numSamples >= NUM_INIT_SAMPLES && rtt > 2 * minRtt + RTT_MARGIN)
+        {
+            minRtt += minRtt / 16;
+            numRejected++;
+            return false;
+        }
+        minRtt = Math.min(minRtt, rtt);
+
+        // average first samples, then low-pass filter
+        numSamples++;
+        double gain = (numSamples <= NUM_INIT_SAMPLES) ? 1.0 / numSamples : FILTER_GAIN;
+        offset = (numSamples == 1) ? sample : offset + Math.round(gain * (sample - offset));
+        synced = true;
+        return true;
+    }
+
+
+    /**
+     * Updates the passive estimate with the time stamp of a received message
+     * @param timeBootMs vehicle time stamp of the message
+     * @param receiveTime local time at which the message was received
+     */
+    public void handleMessageTime(long timeBootMs, long receiveTime)
+    {
+        // since delays are always positive, the largest offset is closest
+        // to the true one. We let it decrease slowly to account for drift
+        long sample = timeBootMs * NANOS_PER_MILLI - receiveTime;
+        long current = passiveOffset;
+        if (current != Long.MIN_VALUE)
+        {
+            long drift = (long)((receiveTime - lastPassiveTime) * MAX_DRIFT);
+            current -= drift;
+            if (sample < current - RESET_THRESHOLD)
+                current = Long.MIN_VALUE;
+        }
+
+        passiveOffset = Math.max(sample, current);
+        lastPassiveTime = receiveTime;
+    }
+
+
+    /**
+     * Converts a vehicle time stamp to local UTC time
+     * @param timeBootMs vehicle time stamp in milliseconds since boot
+     * @return UTC time in nanoseconds since 01/01/1970, or Long.MIN_VALUE if
+     * no estimate of the clock offset is available yet
+     */
+    public long toUtcNanos(long timeBootMs)
+    {
+        long off = getOffset();
+        if (off == Long.MIN_VALUE)
+            return Long.MIN_VALUE;
+        return timeBootMs * NANOS_PER_MILLI - off;
+    }
+
+
+    /**
+     * @return the current offset estimate (vehicle time minus local UTC time)
+     * in nanoseconds, or Long.MIN_VALUE if no estimate is available yet
+     */
+    public long getOffset()
+    {
+        return synced ? offset : passiveOffset;
+    }
+
+
+    /**
+     * @return true if the offset was estimated from TIMESYNC exchanges
+     */
+    public boolean isSynchronized()
+    {
+        return synced;
+    }
+
+
+    /**
+     * @return round trip time of the last TIMESYNC exchange in nanoseconds
+     */
+    public long getLastRoundTripTime()
+    {
+        return lastRtt;
+    }
+
+
+    public void reset()
+    {
+        synced = false;
+        numSamples = 0;
+        numRejected = 0;
+        minRtt = Long.MAX_VALUE;
+        passiveOffset = Long.MIN_VALUE;
+    }
+}
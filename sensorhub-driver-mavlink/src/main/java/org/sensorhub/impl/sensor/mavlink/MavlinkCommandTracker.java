@@ -0,0 +1,546 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_command_ack;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_param_set;
+import com.MAVLink.common.msg_param_value;
+import com.MAVLink.enums.MAV_PARAM_TYPE;
+import com.MAVLink.enums.MAV_RESULT;
+
+
+/**
+ * <p>
+ * Tracks commands and parameter changes sent to vehicles until they are
+ * acknowledged.<br/>
+ * COMMAND_LONG messages are matched with COMMAND_ACK replies, and PARAM_SET
+ * messages with the PARAM_VALUE echoed by the vehicle. Requests that are not
+ * acknowledged within the configured timeout are resent (with an incremented
+ * confirmation counter for commands) until the maximum number of retries is
+ * reached. The status of each request is updated asynchronously and callers
+ * can wait for completion if they need synchronous behavior.
+ * </p><p>
+ * Commands reported as in progress by the vehicle are not resent anymore,
+ * but fail if no progress update or final result is received within the
+ * progress timeout. A PARAM_VALUE with a different value doesn't fail a
+ * parameter change right away since it can be a stale value sent as part of
+ * a parameter list download. The change only fails if the expected value is
+ * not reported before the last retry times out.
+ * </p><p>
+ * Only one request of a given kind can be pending for each vehicle, so a new
+ * command or parameter change supersedes the previous one if it has not been
+ * acknowledged yet.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkCommandTracker
+{
+    static final int MAX_STATUS_HISTORY = 256;
+    static final float PARAM_TOLERANCE = 1e-5f;
+
+    final MavlinkDriver driver;
+    final MavlinkSender sender;
+    long timeout;
+    long progressTimeout;
+    int maxRetries;
+    final ConcurrentHashMap<String, PendingRequest> pendingRequests = new ConcurrentHashMap<String, PendingRequest>();
+    final Map<String, PendingRequest> statusHistory;
+    final AtomicLong nextId = new AtomicLong(1);
+    ScheduledExecutorService timer;
+
+
+    /*
+     * State of a request waiting for acknowledgement
+     */
+    static class PendingRequest
+    {
+        final String key;
+        final MAVLinkMessage msg;
+        final CommandStatus status = new CommandStatus();
+        final CountDownLatch done = new CountDownLatch(1);
+        int numTries;
+        int timeoutCount;
+        boolean inProgress;
+        float rejectedValue = Float.NaN;
+        ScheduledFuture<?> timeoutTask;
+
+        PendingRequest(String key, MAVLinkMessage msg)
+        {
+            this.key = key;
+            this.msg = msg;
+        }
+    }
+
+
+    public MavlinkCommandTracker(MavlinkDriver driver, MavlinkSender sender)
+    {
+        this.driver = driver;
+        this.sender = sender;
+
+        // keep status of most recent requests so they can be polled by ID
+        this.statusHistory = new LinkedHashMap<String, PendingRequest>() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PendingRequest> eldest)
+            {
+                return size() > MAX_STATUS_HISTORY;
+            }
+        };
+    }
+
+
+    public synchronized void start()
+    {
+        this.timeout = Math.max(1, driver.getConfiguration().commandTimeout);
+        this.maxRetries = Math.max(0, driver.getConfiguration().commandRetries);
+        this.progressTimeout = Math.max(1, driver.getConfiguration().commandProgressTimeout);
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MAVLink Command Timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Sends a command and tracks it until the corresponding COMMAND_ACK
+     * is received
+     * @param cmd command message
+     * @return command status, updated asynchronously
+     */
+    public CommandStatus sendCommand(msg_command_long cmd)
+    {
+        return send(getCommandKey(cmd.target_system, cmd.command), cmd);
+    }
+
+
+    /**
+     * Sends a parameter change and tracks it until the vehicle reports
+     * the new parameter value
+     * @param cmd parameter set message
+     * @return command status, updated asynchronously
+     */
+    public CommandStatus setParam(msg_param_set cmd)
+    {
+        return send(getParamKey(cmd.target_system, cmd.getParam_Id()), cmd);
+    }
+
+
+    /**
+     * Sends a message for which the vehicle doesn't send any acknowledgement
+     * @param msg message to send (can be reused as soon as this method returns)
+     * @return command status, completed as soon as the message is queued
+     */
+    public CommandStatus sendMessage(MAVLinkMessage msg)
+    {
+        // message is encoded right away and never resent so don't keep it
+        PendingRequest req = new PendingRequest(null, null);
+        registerStatus(req);
+        if (sender.send(msg))
+            complete(req, StatusCode.COMPLETED, null);
+        else
+            complete(req, StatusCode.FAILED, "Cannot send message. Driver is stopped or send queue is full");
+        return req.status;
+    }
+
+
+    private CommandStatus send(String key, MAVLinkMessage msg)
+    {
+        PendingRequest req = new PendingRequest(key, msg);
+        registerStatus(req);
+
+        PendingRequest oldReq = pendingRequests.put(key, req);
+        if (oldReq != null)
+            complete(oldReq, StatusCode.CANCELLED, "Superseded by new request");
+
+        transmit(req);
+        return req.status;
+    }
+
+
+    /**
+     * Registers a request whose status is updated by another component,
+     * such as a mission transfer made of many messages
+     * @param key key of request, a pending request with the same key is cancelled
+     * @return new pending request
+     */
+    PendingRequest startRequest(String key)
+    {
+        PendingRequest req = new PendingRequest(key, null);
+        registerStatus(req);
+
+        PendingRequest oldReq = pendingRequests.put(key, req);
+        if (oldReq != null)
+            complete(oldReq, StatusCode.CANCELLED, "Superseded by new request");
+
+        return req;
+    }
+
+
+    /**
+     * Updates the status of a request registered with {@link #startRequest(String)}
+     * @param req pending request
+     * @param code new status code, the request is completed if it is a final status
+     * @param message status message
+     */
+    void updateRequest(PendingRequest req, StatusCode code, String message)
+    {
+        if (code == StatusCode.PENDING || code == StatusCode.EXECUTING)
+            updateStatus(req.status, code, message);
+        else
+            complete(req, code, message);
+    }
+
+
+    private void registerStatus(PendingRequest req)
+    {
+        req.status.id = Long.toString(nextId.getAndIncrement());
+        req.status.status = StatusCode.PENDING;
+        req.status.updateTime = System.currentTimeMillis();
+
+        synchronized (statusHistory)
+        {
+            statusHistory.put(req.status.id, req);
+        }
+    }
+
+
+    /*
+     * Send or resend request and schedule timeout
+     */
+    private synchronized void transmit(final PendingRequest req)
+    {
+        if (req.done.getCount() == 0)
+            return;
+
+        if (req.msg instanceof msg_command_long)
+            ((msg_command_long)req.msg).confirmation = (short)req.numTries;
+        req.numTries++;
+
+        if (timer == null || !sender.send(req.msg))
+        {
+            complete(req, StatusCode.FAILED, "Cannot send request. Driver is stopped or send queue is full");
+            return;
+        }
+
+        scheduleTimeout(req, timeout);
+    }
+
+
+    /*
+     * Replace timeout of request
+     * Must be called while holding the tracker lock
+     */
+    private void scheduleTimeout(final PendingRequest req, long delay)
+    {
+        if (req.timeoutTask != null)
+            req.timeoutTask.cancel(false);
+
+        final int timeoutCount = ++req.timeoutCount;
+        req.timeoutTask = timer.schedule(new Runnable() {
+            public void run()
+            {
+                handleTimeout(req, timeoutCount);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    private synchronized void handleTimeout(PendingRequest req, int timeoutCount)
+    {
+        if (pendingRequests.get(req.key) != req)
+            return;
+
+        // ignore timeouts that were replaced while this one was firing
+        if (timeoutCount != req.timeoutCount)
+            return;
+
+        if (req.inProgress)
+            complete(req, StatusCode.FAILED, "No progress reported for " + progressTimeout + "ms");
+        else if (req.numTries <= maxRetries)
+        {
+            driver.getLogger().debug("No acknowledgement for {}. Resending", req.key);
+            transmit(req);
+        }
+        else if (!Float.isNaN(req.rejectedValue))
+            complete(req, StatusCode.FAILED, "Value not accepted by vehicle. Current value is " + req.rejectedValue);
+        else
+            complete(req, StatusCode.FAILED, "No acknowledgement received after " + req.numTries + " tries");
+    }
+
+
+    /**
+     * Updates status of pending command using the received COMMAND_ACK
+     * @param packet packet containing the COMMAND_ACK message
+     */
+    public void handleCommandAck(MAVLinkPacket packet)
+    {
+        msg_command_ack ack = (msg_command_ack)packet.unpack();
+        PendingRequest req = pendingRequests.get(getCommandKey(packet.sysid, ack.command));
+        if (req == null)
+            return;
+
+        switch (ack.result)
+        {
+            case MAV_RESULT.MAV_RESULT_ACCEPTED:
+                complete(req, StatusCode.COMPLETED, null);
+                break;
+
+            case MAV_RESULT.MAV_RESULT_TEMPORARILY_REJECTED:
+                complete(req, StatusCode.REJECTED, "Command temporarily rejected");
+                break;
+
+            case MAV_RESULT.MAV_RESULT_DENIED:
+                complete(req, StatusCode.REJECTED, "Command denied");
+                break;
+
+            case MAV_RESULT.MAV_RESULT_UNSUPPORTED:
+                complete(req, StatusCode.REJECTED, "Command not supported");
+                break;
+
+            case MAV_RESULT.MAV_RESULT_FAILED:
+                complete(req, StatusCode.FAILED, "Command failed");
+                break;
+
+            case MAV_RESULT.MAV_RESULT_IN_PROGRESS:
+                handleProgress(req);
+                break;
+
+            default:
+                complete(req, StatusCode.FAILED, "Unknown command result " + ack.result);
+        }
+    }
+
+
+    /*
+     * Stop resending a command once the vehicle has started executing it,
+     * and wait for further progress updates or for the final result instead
+     */
+    private synchronized void handleProgress(PendingRequest req)
+    {
+        if (req.done.getCount() == 0 || timer == null)
+            return;
+
+        req.inProgress = true;
+        scheduleTimeout(req, progressTimeout);
+        updateStatus(req.status, StatusCode.EXECUTING, null);
+    }
+
+
+    /**
+     * Updates status of pending parameter change using the received PARAM_VALUE
+     * @param sysid ID of system that sent the message
+     * @param paramValue PARAM_VALUE message
+     */
+    public void handleParamValue(int sysid, msg_param_value paramValue)
+    {
+        PendingRequest req = pendingRequests.get(getParamKey(sysid, paramValue.getParam_Id()));
+        if (req == null)
+            return;
+
+        // a different value can be a stale one sent during a parameter list
+        // download so we keep resending and only fail on the last timeout
+        float expectedValue = ((msg_param_set)req.msg).param_value;
+        if (isSameParamValue(expectedValue, paramValue.param_value, paramValue.param_type))
+            complete(req, StatusCode.COMPLETED, null);
+        else
+        {
+            synchronized (this)
+            {
+                req.rejectedValue = paramValue.param_value;
+            }
+        }
+    }
+
+
+    /*
+     * Compare values with a tolerance since they go through float conversions
+     * Integer parameters are rounded by the vehicle so we do the same
+     */
+    static boolean isSameParamValue(float expected, float actual, int paramType)
+    {
+        if (paramType >= MAV_PARAM_TYPE.MAV_PARAM_TYPE_UINT8 && paramType <= MAV_PARAM_TYPE.MAV_PARAM_TYPE_INT64)
+            return Math.round(expected) == Math.round(actual);
+        return Math.abs(actual - expected) <= PARAM_TOLERANCE * Math.max(1f, Math.abs(expected));
+    }
+
+
+    private void complete(PendingRequest req, StatusCode code, String message)
+    {
+        synchronized (this)
+        {
+            if (req.done.getCount() == 0)
+                return;
+
+            if (req.key != null)
+                pendingRequests.remove(req.key, req);
+            if (req.timeoutTask != null)
+                req.timeoutTask.cancel(false);
+            updateStatus(req.status, code, message);
+            req.done.countDown();
+        }
+
+        if (code != StatusCode.COMPLETED)
+            driver.getLogger().warn("Request {} {}: {}", req.key, code, message);
+    }
+
+
+    private void updateStatus(CommandStatus status, StatusCode code, String message)
+    {
+        synchronized (status)
+        {
+            status.previousStatus = status.status;
+            status.status = code;
+            status.message = message;
+            status.updateTime = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Waits until the request with the given status is completed, rejected
+     * or failed, or until all retries have timed out
+     * @param status status object returned when the request was sent
+     * @return true if the request reached a final state, false otherwise
+     */
+    public boolean waitForCompletion(CommandStatus status)
+    {
+        // add a small margin so the last timeout has a chance to fire
+        return waitForCompletion(status, timeout * (maxRetries + 1) + timeout / 2);
+    }
+
+
+    /**
+     * Waits until the request with the given status reaches a final state
+     * or until the given time has elapsed
+     * @param status status object returned when the request was sent
+     * @param maxWait maximum time to wait in milliseconds, or 0 to wait
+     * until the request is completed
+     * @return true if the request reached a final state, false otherwise
+     */
+    public boolean waitForCompletion(CommandStatus status, long maxWait)
+    {
+        PendingRequest req;
+        synchronized (statusHistory)
+        {
+            req = statusHistory.get(status.id);
+        }
+
+        if (req == null)
+            return true;
+
+        try
+        {
+            if (maxWait <= 0)
+            {
+                req.done.await();
+                return true;
+            }
+
+            return req.done.await(maxWait, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+
+    /**
+     * @param id ID of the command status
+     * @return status of one of the most recent requests or null if unknown
+     */
+    public CommandStatus getCommandStatus(String id)
+    {
+        synchronized (statusHistory)
+        {
+            PendingRequest req = statusHistory.get(id);
+            return (req != null) ? req.status : null;
+        }
+    }
+
+
+    static String getCommandKey(int sysid, int command)
+    {
+        return sysid + ":cmd:" + command;
+    }
+
+
+    static String getParamKey(int sysid, String paramName)
+    {
+        return sysid + ":param:" + paramName;
+    }
+
+
+    static String getMissionKey(int sysid)
+    {
+        return sysid + ":mission";
+    }
+
+
+    static String getLogKey(int sysid)
+    {
+        return sysid + ":log";
+    }
+
+
+    static String getRecorderKey(String reason)
+    {
+        return "recorder:" + reason;
+    }
+
+
+    static String getHilKey(String msgType)
+    {
+        return "hil:" + msgType;
+    }
+
+
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+
+        for (PendingRequest req: pendingRequests.values())
+            complete(req, StatusCode.CANCELLED, "Driver stopped");
+    }
+}
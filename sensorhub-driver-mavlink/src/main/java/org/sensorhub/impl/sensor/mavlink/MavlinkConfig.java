@@ -14,7 +14,9 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.sensor.mavlink;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import org.sensorhub.api.comm.CommProviderConfig;
 import org.sensorhub.api.config.DisplayInfo;
 import org.sensorhub.api.sensor.SensorConfig;
@@ -31,7 +33,8 @@ public class MavlinkConfig extends SensorConfig
         ATTITUDE_QUATERNION,
         BATTERY_STATUS,
         RADIO_STATUS,
-        GIMBAL_REPORT
+        GIMBAL_REPORT,
+        ADSB_VEHICLE
     }    
     
     public enum CmdTypes
@@ -48,12 +51,48 @@ public class MavlinkConfig extends SensorConfig
         
         MOUNT_CONTROL,
         MOUNT_TARGET,
+        
+        UPLOAD_MISSION,
+        DOWNLOAD_MISSION,
+        CLEAR_MISSION,
+        START_MISSION,
+        
+        LIST_LOGS,
+        DOWNLOAD_LOG,
+        DUMP_FLIGHT_RECORDER,
+        
+        HIL_SENSOR,
+        HIL_GPS,
+        HIL_STATE_QUATERNION,
+    }
+    
+    
+    public enum ProtocolVersion
+    {
+        MAVLINK1,
+        MAVLINK2
+    }
+    
+    
+    public static class FramePoseSource
+    {
+        @DisplayInfo(label="Video Module ID", desc="ID of the module producing the video frames (e.g. an RTP camera driver)")
+        public String moduleID;
+        
+        @DisplayInfo(label="Video Output", desc="Name of the video output of this module")
+        public String outputName = "video";
+        
+        @DisplayInfo(label="System ID", desc="MAVLink system ID of the vehicle carrying the camera, or 0 for the default vehicle")
+        public int systemID = 0;
     }
     
     
     @DisplayInfo(label="Vehicle ID", desc="ID of vehicle sending the MAVLink stream (e.g. serial number)")
     public String vehicleID;
     
+    @DisplayInfo(label="Multi-Vehicle Mode", desc="Set to expose all vehicles found on the link as separate entities, demultiplexed by MAVLink system ID")
+    public boolean multiVehicle = false;
+    
     @DisplayInfo(desc="Maximum travel distance allowed from take-off point in meters (used to setup geofence)")
     public float maxTravelDistance = 150f;
     
@@ -66,6 +105,87 @@ public class MavlinkConfig extends SensorConfig
     @DisplayInfo(desc="MAVLink commands to expose through this sensor interface")
     public EnumSet<CmdTypes> activeCommands = EnumSet.noneOf(CmdTypes.class);
     
+    @DisplayInfo(desc="MAVLink protocol version used to send commands on this link (both versions are always accepted on receive)")
+    public ProtocolVersion protocolVersion = ProtocolVersion.MAVLINK1;
+    
+    @DisplayInfo(label="Message Rate", desc="Rate at which messages are requested from the vehicle while at least one consumer is listening to the corresponding output, in Hz")
+    public float messageRate = 10f;
+    
+    @DisplayInfo(label="Idle Message Rate", desc="Rate at which messages of outputs with no listener are still requested so their latest record stays current, in Hz, or 0 to disable these messages entirely")
+    public float idleMessageRate = 1f;
+    
+    @DisplayInfo(label="Vehicle State Rate", desc="Rate at which fused position, velocity and attitude records are published on the vehicle state output, in Hz, or 0 to disable this output")
+    public float stateOutputRate = 0f;
+    
+    @DisplayInfo(label="Vehicle State Max Age", desc="Maximum age of position and attitude samples in a vehicle state record, in seconds. Older samples are flagged as stale")
+    public float stateMaxAge = 1.0f;
+    
+    @DisplayInfo(label="Frame Pose Sources", desc="Video outputs whose frames are tagged with the vehicle and gimbal pose interpolated at the frame time. Poses are published on the frame pose output")
+    public List<FramePoseSource> framePoseSources = new ArrayList<FramePoseSource>();
+    
+    @DisplayInfo(label="Frame Pose Max Age", desc="Maximum time between a video frame and the closest position, attitude or gimbal sample, in seconds. Poses computed from samples further away are flagged as stale")
+    public float framePoseMaxAge = 0.5f;
+    
+    @DisplayInfo(label="Command Timeout", desc="Time to wait for the vehicle to acknowledge a command or parameter change before resending it, in milliseconds")
+    public int commandTimeout = 1000;
+    
+    @DisplayInfo(label="Command Retries", desc="Number of times a command or parameter change is resent before it is reported as failed")
+    public int commandRetries = 3;
+    
+    @DisplayInfo(label="Command Progress Timeout", desc="Time to wait for a progress update or the final result of a command that the vehicle reported as in progress, in milliseconds")
+    public int commandProgressTimeout = 5000;
+    
+    @DisplayInfo(label="Throttle TX Buffer Low", desc="Free space in the radio transmit buffer, in percent, under which telemetry rates are lowered, starting with low priority messages. Only used if RADIO_STATUS is in active messages")
+    public int throttleTxBufLow = 40;
+    
+    @DisplayInfo(label="Throttle TX Buffer High", desc="Free space in the radio transmit buffer, in percent, above which throttled telemetry rates are progressively restored")
+    public int throttleTxBufHigh = 80;
+    
+    @DisplayInfo(label="Throttle Link Margin", desc="Margin between signal strength and noise reported by the radios, in radio units, under which telemetry rates are lowered when receive errors occur")
+    public int throttleMinLinkMargin = 10;
+    
+    @DisplayInfo(label="Mission Request Window", desc="Maximum number of mission items requested from the vehicle without waiting for answers when downloading a mission")
+    public int missionWindowSize = 8;
+    
+    @DisplayInfo(label="ADS-B Timeout", desc="Time after which an aircraft seen by ADS-B is removed from the traffic table if no message was received from it, in seconds")
+    public int adsbTimeout = 20;
+    
+    @DisplayInfo(label="ADS-B Max Aircraft", desc="Maximum number of aircraft tracked simultaneously by the ADS-B traffic output. Messages from other aircraft are ignored while the table is full")
+    public int adsbMaxAircraft = 256;
+    
+    @DisplayInfo(label="Log Request Window", desc="Number of 90-byte chunks requested at once from the vehicle when downloading an onboard log. Larger windows keep the link busy but take longer to recover from losses")
+    public int logWindowSize = 512;
+    
+    @DisplayInfo(label="Log Download Folder", desc="Folder where onboard logs downloaded from vehicles and flight recorder dumps are saved, or null to use the system temporary folder")
+    public String logDownloadDir;
+    
+    @DisplayInfo(label="Flight Recorder Size", desc="Size in MB of the memory buffer keeping the most recent packets received from the link, or 0 to disable the flight recorder")
+    public int flightRecorderSize = 0;
+    
+    @DisplayInfo(label="Flight Recorder Trigger Delay", desc="Delay in seconds between a critical vehicle status and the flight recorder dump, so packets received after the incident are also saved")
+    public int flightRecorderTriggerDelay = 10;
+    
+    @DisplayInfo(label="HIL Rate", desc="Rate at which the HIL injection thread wakes up to send queued hardware-in-the-loop samples to the vehicle, in Hz. Each sample is sent when its simulation time is due, so this is the time resolution of the injection")
+    public float hilRate = 400f;
+    
+    @DisplayInfo(label="HIL Queue Size", desc="Maximum number of HIL samples of each message type waiting to be sent. Samples received while the queue is full are dropped")
+    public int hilQueueSize = 1024;
+    
+    @DisplayInfo(label="TLog File", desc="Path of telemetry log file (tlog) where all MAVLink packets sent and received are recorded, or null to disable recording")
+    public String tlogPath;
+    
+    @DisplayInfo(label="Parameter Cache Folder", desc="Folder where the parameter table of each vehicle is cached so only changed parameters are written on reconnect, or null to disable caching")
+    public String paramCacheDir;
+    
+    @DisplayInfo(label="Latency Stats Period", desc="Period at which message latency statistics are published, in seconds, or 0 to disable the latency output")
+    public int latencyStatsPeriod = 0;
+    
+    @DisplayInfo(label="Link Stats Period", desc="Period at which link traffic statistics (throughput, errors, lost packets, per message rates) are published, in seconds, or 0 to disable the link statistics outputs")
+    public int linkStatsPeriod = 0;
+    
     @DisplayInfo(desc="Communication settings to connect to MAVLink data stream")
     public CommProviderConfig<?> commSettings;
+    
+    @DisplayInfo(label="Routing Endpoints", desc="Additional links (e.g. to ground control stations) sharing the vehicle link. MAVLink packets are routed between all links based on the system IDs seen on each of them")
+    public List<CommProviderConfig<?>> routeEndpoints = new ArrayList<CommProviderConfig<?>>();
 }
@@ -14,14 +14,31 @@ Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.sensor.mavlink;
 
+import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataChoice;
 import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.sensor.SensorException;
 import org.sensorhub.impl.sensor.AbstractSensorControl;
-
-
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Base class for MAVLink control inputs.<br/>
+ * Commands are sent asynchronously and their status is updated when the
+ * vehicle acknowledges them. Synchronous execution waits for the final
+ * status, including retries.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Jul 5, 2016
+ */
 public abstract class MavlinkControlInput extends AbstractSensorControl<MavlinkDriver>
 {
     DataChoice commandData;
+    DataRecord commandStruct;
 
 
     public MavlinkControlInput(MavlinkDriver parentSensor)
@@ -33,7 +50,7 @@ public abstract class MavlinkControlInput extends AbstractSensorControl<MavlinkD
     @Override
     public boolean isAsyncExecSupported()
     {
-        return false;
+        return true;
     }
 
 
@@ -51,10 +68,74 @@ public abstract class MavlinkControlInput extends AbstractSensorControl<MavlinkD
     }
     
     
+    @Override
+    public abstract CommandStatus sendCommand(DataBlock command) throws SensorException;
+    
+    
+    @Override
+    public CommandStatus execCommand(DataBlock command) throws SensorException
+    {
+        CommandStatus status = sendCommand(command);
+        parentSensor.commandTracker.waitForCompletion(status);
+        return status;
+    }
+    
+    
+    @Override
+    public CommandStatus getCommandStatus(String commandID)
+    {
+        return parentSensor.commandTracker.getCommandStatus(commandID);
+    }
+    
+    
     @Override
     public DataComponent getCommandDescription()
     {
-        return commandData;
+        return (commandStruct != null) ? commandStruct : commandData;
+    }
+    
+    
+    /*
+     * In multi-vehicle mode, wrap command choice in a record that
+     * also includes the ID of the target vehicle
+     */
+    protected void addVehicleSelector()
+    {
+        if (parentSensor.isMultiVehicle())
+        {
+            SWEHelper fac = new SWEHelper();
+            commandStruct = fac.newDataRecord(2);
+            commandStruct.setName(getName());
+            commandStruct.setUpdatable(true);
+            commandStruct.addComponent("vehicleID", fac.newText(SWEHelper.getPropertyUri("SystemID"), "Vehicle ID", "MAVLink system ID of target vehicle"));
+            commandStruct.addComponent("command", commandData);
+        }
+    }
+    
+    
+    /*
+     * Index of selected choice item in command data block
+     * Command parameters start right after this index
+     */
+    protected int getCommandIndex()
+    {
+        return (commandStruct != null) ? 1 : 0;
+    }
+    
+    
+    /*
+     * Get vehicle that the command should be sent to
+     */
+    protected MavlinkVehicle getTargetVehicle(DataBlock command) throws SensorException
+    {
+        if (commandStruct == null)
+            return parentSensor.getDefaultVehicle();
+        
+        String entityID = command.getStringValue(0);
+        MavlinkVehicle vehicle = parentSensor.getVehicle(entityID);
+        if (vehicle == null)
+            throw new SensorException("Unknown vehicle " + entityID);
+        return vehicle;
     }
 
 
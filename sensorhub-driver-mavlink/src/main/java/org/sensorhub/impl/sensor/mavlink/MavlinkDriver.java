@@ -14,29 +14,60 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.sensor.mavlink;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import net.opengis.gml.v32.AbstractFeature;
+import net.opengis.sensorml.v20.AbstractProcess;
+import net.opengis.sensorml.v20.PhysicalSystem;
 import org.sensorhub.api.comm.ICommProvider;
+import org.sensorhub.api.common.CommandStatus;
 import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.data.FoiEvent;
+import org.sensorhub.api.data.IMultiSourceDataProducer;
 import org.sensorhub.api.sensor.ISensorDataInterface;
 import org.sensorhub.impl.sensor.AbstractSensorModule;
 import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.MsgTypes;
+import org.vast.sensorML.SMLHelper;
 import com.MAVLink.MAVLinkPacket;
 import com.MAVLink.Parser;
 import com.MAVLink.Messages.MAVLinkMessage;
 import com.MAVLink.common.msg_command_ack;
 import com.MAVLink.common.msg_command_long;
 import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_log_data;
+import com.MAVLink.common.msg_log_entry;
+import com.MAVLink.common.msg_mission_ack;
+import com.MAVLink.common.msg_mission_count;
+import com.MAVLink.common.msg_mission_item_int;
+import com.MAVLink.common.msg_mission_request;
+import com.MAVLink.common.msg_mission_request_int;
 import com.MAVLink.common.msg_param_set;
+import com.MAVLink.common.msg_param_value;
 import com.MAVLink.common.msg_position_target_global_int;
+import com.MAVLink.common.msg_radio_status;
 import com.MAVLink.common.msg_set_mode;
+import com.MAVLink.common.msg_timesync;
+import com.MAVLink.enums.MAV_AUTOPILOT;
 import com.MAVLink.enums.MAV_CMD;
 import com.MAVLink.enums.MAV_MODE_FLAG;
 import com.MAVLink.enums.MAV_PARAM_TYPE;
+import com.MAVLink.enums.MAV_STATE;
+import com.MAVLink.views.view_heartbeat;
+import com.MAVLink.views.view_log_data;
 
 
 /**
@@ -44,26 +75,68 @@ import com.MAVLink.enums.MAV_PARAM_TYPE;
  * Driver implementation for MAVLink enabled systems.<br/>
  * Only a few messages and commands are supported for now but this can easily
  * be extended.
+ * </p><p>
+ * In multi-vehicle mode, packets from all systems sending an autopilot
+ * heartbeat on the link are demultiplexed by system ID, and each vehicle is
+ * exposed as a separate entity with its own feature of interest.
+ * </p><p>
+ * Commands and parameter changes are sent asynchronously through a queue
+ * and tracked until they are acknowledged by the vehicle, so that the
+ * driver never blocks on the link.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
  * @since Dec 12, 2015
  */
-public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
+public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig> implements IMultiSourceDataProducer
 {
     protected static final String BODY_FRAME = "BODY_FRAME";
     protected static final String GIMBAL_FRAME = "GIMBAL_FRAME";
     protected static final long MAX_MSG_PERIOD = 10000L;
+    protected static final int READ_BUFFER_SIZE = 4096;
+    protected static final String SENSOR_UID_PREFIX = "urn:osh:sensor:mavlink:";
     
     ICommProvider<?> commProvider;
     Timer watchDogTimer;
     volatile boolean started;
     boolean connected;
     InputStream msgIn;
-    OutputStream cmdOut;
+    MavlinkSender sender;
+    MavlinkCommandTracker commandTracker;
+    MavlinkParamManager paramManager;
+    MavlinkStreamRateManager rateManager;
+    MavlinkMissionManager missionManager;
+    MissionOutput missionOutput;
+    MavlinkLogManager logManager;
+    LogEntryOutput logEntryOutput;
+    LogDownloadOutput logDownloadOutput;
+    MavlinkRouter router;
+    MavlinkHilInjector hilInjector;
     Parser mavlinkParser;
+    byte[] readBuffer;
+    MavlinkOutput[][] outputsByMsgId;
+    volatile TLogWriter tlogWriter;
+    byte[] frameBuffer;
+    volatile MavlinkFlightRecorder flightRecorder;
+    
+    MavlinkVehicle defaultVehicle;
+    MavlinkVehicle[] vehiclesBySysId;
+    Map<String, MavlinkVehicle> vehicles;
+    Set<String> foiIDs;
+    Map<String, AbstractFeature> trafficFois;
+    view_heartbeat heartbeat = new view_heartbeat();
+    view_log_data logData = new view_log_data();
+    LatencyStatsOutput latencyStats;
+    MavlinkLinkStats linkStats;
+    LinkStatsOutput linkStatsOutput;
+    FramePoseOutput framePoseOutput;
+    MavlinkLinkThrottle throttle;
+    long chunkHandleNanos;
     
     long lastMsgTime = 0;
+    long lastMsgNanos;
+    MavlinkVehicle currentVehicle;
+    int currentMsgId;
     
     
     enum CopterModes
@@ -91,9 +164,33 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
     public void init() throws SensorHubException
     {
         // generate identifiers
-        generateUniqueID("urn:osh:sensor:mavlink:", config.vehicleID);
+        generateUniqueID(SENSOR_UID_PREFIX, config.vehicleID);
         generateXmlID("MAVLINK_SYSTEM_", config.vehicleID);
         
+        // init vehicle maps
+        // in single vehicle mode, commands are sent to system 1 until
+        // we receive a heartbeat from the vehicle autopilot
+        defaultVehicle = new MavlinkVehicle(null, 1);
+        vehiclesBySysId = new MavlinkVehicle[256];
+        vehicles = new ConcurrentHashMap<String, MavlinkVehicle>();
+        foiIDs = new ConcurrentSkipListSet<String>();
+        trafficFois = new ConcurrentSkipListMap<String, AbstractFeature>();
+        
+        // in single vehicle mode, the default vehicle is the only entity
+        // and is identified by the sensor unique ID
+        if (!config.multiVehicle)
+            defaultVehicle.foi = createVehicleFoi(config.vehicleID, uniqueID, "MAVLink vehicle " + config.vehicleID);
+        
+        // create command queue and tracker
+        sender = new MavlinkSender(this);
+        commandTracker = new MavlinkCommandTracker(this, sender);
+        paramManager = new MavlinkParamManager(this);
+        rateManager = new MavlinkStreamRateManager(this);
+        missionManager = new MavlinkMissionManager(this);
+        logManager = new MavlinkLogManager(this);
+        if (config.routeEndpoints != null && !config.routeEndpoints.isEmpty())
+            router = new MavlinkRouter(this, config.routeEndpoints);
+        
         // create outputs depending on selected sentences
         if (config.activeMessages.contains(MsgTypes.GLOBAL_POSITION))
         {
@@ -116,6 +213,14 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
             dataInterface.init();
         }
         
+        // fused position and attitude
+        if (config.stateOutputRate > 0)
+        {
+            VehicleStateOutput dataInterface = new VehicleStateOutput(this);
+            addOutput(dataInterface, false);
+            dataInterface.init();
+        }
+        
         if (config.activeMessages.contains(MsgTypes.GIMBAL_REPORT))
         {
             GimbalEulerOutput dataInterface = new GimbalEulerOutput(this);
@@ -123,6 +228,14 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
             dataInterface.init();
         }
         
+        // pose tagging of video frames
+        if (config.framePoseSources != null && !config.framePoseSources.isEmpty())
+        {
+            framePoseOutput = new FramePoseOutput(this);
+            addOutput(framePoseOutput, false);
+            framePoseOutput.init();
+        }
+        
         if (config.activeMessages.contains(MsgTypes.BATTERY_STATUS))
         {
             BatteryStatusOutput dataInterface = new BatteryStatusOutput(this);
@@ -130,6 +243,44 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
             dataInterface.init();
         }
         
+        if (config.activeMessages.contains(MsgTypes.ADSB_VEHICLE))
+        {
+            AdsbTrafficOutput dataInterface = new AdsbTrafficOutput(this);
+            addOutput(dataInterface, false);
+            dataInterface.init();
+        }
+        
+        // monitoring outputs
+        if (config.latencyStatsPeriod > 0)
+        {
+            latencyStats = new LatencyStatsOutput(this);
+            addOutput(latencyStats, true);
+            latencyStats.init();
+        }
+        
+        if (config.linkStatsPeriod > 0)
+        {
+            linkStats = new MavlinkLinkStats();
+            LinkSourceStatsOutput sourceStatsOutput = new LinkSourceStatsOutput(this, linkStats);
+            LinkMsgStatsOutput msgStatsOutput = new LinkMsgStatsOutput(this, linkStats);
+            linkStatsOutput = new LinkStatsOutput(this, linkStats, sourceStatsOutput, msgStatsOutput);
+            addOutput(linkStatsOutput, true);
+            addOutput(sourceStatsOutput, true);
+            addOutput(msgStatsOutput, true);
+            linkStatsOutput.init();
+            sourceStatsOutput.init();
+            msgStatsOutput.init();
+        }
+        
+        // adapt telemetry rates to radio link status
+        if (config.activeMessages.contains(MsgTypes.RADIO_STATUS))
+        {
+            LinkThrottleOutput throttleOutput = new LinkThrottleOutput(this);
+            addOutput(throttleOutput, true);
+            throttleOutput.init();
+            throttle = new MavlinkLinkThrottle(this, throttleOutput);
+        }
+        
         // create control inputs depending on selected commands
         // only add the control input objects if some commands were enabled
         MavlinkNavControl navControl = new MavlinkNavControl(this);
@@ -141,6 +292,46 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         camControl.init();
         if (camControl.commandData.getNumItems() > 0)
             addControlInput(camControl);
+        
+        MavlinkMissionControl missionControl = new MavlinkMissionControl(this);
+        missionControl.init();
+        if (missionControl.commandData.getNumItems() > 0)
+        {
+            addControlInput(missionControl);
+            
+            // transferred missions are published on separate output
+            missionOutput = new MissionOutput(this);
+            addOutput(missionOutput, false);
+            missionOutput.init();
+        }
+        
+        MavlinkLogControl logControl = new MavlinkLogControl(this);
+        logControl.init();
+        if (logControl.commandData.getNumItems() > 0)
+        {
+            addControlInput(logControl);
+            
+            // log list and download progress are published on separate outputs
+            logEntryOutput = new LogEntryOutput(this);
+            addOutput(logEntryOutput, true);
+            logEntryOutput.init();
+            logDownloadOutput = new LogDownloadOutput(this);
+            addOutput(logDownloadOutput, true);
+            logDownloadOutput.init();
+        }
+        
+        MavlinkHilControl hilControl = new MavlinkHilControl(this);
+        hilControl.init();
+        if (hilControl.commandData.getNumItems() > 0)
+        {
+            addControlInput(hilControl);
+            
+            // achieved rates and jitter are published on separate output
+            HilStatsOutput hilStatsOutput = new HilStatsOutput(this);
+            addOutput(hilStatsOutput, true);
+            hilStatsOutput.init();
+            hilInjector = new MavlinkHilInjector(this, hilStatsOutput);
+        }
     }
 
 
@@ -149,7 +340,29 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
     {
         if (started)
             return;        
-                
+        
+        // release everything already started if any step fails
+        try
+        {
+            startAll();
+        }
+        catch (Exception e)
+        {
+            try { stop(); }
+            catch (Exception e2) { getLogger().error("Error while stopping MAVLink driver after failed start", e2); }
+            
+            if (e instanceof SensorHubException)
+                throw (SensorHubException)e;
+            throw new SensorHubException("Error while starting MAVLink driver", e);
+        }
+    }
+    
+    
+    /*
+     * Start comm provider, message processing components and reader thread
+     */
+    private void startAll() throws SensorHubException
+    {
         // init comm provider
         if (commProvider == null)
         {
@@ -173,8 +386,34 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         try
         {
             mavlinkParser = new Parser();
-            msgIn = new BufferedInputStream(commProvider.getInputStream());
-            cmdOut = new BufferedOutputStream(commProvider.getOutputStream());
+            readBuffer = new byte[READ_BUFFER_SIZE];
+            msgIn = commProvider.getInputStream();
+            sender.start(commProvider.getOutputStream());
+            commandTracker.start();
+            paramManager.start();
+            rateManager.start();
+            missionManager.start();
+            logManager.start();
+            if (router != null)
+                router.start();
+            if (hilInjector != null)
+                hilInjector.start();
+            
+            // start recording to tlog if enabled
+            if (config.tlogPath != null)
+            {
+                frameBuffer = new byte[Parser.MAX_FRAME_LEN];
+                tlogWriter = new TLogWriter(new File(config.tlogPath));
+                getLogger().info("Recording MAVLink packets to {}", config.tlogPath);
+            }
+            
+            // keep most recent packets in memory if enabled
+            // buffer is kept on restart so it's only allocated once
+            int recorderSize = (int)Math.min(Integer.MAX_VALUE, config.flightRecorderSize * 1024L * 1024L);
+            if (recorderSize <= 0)
+                flightRecorder = null;
+            else if (flightRecorder == null || flightRecorder.getCapacity() != recorderSize)
+                flightRecorder = new MavlinkFlightRecorder(recorderSize);
             
             // send heartbeat
             msg_heartbeat hb = new msg_heartbeat();
@@ -182,34 +421,24 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         }
         catch (IOException e)
         {
-            throw new RuntimeException("Error while initializing communications ", e);
+            throw new SensorHubException("Error while initializing communications", e);
         }
         
         // set ardupilot parameters
-        try
-        {         
-            setTelemetryRates();
-            setGeofenceParams();
-            setDefaultNavParams();
-            
-            if (!config.activeCommands.isEmpty())
-            {
-                getLogger().info("Switching to GUIDED mode");
-                setMode(CopterModes.GUIDED.ordinal());
-            }
-        }
-        catch (Exception e)
-        {
-            throw new RuntimeException("Error while setting UAV parameters ", e);
-        }
+        // in multi-vehicle mode, this is done when each vehicle is discovered
+        // parameter table is fetched asynchronously so we don't wait here
+        if (!config.multiVehicle)
+            setupVehicle(defaultVehicle);
+        
+        // index outputs by message ID
+        buildDispatchTable();
         
         // start main measurement thread
         Thread t = new Thread(new Runnable()
         {
             public void run()
             {
-                while (started)
-                    handleNextMessage();
+                while (started && readNextChunk());
             }
         });
         
@@ -218,56 +447,134 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         
         // start connection watchdog
         startWatchDogTimer();
+        
+        if (latencyStats != null)
+            latencyStats.start();
+        if (linkStatsOutput != null)
+            linkStatsOutput.start();
+        if (framePoseOutput != null)
+            framePoseOutput.start();
+    }
+    
+    
+    /*
+     * Build table of outputs indexed by message ID so that each packet is
+     * only dispatched to the outputs that consume it
+     */
+    protected void buildDispatchTable()
+    {
+        // collect outputs for each message ID
+        Map<Integer, List<MavlinkOutput>> outputMap = new HashMap<Integer, List<MavlinkOutput>>();
+        int maxMsgId = -1;
+        int outputIndex = 0;
+        for (ISensorDataInterface output: this.getAllOutputs().values())
+        {
+            // skip monitoring outputs
+            if (!(output instanceof MavlinkOutput))
+                continue;
+            
+            MavlinkOutput mavOutput = (MavlinkOutput)output;
+            mavOutput.outputIndex = outputIndex++;
+            for (int msgId: mavOutput.getMessageIds())
+            {
+                List<MavlinkOutput> outputList = outputMap.get(msgId);
+                if (outputList == null)
+                {
+                    outputList = new ArrayList<MavlinkOutput>();
+                    outputMap.put(msgId, outputList);
+                }
+                outputList.add(mavOutput);
+                maxMsgId = Math.max(maxMsgId, msgId);
+            }
+        }
+        
+        // convert to array for fast lookup
+        MavlinkOutput[][] table = new MavlinkOutput[maxMsgId+1][];
+        for (Entry<Integer, List<MavlinkOutput>> entry: outputMap.entrySet())
+            table[entry.getKey()] = entry.getValue().toArray(new MavlinkOutput[0]);
+        outputsByMsgId = table;
     }
     
     
-    private void setTelemetryRates() throws IOException
+    private void setupVehicle(MavlinkVehicle vehicle)
     {
+        // only parameters that differ from the vehicle's values are written
+        Map<String, Float> params = new LinkedHashMap<String, Float>();
+        setTelemetryRates(params);
+        setGeofenceParams(params);
+        setDefaultNavParams(params);
+        paramManager.syncParams(vehicle, params);
+        rateManager.updateRates(vehicle);
+        
+        if (!config.activeCommands.isEmpty())
+        {
+            getLogger().info("Switching to GUIDED mode");
+            setMode(vehicle, CopterModes.GUIDED.ordinal());
+        }
+    }
+    
+    
+    private void setTelemetryRates(Map<String, Float> params)
+    {
+        // messages are then requested individually depending on which outputs
+        // have listeners, but keep position and attitude groups at the idle rate
+        // so vehicles that ignore SET_MESSAGE_INTERVAL still report them
+        float idleRate = Math.max(0f, config.idleMessageRate);
         getLogger().info("Setting Telemetry Update Rate");
-        setParam("SR1_RAW_SENS", 0);
-        setParam("SR1_EXT_STAT", 0);
-        setParam("SR1_RC_CHAN", 0);
-        setParam("SR1_RAW_CTRL", 0);
-        setParam("SR1_POSITION", 10);
-        setParam("SR1_EXTRA1", 10);
-        setParam("SR1_EXTRA2", 0);
-        setParam("SR1_EXTRA3", 10);
+        params.put("SR1_RAW_SENS", 0f);
+        params.put("SR1_EXT_STAT", 0f);
+        params.put("SR1_RC_CHAN", 0f);
+        params.put("SR1_RAW_CTRL", 0f);
+        params.put("SR1_POSITION", idleRate);
+        params.put("SR1_EXTRA1", idleRate);
+        params.put("SR1_EXTRA2", 0f);
+        params.put("SR1_EXTRA3", idleRate);
+    }
+    
+    
+    /*
+     * Called by outputs when listeners are added or removed
+     */
+    protected void updateMessageRates()
+    {
+        if (rateManager != null)
+            rateManager.updateRates();
     }
     
     
-    private void setDefaultNavParams() throws IOException
+    private void setDefaultNavParams(Map<String, Float> params)
     {
         getLogger().info("Setting Navigation Parameters");
-        setParam("WPNAV_RADIUS", 100);
-        setParam("CIRCLE_RADIUS", 2000);
-        setParam("CIRCLE_RATE", 5);
+        params.put("WPNAV_RADIUS", 100f);
+        params.put("CIRCLE_RADIUS", 2000f);
+        params.put("CIRCLE_RATE", 5f);
     }
     
     
-    private void setGeofenceParams() throws IOException
+    private void setGeofenceParams(Map<String, Float> params)
     {
         getLogger().info("Setting Geofencing Parameters");
-        setParam("FENCE_TYPE", 3);
-        setParam("FENCE_ALT_MAX", config.maxAltitude);
-        setParam("FENCE_RADIUS", config.maxTravelDistance);
-        setParam("FENCE_MARGIN", 2f);
-        setParam("FENCE_ENABLE", 1);
+        params.put("FENCE_TYPE", 3f);
+        params.put("FENCE_ALT_MAX", config.maxAltitude);
+        params.put("FENCE_RADIUS", config.maxTravelDistance);
+        params.put("FENCE_MARGIN", 2f);
+        params.put("FENCE_ENABLE", 1f);
     }
     
     
-    protected void setParam(String name, float value) throws IOException
+    protected CommandStatus setParam(MavlinkVehicle vehicle, String name, float value)
     {
         msg_param_set setParam = new msg_param_set();
-        setParam.target_system = 1;
-        setParam.target_component = 1;
+        setParam.target_system = (short)vehicle.sysid;
+        setParam.target_component = (short)vehicle.compid;
         setParam.param_type = MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32;
         setParam.setParam_Id(name);
         setParam.param_value = value;
-        sendCommand(setParam.pack());
+        return commandTracker.setParam(setParam);
     }
     
     
-    protected void setMode(int mode) throws IOException
+    protected CommandStatus setMode(MavlinkVehicle vehicle, int mode)
     {
         // this command typeis not implemented by ArduCopter although the docs say it is...
         /*msg_command_long cmd = new msg_command_long();
@@ -278,34 +585,55 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         sendCommand(cmd.pack()); */
         
         msg_set_mode cmd = new msg_set_mode();
-        cmd.target_system = 1;
+        cmd.target_system = (short)vehicle.sysid;
         cmd.base_mode = MAV_MODE_FLAG.MAV_MODE_FLAG_CUSTOM_MODE_ENABLED;
         cmd.custom_mode = mode;
-        sendCommand(cmd.pack());
+        return sendMessage(cmd);
     }
     
     
-    protected void armMotors() throws IOException
+    protected CommandStatus armMotors(MavlinkVehicle vehicle)
     {
         msg_command_long cmd = new msg_command_long();
-        cmd.target_system = 1;
-        cmd.target_component = 1;
+        cmd.target_system = (short)vehicle.sysid;
+        cmd.target_component = (short)vehicle.compid;
         cmd.command = MAV_CMD.MAV_CMD_COMPONENT_ARM_DISARM; // working but need gps fix and other prearm checks
         cmd.param1 = 1;
-        sendCommand(cmd.pack());
+        return sendCommand(cmd);
+    }
+    
+    
+    /**
+     * Sends a command and tracks it until it is acknowledged by the vehicle
+     * @param cmd command message
+     * @return status of the command, updated asynchronously
+     */
+    protected CommandStatus sendCommand(msg_command_long cmd)
+    {
+        return commandTracker.sendCommand(cmd);
+    }
+    
+    
+    /**
+     * Sends a message that is not acknowledged by the vehicle
+     * @param msg message to send
+     * @return status of the command, completed as soon as the message is queued
+     */
+    protected CommandStatus sendMessage(MAVLinkMessage msg)
+    {
+        return commandTracker.sendMessage(msg);
     }
     
     
+    /**
+     * Queues a raw packet for sending. This never blocks.
+     * @param pkt packet to send
+     * @throws IOException if the driver is not started or the send queue is full
+     */
     protected void sendCommand(MAVLinkPacket pkt) throws IOException
     {
-        synchronized (cmdOut)
-        {
-            pkt.generateCRC();
-            byte[] cmdData = pkt.encodePacket();
-            cmdOut.write(cmdData);
-            cmdOut.flush();
-            getLogger().trace("MAVLink command sent: " + pkt.msgid);
-        }
+        if (!sender.send(pkt))
+            throw new IOException("Cannot send MAVLink packet " + pkt.msgid);
     }
     
     
@@ -322,14 +650,38 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
                             {
                                 connected = false;
                                 notifyConnectionStatus(false, "MAVLink system");
+                                
+                                // save packets received before link was lost
+                                if (flightRecorder != null)
+                                    logManager.triggerFlightRecorder("linklost", 0);
                             }
                         }
                         
-                        // send heartbeat
+                        // send heartbeat and time sync request
                         try
                         {
                             msg_heartbeat hb = new msg_heartbeat();
                             sendCommand(hb.pack());
+                            
+                            msg_timesync ts = new msg_timesync();
+                            ts.tc1 = 0;
+                            ts.ts1 = MavlinkClock.currentTimeNanos();
+                            sendCommand(ts.pack());
+                        }
+                        catch (IOException e)
+                        {
+                        }
+                        
+                        // restore rates if radio stopped reporting
+                        if (throttle != null)
+                            throttle.checkTimeout(now);
+                        
+                        // flush tlog regularly
+                        try
+                        {
+                            TLogWriter writer = tlogWriter;
+                            if (writer != null)
+                                writer.flush();
                         }
                         catch (IOException e)
                         {
@@ -341,66 +693,483 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
     }
     
     
-    private void handleNextMessage()
+    /*
+     * Read all bytes currently available and handle all complete messages
+     * they contain. Returns false when the end of stream is reached.
+     */
+    private boolean readNextChunk()
     {
         try
         {
-            // read next message
-            MAVLinkPacket packet = null;
-            while (started && packet == null)
+            int nBytes = msgIn.read(readBuffer);
+            if (nBytes < 0)
             {
-                int c = msgIn.read();
-                packet = mavlinkParser.mavlink_parse_char(c);
+                if (started)
+                    getLogger().info("End of MAVLink stream");
+                return false;
             }
             
-            // if null, it's EOF
-            if (packet == null)
-                return;
+            if (linkStats != null)
+            {
+                // parse time excludes time spent handling packets
+                long t0 = System.nanoTime();
+                chunkHandleNanos = 0;
+                mavlinkParser.parse(readBuffer, 0, nBytes, packetHandler);
+                long parseNanos = System.nanoTime() - t0 - chunkHandleNanos;
+                linkStats.recordChunk(nBytes, mavlinkParser.stats.crcErrorCount, parseNanos);
+            }
+            else
+                mavlinkParser.parse(readBuffer, 0, nBytes, packetHandler);
             
-            // time tag message receipt
-            lastMsgTime = System.currentTimeMillis();
+            return true;
+        }
+        catch (IOException e)
+        {
+            if (started)
+                throw new RuntimeException("Error while parsing MAVLink message", e);
+            return false;
+        }
+    }
+    
+    
+    private final Parser.PacketHandler packetHandler = new Parser.PacketHandler()
+    {
+        @Override
+        public void handlePacket(MAVLinkPacket packet)
+        {
+            // forward raw frame first so routing latency doesn't depend on outputs
+            if (router != null)
+                router.routeFromVehicle(packet, mavlinkParser);
             
-            // send connection event
-            if (!connected)
+            if (linkStats != null)
             {
-                connected = true;
-                notifyConnectionStatus(true, "MAVLink system");
+                long t0 = System.nanoTime();
+                handleMessage(packet);
+                long handleNanos = System.nanoTime() - t0;
+                chunkHandleNanos += handleNanos;
+                linkStats.recordPacket(packet, mavlinkParser.getCurrentFrameLength(), handleNanos);
             }
-            
-            // unpack and log message
-            MAVLinkMessage msg = packet.unpack();
-            if (msg instanceof msg_command_ack || msg instanceof msg_position_target_global_int)
-                getLogger().info("Received {}", msg);
             else
+                handleMessage(packet);
+        }
+    };
+    
+    
+    /*
+     * Handle a packet received from the link
+     * Package visibility so benchmarks can feed packets directly
+     */
+    void handleMessage(MAVLinkPacket packet)
+    {
+        // time tag message receipt
+        lastMsgNanos = MavlinkClock.currentTimeNanos();
+        lastMsgTime = lastMsgNanos / 1000000L;
+        
+        // send connection event
+        if (!connected)
+        {
+            connected = true;
+            notifyConnectionStatus(true, "MAVLink system");
+        }
+        
+        // record raw frame
+        if (tlogWriter != null)
+        {
+            int frameLen = mavlinkParser.getCurrentFrame(frameBuffer, 0);
+            recordFrame(lastMsgTime, frameBuffer, frameLen);
+        }
+        
+        MavlinkFlightRecorder recorder = flightRecorder;
+        if (recorder != null)
+            recorder.append(lastMsgNanos / 1000L, mavlinkParser);
+        
+        // log message
+        // only unpack to a full message object if it's actually logged
+        if (packet.msgid == msg_command_ack.MAVLINK_MSG_ID_COMMAND_ACK ||
+            packet.msgid == msg_position_target_global_int.MAVLINK_MSG_ID_POSITION_TARGET_GLOBAL_INT)
+        {
+            getLogger().info("Received {}", packet.unpack());
+        }
+        else if (getLogger().isTraceEnabled())
+        {
+            MAVLinkMessage msg = packet.unpack();
+            if (msg != null)
                 getLogger().trace("Received message {} ({}) from {}:{}", msg, msg.getClass().getName(), msg.sysid, msg.compid);
+        }
+        
+        // radio status is injected by the radio itself, not by a vehicle
+        if (packet.msgid == msg_radio_status.MAVLINK_MSG_ID_RADIO_STATUS && throttle != null)
+        {
+            throttle.handleRadioStatus(lastMsgTime, (msg_radio_status)packet.unpack());
+            return;
+        }
+        
+        // find vehicle that sent the message
+        // in multi-vehicle mode, messages from unknown systems are dropped
+        MavlinkVehicle vehicle = getSendingVehicle(packet);
+        if (vehicle == null)
+            return;
+        vehicle.lastMsgTime = lastMsgTime;
+        
+        // save flight recorder when autopilot reports an emergency
+        if (packet.msgid == msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT && recorder != null)
+            checkSystemStatus(vehicle, packet);
+        
+        // acknowledge pending commands and parameter changes
+        if (packet.msgid == msg_command_ack.MAVLINK_MSG_ID_COMMAND_ACK)
+        {
+            commandTracker.handleCommandAck(packet);
+        }
+        else if (packet.msgid == msg_param_value.MAVLINK_MSG_ID_PARAM_VALUE)
+        {
+            msg_param_value paramValue = (msg_param_value)packet.unpack();
+            paramManager.handleParamValue(vehicle, paramValue);
+            commandTracker.handleParamValue(packet.sysid, paramValue);
+        }
+        
+        // mission and log transfers
+        switch (packet.msgid)
+        {
+            case msg_mission_request_int.MAVLINK_MSG_ID_MISSION_REQUEST_INT:
+                missionManager.handleMissionRequest(vehicle, ((msg_mission_request_int)packet.unpack()).seq);
+                break;
+                
+            case msg_mission_request.MAVLINK_MSG_ID_MISSION_REQUEST:
+                missionManager.handleMissionRequest(vehicle, ((msg_mission_request)packet.unpack()).seq);
+                break;
+                
+            case msg_mission_count.MAVLINK_MSG_ID_MISSION_COUNT:
+                missionManager.handleMissionCount(vehicle, (msg_mission_count)packet.unpack());
+                break;
+                
+            case msg_mission_item_int.MAVLINK_MSG_ID_MISSION_ITEM_INT:
+                missionManager.handleMissionItem(vehicle, (msg_mission_item_int)packet.unpack());
+                break;
+                
+            case msg_mission_ack.MAVLINK_MSG_ID_MISSION_ACK:
+                missionManager.handleMissionAck(vehicle, (msg_mission_ack)packet.unpack());
+                break;
+                
+            // log transfers
+            case msg_log_entry.MAVLINK_MSG_ID_LOG_ENTRY:
+                logManager.handleLogEntry(vehicle, (msg_log_entry)packet.unpack());
+                break;
+                
+            case msg_log_data.MAVLINK_MSG_ID_LOG_DATA:
+                if (logData.wrap(packet))
+                    logManager.handleLogData(vehicle, logData);
+                break;
+        }
+        
+        // align vehicle clock
+        if (packet.msgid == msg_timesync.MAVLINK_MSG_ID_TIMESYNC)
+            handleTimesync(vehicle, packet);
+        
+        // special case for system time message
+        /*if (msg instanceof msg_system_time)
+        {
+            long unixTime = ((msg_system_time)msg).time_unix_usec;
+            log.info("Unix time = " + new DateTimeFormat().formatIso(unixTime/1e6, 0));
+        }*/
+        
+        // let outputs that consume this message type handle it
+        // other messages are dropped without being decoded
+        MavlinkOutput[] outputs = (packet.msgid < outputsByMsgId.length) ? outputsByMsgId[packet.msgid] : null;
+        if (outputs != null)
+        {
+            currentVehicle = vehicle;
+            currentMsgId = packet.msgid;
             
-            // special case for system time message
-            /*if (msg instanceof msg_system_time)
-            {
-                long unixTime = ((msg_system_time)msg).time_unix_usec;
-                log.info("Unix time = " + new DateTimeFormat().formatIso(unixTime/1e6, 0));
-            }*/
+            for (MavlinkOutput output: outputs)
+                output.handleMessage(lastMsgTime, vehicle, packet);
+            
+            // measure time until all listeners were notified
+            if (latencyStats != null)
+                latencyStats.recordPublishLatency(packet.msgid, MavlinkClock.currentTimeNanos() - lastMsgNanos);
+        }
+    }
+    
+    
+    /*
+     * Answer time sync requests from the vehicle and use replies to
+     * our own requests to estimate the vehicle clock offset
+     */
+    private void handleTimesync(MavlinkVehicle vehicle, MAVLinkPacket packet)
+    {
+        msg_timesync ts = (msg_timesync)packet.unpack();
+        
+        if (ts.tc1 == 0)
+        {
+            msg_timesync reply = new msg_timesync();
+            reply.tc1 = MavlinkClock.currentTimeNanos();
+            reply.ts1 = ts.ts1;
+            try { sendCommand(reply.pack()); }
+            catch (IOException e) { }
+        }
+        else if (vehicle.clock.handleTimesync(ts.tc1, ts.ts1, lastMsgNanos))
+        {
+            getLogger().trace("Clock offset of vehicle {} = {}ns (rtt = {}ns)", vehicle.sysid,
+                    vehicle.clock.getOffset(), vehicle.clock.getLastRoundTripTime());
+        }
+    }
+    
+    
+    /*
+     * Get the vehicle that sent the packet, and register new vehicles
+     * when receiving heartbeats from their autopilot
+     */
+    private MavlinkVehicle getSendingVehicle(MAVLinkPacket packet)
+    {
+        MavlinkVehicle vehicle = config.multiVehicle ? vehiclesBySysId[packet.sysid] : defaultVehicle;
+        
+        if (heartbeat.wrap(packet) && heartbeat.autopilot() != MAV_AUTOPILOT.MAV_AUTOPILOT_INVALID)
+        {
+            if (vehicle == null)
+                vehicle = addVehicle(packet.sysid);
             
-            // let each registered output handle this message
-            for (ISensorDataInterface output: this.getAllOutputs().values())
+            // learn address of autopilot so we can send commands to it
+            if (!vehicle.autopilotFound)
             {
-                MavlinkOutput nmeaOut = (MavlinkOutput)output;
-                nmeaOut.handleMessage(lastMsgTime, msg);
+                vehicle.sysid = packet.sysid;
+                vehicle.compid = packet.compid;
+                vehicle.autopilotFound = true;
+                getLogger().info("Found autopilot at {}:{}", packet.sysid, packet.compid);
             }
         }
+        
+        return vehicle;
+    }
+    
+    
+    private MavlinkVehicle addVehicle(int sysid)
+    {
+        String entityID = Integer.toString(sysid);
+        String uid = SENSOR_UID_PREFIX + config.vehicleID + ':' + entityID;
+        MavlinkVehicle vehicle = new MavlinkVehicle(entityID, sysid);
+        AbstractFeature foi = createVehicleFoi(entityID, uid, "MAVLink vehicle with system ID " + entityID);
+        vehicle.foi = foi;
+        
+        // update maps
+        vehiclesBySysId[sysid] = vehicle;
+        vehicles.put(entityID, vehicle);
+        foiIDs.add(uid);
+        
+        // send event
+        long now = System.currentTimeMillis();
+        eventHandler.publishEvent(new FoiEvent(now, entityID, this, foi, now / 1000.));
+        getLogger().info("New vehicle added as FOI: {}", uid);
+        
+        // configure it
+        setupVehicle(vehicle);
+        
+        return vehicle;
+    }
+    
+    
+    /*
+     * Generate small SensorML for FOI (in this case the system is the FOI)
+     */
+    private AbstractFeature createVehicleFoi(String name, String uid, String description)
+    {
+        SMLHelper smlFac = new SMLHelper();
+        PhysicalSystem foi = smlFac.newPhysicalSystem();
+        foi.setId("MAV" + name.replaceAll("[^\\w]", "_"));
+        foi.setUniqueIdentifier(uid);
+        foi.setName("MAV " + name);
+        foi.setDescription(description);
+        return foi;
+    }
+    
+    
+    /*
+     * Register an aircraft seen by the ADS-B receiver as a separate entity
+     */
+    void addTrafficEntity(String entityID, String callsign, long time)
+    {
+        String uid = SENSOR_UID_PREFIX + config.vehicleID + ':' + entityID;
+        String description = "Aircraft " + entityID.substring(AdsbTrafficOutput.ENTITY_ID_PREFIX.length());
+        if (callsign != null && !callsign.isEmpty())
+            description += " (" + callsign + ")";
+        description += " seen by ADS-B receiver";
+
+        SMLHelper smlFac = new SMLHelper();
+        PhysicalSystem foi = smlFac.newPhysicalSystem();
+        foi.setId(entityID.replaceAll("[^\\w]", "_"));
+        foi.setUniqueIdentifier(uid);
+        foi.setName(entityID);
+        foi.setDescription(description);
+        trafficFois.put(entityID, foi);
+
+        eventHandler.publishEvent(new FoiEvent(System.currentTimeMillis(), entityID, this, foi, time / 1000.));
+        getLogger().debug("New aircraft added as FOI: {}", uid);
+    }
+
+
+    /*
+     * Unregister an aircraft that timed out
+     */
+    void removeTrafficEntity(String entityID)
+    {
+        if (trafficFois.remove(entityID) != null)
+            getLogger().debug("Aircraft FOI removed: {}", entityID);
+    }
+
+
+    /**
+     * @return true if the driver was configured in multi-vehicle mode
+     */
+    public boolean isMultiVehicle()
+    {
+        return config.multiVehicle;
+    }
+    
+    
+    /**
+     * Retrieves the state of the vehicle with the given entity ID.<br/>
+     * In single vehicle mode, the only entity is the sensor itself.
+     * @param entityID ID of vehicle entity
+     * @return vehicle state or null if no vehicle with this ID was found
+     */
+    public MavlinkVehicle getVehicle(String entityID)
+    {
+        return getEntityVehicle(entityID);
+    }
+    
+    
+    /**
+     * @return the manager holding the parameter tables of all vehicles
+     */
+    public MavlinkParamManager getParamManager()
+    {
+        return paramManager;
+    }
+    
+    
+    /**
+     * @return all vehicles currently known by the driver
+     */
+    public Collection<MavlinkVehicle> getAllVehicles()
+    {
+        if (config.multiVehicle)
+            return Collections.unmodifiableCollection(vehicles.values());
+        else
+            return Collections.singletonList(defaultVehicle);
+    }
+    
+    
+    /**
+     * @return the manager uploading and downloading vehicle missions
+     */
+    public MavlinkMissionManager getMissionManager()
+    {
+        return missionManager;
+    }
+    
+    
+    /**
+     * @return the manager listing and downloading vehicle onboard logs
+     */
+    public MavlinkLogManager getLogManager()
+    {
+        return logManager;
+    }
+    
+    
+    /**
+     * @return the manager requesting messages at the rate needed by outputs
+     */
+    public MavlinkStreamRateManager getStreamRateManager()
+    {
+        return rateManager;
+    }
+    
+    
+    /**
+     * @return the vehicle that commands are sent to in single vehicle mode
+     */
+    public MavlinkVehicle getDefaultVehicle()
+    {
+        return defaultVehicle;
+    }
+    
+    
+    /*
+     * Trigger flight recorder when autopilot enters critical or emergency state
+     */
+    private void checkSystemStatus(MavlinkVehicle vehicle, MAVLinkPacket packet)
+    {
+        if (!heartbeat.wrap(packet) || heartbeat.autopilot() == MAV_AUTOPILOT.MAV_AUTOPILOT_INVALID)
+            return;
+        
+        int oldStatus = vehicle.systemStatus;
+        int newStatus = heartbeat.system_status();
+        vehicle.systemStatus = newStatus;
+        if (isEmergency(newStatus) && !isEmergency(oldStatus))
+        {
+            String reason = "sys" + vehicle.sysid + (newStatus == MAV_STATE.MAV_STATE_CRITICAL ? "_critical" : "_emergency");
+            logManager.triggerFlightRecorder(reason, config.flightRecorderTriggerDelay * 1000L);
+        }
+    }
+    
+    
+    private boolean isEmergency(int systemStatus)
+    {
+        return systemStatus == MAV_STATE.MAV_STATE_CRITICAL || systemStatus == MAV_STATE.MAV_STATE_EMERGENCY;
+    }
+    
+    
+    /*
+     * Record frame to tlog, stop recording if an error occurs
+     */
+    void recordFrame(long time, byte[] frame, int frameLen)
+    {
+        TLogWriter writer = tlogWriter;
+        if (writer == null)
+            return;
+        
+        try
+        {
+            writer.write(time*1000L, frame, 0, frameLen);
+        }
         catch (IOException e)
         {
-            if (started)
-                throw new RuntimeException("Error while parsing MAVLink message", e);
+            getLogger().error("Error while writing to tlog. Recording is stopped", e);
+            closeTLog();
         }
     }
     
     
+    private void closeTLog()
+    {
+        TLogWriter writer = tlogWriter;
+        tlogWriter = null;
+        
+        if (writer != null)
+        {
+            try { writer.close(); }
+            catch (IOException e) { }
+        }
+    }
+    
+    
+    /*
+     * Convert time stamp of message being processed to UTC time in seconds
+     * Only called by outputs from the reader thread
+     */
     protected double getUtcTimeFromBootMillis(long timeFromBootMs)
     {
-        // just use receiving time stamp for now
-        // TODO use sender time stamp for better relative timing accuracy
-        return ((double)lastMsgTime) / 1000.;
+        MavlinkClock clock = currentVehicle.clock;
+        clock.handleMessageTime(timeFromBootMs, lastMsgNanos);
+        
+        // use receiving time stamp until we have an estimate of clock offset
+        long utcNanos = clock.toUtcNanos(timeFromBootMs);
+        if (utcNanos == Long.MIN_VALUE)
+            return ((double)lastMsgTime) / 1000.;
+        
+        if (latencyStats != null)
+            latencyStats.recordLinkLatency(currentMsgId, lastMsgNanos - utcNanos);
+        
+        return utcNanos / 1e9;
     }
 
 
@@ -409,6 +1178,35 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
     {
         started = false;
         
+        if (watchDogTimer != null)
+        {
+            watchDogTimer.cancel();
+            watchDogTimer = null;
+        }
+        
+        if (latencyStats != null)
+            latencyStats.stop();
+        if (linkStatsOutput != null)
+            linkStatsOutput.stop();
+        if (framePoseOutput != null)
+            framePoseOutput.stop();
+        
+        rateManager.stop();
+        missionManager.stop();
+        logManager.stop();
+        if (router != null)
+            router.stop();
+        if (hilInjector != null)
+            hilInjector.stop();
+        commandTracker.stop();
+        paramManager.stop();
+        sender.stop();
+        
+        // save parameter tables for next time
+        paramManager.saveCache(defaultVehicle);
+        for (MavlinkVehicle vehicle: vehicles.values())
+            paramManager.saveCache(vehicle);
+        
         if (msgIn != null)
         {
             try { msgIn.close(); }
@@ -421,6 +1219,8 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
             commProvider.stop();
             commProvider = null;
         }
+        
+        closeTLog();
     }
 
 
@@ -437,4 +1237,104 @@ public class MavlinkDriver extends AbstractSensorModule<MavlinkConfig>
         return connected;
     }
 
+
+    @Override
+    public Collection<String> getEntityIDs()
+    {
+        Collection<String> vehicleIDs;
+        if (!config.multiVehicle)
+            vehicleIDs = Collections.singletonList(uniqueID);
+        else
+            vehicleIDs = Collections.unmodifiableCollection(vehicles.keySet());
+        
+        // add aircraft tracked by ADS-B if any
+        if (trafficFois.isEmpty())
+            return vehicleIDs;
+        List<String> entityIDs = new ArrayList<String>(vehicleIDs);
+        entityIDs.addAll(trafficFois.keySet());
+        return Collections.unmodifiableList(entityIDs);
+    }
+
+
+    @Override
+    public AbstractProcess getCurrentDescription(String entityID)
+    {
+        // all vehicles and aircraft share the system description
+        if (!isKnownEntity(entityID))
+            return null;
+        return getCurrentDescription();
+    }
+
+
+    @Override
+    public double getLastDescriptionUpdate(String entityID)
+    {
+        if (!isKnownEntity(entityID))
+            return 0;
+        return getLastDescriptionUpdate();
+    }
+
+
+    @Override
+    public AbstractFeature getCurrentFeatureOfInterest(String entityID)
+    {
+        MavlinkVehicle vehicle = getEntityVehicle(entityID);
+        if (vehicle != null)
+            return vehicle.foi;
+        return (entityID != null) ? trafficFois.get(entityID) : null;
+    }
+
+
+    @Override
+    public Collection<? extends AbstractFeature> getFeaturesOfInterest()
+    {
+        List<AbstractFeature> fois = new ArrayList<AbstractFeature>(vehicles.size() + trafficFois.size() + 1);
+        if (!config.multiVehicle)
+            fois.add(defaultVehicle.foi);
+        else
+        {
+            for (MavlinkVehicle vehicle: vehicles.values())
+                fois.add(vehicle.foi);
+        }
+        fois.addAll(trafficFois.values());
+        return Collections.unmodifiableList(fois);
+    }
+
+
+    @Override
+    public Collection<String> getFeaturesOfInterestIDs()
+    {
+        Collection<String> vehicleFoiIDs;
+        if (!config.multiVehicle)
+            vehicleFoiIDs = Collections.singletonList(uniqueID);
+        else
+            vehicleFoiIDs = Collections.unmodifiableCollection(foiIDs);
+        
+        if (trafficFois.isEmpty())
+            return vehicleFoiIDs;
+        List<String> ids = new ArrayList<String>(vehicleFoiIDs);
+        for (AbstractFeature foi: trafficFois.values())
+            ids.add(foi.getUniqueIdentifier());
+        return Collections.unmodifiableList(ids);
+    }
+    
+    
+    private boolean isKnownEntity(String entityID)
+    {
+        return getEntityVehicle(entityID) != null || (entityID != null && trafficFois.containsKey(entityID));
+    }
+    
+    
+    /*
+     * Find vehicle corresponding to an entity
+     * In single vehicle mode, the only entity is the sensor itself
+     */
+    private MavlinkVehicle getEntityVehicle(String entityID)
+    {
+        if (entityID == null)
+            return null;
+        if (!config.multiVehicle)
+            return entityID.equals(uniqueID) ? defaultVehicle : null;
+        return vehicles.get(entityID);
+    }
 }
@@ -0,0 +1,312 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.MAVLink.Parser;
+
+
+/**
+ * <p>
+ * Rolling flight recorder keeping the most recent raw MAVLink frames
+ * received on the link, with their time of reception, in a fixed-size
+ * direct buffer allocated once.<br/>
+ * Records are stored back to back in tlog format (8 bytes time stamp
+ * followed by the raw frame) so appending a frame is a single copy into
+ * the buffer and never allocates. The oldest records are dropped as the
+ * buffer wraps around, and records are never split across the end of the
+ * buffer so that any range of records can be written to a tlog file as is.
+ * </p><p>
+ * Appending must be done by a single thread (the reader thread), while
+ * dumps can be done at any time by another thread without locking. Records
+ * are written straight from the buffer to the file, starting one section
+ * (1/16th of the buffer) after the oldest record so the writer can keep
+ * appending during the dump without reaching the records being saved.
+ * If it still does, this is detected by comparing the position of the
+ * records with the position of the oldest record after they are copied,
+ * and the dump is restarted. A gap of at least two records is kept between
+ * the newest and the oldest record, so a record being appended never
+ * overlaps records still reported as valid.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkFlightRecorder
+{
+    static final int TIMESTAMP_LEN = TLogReader.TIMESTAMP_LEN;
+    static final int MAX_RECORD_LEN = TIMESTAMP_LEN + Parser.MAX_FRAME_LEN;
+    static final int GUARD_LEN = 2 * MAX_RECORD_LEN;
+    static final int MIN_CAPACITY = 16 * MAX_RECORD_LEN;
+    static final int DUMP_CHUNK_SIZE = 64*1024;
+    static final int MAX_DUMP_RESTARTS = 8;
+    static final int NUM_SECTIONS = 16;
+    static final long PADDING = -1L; // marks unused space at end of buffer
+
+    final ByteBuffer ring; // only used by writer thread
+    final int capacity;
+    volatile long head; // position after newest record, positions increase forever
+    volatile long tail; // position of oldest record
+    long nextHead;
+    final int sectionSize;
+    final AtomicLongArray sectionStarts = new AtomicLongArray(NUM_SECTIONS); // first record of most recent sections
+    long nextSection;
+
+
+    /**
+     * Allocates the recorder buffer
+     * @param capacity size of buffer in bytes
+     */
+    public MavlinkFlightRecorder(int capacity)
+    {
+        if (capacity < MIN_CAPACITY)
+            throw new IllegalArgumentException("Flight recorder must be at least " + MIN_CAPACITY + " bytes");
+
+        this.capacity = capacity;
+        this.sectionSize = capacity / NUM_SECTIONS;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+
+    /**
+     * Appends the frame currently handled by the parser.<br/>
+     * Must be called from within the packet handler of the parser.
+     * @param timeUsec time of reception in microseconds since 01/01/1970
+     * @param parser parser delivering the packet
+     */
+    public void append(long timeUsec, Parser parser)
+    {
+        int frameLen = parser.getCurrentFrameLength();
+        if (frameLen <= 0)
+            return;
+
+        int pos = reserve(TIMESTAMP_LEN + frameLen);
+        ring.putLong(pos, timeUsec);
+        ring.position(pos + TIMESTAMP_LEN);
+        parser.getCurrentFrame(ring);
+        head = nextHead;
+    }
+
+
+    /**
+     * Appends a raw frame
+     * @param timeUsec time of reception in microseconds since 01/01/1970
+     * @param frame array containing raw MAVLink frame
+     * @param off offset of frame in array
+     * @param len length of frame
+     */
+    public void append(long timeUsec, byte[] frame, int off, int len)
+    {
+        if (len <= 0 || len > Parser.MAX_FRAME_LEN)
+            return;
+
+        int pos = reserve(TIMESTAMP_LEN + len);
+        ring.putLong(pos, timeUsec);
+        ring.position(pos + TIMESTAMP_LEN);
+        ring.put(frame, off, len);
+        head = nextHead;
+    }
+
+
+    /*
+     * Drop oldest records until the new record fits and return its
+     * offset in the buffer. The oldest record position is published before
+     * anything is overwritten so dumps can detect overwritten records.
+     */
+    private int reserve(int recordLen)
+    {
+        long start = head;
+        int pos = getOffset(start);
+
+        // skip end of buffer if record doesn't fit
+        boolean wrap = (capacity - pos < recordLen);
+        if (wrap)
+            start += capacity - pos;
+        long end = start + recordLen;
+
+        long t = tail;
+        while (end - t > capacity - GUARD_LEN)
+            t = nextRecord(ring, t);
+        tail = t;
+
+        if (wrap)
+        {
+            if (capacity - pos >= TIMESTAMP_LEN)
+                ring.putLong(pos, PADDING);
+            pos = 0;
+        }
+
+        // remember first record of each section so dumps can start there
+        if (start >= nextSection)
+        {
+            sectionStarts.lazySet((int)(start / sectionSize % NUM_SECTIONS), start);
+            nextSection = (start / sectionSize + 1) * sectionSize;
+        }
+
+        nextHead = end;
+        return pos;
+    }
+
+
+    /*
+     * Get position of record following the one at the given position,
+     * skipping padding at end of buffer
+     */
+    private long nextRecord(ByteBuffer buf, long recordPos)
+    {
+        int pos = getOffset(recordPos);
+        if (isPadding(buf, pos))
+            return recordPos + capacity - pos;
+        return recordPos + TIMESTAMP_LEN + TLogReader.getFrameLength(buf, pos + TIMESTAMP_LEN, capacity);
+    }
+
+
+    private boolean isPadding(ByteBuffer buf, int pos)
+    {
+        return capacity - pos < TIMESTAMP_LEN || buf.getLong(pos) == PADDING;
+    }
+
+
+    private int getOffset(long recordPos)
+    {
+        return (int)(recordPos % capacity);
+    }
+
+
+    /**
+     * Writes all records currently in the recorder to a new tlog file.<br/>
+     * This can be called from any thread, while frames keep being appended.
+     * Records appended after this method is called are not included, and the
+     * oldest section of the buffer is skipped if the buffer is full.
+     * @param file tlog file to create
+     * @return number of records written
+     * @throws IOException if the file cannot be written
+     */
+    public int dump(File file) throws IOException
+    {
+        // use separate view since the writer moves the buffer position
+        ByteBuffer buf = ring.duplicate();
+        FileOutputStream os = new FileOutputStream(file);
+
+        try
+        {
+            FileChannel channel = os.getChannel();
+            long end = head;
+            long pos = getDumpStart();
+            int numRecords = 0;
+            int numRestarts = 0;
+
+            while (pos < end)
+            {
+                // collect whole records up to end of buffer
+                int off = getOffset(pos);
+                int len = 0;
+                int count = 0;
+                while (pos + len < end && len < DUMP_CHUNK_SIZE && !isPadding(buf, off + len))
+                {
+                    int frameLen = TLogReader.getFrameLength(buf, off + len + TIMESTAMP_LEN, capacity);
+                    if (frameLen < 0 || off + len + TIMESTAMP_LEN + frameLen > capacity)
+                        break;
+                    len += TIMESTAMP_LEN + frameLen;
+                    count++;
+                }
+
+                if (len > 0)
+                {
+                    buf.limit(off + len).position(off);
+                    while (buf.hasRemaining())
+                        channel.write(buf);
+                    buf.clear();
+                }
+
+                // restart if records were overwritten while we were reading them
+                if (tail > pos)
+                {
+                    if (++numRestarts > MAX_DUMP_RESTARTS)
+                        throw new IOException("Flight recorder is overwritten faster than it can be saved");
+                    channel.truncate(0);
+                    channel.position(0);
+                    numRecords = 0;
+                    pos = getDumpStart();
+                    continue;
+                }
+
+                if (len > 0)
+                {
+                    numRecords += count;
+                    pos += len;
+                }
+                else if (isPadding(buf, off))
+                    pos += capacity - off;
+                else
+                    throw new IOException("Invalid flight recorder record at position " + pos);
+            }
+
+            return numRecords;
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+
+    /*
+     * Get position of first record to dump.
+     * When the writer is about to overwrite the oldest records, the dump
+     * starts at the first record of a later section instead.
+     */
+    private long getDumpStart()
+    {
+        long t = tail;
+        long h = head;
+        if (capacity - GUARD_LEN - (h - t) >= sectionSize)
+            return t;
+
+        for (long section = (t + sectionSize) / sectionSize; section * sectionSize < h; section++)
+        {
+            // skip entries of older or newer passes
+            long pos = sectionStarts.get((int)(section % NUM_SECTIONS));
+            if (pos >= t + sectionSize && pos >= section * sectionSize && pos < h)
+                return pos;
+        }
+
+        return t;
+    }
+
+
+    /**
+     * @return size of recorder buffer in bytes
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+
+    /**
+     * @return number of bytes of records currently in the recorder
+     */
+    public long getSize()
+    {
+        return head - tail;
+    }
+}
@@ -0,0 +1,302 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.EnumSet;
+import net.opengis.swe.v20.Count;
+import net.opengis.swe.v20.DataArray;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import org.sensorhub.api.sensor.SensorException;
+import org.sensorhub.impl.sensor.mavlink.MavlinkCommandTracker.PendingRequest;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.vast.swe.SWEHelper;
+import com.MAVLink.common.msg_hil_gps;
+import com.MAVLink.common.msg_hil_sensor;
+import com.MAVLink.common.msg_hil_state_quaternion;
+
+
+/**
+ * <p>
+ * Control input used to inject simulated sensor data into the vehicle
+ * for hardware-in-the-loop (HIL) testing.<br/>
+ * Each command carries a batch of samples of one HIL message type, in SI
+ * units, with the simulation time of each sample. Samples are queued and
+ * sent by the HIL injector at the pace given by their simulation time, so
+ * the command completes as soon as the batch is queued. HIL messages are
+ * not addressed to a particular system so they are sent to the vehicle
+ * link, even in multi-vehicle mode.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkHilControl extends MavlinkControlInput
+{
+    static final int NUM_SENSOR_FIELDS = 15;
+    static final int NUM_GPS_FIELDS = 13;
+    static final int NUM_STATE_FIELDS = 19;
+    static final double G = 9.80665;
+
+
+    protected MavlinkHilControl(MavlinkDriver driver)
+    {
+        super(driver);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "hilInputs";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // build command message structure
+        commandData = fac.newDataChoice();
+        commandData.setName(getName());
+        commandData.setUpdatable(true);
+
+        // get commands enabled in config
+        EnumSet<CmdTypes> cmdSet = parentSensor.getConfiguration().activeCommands;
+
+        // raw IMU, magnetometer and pressure sensors
+        if (cmdSet.contains(CmdTypes.HIL_SENSOR))
+        {
+            DataRecord sample = fac.newDataRecord(NUM_SENSOR_FIELDS);
+            addSimTime(fac, sample);
+            addQuantity(fac, sample, "xacc", "X Acceleration", "m/s2");
+            addQuantity(fac, sample, "yacc", "Y Acceleration", "m/s2");
+            addQuantity(fac, sample, "zacc", "Z Acceleration", "m/s2");
+            addQuantity(fac, sample, "xgyro", "X Angular Rate", "rad/s");
+            addQuantity(fac, sample, "ygyro", "Y Angular Rate", "rad/s");
+            addQuantity(fac, sample, "zgyro", "Z Angular Rate", "rad/s");
+            addQuantity(fac, sample, "xmag", "X Magnetic Field", "G");
+            addQuantity(fac, sample, "ymag", "Y Magnetic Field", "G");
+            addQuantity(fac, sample, "zmag", "Z Magnetic Field", "G");
+            addQuantity(fac, sample, "absPressure", "Absolute Pressure", "hPa");
+            addQuantity(fac, sample, "diffPressure", "Differential Pressure", "hPa");
+            addQuantity(fac, sample, "pressureAlt", "Pressure Altitude", "m");
+            addQuantity(fac, sample, "temperature", "Temperature", "Cel");
+            sample.addField("fieldsUpdated", fac.newCount(SWEHelper.getPropertyUri("FieldsUpdated"), "Updated Fields", "Bitmask of fields updated since last sample (bit 0 = xacc, bit 12 = temperature)"));
+            commandData.addItem(CmdTypes.HIL_SENSOR.name(), newBatch(fac, sample));
+        }
+
+        // GPS fix
+        if (cmdSet.contains(CmdTypes.HIL_GPS))
+        {
+            DataRecord sample = fac.newDataRecord(NUM_GPS_FIELDS);
+            addSimTime(fac, sample);
+            addQuantity(fac, sample, "lat", "Latitude", "deg");
+            addQuantity(fac, sample, "lon", "Longitude", "deg");
+            addQuantity(fac, sample, "alt", "Altitude", "m");
+            addQuantity(fac, sample, "hdop", "HDOP", "1");
+            addQuantity(fac, sample, "vdop", "VDOP", "1");
+            addQuantity(fac, sample, "vel", "Ground Speed", "m/s");
+            addQuantity(fac, sample, "vn", "North Velocity", "m/s");
+            addQuantity(fac, sample, "ve", "East Velocity", "m/s");
+            addQuantity(fac, sample, "vd", "Down Velocity", "m/s");
+            addQuantity(fac, sample, "cog", "Course Over Ground", "deg");
+            sample.addField("fixType", fac.newCount(SWEHelper.getPropertyUri("GpsFixType"), "Fix Type", "0-1: no fix, 2: 2D fix, 3: 3D fix"));
+            sample.addField("satellites", fac.newCount(SWEHelper.getPropertyUri("SatelliteCount"), "Visible Satellites", null));
+            commandData.addItem(CmdTypes.HIL_GPS.name(), newBatch(fac, sample));
+        }
+
+        // full vehicle state
+        if (cmdSet.contains(CmdTypes.HIL_STATE_QUATERNION))
+        {
+            DataRecord sample = fac.newDataRecord(NUM_STATE_FIELDS);
+            addSimTime(fac, sample);
+            addQuantity(fac, sample, "qw", "Quaternion W", "1");
+            addQuantity(fac, sample, "qx", "Quaternion X", "1");
+            addQuantity(fac, sample, "qy", "Quaternion Y", "1");
+            addQuantity(fac, sample, "qz", "Quaternion Z", "1");
+            addQuantity(fac, sample, "rollspeed", "Roll Rate", "rad/s");
+            addQuantity(fac, sample, "pitchspeed", "Pitch Rate", "rad/s");
+            addQuantity(fac, sample, "yawspeed", "Yaw Rate", "rad/s");
+            addQuantity(fac, sample, "lat", "Latitude", "deg");
+            addQuantity(fac, sample, "lon", "Longitude", "deg");
+            addQuantity(fac, sample, "alt", "Altitude", "m");
+            addQuantity(fac, sample, "vx", "North Velocity", "m/s");
+            addQuantity(fac, sample, "vy", "East Velocity", "m/s");
+            addQuantity(fac, sample, "vz", "Down Velocity", "m/s");
+            addQuantity(fac, sample, "indAirspeed", "Indicated Airspeed", "m/s");
+            addQuantity(fac, sample, "trueAirspeed", "True Airspeed", "m/s");
+            addQuantity(fac, sample, "xacc", "X Acceleration", "m/s2");
+            addQuantity(fac, sample, "yacc", "Y Acceleration", "m/s2");
+            addQuantity(fac, sample, "zacc", "Z Acceleration", "m/s2");
+            commandData.addItem(CmdTypes.HIL_STATE_QUATERNION.name(), newBatch(fac, sample));
+        }
+    }
+
+
+    private void addSimTime(SWEHelper fac, DataRecord sample)
+    {
+        sample.addField("simTime", fac.newQuantity(SWEHelper.getPropertyUri("SimulationTime"), "Simulation Time", "Time of sample in simulation, used to pace injection", "s"));
+    }
+
+
+    private void addQuantity(SWEHelper fac, DataRecord sample, String name, String label, String uom)
+    {
+        sample.addField(name, fac.newQuantity(SWEHelper.getPropertyUri(label.replace(" ", "")), label, null, uom));
+    }
+
+
+    /*
+     * Wrap sample record in a variable size array
+     */
+    private DataRecord newBatch(SWEHelper fac, DataRecord sample)
+    {
+        DataRecord cmd = fac.newDataRecord(2);
+
+        Count numSamples = fac.newCount(SWEHelper.getPropertyUri("SampleCount"), "Sample Count", "Number of samples in batch");
+        numSamples.setId("NUM_SAMPLES_" + commandData.getNumItems());
+        cmd.addField("numSamples", numSamples);
+
+        DataArray samples = fac.newDataArray();
+        samples.setElementType("sample", sample);
+        samples.setElementCount(numSamples);
+        cmd.addField("samples", samples);
+
+        return cmd;
+    }
+
+
+    @Override
+    public synchronized CommandStatus sendCommand(DataBlock command) throws SensorException
+    {
+        int i = getCommandIndex();
+        int cmdIndex = command.getIntValue(i++);
+        String cmdName = commandData.getComponent(cmdIndex).getName();
+        CmdTypes cmdType = CmdTypes.valueOf(cmdName);
+        MavlinkHilInjector injector = parentSensor.hilInjector;
+
+        int numSamples = command.getIntValue(i++);
+        int numQueued = 0;
+        PendingRequest req = parentSensor.commandTracker.startRequest(MavlinkCommandTracker.getHilKey(cmdName));
+        if (!injector.isStarted())
+        {
+            parentSensor.commandTracker.updateRequest(req, StatusCode.FAILED, "Driver is stopped");
+            return req.status;
+        }
+
+        // copy samples to queued messages
+        switch (cmdType)
+        {
+            case HIL_SENSOR:
+                for (int n = 0; n < numSamples; n++, i += NUM_SENSOR_FIELDS)
+                {
+                    msg_hil_sensor msg = (msg_hil_sensor)injector.reserve(MavlinkHilInjector.HIL_SENSOR);
+                    if (msg == null)
+                        continue;
+
+                    msg.time_usec = getTimeUsec(command, i);
+                    msg.xacc = command.getFloatValue(i+1);
+                    msg.yacc = command.getFloatValue(i+2);
+                    msg.zacc = command.getFloatValue(i+3);
+                    msg.xgyro = command.getFloatValue(i+4);
+                    msg.ygyro = command.getFloatValue(i+5);
+                    msg.zgyro = command.getFloatValue(i+6);
+                    msg.xmag = command.getFloatValue(i+7);
+                    msg.ymag = command.getFloatValue(i+8);
+                    msg.zmag = command.getFloatValue(i+9);
+                    msg.abs_pressure = command.getFloatValue(i+10);
+                    msg.diff_pressure = command.getFloatValue(i+11);
+                    msg.pressure_alt = command.getFloatValue(i+12);
+                    msg.temperature = command.getFloatValue(i+13);
+                    msg.fields_updated = command.getLongValue(i+14);
+                    injector.commit(MavlinkHilInjector.HIL_SENSOR, msg.time_usec);
+                    numQueued++;
+                }
+                break;
+
+            case HIL_GPS:
+                for (int n = 0; n < numSamples; n++, i += NUM_GPS_FIELDS)
+                {
+                    msg_hil_gps msg = (msg_hil_gps)injector.reserve(MavlinkHilInjector.HIL_GPS);
+                    if (msg == null)
+                        continue;
+
+                    msg.time_usec = getTimeUsec(command, i);
+                    msg.lat = (int)Math.round(command.getDoubleValue(i+1) * 1e7);
+                    msg.lon = (int)Math.round(command.getDoubleValue(i+2) * 1e7);
+                    msg.alt = (int)Math.round(command.getDoubleValue(i+3) * 1000);
+                    msg.eph = (int)Math.round(command.getDoubleValue(i+4) * 100);
+                    msg.epv = (int)Math.round(command.getDoubleValue(i+5) * 100);
+                    msg.vel = (int)Math.round(command.getDoubleValue(i+6) * 100);
+                    msg.vn = (short)Math.round(command.getDoubleValue(i+7) * 100);
+                    msg.ve = (short)Math.round(command.getDoubleValue(i+8) * 100);
+                    msg.vd = (short)Math.round(command.getDoubleValue(i+9) * 100);
+                    msg.cog = (int)Math.round(command.getDoubleValue(i+10) * 100);
+                    msg.fix_type = (short)command.getIntValue(i+11);
+                    msg.satellites_visible = (short)command.getIntValue(i+12);
+                    injector.commit(MavlinkHilInjector.HIL_GPS, msg.time_usec);
+                    numQueued++;
+                }
+                break;
+
+            case HIL_STATE_QUATERNION:
+                for (int n = 0; n < numSamples; n++, i += NUM_STATE_FIELDS)
+                {
+                    msg_hil_state_quaternion msg = (msg_hil_state_quaternion)injector.reserve(MavlinkHilInjector.HIL_STATE_QUATERNION);
+                    if (msg == null)
+                        continue;
+
+                    msg.time_usec = getTimeUsec(command, i);
+                    for (int k = 0; k < 4; k++)
+                        msg.attitude_quaternion[k] = command.getFloatValue(i+1+k);
+                    msg.rollspeed = command.getFloatValue(i+5);
+                    msg.pitchspeed = command.getFloatValue(i+6);
+                    msg.yawspeed = command.getFloatValue(i+7);
+                    msg.lat = (int)Math.round(command.getDoubleValue(i+8) * 1e7);
+                    msg.lon = (int)Math.round(command.getDoubleValue(i+9) * 1e7);
+                    msg.alt = (int)Math.round(command.getDoubleValue(i+10) * 1000);
+                    msg.vx = (short)Math.round(command.getDoubleValue(i+11) * 100);
+                    msg.vy = (short)Math.round(command.getDoubleValue(i+12) * 100);
+                    msg.vz = (short)Math.round(command.getDoubleValue(i+13) * 100);
+                    msg.ind_airspeed = (int)Math.round(command.getDoubleValue(i+14) * 100);
+                    msg.true_airspeed = (int)Math.round(command.getDoubleValue(i+15) * 100);
+                    msg.xacc = (short)Math.round(command.getDoubleValue(i+16) / G * 1000);
+                    msg.yacc = (short)Math.round(command.getDoubleValue(i+17) / G * 1000);
+                    msg.zacc = (short)Math.round(command.getDoubleValue(i+18) / G * 1000);
+                    injector.commit(MavlinkHilInjector.HIL_STATE_QUATERNION, msg.time_usec);
+                    numQueued++;
+                }
+                break;
+
+            default:
+                throw new SensorException("Unsupported command " + cmdType);
+        }
+
+        if (numQueued == numSamples)
+            parentSensor.commandTracker.updateRequest(req, StatusCode.COMPLETED, null);
+        else
+            parentSensor.commandTracker.updateRequest(req, StatusCode.FAILED, "HIL queue full. " + (numSamples - numQueued) + " of " + numSamples + " samples dropped");
+        return req.status;
+    }
+
+
+    private long getTimeUsec(DataBlock command, int index)
+    {
+        return Math.round(command.getDoubleValue(index) * 1e6);
+    }
+}
@@ -0,0 +1,315 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.concurrent.locks.LockSupport;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_hil_gps;
+import com.MAVLink.common.msg_hil_sensor;
+import com.MAVLink.common.msg_hil_state_quaternion;
+
+
+/**
+ * <p>
+ * Injects hardware-in-the-loop (HIL) sensor samples into the vehicle link
+ * at a steady pace.<br/>
+ * Samples are received in batches and copied into preallocated messages
+ * kept in one ring per message type, so injection never allocates. A
+ * dedicated thread wakes up at the configured rate and sends every queued
+ * sample whose simulation time is due, so the timing of the simulator is
+ * reproduced on the link regardless of how samples are batched. Messages
+ * are encoded by the sender into its pooled buffers.
+ * </p><p>
+ * Simulation time is mapped to system time when the first sample is queued,
+ * and again each time a sample arrives too late or too early to be sent on
+ * time (e.g. when the simulator is restarted or paused). The achieved rate
+ * of each message type and the wake-up jitter of the injection thread are
+ * published periodically on the HIL statistics output.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkHilInjector
+{
+    public static final int HIL_SENSOR = 0;
+    public static final int HIL_GPS = 1;
+    public static final int HIL_STATE_QUATERNION = 2;
+    static final int NUM_TYPES = 3;
+    static final long MAX_LAG_NANOS = 100000000L; // 100ms
+    static final long MAX_LEAD_NANOS = 10000000000L; // 10s
+    static final long SPIN_NANOS = 50000L; // busy wait before deadline
+    static final long STATS_PERIOD_NANOS = 1000000000L;
+
+    final MavlinkDriver driver;
+    final HilStatsOutput statsOutput;
+    final SampleQueue[] queues = new SampleQueue[NUM_TYPES];
+    final LatencyHistogram tickJitter = new LatencyHistogram();
+    long periodNanos;
+    long anchorUsec; // simulation time mapped to anchorNanos
+    long anchorNanos;
+    boolean anchored;
+    volatile long numResyncs;
+    volatile long numOverruns;
+    Thread thread;
+    volatile boolean started;
+
+
+    /*
+     * Ring of preallocated messages of one type, with the system time
+     * at which each of them is due.
+     * There is a single producer and a single consumer: slots are filled
+     * by the producer before being published by commit() and are only
+     * reused once the consumer has sent them and called remove()
+     */
+    static class SampleQueue
+    {
+        final MAVLinkMessage[] msgs;
+        final long[] dueTimes;
+        int head;
+        int size;
+        volatile long numSent;
+        volatile long numDropped;
+
+        SampleQueue(MAVLinkMessage[] msgs)
+        {
+            this.msgs = msgs;
+            this.dueTimes = new long[msgs.length];
+        }
+
+        synchronized MAVLinkMessage reserve()
+        {
+            if (size == msgs.length)
+            {
+                numDropped++;
+                return null;
+            }
+
+            return msgs[(head + size) % msgs.length];
+        }
+
+        synchronized void commit(long dueTime)
+        {
+            dueTimes[(head + size) % msgs.length] = dueTime;
+            size++;
+        }
+
+        synchronized MAVLinkMessage peekDue(long now)
+        {
+            if (size == 0 || dueTimes[head] - now > 0)
+                return null;
+            return msgs[head];
+        }
+
+        synchronized void remove(boolean sent)
+        {
+            head = (head + 1) % msgs.length;
+            size--;
+            if (sent)
+                numSent++;
+            else
+                numDropped++;
+        }
+
+        synchronized void clear()
+        {
+            head = 0;
+            size = 0;
+        }
+    }
+
+
+    public MavlinkHilInjector(MavlinkDriver driver, HilStatsOutput statsOutput)
+    {
+        this.driver = driver;
+        this.statsOutput = statsOutput;
+
+        int queueSize = Math.max(1, driver.getConfiguration().hilQueueSize);
+        msg_hil_sensor[] sensorMsgs = new msg_hil_sensor[queueSize];
+        msg_hil_gps[] gpsMsgs = new msg_hil_gps[queueSize];
+        msg_hil_state_quaternion[] stateMsgs = new msg_hil_state_quaternion[queueSize];
+        for (int i = 0; i < queueSize; i++)
+        {
+            sensorMsgs[i] = new msg_hil_sensor();
+            gpsMsgs[i] = new msg_hil_gps();
+            stateMsgs[i] = new msg_hil_state_quaternion();
+        }
+
+        queues[HIL_SENSOR] = new SampleQueue(sensorMsgs);
+        queues[HIL_GPS] = new SampleQueue(gpsMsgs);
+        queues[HIL_STATE_QUATERNION] = new SampleQueue(stateMsgs);
+    }
+
+
+    public synchronized void start()
+    {
+        float rate = driver.getConfiguration().hilRate;
+        periodNanos = (long)(1e9 / (rate > 0 ? rate : 400f));
+        anchored = false;
+        for (SampleQueue queue: queues)
+            queue.clear();
+
+        started = true;
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                runInjection();
+            }
+        }, "MAVLink HIL Injector");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+
+    public boolean isStarted()
+    {
+        return started;
+    }
+
+
+    /**
+     * Reserves the next free message of the given type.<br/>
+     * The caller must fill the message and call {@link #commit(int, long)}
+     * before reserving another message of the same type. Only one thread
+     * can queue samples at a time.
+     * @param type message type (one of the constants of this class)
+     * @return message to fill, or null if the queue is full
+     */
+    public MAVLinkMessage reserve(int type)
+    {
+        return queues[type].reserve();
+    }
+
+
+    /**
+     * Queues the message previously reserved for sending
+     * @param type message type
+     * @param timeUsec simulation time of the sample in microseconds
+     */
+    public void commit(int type, long timeUsec)
+    {
+        queues[type].commit(getDueTime(timeUsec));
+    }
+
+
+    /*
+     * Convert simulation time to the system time at which the sample
+     * must be sent, resetting the mapping if the sample can't be sent on time
+     */
+    private synchronized long getDueTime(long timeUsec)
+    {
+        long now = System.nanoTime();
+        long dueTime = anchorNanos + (timeUsec - anchorUsec) * 1000L;
+
+        if (!anchored || now - dueTime > MAX_LAG_NANOS || dueTime - now > MAX_LEAD_NANOS)
+        {
+            if (anchored)
+            {
+                numResyncs++;
+                driver.getLogger().debug("HIL simulation time resynchronized");
+            }
+
+            anchorUsec = timeUsec;
+            anchorNanos = now;
+            anchored = true;
+            dueTime = now;
+        }
+
+        return dueTime;
+    }
+
+
+    /*
+     * Wake up at a fixed rate and send all samples that are due
+     */
+    private void runInjection()
+    {
+        long deadline = System.nanoTime();
+        long nextStatsTime = deadline + STATS_PERIOD_NANOS;
+        long[] lastNumSent = new long[NUM_TYPES];
+
+        while (started)
+        {
+            deadline += periodNanos;
+            waitUntil(deadline);
+            long now = System.nanoTime();
+            tickJitter.record(now - deadline);
+
+            // don't try to catch up missed ticks
+            if (now - deadline > periodNanos)
+            {
+                numOverruns++;
+                deadline = now;
+            }
+
+            for (SampleQueue queue: queues)
+            {
+                MAVLinkMessage msg;
+                while ((msg = queue.peekDue(now)) != null)
+                    queue.remove(driver.sender.send(msg));
+            }
+
+            if (now - nextStatsTime >= 0)
+            {
+                double dt = (now - nextStatsTime + STATS_PERIOD_NANOS) / 1e9;
+                nextStatsTime = now + STATS_PERIOD_NANOS;
+                publishStats(dt, lastNumSent);
+            }
+        }
+    }
+
+
+    /*
+     * Sleep until shortly before the deadline, then spin
+     * so we wake up on time even with a coarse scheduler
+     */
+    private void waitUntil(long deadline)
+    {
+        long remaining;
+        while (started && (remaining = deadline - System.nanoTime()) > SPIN_NANOS)
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        while (started && deadline - System.nanoTime() > 0)
+            Thread.yield();
+    }
+
+
+    private void publishStats(double dt, long[] lastNumSent)
+    {
+        double[] rates = new double[NUM_TYPES];
+        long numDropped = 0;
+        for (int i = 0; i < NUM_TYPES; i++)
+        {
+            long numSent = queues[i].numSent;
+            rates[i] = (numSent - lastNumSent[i]) / dt;
+            lastNumSent[i] = numSent;
+            numDropped += queues[i].numDropped;
+        }
+
+        statsOutput.publishStats(rates, tickJitter.getSnapshotAndReset(), numDropped, numResyncs, numOverruns);
+    }
+
+
+    public synchronized void stop()
+    {
+        started = false;
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+}
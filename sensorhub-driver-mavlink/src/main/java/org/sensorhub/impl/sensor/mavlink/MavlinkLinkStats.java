@@ -0,0 +1,177 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.MAVLink.MAVLinkPacket;
+
+
+/**
+ * <p>
+ * Lock-free traffic counters of a MAVLink link.<br/>
+ * Counters are updated by the reader thread only, and are read and reset
+ * atomically by the thread publishing the statistics, so that no lock is
+ * ever taken on the receive path. Sequence gaps are tracked separately for
+ * each sysid/compid pair since each component numbers its own packets.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkLinkStats
+{
+    static final int MAX_MSG_ID = 1024; // ignore higher message IDs in per message stats
+
+    // link totals
+    final AtomicLong numBytes = new AtomicLong();
+    final AtomicLong numPackets = new AtomicLong();
+    final AtomicLong numCrcErrors = new AtomicLong();
+    final AtomicLong numLost = new AtomicLong();
+    final AtomicLong parseNanos = new AtomicLong();
+
+    // per message counters
+    final AtomicLongArray msgCounts = new AtomicLongArray(MAX_MSG_ID);
+    final AtomicLongArray msgBytes = new AtomicLongArray(MAX_MSG_ID);
+    final AtomicLongArray msgNanos = new AtomicLongArray(MAX_MSG_ID);
+
+    // per source counters
+    final SourceStats[] sourcesById = new SourceStats[256*256];
+    final List<SourceStats> sources = new CopyOnWriteArrayList<SourceStats>();
+
+    // only used by reader thread
+    int lastCrcErrorCount;
+
+
+    /**
+     * Counters of a single sysid/compid pair
+     */
+    public static class SourceStats
+    {
+        final int sysid;
+        final int compid;
+        final AtomicLong numPackets = new AtomicLong();
+        final AtomicLong numLost = new AtomicLong();
+        int lastSeq = -1; // only used by reader thread
+
+        SourceStats(int sysid, int compid)
+        {
+            this.sysid = sysid;
+            this.compid = compid;
+        }
+
+        public int getSystemID()
+        {
+            return sysid;
+        }
+
+        public int getComponentID()
+        {
+            return compid;
+        }
+
+        /**
+         * @return number of packets received since last published statistics
+         */
+        public long getPacketCount()
+        {
+            return numPackets.get();
+        }
+
+        /**
+         * @return number of packets lost since last published statistics
+         */
+        public long getLostCount()
+        {
+            return numLost.get();
+        }
+    }
+
+
+    /**
+     * Records a chunk of bytes read from the link
+     * @param nBytes number of bytes in the chunk
+     * @param crcErrorCount total number of CRC errors reported by the parser
+     * @param parseTimeNanos time spent parsing the chunk, excluding packet handling
+     */
+    public void recordChunk(int nBytes, int crcErrorCount, long parseTimeNanos)
+    {
+        numBytes.addAndGet(nBytes);
+        parseNanos.addAndGet(parseTimeNanos);
+
+        int newErrors = crcErrorCount - lastCrcErrorCount;
+        if (newErrors > 0)
+            numCrcErrors.addAndGet(newErrors);
+        lastCrcErrorCount = crcErrorCount;
+    }
+
+
+    /**
+     * Records a valid packet received on the link
+     * @param pkt packet
+     * @param frameLen length of the packet frame on the link
+     * @param handleTimeNanos time spent handling the packet
+     */
+    public void recordPacket(MAVLinkPacket pkt, int frameLen, long handleTimeNanos)
+    {
+        numPackets.incrementAndGet();
+
+        if (pkt.msgid < MAX_MSG_ID)
+        {
+            msgCounts.incrementAndGet(pkt.msgid);
+            msgBytes.addAndGet(pkt.msgid, frameLen);
+            msgNanos.addAndGet(pkt.msgid, handleTimeNanos);
+        }
+
+        // detect sequence gaps
+        SourceStats source = getSource(pkt.sysid, pkt.compid);
+        source.numPackets.incrementAndGet();
+        if (source.lastSeq >= 0)
+        {
+            int gap = (pkt.seq - source.lastSeq - 1) & 0xFF;
+            if (gap > 0)
+            {
+                source.numLost.addAndGet(gap);
+                numLost.addAndGet(gap);
+            }
+        }
+        source.lastSeq = pkt.seq;
+    }
+
+
+    private SourceStats getSource(int sysid, int compid)
+    {
+        int index = ((sysid & 0xFF) << 8) | (compid & 0xFF);
+        SourceStats source = sourcesById[index];
+        if (source == null)
+        {
+            source = new SourceStats(sysid, compid);
+            sourcesById[index] = source;
+            sources.add(source);
+        }
+        return source;
+    }
+
+
+    /**
+     * @return list of all sources seen on the link, safe for iteration by any thread
+     */
+    public List<SourceStats> getSources()
+    {
+        return sources;
+    }
+}
@@ -0,0 +1,191 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import org.sensorhub.impl.sensor.mavlink.MavlinkOutput.Priority;
+import com.MAVLink.common.msg_radio_status;
+
+
+/**
+ * <p>
+ * Adapts the rate of telemetry messages requested from vehicles to the
+ * state of the radio link, as reported by RADIO_STATUS messages that SiK
+ * radios inject in the MAVLink stream.<br/>
+ * When the radio transmit buffer fills up, or when the link margin is low
+ * and receive errors occur, the throttle level is raised by one step for
+ * each report. Each step doubles the interval of low priority messages
+ * first, then of normal priority messages, and high priority messages
+ * (position and attitude) are only slowed down as a last resort. The level
+ * is lowered again one step at a time once the link has been clear for a
+ * few consecutive reports, so rates don't oscillate.
+ * </p><p>
+ * Each report and the corresponding decision are published on the
+ * {@link LinkThrottleOutput}.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkLinkThrottle
+{
+    public static final int MAX_LEVEL = 6;
+    static final int RECOVERY_COUNT = 3; // number of good reports before lowering level
+    static final long STATUS_TIMEOUT = 10000L;
+
+    public enum Action
+    {
+        HOLD,
+        THROTTLE,
+        RECOVER,
+        RESET
+    }
+
+    final MavlinkDriver driver;
+    final LinkThrottleOutput output;
+    final int txBufLow;
+    final int txBufHigh;
+    final int minLinkMargin;
+    volatile int level;
+    int goodCount;
+    int lastRxErrors = -1;
+    long lastStatusTime;
+
+
+    public MavlinkLinkThrottle(MavlinkDriver driver, LinkThrottleOutput output)
+    {
+        this.driver = driver;
+        this.output = output;
+
+        MavlinkConfig config = driver.getConfiguration();
+        this.txBufLow = config.throttleTxBufLow;
+        this.txBufHigh = Math.max(config.throttleTxBufHigh, txBufLow);
+        this.minLinkMargin = config.throttleMinLinkMargin;
+    }
+
+
+    /**
+     * Updates the throttle level according to a new radio status report
+     * @param time time at which message was received, in ms
+     * @param status radio status message
+     * @return action taken
+     */
+    public Action handleRadioStatus(long time, msg_radio_status status)
+    {
+        Action action;
+        int newErrors;
+        int newLevel;
+
+        synchronized (this)
+        {
+            // rxerrors is a 16-bit counter so handle wrap around
+            newErrors = (lastRxErrors < 0) ? 0 : (status.rxerrors - lastRxErrors) & 0xFFFF;
+            lastRxErrors = status.rxerrors;
+            lastStatusTime = time;
+
+            int margin = Math.min(status.rssi, status.remrssi) - Math.max(status.noise, status.remnoise);
+            boolean congested = status.txbuf < txBufLow;
+            boolean degraded = margin < minLinkMargin && newErrors > 0;
+            boolean clear = status.txbuf >= txBufHigh && newErrors == 0;
+
+            action = Action.HOLD;
+            if (congested || degraded)
+            {
+                goodCount = 0;
+                if (level < MAX_LEVEL)
+                {
+                    level++;
+                    action = Action.THROTTLE;
+                }
+            }
+            else if (clear && level > 0)
+            {
+                if (++goodCount >= RECOVERY_COUNT)
+                {
+                    goodCount = 0;
+                    level--;
+                    action = Action.RECOVER;
+                }
+            }
+            else
+                goodCount = 0;
+
+            newLevel = level;
+        }
+
+        if (action != Action.HOLD)
+        {
+            driver.getLogger().info("Radio link {} (txbuf={}%, rssi={}/{}, noise={}/{}), telemetry throttle level = {}",
+                (action == Action.THROTTLE) ? "saturated" : "clear",
+                status.txbuf, status.rssi, status.remrssi, status.noise, status.remnoise, newLevel);
+            driver.rateManager.updateRates();
+        }
+
+        output.publishStatus(time, status, newErrors, newLevel, action);
+        return action;
+    }
+
+
+    /**
+     * Restores nominal rates if radio status reports stopped, for instance
+     * because the link was switched to a different radio.<br/>
+     * This is called periodically by the driver.
+     * @param now current time in ms
+     */
+    public void checkTimeout(long now)
+    {
+        synchronized (this)
+        {
+            if (level == 0 || now - lastStatusTime < STATUS_TIMEOUT)
+                return;
+
+            level = 0;
+            goodCount = 0;
+            lastRxErrors = -1;
+        }
+
+        driver.getLogger().info("No radio status received in {}s, telemetry throttling disabled", STATUS_TIMEOUT / 1000);
+        driver.rateManager.updateRates();
+        output.publishStatus(now, null, 0, 0, Action.RESET);
+    }
+
+
+    /**
+     * Computes the interval at which messages of the given priority should
+     * be requested at the current throttle level
+     * @param interval nominal interval
+     * @param priority priority of message
+     * @return throttled interval, in the same unit as the nominal interval
+     */
+    public long getThrottledInterval(long interval, Priority priority)
+    {
+        int steps = level;
+        if (priority == Priority.NORMAL)
+            steps -= 2;
+        else if (priority == Priority.HIGH)
+            steps -= 4;
+
+        return (steps > 0) ? interval << steps : interval;
+    }
+
+
+    /**
+     * @return current throttle level, 0 meaning no throttling
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+}
@@ -0,0 +1,133 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.EnumSet;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.sensor.SensorException;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Control input used to list and download the onboard logs of MAVLink
+ * vehicles.<br/>
+ * Log entries are published on the log entries output, and logs are
+ * downloaded to files in the configured download folder. The flight
+ * recorder can also be saved to this folder on request.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkLogControl extends MavlinkControlInput
+{
+
+    protected MavlinkLogControl(MavlinkDriver driver)
+    {
+        super(driver);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "logCommands";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // build command message structure
+        commandData = fac.newDataChoice();
+        commandData.setName(getName());
+        commandData.setUpdatable(true);
+
+        // get commands enabled in config
+        EnumSet<CmdTypes> cmdSet = parentSensor.getConfiguration().activeCommands;
+
+        // log list
+        if (cmdSet.contains(CmdTypes.LIST_LOGS))
+        {
+            DataRecord cmd = fac.newDataRecord(0);
+            cmd.setDescription("Read list of logs from vehicle and publish it on the log entries output");
+            commandData.addItem(CmdTypes.LIST_LOGS.name(), cmd);
+        }
+
+        // log download
+        if (cmdSet.contains(CmdTypes.DOWNLOAD_LOG))
+        {
+            DataRecord cmd = fac.newDataRecord(1);
+            cmd.addField("logId", fac.newCount(SWEHelper.getPropertyUri("LogID"), "Log ID", "ID of log to download, as given in the log list"));
+            commandData.addItem(CmdTypes.DOWNLOAD_LOG.name(), cmd);
+        }
+
+        // flight recorder dump
+        if (cmdSet.contains(CmdTypes.DUMP_FLIGHT_RECORDER) && parentSensor.getConfiguration().flightRecorderSize > 0)
+        {
+            DataRecord cmd = fac.newDataRecord(0);
+            cmd.setDescription("Save packets recently received from the link to a tlog file in the download folder");
+            commandData.addItem(CmdTypes.DUMP_FLIGHT_RECORDER.name(), cmd);
+        }
+
+        addVehicleSelector();
+    }
+
+
+    @Override
+    public CommandStatus sendCommand(DataBlock command) throws SensorException
+    {
+        MavlinkVehicle target = getTargetVehicle(command);
+        int i = getCommandIndex();
+        int cmdIndex = command.getIntValue(i);
+        String cmdName = commandData.getComponent(cmdIndex).getName();
+        MavlinkLogManager logManager = parentSensor.getLogManager();
+
+        // switch on command type
+        CmdTypes cmdType = CmdTypes.valueOf(cmdName);
+        parentSensor.getLogger().info("Sending {} command", cmdType);
+        switch (cmdType)
+        {
+            case LIST_LOGS:
+                return logManager.listLogs(target);
+
+            case DOWNLOAD_LOG:
+                return logManager.downloadLog(target, command.getIntValue(i+1));
+
+            case DUMP_FLIGHT_RECORDER:
+                return logManager.dumpFlightRecorder("request", 0);
+
+            default:
+                throw new SensorException("Unsupported command " + cmdType);
+        }
+    }
+
+
+    @Override
+    public CommandStatus execCommand(DataBlock command) throws SensorException
+    {
+        // downloads can be long but they always end with a final status
+        // since they fail as soon as the vehicle stops answering
+        CommandStatus status = sendCommand(command);
+        parentSensor.commandTracker.waitForCompletion(status, 0);
+        return status;
+    }
+}
@@ -0,0 +1,663 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_log_entry;
+import com.MAVLink.common.msg_log_request_data;
+import com.MAVLink.common.msg_log_request_end;
+import com.MAVLink.common.msg_log_request_list;
+import com.MAVLink.views.view_log_data;
+
+
+/**
+ * <p>
+ * Lists and downloads the onboard logs (e.g. dataflash logs) of vehicles
+ * using the MAVLink log protocol.<br/>
+ * Logs are downloaded by requesting large windows of 90-byte chunks with
+ * LOG_REQUEST_DATA. The vehicle streams each window as fast as the link
+ * allows and the next window is requested as soon as the last chunk of the
+ * current one arrives, so the link stays busy instead of running
+ * stop-and-wait. Chunks are written at their offset in a file preallocated
+ * to the size of the log, directly from the received packets, and chunks
+ * lost on the way are tracked so that only those are requested again.
+ * </p><p>
+ * Like mission transfers, listings and downloads are tracked like commands
+ * so their status can be polled or waited for. The status message and the
+ * log download output report progress and throughput, and a transfer fails
+ * only if the configured number of retries is reached without progress.
+ * </p><p>
+ * Dumps of the flight recorder are also saved to the download folder by
+ * the transfer thread, either on request or when triggered by an incident.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkLogManager
+{
+    public static final int CHUNK_SIZE = 90;
+    static final long PROGRESS_PERIOD = 1000L;
+
+    final MavlinkDriver driver;
+    final CopyOnWriteArrayList<MavlinkVehicle> transfers = new CopyOnWriteArrayList<MavlinkVehicle>();
+    ScheduledExecutorService timer;
+    long timeout;
+    int maxRetries;
+    int windowSize;
+    File downloadDir;
+    ScheduledFuture<?> triggeredDump;
+
+
+    /*
+     * State of a log listing or download
+     */
+    static class LogTransfer
+    {
+        final int logId; // -1 for listing
+        final MavlinkCommandTracker.PendingRequest req;
+        final Map<Integer, msg_log_entry> entries = new TreeMap<Integer, msg_log_entry>();
+        int numLogs = -1;
+        File file;
+        FileChannel channel;
+        final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        long size = -1;
+        int numChunks;
+        final BitSet done = new BitSet(); // chunks received
+        int numDone;
+        int nextChunk; // index of next chunk never requested
+        int windowEnd; // end of currently requested range
+        long numBytes;
+        long startTime;
+        long lastProgressTime;
+        long lastActivityTime;
+        int lastNumDone;
+        int numRetries;
+        boolean complete;
+
+        LogTransfer(int logId, MavlinkCommandTracker.PendingRequest req)
+        {
+            this.logId = logId;
+            this.req = req;
+            this.lastActivityTime = System.currentTimeMillis();
+        }
+
+        boolean isListing()
+        {
+            return logId < 0;
+        }
+    }
+
+
+    public MavlinkLogManager(MavlinkDriver driver)
+    {
+        this.driver = driver;
+    }
+
+
+    public synchronized void start()
+    {
+        MavlinkConfig config = driver.getConfiguration();
+        this.timeout = Math.max(1, config.commandTimeout);
+        this.maxRetries = Math.max(0, config.commandRetries);
+        this.windowSize = Math.max(1, config.logWindowSize);
+        this.downloadDir = new File(config.logDownloadDir != null ? config.logDownloadDir : System.getProperty("java.io.tmpdir"));
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MAVLink Log Transfer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                for (MavlinkVehicle vehicle: transfers)
+                    checkTransfer(vehicle);
+            }
+        }, timeout, timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Requests the list of logs available on the vehicle.<br/>
+     * Each log entry is published on the log entries output, and once complete,
+     * the list can also be retrieved with {@link #getLogEntries(MavlinkVehicle)}
+     * @param vehicle target vehicle
+     * @return transfer status, updated asynchronously
+     */
+    public CommandStatus listLogs(MavlinkVehicle vehicle)
+    {
+        LogTransfer transfer = new LogTransfer(-1, startRequest(vehicle));
+
+        synchronized (transfer)
+        {
+            startTransfer(vehicle, transfer);
+            driver.getLogger().info("Requesting log list from vehicle {}", vehicle.sysid);
+            requestList(vehicle, 0, 0xFFFF);
+        }
+
+        return transfer.req.status;
+    }
+
+
+    /**
+     * Downloads a log from the vehicle to the download folder.<br/>
+     * If the log was not listed before, its size is requested first.
+     * @param vehicle target vehicle
+     * @param logId ID of log, as given in the log list
+     * @return transfer status, updated asynchronously
+     */
+    public CommandStatus downloadLog(MavlinkVehicle vehicle, int logId)
+    {
+        LogTransfer transfer = new LogTransfer(logId, startRequest(vehicle));
+        transfer.file = new File(downloadDir, getLogFileName(vehicle, logId));
+
+        synchronized (transfer)
+        {
+            startTransfer(vehicle, transfer);
+
+            Map<Integer, msg_log_entry> knownLogs = vehicle.logEntries;
+            msg_log_entry entry = (knownLogs != null) ? knownLogs.get(logId) : null;
+            if (entry != null)
+                startDownload(vehicle, transfer, entry.size);
+            else
+                requestList(vehicle, logId, logId);
+        }
+
+        return transfer.req.status;
+    }
+
+
+    /**
+     * @param vehicle vehicle to get the log list from
+     * @return list of logs found on vehicle during last listing, or null if unknown
+     */
+    public List<msg_log_entry> getLogEntries(MavlinkVehicle vehicle)
+    {
+        Map<Integer, msg_log_entry> entries = vehicle.logEntries;
+        if (entries == null)
+            return null;
+        return Collections.unmodifiableList(new ArrayList<msg_log_entry>(entries.values()));
+    }
+
+
+    /**
+     * Saves the packets currently held by the flight recorder to a new tlog
+     * file in the download folder.<br/>
+     * The dump is done by the transfer thread so the reader thread keeps
+     * recording in the meantime.
+     * @param reason short reason included in the file name
+     * @param delay delay before the dump in ms, so packets received after an incident are included
+     * @return dump status, updated asynchronously
+     */
+    public synchronized CommandStatus dumpFlightRecorder(final String reason, long delay)
+    {
+        final MavlinkCommandTracker.PendingRequest req = driver.commandTracker.startRequest(MavlinkCommandTracker.getRecorderKey(reason));
+        final MavlinkFlightRecorder recorder = driver.flightRecorder;
+        if (recorder == null || timer == null)
+        {
+            driver.commandTracker.updateRequest(req, StatusCode.FAILED, "Flight recorder is disabled or driver is stopped");
+            return req.status;
+        }
+
+        final File file = new File(downloadDir, getRecorderFileName(reason));
+        driver.commandTracker.updateRequest(req, StatusCode.EXECUTING, "Saving flight recorder to " + file);
+        ScheduledFuture<?> future = timer.schedule(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    int numRecords = recorder.dump(file);
+                    driver.getLogger().info("Saved {} packets from flight recorder to {}", numRecords, file);
+                    driver.commandTracker.updateRequest(req, StatusCode.COMPLETED, "Saved " + numRecords + " packets to " + file);
+                }
+                catch (IOException e)
+                {
+                    driver.commandTracker.updateRequest(req, StatusCode.FAILED, "Cannot save flight recorder to " + file + ": " + e.getMessage());
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        if (delay > 0)
+            triggeredDump = future;
+        return req.status;
+    }
+
+
+    /**
+     * Dumps the flight recorder after an incident, unless a dump triggered
+     * by a previous incident is still waiting for its delay to expire
+     * @param reason short reason included in the file name
+     * @param delay delay before the dump in ms
+     */
+    public synchronized void triggerFlightRecorder(String reason, long delay)
+    {
+        if (triggeredDump != null && !triggeredDump.isDone())
+            return;
+
+        driver.getLogger().info("Flight recorder triggered by {}", reason);
+        dumpFlightRecorder(reason, delay);
+    }
+
+
+    protected String getRecorderFileName(String reason)
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return driver.getConfiguration().vehicleID + "_flightrec_" + dateFormat.format(new Date()) + "_" + reason + ".tlog";
+    }
+
+
+    protected String getLogFileName(MavlinkVehicle vehicle, int logId)
+    {
+        return driver.getConfiguration().vehicleID + "_" + vehicle.sysid + "_log" + logId + ".bin";
+    }
+
+
+    private MavlinkCommandTracker.PendingRequest startRequest(MavlinkVehicle vehicle)
+    {
+        return driver.commandTracker.startRequest(MavlinkCommandTracker.getLogKey(vehicle.sysid));
+    }
+
+
+    private void startTransfer(MavlinkVehicle vehicle, LogTransfer transfer)
+    {
+        // a new transfer always replaces the previous one
+        // the tracker has already cancelled its status
+        LogTransfer oldTransfer = vehicle.logTransfer;
+        if (oldTransfer != null)
+        {
+            synchronized (oldTransfer)
+            {
+                oldTransfer.complete = true;
+                closeFile(oldTransfer);
+            }
+        }
+
+        driver.commandTracker.updateRequest(transfer.req, StatusCode.EXECUTING, null);
+        vehicle.logTransfer = transfer;
+        if (!transfers.contains(vehicle))
+            transfers.add(vehicle);
+    }
+
+
+    /*
+     * Preallocate file and request first window
+     */
+    private void startDownload(MavlinkVehicle vehicle, LogTransfer transfer, long size)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(transfer.file, "rw");
+            raf.setLength(size);
+            transfer.channel = raf.getChannel();
+        }
+        catch (IOException e)
+        {
+            finish(vehicle, transfer, StatusCode.FAILED, "Cannot create log file " + transfer.file + ": " + e.getMessage());
+            return;
+        }
+
+        transfer.size = size;
+        transfer.numChunks = (int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        transfer.startTime = transfer.lastProgressTime = transfer.lastActivityTime = System.currentTimeMillis();
+        driver.getLogger().info("Downloading log {} ({} bytes) from vehicle {} to {}", transfer.logId, size, vehicle.sysid, transfer.file);
+
+        if (transfer.numChunks == 0)
+            completeDownload(vehicle, transfer);
+        else
+            requestNextWindow(vehicle, transfer);
+    }
+
+
+    /**
+     * Handles a LOG_ENTRY sent by the vehicle in reply to a log list request
+     * @param vehicle vehicle that sent the message
+     * @param entry LOG_ENTRY message
+     */
+    public void handleLogEntry(MavlinkVehicle vehicle, msg_log_entry entry)
+    {
+        LogTransfer transfer = vehicle.logTransfer;
+        if (transfer == null)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete)
+                return;
+
+            transfer.lastActivityTime = System.currentTimeMillis();
+
+            if (transfer.isListing())
+            {
+                transfer.numLogs = entry.num_logs;
+                if (entry.num_logs > 0 && !transfer.entries.containsKey(entry.id))
+                {
+                    transfer.entries.put(entry.id, entry);
+                    if (driver.logEntryOutput != null)
+                        driver.logEntryOutput.publishEntry(vehicle, entry);
+                }
+
+                if (transfer.entries.size() >= transfer.numLogs)
+                {
+                    vehicle.logEntries = transfer.entries;
+                    finish(vehicle, transfer, StatusCode.COMPLETED, null);
+                    driver.getLogger().info("Vehicle {} has {} logs", vehicle.sysid, transfer.numLogs);
+                }
+                else
+                    driver.commandTracker.updateRequest(transfer.req, StatusCode.EXECUTING, "Received " + transfer.entries.size() + "/" + transfer.numLogs + " log entries");
+            }
+            else if (transfer.size < 0)
+            {
+                if (entry.num_logs == 0)
+                    finish(vehicle, transfer, StatusCode.FAILED, "Vehicle has no log");
+                else if (entry.id == transfer.logId)
+                    startDownload(vehicle, transfer, entry.size);
+            }
+        }
+    }
+
+
+    /**
+     * Writes a chunk received from the vehicle during download.<br/>
+     * This is called for every LOG_DATA packet so the data is copied from
+     * the packet buffer without decoding it to a message object.
+     * @param vehicle vehicle that sent the message
+     * @param msg view on LOG_DATA packet
+     */
+    public void handleLogData(MavlinkVehicle vehicle, view_log_data msg)
+    {
+        LogTransfer transfer = vehicle.logTransfer;
+        if (transfer == null)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete || transfer.channel == null || msg.id() != transfer.logId)
+                return;
+
+            long ofs = msg.ofs();
+            if (ofs % CHUNK_SIZE != 0 || ofs >= transfer.size)
+                return;
+
+            int index = (int)(ofs / CHUNK_SIZE);
+            long now = System.currentTimeMillis();
+            transfer.lastActivityTime = now;
+
+            if (!transfer.done.get(index))
+            {
+                int count = (int)Math.min(msg.count(), transfer.size - ofs);
+                try
+                {
+                    ByteBuffer chunk = transfer.chunk;
+                    chunk.clear();
+                    msg.copyData(chunk, count);
+                    chunk.flip();
+                    while (chunk.hasRemaining())
+                        transfer.channel.write(chunk, ofs + chunk.position());
+                }
+                catch (IOException e)
+                {
+                    finish(vehicle, transfer, StatusCode.FAILED, "Cannot write to log file " + transfer.file + ": " + e.getMessage());
+                    return;
+                }
+
+                transfer.done.set(index);
+                transfer.numDone++;
+                transfer.numBytes += count;
+            }
+
+            if (transfer.numDone >= transfer.numChunks)
+            {
+                completeDownload(vehicle, transfer);
+                return;
+            }
+
+            // request next window as soon as the current one is through
+            // if its last chunk is lost, this is done when the transfer stalls
+            if (index == transfer.windowEnd - 1)
+                requestNextWindow(vehicle, transfer);
+
+            if (now - transfer.lastProgressTime >= PROGRESS_PERIOD)
+            {
+                reportProgress(vehicle, transfer, now);
+                transfer.lastProgressTime = now;
+            }
+        }
+    }
+
+
+    /*
+     * Request chunks that were lost in previous windows first, then
+     * chunks never requested. Each request covers a contiguous range of
+     * at most one window.
+     */
+    private void requestNextWindow(MavlinkVehicle vehicle, LogTransfer transfer)
+    {
+        int start = transfer.done.nextClearBit(0);
+        int end;
+
+        if (start < transfer.nextChunk)
+        {
+            end = transfer.done.nextSetBit(start);
+            if (end < 0 || end > transfer.nextChunk)
+                end = transfer.nextChunk;
+            end = Math.min(end, start + windowSize);
+            driver.getLogger().debug("Re-requesting log chunks {} to {} from vehicle {}", start, end-1, vehicle.sysid);
+        }
+        else
+        {
+            start = transfer.nextChunk;
+            end = Math.min(start + windowSize, transfer.numChunks);
+            transfer.nextChunk = end;
+        }
+
+        transfer.windowEnd = end;
+        requestData(vehicle, transfer, start, end);
+    }
+
+
+    private void completeDownload(MavlinkVehicle vehicle, LogTransfer transfer)
+    {
+        msg_log_request_end req = new msg_log_request_end();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        send(req);
+
+        long now = System.currentTimeMillis();
+        reportProgress(vehicle, transfer, now);
+        closeFile(transfer);
+        finish(vehicle, transfer, StatusCode.COMPLETED, getProgressMessage(transfer, now));
+        driver.getLogger().info("Log {} downloaded from vehicle {}: {}", transfer.logId, vehicle.sysid, getProgressMessage(transfer, now));
+    }
+
+
+    private void finish(MavlinkVehicle vehicle, LogTransfer transfer, StatusCode code, String message)
+    {
+        transfer.complete = true;
+        closeFile(transfer);
+        transfers.remove(vehicle);
+        driver.commandTracker.updateRequest(transfer.req, code, message);
+    }
+
+
+    private void closeFile(LogTransfer transfer)
+    {
+        if (transfer.channel != null)
+        {
+            try { transfer.channel.close(); }
+            catch (IOException e) { }
+            transfer.channel = null;
+        }
+    }
+
+
+    private void reportProgress(MavlinkVehicle vehicle, LogTransfer transfer, long now)
+    {
+        double rate = getByteRate(transfer, now);
+        driver.commandTracker.updateRequest(transfer.req, StatusCode.EXECUTING, getProgressMessage(transfer, now));
+        if (driver.logDownloadOutput != null)
+            driver.logDownloadOutput.publishProgress(vehicle, transfer.logId, transfer.numBytes, transfer.size, rate, transfer.file.getPath());
+    }
+
+
+    private String getProgressMessage(LogTransfer transfer, long now)
+    {
+        return String.format("Received %d/%d bytes (%.1f kB/s)", transfer.numBytes, transfer.size, getByteRate(transfer, now) / 1000.);
+    }
+
+
+    private double getByteRate(LogTransfer transfer, long now)
+    {
+        long elapsed = Math.max(1, now - transfer.startTime);
+        return transfer.numBytes * 1000.0 / elapsed;
+    }
+
+
+    /*
+     * Called regularly to resend what was lost when the transfer stalls
+     */
+    private void checkTransfer(MavlinkVehicle vehicle)
+    {
+        LogTransfer transfer = vehicle.logTransfer;
+        if (transfer == null)
+        {
+            transfers.remove(vehicle);
+            return;
+        }
+
+        synchronized (transfer)
+        {
+            if (transfer.complete)
+            {
+                transfers.remove(vehicle);
+                return;
+            }
+
+            // wait while the transfer is progressing
+            if (System.currentTimeMillis() - transfer.lastActivityTime < timeout)
+                return;
+
+            // count retries that didn't bring anything new
+            int numDone = transfer.isListing() ? transfer.entries.size() : transfer.numDone;
+            if (numDone == transfer.lastNumDone)
+                transfer.numRetries++;
+            else
+                transfer.numRetries = 0;
+            transfer.lastNumDone = numDone;
+
+            if (transfer.numRetries > maxRetries)
+            {
+                String msg = transfer.isListing() ? "Log list request timed out" : "Log download timed out after " + transfer.numBytes + " bytes";
+                finish(vehicle, transfer, StatusCode.FAILED, msg);
+                return;
+            }
+
+            if (transfer.isListing())
+                requestList(vehicle, 0, 0xFFFF);
+            else if (transfer.size < 0)
+                requestList(vehicle, transfer.logId, transfer.logId);
+            else
+                requestNextWindow(vehicle, transfer);
+
+            transfer.lastActivityTime = System.currentTimeMillis();
+        }
+    }
+
+
+    private void requestList(MavlinkVehicle vehicle, int start, int end)
+    {
+        msg_log_request_list req = new msg_log_request_list();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        req.start = start;
+        req.end = end;
+        send(req);
+    }
+
+
+    private void requestData(MavlinkVehicle vehicle, LogTransfer transfer, int startChunk, int endChunk)
+    {
+        long ofs = (long)startChunk * CHUNK_SIZE;
+        msg_log_request_data req = new msg_log_request_data();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        req.id = transfer.logId;
+        req.ofs = ofs;
+        req.count = Math.min(transfer.size, (long)endChunk * CHUNK_SIZE) - ofs;
+        send(req);
+    }
+
+
+    private void send(MAVLinkMessage msg)
+    {
+        if (!driver.sender.send(msg))
+            driver.getLogger().warn("Cannot send log message {}. Driver is stopped or send queue is full", msg.msgid);
+    }
+
+
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+
+        for (MavlinkVehicle vehicle: transfers)
+        {
+            LogTransfer transfer = vehicle.logTransfer;
+            if (transfer != null)
+            {
+                synchronized (transfer)
+                {
+                    closeFile(transfer);
+                }
+            }
+        }
+
+        transfers.clear();
+    }
+}
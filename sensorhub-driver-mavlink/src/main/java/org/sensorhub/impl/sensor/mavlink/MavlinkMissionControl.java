@@ -0,0 +1,222 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import net.opengis.swe.v20.Count;
+import net.opengis.swe.v20.DataArray;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.sensor.SensorException;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.vast.swe.SWEHelper;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_mission_item_int;
+import com.MAVLink.enums.MAV_CMD;
+import com.MAVLink.enums.MAV_FRAME;
+
+
+/**
+ * <p>
+ * Implementation of mission control interface for MAVLink systems.<br/>
+ * Missions are uploaded as a whole with the MAVLink mission protocol, and
+ * downloaded missions are published on the mission output.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkMissionControl extends MavlinkControlInput
+{
+    static final int NUM_ITEM_FIELDS = 9;
+
+
+    protected MavlinkMissionControl(MavlinkDriver driver)
+    {
+        super(driver);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "missionCommands";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // build command message structure
+        commandData = fac.newDataChoice();
+        commandData.setName(getName());
+        commandData.setUpdatable(true);
+
+        // get commands enabled in config
+        EnumSet<CmdTypes> cmdSet = parentSensor.getConfiguration().activeCommands;
+
+        // mission upload
+        if (cmdSet.contains(CmdTypes.UPLOAD_MISSION))
+        {
+            DataRecord cmd = fac.newDataRecord(2);
+
+            Count numItems = fac.newCount(SWEHelper.getPropertyUri("MissionItemCount"), "Item Count", "Number of items in mission");
+            numItems.setId("NUM_ITEMS");
+            cmd.addField("numItems", numItems);
+
+            DataRecord item = fac.newDataRecord(NUM_ITEM_FIELDS);
+            item.addField("command", fac.newCount(SWEHelper.getPropertyUri("MissionCommand"), "Command", "MAV_CMD code of mission item"));
+            item.addField("frame", fac.newCount(SWEHelper.getPropertyUri("CoordinateFrame"), "Frame", "MAV_FRAME code of item coordinates"));
+            item.addField("param1", fac.newQuantity(SWEHelper.getPropertyUri("Param1"), "Param 1", null, null));
+            item.addField("param2", fac.newQuantity(SWEHelper.getPropertyUri("Param2"), "Param 2", null, null));
+            item.addField("param3", fac.newQuantity(SWEHelper.getPropertyUri("Param3"), "Param 3", null, null));
+            item.addField("param4", fac.newQuantity(SWEHelper.getPropertyUri("Param4"), "Param 4", null, null));
+            item.addField("x", fac.newQuantity(SWEHelper.getPropertyUri("Param5"), "X", "Latitude in degrees for global frames, x in meters for local frames", null));
+            item.addField("y", fac.newQuantity(SWEHelper.getPropertyUri("Param6"), "Y", "Longitude in degrees for global frames, y in meters for local frames", null));
+            item.addField("z", fac.newQuantity(SWEHelper.getPropertyUri("Param7"), "Z", "Altitude or local z", "m"));
+
+            DataArray items = fac.newDataArray();
+            items.setElementType("item", item);
+            items.setElementCount(numItems);
+            cmd.addField("items", items);
+
+            commandData.addItem(CmdTypes.UPLOAD_MISSION.name(), cmd);
+        }
+
+        // mission download
+        if (cmdSet.contains(CmdTypes.DOWNLOAD_MISSION))
+        {
+            DataRecord cmd = fac.newDataRecord(0);
+            cmd.setDescription("Read mission from vehicle and publish it on the mission output");
+            commandData.addItem(CmdTypes.DOWNLOAD_MISSION.name(), cmd);
+        }
+
+        // mission clear
+        if (cmdSet.contains(CmdTypes.CLEAR_MISSION))
+        {
+            DataRecord cmd = fac.newDataRecord(0);
+            commandData.addItem(CmdTypes.CLEAR_MISSION.name(), cmd);
+        }
+
+        // mission start
+        if (cmdSet.contains(CmdTypes.START_MISSION))
+        {
+            DataRecord cmd = fac.newDataRecord(0);
+            commandData.addItem(CmdTypes.START_MISSION.name(), cmd);
+        }
+
+        addVehicleSelector();
+    }
+
+
+    @Override
+    public CommandStatus sendCommand(DataBlock command) throws SensorException
+    {
+        MavlinkVehicle target = getTargetVehicle(command);
+        int i = getCommandIndex();
+        int cmdIndex = command.getIntValue(i);
+        String cmdName = commandData.getComponent(cmdIndex).getName();
+        MavlinkMissionManager missionManager = parentSensor.getMissionManager();
+
+        // switch on command type
+        CmdTypes cmdType = CmdTypes.valueOf(cmdName);
+        parentSensor.getLogger().info("Sending {} command", cmdType);
+        switch (cmdType)
+        {
+            case UPLOAD_MISSION:
+                return missionManager.uploadMission(target, readItems(command, i+1));
+
+            case DOWNLOAD_MISSION:
+                return missionManager.downloadMission(target);
+
+            case CLEAR_MISSION:
+                return missionManager.uploadMission(target, Collections.<msg_mission_item_int>emptyList());
+
+            case START_MISSION:
+                msg_command_long cmd = new msg_command_long();
+                cmd.target_system = (short)target.sysid;
+                cmd.target_component = (short)target.compid;
+                cmd.command = MAV_CMD.MAV_CMD_MISSION_START;
+                return parentSensor.sendCommand(cmd);
+
+            default:
+                throw new SensorException("Unsupported command " + cmdType);
+        }
+    }
+
+
+    @Override
+    public CommandStatus execCommand(DataBlock command) throws SensorException
+    {
+        // transfers can be long but they always end with a final status
+        // since they fail as soon as the vehicle stops answering
+        CommandStatus status = sendCommand(command);
+        parentSensor.commandTracker.waitForCompletion(status, 0);
+        return status;
+    }
+
+
+    /*
+     * Read mission items from the command data block
+     * Global coordinates are converted to degrees * 1e7 and local ones to meters * 1e4
+     */
+    protected List<msg_mission_item_int> readItems(DataBlock command, int index)
+    {
+        int numItems = command.getIntValue(index++);
+        List<msg_mission_item_int> items = new ArrayList<msg_mission_item_int>(numItems);
+
+        for (int n = 0; n < numItems; n++)
+        {
+            msg_mission_item_int item = new msg_mission_item_int();
+            item.command = command.getIntValue(index++);
+            item.frame = (short)command.getIntValue(index++);
+            item.param1 = command.getFloatValue(index++);
+            item.param2 = command.getFloatValue(index++);
+            item.param3 = command.getFloatValue(index++);
+            item.param4 = command.getFloatValue(index++);
+            double scale = isGlobalFrame(item.frame) ? 1e7 : 1e4;
+            item.x = (int)Math.round(command.getDoubleValue(index++) * scale);
+            item.y = (int)Math.round(command.getDoubleValue(index++) * scale);
+            item.z = command.getFloatValue(index++);
+            item.autocontinue = 1;
+            items.add(item);
+        }
+
+        return items;
+    }
+
+
+    protected boolean isGlobalFrame(int frame)
+    {
+        switch (frame)
+        {
+            case MAV_FRAME.MAV_FRAME_GLOBAL:
+            case MAV_FRAME.MAV_FRAME_GLOBAL_INT:
+            case MAV_FRAME.MAV_FRAME_GLOBAL_RELATIVE_ALT:
+            case MAV_FRAME.MAV_FRAME_GLOBAL_RELATIVE_ALT_INT:
+            case MAV_FRAME.MAV_FRAME_GLOBAL_TERRAIN_ALT:
+            case MAV_FRAME.MAV_FRAME_GLOBAL_TERRAIN_ALT_INT:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_mission_ack;
+import com.MAVLink.common.msg_mission_count;
+import com.MAVLink.common.msg_mission_item_int;
+import com.MAVLink.common.msg_mission_request_int;
+import com.MAVLink.common.msg_mission_request_list;
+import com.MAVLink.enums.MAV_MISSION_RESULT;
+
+
+/**
+ * <p>
+ * Uploads and downloads vehicle missions using the MAVLink mission protocol
+ * with MISSION_ITEM_INT messages.<br/>
+ * During upload, the vehicle requests items one by one and each request is
+ * answered right away by the reader thread with a pre-built item, so the
+ * transfer runs at the speed of the vehicle. During download, several
+ * MISSION_REQUEST_INT are kept in flight so the link round trip time is
+ * only paid once per window instead of once per item, and only the items
+ * that were lost are requested again when the vehicle stops answering.
+ * </p><p>
+ * Transfers are tracked like commands, so their status can be polled or
+ * waited for, and a transfer fails only if the configured number of retries
+ * is reached without any progress.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkMissionManager
+{
+    final MavlinkDriver driver;
+    final CopyOnWriteArrayList<MavlinkVehicle> transfers = new CopyOnWriteArrayList<MavlinkVehicle>();
+    ScheduledExecutorService timer;
+    long timeout;
+    int maxRetries;
+    int windowSize;
+
+
+    /*
+     * State of a mission upload or download
+     */
+    static class MissionTransfer
+    {
+        final boolean upload;
+        final MavlinkCommandTracker.PendingRequest req;
+        msg_mission_item_int[] items;
+        int count = -1;
+        final BitSet done = new BitSet(); // items sent or received
+        int nextRequest; // index of next item never requested (download)
+        int lastSent = -1; // index of last item sent (upload)
+        long lastActivityTime;
+        int lastNumDone;
+        int numRetries;
+        boolean complete;
+
+        MissionTransfer(boolean upload, MavlinkCommandTracker.PendingRequest req)
+        {
+            this.upload = upload;
+            this.req = req;
+            this.lastActivityTime = System.currentTimeMillis();
+        }
+    }
+
+
+    public MavlinkMissionManager(MavlinkDriver driver)
+    {
+        this.driver = driver;
+    }
+
+
+    public synchronized void start()
+    {
+        this.timeout = Math.max(1, driver.getConfiguration().commandTimeout);
+        this.maxRetries = Math.max(0, driver.getConfiguration().commandRetries);
+        this.windowSize = Math.max(1, driver.getConfiguration().missionWindowSize);
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MAVLink Mission Transfer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                for (MavlinkVehicle vehicle: transfers)
+                    checkTransfer(vehicle);
+            }
+        }, timeout, timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Uploads a mission to the vehicle, replacing the current one.<br/>
+     * Sequence numbers and targets of the items are assigned by this method.
+     * An empty list clears the mission on the vehicle.
+     * @param vehicle target vehicle
+     * @param items list of mission items (must not be modified afterwards)
+     * @return transfer status, updated asynchronously
+     */
+    public CommandStatus uploadMission(MavlinkVehicle vehicle, List<msg_mission_item_int> items)
+    {
+        MissionTransfer transfer = new MissionTransfer(true, startRequest(vehicle));
+        transfer.items = items.toArray(new msg_mission_item_int[items.size()]);
+        transfer.count = transfer.items.length;
+
+        for (int i = 0; i < transfer.count; i++)
+        {
+            msg_mission_item_int item = transfer.items[i];
+            item.seq = i;
+            item.target_system = (short)vehicle.sysid;
+            item.target_component = (short)vehicle.compid;
+        }
+
+        synchronized (transfer)
+        {
+            startTransfer(vehicle, transfer);
+            driver.getLogger().info("Uploading mission with {} items to vehicle {}", transfer.count, vehicle.sysid);
+            sendCount(vehicle, transfer);
+        }
+
+        return transfer.req.status;
+    }
+
+
+    /**
+     * Downloads the mission currently stored on the vehicle.<br/>
+     * Once complete, the mission can be retrieved with {@link #getMission(MavlinkVehicle)}
+     * @param vehicle target vehicle
+     * @return transfer status, updated asynchronously
+     */
+    public CommandStatus downloadMission(MavlinkVehicle vehicle)
+    {
+        MissionTransfer transfer = new MissionTransfer(false, startRequest(vehicle));
+
+        synchronized (transfer)
+        {
+            startTransfer(vehicle, transfer);
+            driver.getLogger().info("Requesting mission from vehicle {}", vehicle.sysid);
+            requestList(vehicle);
+        }
+
+        return transfer.req.status;
+    }
+
+
+    /**
+     * @param vehicle vehicle to get the mission from
+     * @return last mission uploaded to or downloaded from the vehicle, or null if unknown
+     */
+    public List<msg_mission_item_int> getMission(MavlinkVehicle vehicle)
+    {
+        msg_mission_item_int[] items = vehicle.mission;
+        if (items == null)
+            return null;
+        return Collections.unmodifiableList(Arrays.asList(items));
+    }
+
+
+    private MavlinkCommandTracker.PendingRequest startRequest(MavlinkVehicle vehicle)
+    {
+        return driver.commandTracker.startRequest(MavlinkCommandTracker.getMissionKey(vehicle.sysid));
+    }
+
+
+    private void startTransfer(MavlinkVehicle vehicle, MissionTransfer transfer)
+    {
+        // a new transfer always replaces the previous one
+        // the tracker has already cancelled its status
+        MissionTransfer oldTransfer = vehicle.missionTransfer;
+        if (oldTransfer != null)
+        {
+            synchronized (oldTransfer)
+            {
+                oldTransfer.complete = true;
+            }
+        }
+
+        driver.commandTracker.updateRequest(transfer.req, StatusCode.EXECUTING, null);
+        vehicle.missionTransfer = transfer;
+        if (!transfers.contains(vehicle))
+            transfers.add(vehicle);
+    }
+
+
+    /**
+     * Answers a MISSION_REQUEST or MISSION_REQUEST_INT sent by the vehicle during upload
+     * @param vehicle vehicle that sent the message
+     * @param seq index of requested item
+     */
+    public void handleMissionRequest(MavlinkVehicle vehicle, int seq)
+    {
+        MissionTransfer transfer = vehicle.missionTransfer;
+        if (transfer == null || !transfer.upload)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete || seq >= transfer.count)
+                return;
+
+            // items requested again were lost, so just resend them
+            send(transfer.items[seq]);
+            transfer.lastSent = seq;
+            transfer.lastActivityTime = System.currentTimeMillis();
+
+            if (!transfer.done.get(seq))
+            {
+                transfer.done.set(seq);
+                reportProgress(transfer, "Sent");
+            }
+        }
+    }
+
+
+    /**
+     * Handles the MISSION_COUNT sent by the vehicle at the start of a download
+     * @param vehicle vehicle that sent the message
+     * @param msg MISSION_COUNT message
+     */
+    public void handleMissionCount(MavlinkVehicle vehicle, msg_mission_count msg)
+    {
+        MissionTransfer transfer = vehicle.missionTransfer;
+        if (transfer == null || transfer.upload)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete || transfer.count >= 0)
+                return;
+
+            transfer.count = msg.count;
+            transfer.items = new msg_mission_item_int[msg.count];
+            transfer.lastActivityTime = System.currentTimeMillis();
+            driver.getLogger().debug("Vehicle {} has {} mission items", vehicle.sysid, msg.count);
+
+            if (transfer.count == 0)
+            {
+                completeDownload(vehicle, transfer);
+                return;
+            }
+
+            // fill request window
+            while (transfer.nextRequest < transfer.count && transfer.nextRequest < windowSize)
+                requestItem(vehicle, transfer.nextRequest++);
+        }
+    }
+
+
+    /**
+     * Stores an item received from the vehicle during download
+     * @param vehicle vehicle that sent the message
+     * @param item MISSION_ITEM_INT message
+     */
+    public void handleMissionItem(MavlinkVehicle vehicle, msg_mission_item_int item)
+    {
+        MissionTransfer transfer = vehicle.missionTransfer;
+        if (transfer == null || transfer.upload)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete || item.seq >= transfer.count || transfer.done.get(item.seq))
+                return;
+
+            transfer.items[item.seq] = item;
+            transfer.done.set(item.seq);
+            transfer.lastActivityTime = System.currentTimeMillis();
+
+            // keep the window full
+            if (transfer.nextRequest < transfer.count)
+                requestItem(vehicle, transfer.nextRequest++);
+
+            if (transfer.done.cardinality() >= transfer.count)
+                completeDownload(vehicle, transfer);
+            else
+                reportProgress(transfer, "Received");
+        }
+    }
+
+
+    /**
+     * Handles the MISSION_ACK sent by the vehicle at the end of an upload,
+     * or when it refuses a transfer
+     * @param vehicle vehicle that sent the message
+     * @param ack MISSION_ACK message
+     */
+    public void handleMissionAck(MavlinkVehicle vehicle, msg_mission_ack ack)
+    {
+        MissionTransfer transfer = vehicle.missionTransfer;
+        if (transfer == null)
+            return;
+
+        synchronized (transfer)
+        {
+            if (transfer.complete)
+                return;
+
+            if (ack.type != MAV_MISSION_RESULT.MAV_MISSION_ACCEPTED)
+            {
+                finish(vehicle, transfer, StatusCode.REJECTED, "Mission rejected by vehicle (MAV_MISSION_RESULT " + ack.type + ")");
+            }
+            else if (transfer.upload)
+            {
+                vehicle.mission = transfer.items;
+                finish(vehicle, transfer, StatusCode.COMPLETED, null);
+                driver.getLogger().info("Mission with {} items uploaded to vehicle {}", transfer.count, vehicle.sysid);
+            }
+        }
+    }
+
+
+    private void completeDownload(MavlinkVehicle vehicle, MissionTransfer transfer)
+    {
+        msg_mission_ack ack = new msg_mission_ack();
+        ack.target_system = (short)vehicle.sysid;
+        ack.target_component = (short)vehicle.compid;
+        ack.type = MAV_MISSION_RESULT.MAV_MISSION_ACCEPTED;
+        send(ack);
+
+        vehicle.mission = transfer.items;
+        finish(vehicle, transfer, StatusCode.COMPLETED, null);
+        driver.getLogger().info("Mission with {} items downloaded from vehicle {}", transfer.count, vehicle.sysid);
+    }
+
+
+    private void finish(MavlinkVehicle vehicle, MissionTransfer transfer, StatusCode code, String message)
+    {
+        transfer.complete = true;
+        transfers.remove(vehicle);
+        driver.commandTracker.updateRequest(transfer.req, code, message);
+
+        if (code == StatusCode.COMPLETED && driver.missionOutput != null)
+            driver.missionOutput.publishMission(vehicle, transfer.items);
+    }
+
+
+    private void reportProgress(MissionTransfer transfer, String action)
+    {
+        String msg = action + " " + transfer.done.cardinality() + "/" + transfer.count + " items";
+        driver.commandTracker.updateRequest(transfer.req, StatusCode.EXECUTING, msg);
+    }
+
+
+    /*
+     * Called regularly to resend what was lost when the transfer stalls
+     */
+    private void checkTransfer(MavlinkVehicle vehicle)
+    {
+        MissionTransfer transfer = vehicle.missionTransfer;
+        if (transfer == null)
+        {
+            transfers.remove(vehicle);
+            return;
+        }
+
+        synchronized (transfer)
+        {
+            if (transfer.complete)
+            {
+                transfers.remove(vehicle);
+                return;
+            }
+
+            // wait while the transfer is progressing
+            if (System.currentTimeMillis() - transfer.lastActivityTime < timeout)
+                return;
+
+            // count retries that didn't bring anything new
+            int numDone = transfer.done.cardinality();
+            if (numDone == transfer.lastNumDone)
+                transfer.numRetries++;
+            else
+                transfer.numRetries = 0;
+            transfer.lastNumDone = numDone;
+
+            if (transfer.numRetries > maxRetries)
+            {
+                String count = (transfer.count < 0) ? "?" : Integer.toString(transfer.count);
+                finish(vehicle, transfer, StatusCode.FAILED, "Mission transfer timed out after " + numDone + "/" + count + " items");
+                return;
+            }
+
+            if (transfer.upload)
+            {
+                // if no item was requested, count was lost
+                // otherwise our last item or the next request was lost
+                if (transfer.lastSent < 0)
+                    sendCount(vehicle, transfer);
+                else
+                    send(transfer.items[transfer.lastSent]);
+            }
+            else
+            {
+                if (transfer.count < 0)
+                    requestList(vehicle);
+                else
+                    requestMissing(vehicle, transfer);
+            }
+
+            transfer.lastActivityTime = System.currentTimeMillis();
+        }
+    }
+
+
+    private void sendCount(MavlinkVehicle vehicle, MissionTransfer transfer)
+    {
+        msg_mission_count msg = new msg_mission_count();
+        msg.target_system = (short)vehicle.sysid;
+        msg.target_component = (short)vehicle.compid;
+        msg.count = transfer.count;
+        send(msg);
+    }
+
+
+    private void requestList(MavlinkVehicle vehicle)
+    {
+        msg_mission_request_list req = new msg_mission_request_list();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        send(req);
+    }
+
+
+    /*
+     * Re-request items that were requested but never received, up to
+     * the window size, and complete the window with new requests
+     */
+    private void requestMissing(MavlinkVehicle vehicle, MissionTransfer transfer)
+    {
+        int numRequests = 0;
+        int index = transfer.done.nextClearBit(0);
+        while (index < transfer.nextRequest && numRequests < windowSize)
+        {
+            requestItem(vehicle, index);
+            numRequests++;
+            index = transfer.done.nextClearBit(index + 1);
+        }
+
+        while (transfer.nextRequest < transfer.count && numRequests < windowSize)
+        {
+            requestItem(vehicle, transfer.nextRequest++);
+            numRequests++;
+        }
+
+        driver.getLogger().debug("Re-requested {} mission items from vehicle {}", numRequests, vehicle.sysid);
+    }
+
+
+    private void requestItem(MavlinkVehicle vehicle, int seq)
+    {
+        msg_mission_request_int req = new msg_mission_request_int();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        req.seq = seq;
+        send(req);
+    }
+
+
+    private void send(MAVLinkMessage msg)
+    {
+        if (!driver.sender.send(msg))
+            driver.getLogger().warn("Cannot send mission message {}. Driver is stopped or send queue is full", msg.msgid);
+    }
+
+
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+
+        transfers.clear();
+    }
+}
@@ -21,7 +21,6 @@ import net.opengis.swe.v20.DataType;
 import net.opengis.swe.v20.Quantity;
 import net.opengis.swe.v20.Vector;
 import org.sensorhub.api.common.CommandStatus;
-import org.sensorhub.api.common.CommandStatus.StatusCode;
 import org.sensorhub.api.sensor.SensorException;
 import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
 import org.vast.swe.SWEConstants;
@@ -45,7 +44,9 @@ import com.MAVLink.enums.MAV_FRAME;
  */
 public class MavlinkNavControl extends MavlinkControlInput
 {
-  
+    // velocity setpoints are streamed at high rate so message is reused
+    final msg_set_position_target_local_ned velcmd = new msg_set_position_target_local_ned();
+    
     
     protected MavlinkNavControl(MavlinkDriver driver)
     {
@@ -151,18 +152,23 @@ public class MavlinkNavControl extends MavlinkControlInput
             latLon.setDescription("Landing location or NaN to land at the current location");
             commandData.addItem(CmdTypes.LAND.name(), latLon);
         }
+        
+        addVehicleSelector();
     }
     
 
     @Override
-    public CommandStatus execCommand(DataBlock command) throws SensorException
+    public CommandStatus sendCommand(DataBlock command) throws SensorException
     {
         try
         {
-            int cmdIndex = command.getIntValue(0);
+            MavlinkVehicle target = getTargetVehicle(command);
+            int i = getCommandIndex();
+            int cmdIndex = command.getIntValue(i);
             String cmdName = commandData.getComponent(cmdIndex).getName();
             
             // switch on command type
+            // status is returned right away and updated when the vehicle acknowledges the command
             msg_command_long cmd;
             CmdTypes cmdType = CmdTypes.valueOf(cmdName);
             
@@ -170,113 +176,106 @@ public class MavlinkNavControl extends MavlinkControlInput
             {
                 case TAKEOFF:
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_NAV_TAKEOFF;
-                    cmd.param7 = Math.min(10, command.getFloatValue(1)); // alt (m), max to 10m
+                    cmd.param7 = Math.min(10, command.getFloatValue(i+1)); // alt (m), max to 10m
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());   
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 case GOTO_LLA:
                     msg_set_position_target_global_int llacmd = new msg_set_position_target_global_int();
-                    llacmd.target_system = 1;
+                    llacmd.target_system = (short)target.sysid;
                     llacmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     llacmd.coordinate_frame = MAV_FRAME.MAV_FRAME_GLOBAL_RELATIVE_ALT_INT;
                     llacmd.type_mask = 0x1F8;
-                    llacmd.lat_int = (int)(command.getFloatValue(1)*1e7); // lat (deg)
-                    llacmd.lon_int = (int)(command.getFloatValue(2)*1e7); // lon (deg)
-                    llacmd.alt = 5;//command.getFloatValue(3); // alt (m)
-                    llacmd.yaw = (float)(command.getDoubleValue(4)/180.*Math.PI); // yaw (deg)
+                    llacmd.lat_int = (int)(command.getFloatValue(i+1)*1e7); // lat (deg)
+                    llacmd.lon_int = (int)(command.getFloatValue(i+2)*1e7); // lon (deg)
+                    llacmd.alt = 5;//command.getFloatValue(i+3); // alt (m)
+                    llacmd.yaw = (float)(command.getDoubleValue(i+4)/180.*Math.PI); // yaw (deg)
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType, llacmd.msgid);
-                    parentSensor.sendCommand(llacmd.pack());
-                    break;
+                    return parentSensor.sendMessage(llacmd);
                     
                 case GOTO_ENU:
                     msg_set_position_target_local_ned enucmd = new msg_set_position_target_local_ned();
-                    enucmd.target_system = 1;
+                    enucmd.target_system = (short)target.sysid;
                     enucmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     enucmd.coordinate_frame = MAV_FRAME.MAV_FRAME_LOCAL_OFFSET_NED;
                     enucmd.type_mask = 0x1F8;
-                    enucmd.x = command.getFloatValue(2); // x_NED = y_ENU (m)
-                    enucmd.y = command.getFloatValue(1); // y_NED = x_ENU (m)
-                    enucmd.z = -command.getFloatValue(3); // z_NED = -z_ENU (m)
-                    enucmd.yaw = (float)(command.getDoubleValue(4)/180.*Math.PI); // yaw (deg)
+                    enucmd.x = command.getFloatValue(i+2); // x_NED = y_ENU (m)
+                    enucmd.y = command.getFloatValue(i+1); // y_NED = x_ENU (m)
+                    enucmd.z = -command.getFloatValue(i+3); // z_NED = -z_ENU (m)
+                    enucmd.yaw = (float)(command.getDoubleValue(i+4)/180.*Math.PI); // yaw (deg)
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType, enucmd.msgid);
-                    parentSensor.sendCommand(enucmd.pack());   
-                    break;
+                    return parentSensor.sendMessage(enucmd);
                     
                 case VELOCITY:
-                    msg_set_position_target_local_ned velcmd = new msg_set_position_target_local_ned();
-                    velcmd.target_system = 1;
-                    velcmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
-                    velcmd.coordinate_frame = MAV_FRAME.MAV_FRAME_LOCAL_NED;
-                    velcmd.type_mask = 0x1C7;
-                    velcmd.vx = command.getFloatValue(2); // vx_NED = vy_ENU (m/s)
-                    velcmd.vy = command.getFloatValue(1); // vy_NED = vx_ENU (m/s)
-                    velcmd.vz = -command.getFloatValue(3); // vz_NED = -vz_ENU (m/s)
-                    parentSensor.getLogger().info("Sending {} command: {}", cmdType, velcmd.msgid);
-                    parentSensor.sendCommand(velcmd.pack());   
-                    break;
+                    synchronized (velcmd)
+                    {
+                        velcmd.target_system = (short)target.sysid;
+                        velcmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
+                        velcmd.coordinate_frame = MAV_FRAME.MAV_FRAME_LOCAL_NED;
+                        velcmd.type_mask = 0x1C7;
+                        velcmd.vx = command.getFloatValue(i+2); // vx_NED = vy_ENU (m/s)
+                        velcmd.vy = command.getFloatValue(i+1); // vy_NED = vx_ENU (m/s)
+                        velcmd.vz = -command.getFloatValue(i+3); // vz_NED = -vz_ENU (m/s)
+                        parentSensor.getLogger().debug("Sending {} command: {}", cmdType, velcmd.msgid);
+                        return parentSensor.sendMessage(velcmd);
+                    }
                     
                 case HEADING:
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_CONDITION_YAW;
-                    cmd.param1 = command.getFloatValue(1); // yaw (deg)
-                    cmd.param2 = command.getFloatValue(2); // yaw rate (deg/s)
+                    cmd.param1 = command.getFloatValue(i+1); // yaw (deg)
+                    cmd.param2 = command.getFloatValue(i+2); // yaw rate (deg/s)
                     cmd.param4 = 0;
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());  
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 case LOITER:
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_NAV_LOITER_UNLIM;
-                    cmd.param5 = (float)(command.getFloatValue(1)*1e7); // lat (deg)
-                    cmd.param6 = (float)(command.getFloatValue(2)*1e7); // lon (deg)
-                    cmd.param7 = command.getFloatValue(3); // alt (m)
+                    cmd.param5 = (float)(command.getFloatValue(i+1)*1e7); // lat (deg)
+                    cmd.param6 = (float)(command.getFloatValue(i+2)*1e7); // lon (deg)
+                    cmd.param7 = command.getFloatValue(i+3); // alt (m)
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());   
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 case ORBIT:
                     // set circle radius param
-                    parentSensor.setParam("CIRCLE_RADIUS", command.getFloatValue(4)*100f);
+                    parentSensor.setParam(target, "CIRCLE_RADIUS", command.getFloatValue(i+4)*100f);
                     // send loiter command
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_NAV_LOITER_TURNS;
-                    cmd.param5 = (float)(command.getFloatValue(1)*1e7); // lat (deg)
-                    cmd.param6 = (float)(command.getFloatValue(2)*1e7); // lon (deg)
-                    cmd.param7 = command.getFloatValue(3); // alt (m)
+                    cmd.param5 = (float)(command.getFloatValue(i+1)*1e7); // lat (deg)
+                    cmd.param6 = (float)(command.getFloatValue(i+2)*1e7); // lon (deg)
+                    cmd.param7 = command.getFloatValue(i+3); // alt (m)
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());   
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 case RTL:
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH;
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 case LAND:
                     cmd = new msg_command_long();
-                    cmd.target_system = 1;
+                    cmd.target_system = (short)target.sysid;
                     cmd.target_component = MAV_COMPONENT.MAV_COMP_ID_SYSTEM_CONTROL;
                     cmd.command = MAV_CMD.MAV_CMD_NAV_LAND;
-                    cmd.param5 = (float)(command.getDoubleValue(1)*1e7); // lat (deg)
-                    cmd.param6 = (float)(command.getDoubleValue(2)*1e7); // lon (deg)
+                    cmd.param5 = (float)(command.getDoubleValue(i+1)*1e7); // lat (deg)
+                    cmd.param6 = (float)(command.getDoubleValue(i+2)*1e7); // lon (deg)
                     parentSensor.getLogger().info("Sending {} command: {}", cmdType,cmd.command);
-                    parentSensor.sendCommand(cmd.pack());   
-                    break;
+                    return parentSensor.sendCommand(cmd);
                     
                 default:
                     throw new SensorException("Unsupported command " + cmdType);
@@ -286,10 +285,6 @@ public class MavlinkNavControl extends MavlinkControlInput
         {
             throw new SensorException("Cannot execute command", e);
         }
-        
-        CommandStatus cmdStatus = new CommandStatus();
-        cmdStatus.status = StatusCode.COMPLETED;
-        return cmdStatus;
     }
 
 
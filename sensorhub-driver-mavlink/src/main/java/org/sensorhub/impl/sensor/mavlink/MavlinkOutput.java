@@ -1,55 +1,70 @@
-/***************************** BEGIN LICENSE BLOCK ***************************
-
-The contents of this file are subject to the Mozilla Public License, v. 2.0.
-If a copy of the MPL was not distributed with this file, You can obtain one
-at http://mozilla.org/MPL/2.0/.
-
-Software distributed under the License is distributed on an "AS IS" basis,
-WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
-for the specific language governing rights and limitations under the License.
- 
-Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
- 
-******************************* END LICENSE BLOCK ***************************/
-
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
 package org.sensorhub.impl.sensor.mavlink;
 
-import net.opengis.swe.v20.DataBlock;
+import java.util.Arrays;
+import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
 import net.opengis.swe.v20.DataEncoding;
-import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.sensor.SensorDataEvent;
 import org.sensorhub.impl.sensor.AbstractSensorOutput;
-import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.MAVLinkPacket;
 
-
-/**
- * <p>
- * Abstract base for all outputs corresponding to MAVLink messages
- * </p>
- *
- * @author Alex Robin <alex.robin@sensiasoftware.com>
- * @since Dec 10, 2015
+
+/**
+ * <p>
+ * Abstract base for all outputs corresponding to MAVLink messages
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 10, 2015
  */
 public abstract class MavlinkOutput extends AbstractSensorOutput<MavlinkDriver>
 {
-    protected DataComponent dataStruct;
-    protected DataEncoding dataEncoding;
-    protected double samplingPeriod;
-    protected long lastMsgTime = Long.MIN_VALUE;
+    /**
+     * Priority of output messages when telemetry is throttled on a saturated link
+     */
+    public enum Priority
+    {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+    
+    protected DataComponent dataStruct;
+    protected DataEncoding dataEncoding;
+    protected double samplingPeriod;
+    protected final long[] lastMsgTimes = new long[256]; // per vehicle system ID
+    protected int outputIndex;
+    protected MavlinkVehicle vehicle;
     
 
     public MavlinkOutput(MavlinkDriver parentSensor)
     {
         super(parentSensor);
-    }
-    
-    
-    @Override
-    public double getAverageSamplingPeriod()
-    {
-        return samplingPeriod;
-    }
-    
+        Arrays.fill(lastMsgTimes, Long.MIN_VALUE);
+    }
+    
+    
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return samplingPeriod;
+    }
+    
     
     @Override
     public DataComponent getRecordDescription()
@@ -62,42 +77,149 @@ public abstract class MavlinkOutput extends AbstractSensorOutput<MavlinkDriver>
     public DataEncoding getRecommendedEncoding()
     {
         return dataEncoding;
-    }
-    
-    
-    protected void sendOutput(long msgTime, DataBlock dataBlock)
-    {
-        // update latest record and send event
-        latestRecord = dataBlock;
-        latestRecordTime = msgTime;
-        eventHandler.publishEvent(new SensorDataEvent(msgTime, this, dataBlock));
-    }
-    
-    
-    protected void updateSamplingPeriod(long msgTime)
-    {
-        if (lastMsgTime != Long.MIN_VALUE)
-            samplingPeriod = (msgTime - lastMsgTime) / 1000.;
-        
-        lastMsgTime = msgTime;
-    }
-    
-    
-    protected final DataBlock getNewDataBlock()
-    {
-        if (latestRecord == null)
-            return dataStruct.createDataBlock();
-        else
-            return latestRecord.renew();
-    }
-    
-    
-    /**
-     * Method to be implemented by concrete outputs to handle appropriate MAVLink messages
-     * @param msgTime system time at which message was received
-     * @param msg MAVLink message object
-     */
-    protected abstract void handleMessage(long msgTime, MAVLinkMessage msg);
+    }
+    
+    
+    /**
+     * Retrieves the latest record produced by this output for the given vehicle
+     * @param entityID ID of vehicle entity
+     * @return the latest record or null if none was received from this vehicle
+     */
+    public DataBlock getLatestRecord(String entityID)
+    {
+        MavlinkVehicle vehicle = parentSensor.getVehicle(entityID);
+        if (vehicle == null)
+            return null;
+        return vehicle.getLatestRecord(outputIndex);
+    }
+    
+    
+    protected void sendOutput(long msgTime, DataBlock dataBlock)
+    {
+        // update latest record and send event
+        latestRecord = dataBlock;
+        latestRecordTime = msgTime;
+        
+        // also keep latest record of each vehicle
+        if (vehicle != null)
+            vehicle.setLatestRecord(outputIndex, dataBlock);
+        
+        // in multi-vehicle mode, tag event with vehicle entity ID
+        if (parentSensor.isMultiVehicle())
+            eventHandler.publishEvent(new SensorDataEvent(msgTime, vehicle.entityID, this, dataBlock));
+        else
+            eventHandler.publishEvent(new SensorDataEvent(msgTime, this, dataBlock));
+    }
+    
+    
+    /*
+     * Changes to listeners are forwarded to driver so it can adjust the
+     * rate at which messages are requested from the vehicle
+     */
+    @Override
+    public void registerListener(IEventListener listener)
+    {
+        super.registerListener(listener);
+        parentSensor.updateMessageRates();
+    }
+    
+    
+    @Override
+    public void unregisterListener(IEventListener listener)
+    {
+        super.unregisterListener(listener);
+        parentSensor.updateMessageRates();
+    }
+    
+    
+    protected boolean hasListeners()
+    {
+        return eventHandler.getNumListeners() > 0;
+    }
+    
+    
+    /**
+     * Gets the sampling period needed by consumers of this output. Messages
+     * are requested from the vehicle at this period while the output has
+     * listeners. Outputs can override this to lower the rate of slowly
+     * changing data.
+     * @return sampling period in seconds
+     */
+    protected double getRequiredSamplingPeriod()
+    {
+        return 1.0 / parentSensor.getConfiguration().messageRate;
+    }
+    
+    
+    /**
+     * Gets the priority of messages consumed by this output. When the radio
+     * link is saturated, low priority messages are throttled first and high
+     * priority messages last.
+     * @return message priority
+     */
+    protected Priority getPriority()
+    {
+        return Priority.NORMAL;
+    }
+    
+    
+    protected void updateSamplingPeriod(long msgTime)
+    {
+        updateSamplingPeriod(vehicle, msgTime);
+    }
+    
+    
+    /*
+     * Period is measured between records of the same vehicle so it isn't
+     * shortened by records of other vehicles in multi-vehicle mode
+     */
+    protected void updateSamplingPeriod(MavlinkVehicle vehicle, long msgTime)
+    {
+        int sysid = (vehicle != null) ? (vehicle.sysid & 0xFF) : 0;
+        long lastMsgTime = lastMsgTimes[sysid];
+        if (lastMsgTime != Long.MIN_VALUE)
+            samplingPeriod = (msgTime - lastMsgTime) / 1000.;
+        
+        lastMsgTimes[sysid] = msgTime;
+    }
+    
+    
+    protected final DataBlock getNewDataBlock()
+    {
+        if (latestRecord == null)
+            return dataStruct.createDataBlock();
+        else
+            return latestRecord.renew();
+    }
+    
+    
+    /**
+     * Method to be implemented by concrete outputs to declare which MAVLink
+     * messages they consume. The driver only dispatches packets with these IDs
+     * to this output.
+     * @return array of MAVLink message IDs
+     */
+    protected abstract int[] getMessageIds();
+    
+    
+    /**
+     * Method to be implemented by concrete outputs to handle appropriate MAVLink messages.<br/>
+     * The packet is recycled after this call so implementations should decode the fields
+     * they need using a reusable view (see {@link com.MAVLink.Messages.MAVLinkView}).
+     * @param msgTime system time at which message was received
+     * @param pkt MAVLink packet
+     */
+    protected abstract void handleMessage(long msgTime, MAVLinkPacket pkt);
+    
+    
+    /*
+     * Called by driver to handle a message from the given vehicle
+     */
+    protected void handleMessage(long msgTime, MavlinkVehicle vehicle, MAVLinkPacket pkt)
+    {
+        this.vehicle = vehicle;
+        handleMessage(msgTime, pkt);
+    }
     
 
 }
@@ -0,0 +1,541 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.common.msg_param_request_list;
+import com.MAVLink.common.msg_param_request_read;
+import com.MAVLink.common.msg_param_value;
+
+
+/**
+ * <p>
+ * Keeps a copy of the parameter table of each vehicle so that parameters
+ * are only written when their value actually needs to change.<br/>
+ * The whole table is fetched with PARAM_REQUEST_LIST when a vehicle is set
+ * up, and indices that were lost on the link are re-requested individually
+ * with PARAM_REQUEST_READ. If a cache folder is configured, the table is
+ * saved to disk in the usual NAME,VALUE format so that changed parameters
+ * can be written right away on the next connection, before the table is
+ * refreshed from the vehicle.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkParamManager
+{
+    static final String CACHE_FILE_EXT = ".param";
+    static final int MAX_READ_REQUESTS = 32; // max number of indices re-requested at once
+    static final int NO_INDEX = 65535; // index of PARAM_VALUE sent in response to a read by name
+
+    final MavlinkDriver driver;
+    final CopyOnWriteArrayList<MavlinkVehicle> downloads = new CopyOnWriteArrayList<MavlinkVehicle>();
+    ScheduledExecutorService timer;
+    long timeout;
+    int maxRetries;
+
+
+    /*
+     * Parameter table of a vehicle, and state of its download
+     */
+    static class ParamTable
+    {
+        final Map<String, Float> values = new LinkedHashMap<String, Float>();
+        final Map<String, Float> desiredValues = new LinkedHashMap<String, Float>();
+        File cacheFile;
+        boolean dirty;
+
+        // download state
+        final Map<String, Float> downloadedValues = new LinkedHashMap<String, Float>();
+        int paramCount = -1;
+        BitSet received = new BitSet();
+        long lastReceiveTime;
+        int lastNumReceived;
+        int numRetries;
+        boolean complete;
+    }
+
+
+    public MavlinkParamManager(MavlinkDriver driver)
+    {
+        this.driver = driver;
+    }
+
+
+    public synchronized void start()
+    {
+        this.timeout = Math.max(1, driver.getConfiguration().commandTimeout);
+        this.maxRetries = Math.max(0, driver.getConfiguration().commandRetries);
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MAVLink Param Download");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                for (MavlinkVehicle vehicle: downloads)
+                    checkDownload(vehicle);
+            }
+        }, timeout, timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Makes sure the given parameters have the desired values on the vehicle.<br/>
+     * If a cached table is available, changed parameters are written right
+     * away. The table is then fetched from the vehicle and the remaining
+     * differences are written once the download is complete.
+     * @param vehicle target vehicle
+     * @param params map of parameter names to desired values
+     */
+    public void syncParams(MavlinkVehicle vehicle, Map<String, Float> params)
+    {
+        ParamTable table = getParamTable(vehicle);
+
+        synchronized (table)
+        {
+            table.desiredValues.putAll(params);
+
+            // use cached values until we get fresh ones from vehicle
+            if (table.values.isEmpty() && table.cacheFile != null && table.cacheFile.exists())
+            {
+                try
+                {
+                    loadCache(table);
+                    driver.getLogger().info("Loaded {} parameters from cache {}", table.values.size(), table.cacheFile);
+                    writeChangedParams(vehicle, table, false);
+                }
+                catch (IOException e)
+                {
+                    driver.getLogger().warn("Cannot read parameter cache " + table.cacheFile, e);
+                    table.values.clear();
+                }
+            }
+
+            startDownload(vehicle, table);
+        }
+    }
+
+
+    /**
+     * Changes the desired value of the given parameters without downloading
+     * the parameter table again.<br/>
+     * Parameters that differ from the last known values are written right
+     * away and this method doesn't wait for the vehicle to acknowledge them.
+     * If the table is still being downloaded, they are written when the
+     * download completes.
+     * @param vehicle target vehicle
+     * @param params map of parameter names to desired values
+     */
+    public void writeParams(MavlinkVehicle vehicle, Map<String, Float> params)
+    {
+        ParamTable table = getParamTable(vehicle);
+
+        synchronized (table)
+        {
+            table.desiredValues.putAll(params);
+            if (downloads.contains(vehicle) && table.values.isEmpty())
+                return;
+
+            int numWritten = 0;
+            for (Entry<String, Float> param: params.entrySet())
+            {
+                Float currentValue = table.values.get(param.getKey());
+                if (currentValue == null && table.complete)
+                    continue;
+
+                if (currentValue == null || currentValue.floatValue() != param.getValue())
+                {
+                    driver.setParam(vehicle, param.getKey(), param.getValue());
+                    numWritten++;
+                }
+            }
+
+            driver.getLogger().debug("{} parameters written to vehicle {}", numWritten, vehicle.sysid);
+        }
+    }
+
+
+    /**
+     * Gets the last known value of a vehicle parameter
+     * @param vehicle vehicle to get the parameter from
+     * @param name parameter name
+     * @return parameter value or null if unknown
+     */
+    public Float getParamValue(MavlinkVehicle vehicle, String name)
+    {
+        ParamTable table = vehicle.paramTable;
+        if (table == null)
+            return null;
+
+        synchronized (table)
+        {
+            return table.values.get(name);
+        }
+    }
+
+
+    /**
+     * @param vehicle vehicle to check
+     * @return true if the full parameter table has been received from the vehicle
+     */
+    public boolean isDownloadComplete(MavlinkVehicle vehicle)
+    {
+        ParamTable table = vehicle.paramTable;
+        if (table == null)
+            return false;
+
+        synchronized (table)
+        {
+            return table.complete;
+        }
+    }
+
+
+    private ParamTable getParamTable(MavlinkVehicle vehicle)
+    {
+        synchronized (vehicle)
+        {
+            if (vehicle.paramTable == null)
+            {
+                ParamTable table = new ParamTable();
+                String cacheDir = driver.getConfiguration().paramCacheDir;
+                if (cacheDir != null)
+                {
+                    String fileName = driver.getConfiguration().vehicleID;
+                    if (vehicle.entityID != null)
+                        fileName += "-" + vehicle.entityID;
+                    table.cacheFile = new File(cacheDir, fileName + CACHE_FILE_EXT);
+                }
+                vehicle.paramTable = table;
+            }
+
+            return vehicle.paramTable;
+        }
+    }
+
+
+    private void startDownload(MavlinkVehicle vehicle, ParamTable table)
+    {
+        table.paramCount = -1;
+        table.downloadedValues.clear();
+        table.received.clear();
+        table.lastNumReceived = 0;
+        table.numRetries = 0;
+        table.complete = false;
+        table.lastReceiveTime = System.currentTimeMillis();
+
+        if (!downloads.contains(vehicle))
+            downloads.add(vehicle);
+
+        driver.getLogger().info("Requesting parameter list from vehicle {}", vehicle.sysid);
+        requestList(vehicle);
+    }
+
+
+    /**
+     * Updates the table with a parameter value received from the vehicle
+     * @param vehicle vehicle that sent the message
+     * @param msg PARAM_VALUE message
+     */
+    public void handleParamValue(MavlinkVehicle vehicle, msg_param_value msg)
+    {
+        ParamTable table = getParamTable(vehicle);
+
+        synchronized (table)
+        {
+            Float oldValue = table.values.put(msg.getParam_Id(), msg.param_value);
+            if (oldValue == null || oldValue != msg.param_value)
+                table.dirty = true;
+
+            if (table.complete || msg.param_index < 0 || msg.param_index == NO_INDEX)
+                return;
+
+            if (table.paramCount < 0)
+                table.paramCount = msg.param_count;
+            table.downloadedValues.put(msg.getParam_Id(), msg.param_value);
+            table.received.set(msg.param_index);
+            table.lastReceiveTime = System.currentTimeMillis();
+
+            if (table.received.cardinality() >= table.paramCount)
+                completeDownload(vehicle, table);
+        }
+    }
+
+
+    /*
+     * Called regularly to re-request parameters that were not received
+     */
+    private void checkDownload(MavlinkVehicle vehicle)
+    {
+        ParamTable table = vehicle.paramTable;
+
+        synchronized (table)
+        {
+            if (table.complete)
+            {
+                downloads.remove(vehicle);
+                return;
+            }
+
+            // wait while we are still receiving parameters
+            if (System.currentTimeMillis() - table.lastReceiveTime < timeout)
+                return;
+
+            // count retries that didn't bring anything new
+            int numReceived = table.received.cardinality();
+            if (numReceived == table.lastNumReceived)
+                table.numRetries++;
+            else
+                table.numRetries = 0;
+            table.lastNumReceived = numReceived;
+
+            if (table.numRetries > maxRetries)
+            {
+                driver.getLogger().warn("Parameter download from vehicle {} incomplete: {}/{} received",
+                        vehicle.sysid, numReceived, table.paramCount);
+                downloads.remove(vehicle);
+                writeChangedParams(vehicle, table, false);
+                return;
+            }
+
+            // request whole list again if we received nothing at all
+            // otherwise only request missing indices
+            if (table.paramCount < 0)
+                requestList(vehicle);
+            else
+                requestMissing(vehicle, table);
+
+            table.lastReceiveTime = System.currentTimeMillis();
+        }
+    }
+
+
+    private void completeDownload(MavlinkVehicle vehicle, ParamTable table)
+    {
+        // replace cached values by the ones actually found on the vehicle
+        table.values.clear();
+        table.values.putAll(table.downloadedValues);
+        table.downloadedValues.clear();
+        table.complete = true;
+        downloads.remove(vehicle);
+        driver.getLogger().info("Received all {} parameters from vehicle {}", table.paramCount, vehicle.sysid);
+
+        writeChangedParams(vehicle, table, true);
+        saveCache(table);
+    }
+
+
+    /*
+     * Write desired values that differ from current ones
+     * If the table is complete, parameters unknown to the vehicle are skipped
+     */
+    private void writeChangedParams(MavlinkVehicle vehicle, ParamTable table, boolean tableComplete)
+    {
+        int numWritten = 0;
+
+        for (Entry<String, Float> param: table.desiredValues.entrySet())
+        {
+            String name = param.getKey();
+            float desiredValue = param.getValue();
+            Float currentValue = table.values.get(name);
+
+            if (currentValue == null && tableComplete)
+            {
+                driver.getLogger().debug("Parameter {} not supported by vehicle {}", name, vehicle.sysid);
+                continue;
+            }
+
+            if (currentValue == null || currentValue != desiredValue)
+            {
+                driver.setParam(vehicle, name, desiredValue);
+                numWritten++;
+            }
+        }
+
+        driver.getLogger().info("{} parameters out of {} written to vehicle {}", numWritten, table.desiredValues.size(), vehicle.sysid);
+    }
+
+
+    private void requestList(MavlinkVehicle vehicle)
+    {
+        msg_param_request_list req = new msg_param_request_list();
+        req.target_system = (short)vehicle.sysid;
+        req.target_component = (short)vehicle.compid;
+        send(req.pack());
+    }
+
+
+    private void requestMissing(MavlinkVehicle vehicle, ParamTable table)
+    {
+        int numRequests = 0;
+        int index = table.received.nextClearBit(0);
+        while (index < table.paramCount && numRequests < MAX_READ_REQUESTS)
+        {
+            msg_param_request_read req = new msg_param_request_read();
+            req.target_system = (short)vehicle.sysid;
+            req.target_component = (short)vehicle.compid;
+            req.param_index = (short)index;
+            send(req.pack());
+
+            numRequests++;
+            index = table.received.nextClearBit(index + 1);
+        }
+
+        driver.getLogger().debug("Re-requested {} missing parameters from vehicle {}", numRequests, vehicle.sysid);
+    }
+
+
+    private void send(MAVLinkPacket pkt)
+    {
+        try
+        {
+            driver.sendCommand(pkt);
+        }
+        catch (IOException e)
+        {
+            driver.getLogger().warn("Cannot send parameter request", e);
+        }
+    }
+
+
+    /*
+     * Read cache file in NAME,VALUE format
+     */
+    private void loadCache(ParamTable table) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(table.cacheFile));
+
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                int sep = line.indexOf(',');
+                if (sep < 0)
+                    throw new IOException("Invalid line in parameter file: " + line);
+
+                String name = line.substring(0, sep).trim();
+                float value = Float.parseFloat(line.substring(sep + 1).trim());
+                table.values.put(name, value);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid value in parameter file", e);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    private void saveCache(ParamTable table)
+    {
+        if (table.cacheFile == null || !table.dirty)
+            return;
+
+        try
+        {
+            // write to temp file first so we never leave a partial cache
+            File tmpFile = new File(table.cacheFile.getPath() + ".tmp");
+            table.cacheFile.getParentFile().mkdirs();
+            PrintWriter writer = new PrintWriter(new FileWriter(tmpFile));
+
+            try
+            {
+                writer.println("# MAVLink parameters of vehicle " + driver.getConfiguration().vehicleID);
+                for (Entry<String, Float> param: table.values.entrySet())
+                    writer.println(param.getKey() + "," + param.getValue());
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            if (writer.checkError())
+                throw new IOException("Error while writing " + tmpFile);
+
+            table.cacheFile.delete();
+            if (!tmpFile.renameTo(table.cacheFile))
+                throw new IOException("Cannot rename " + tmpFile);
+
+            table.dirty = false;
+        }
+        catch (IOException e)
+        {
+            driver.getLogger().warn("Cannot save parameter cache " + table.cacheFile, e);
+        }
+    }
+
+
+    /**
+     * Saves the parameter table of the given vehicle to the cache if it has changed
+     * @param vehicle vehicle whose parameter table should be saved
+     */
+    public void saveCache(MavlinkVehicle vehicle)
+    {
+        ParamTable table = vehicle.paramTable;
+        if (table == null)
+            return;
+
+        synchronized (table)
+        {
+            saveCache(table);
+        }
+    }
+
+
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+
+        downloads.clear();
+    }
+}
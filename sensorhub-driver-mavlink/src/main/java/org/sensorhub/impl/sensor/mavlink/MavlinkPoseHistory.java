@@ -0,0 +1,217 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+
+/**
+ * <p>
+ * Short history of the position, attitude and gimbal orientation of a
+ * vehicle, used to compute the pose at the time of a video frame.<br/>
+ * Each stream is kept in a fixed size ring of primitive arrays sorted by
+ * time, so adding samples and interpolating never allocate. The pose at a
+ * given time is linearly interpolated between the two samples surrounding
+ * it (taking the shortest path for angles), or set to the closest sample
+ * if the time is outside of the history.
+ * </p><p>
+ * Samples are added by the driver reader thread while poses are requested
+ * by the threads delivering video frames, so all methods are synchronized.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkPoseHistory
+{
+    static final int HISTORY_SIZE = 128; // samples per stream, must be a power of 2
+    static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    static final int NUM_VALUES = 3;
+    static final double RESET_THRESHOLD = 1.0; // assume clock was reset if time goes back more than that
+
+    /**
+     * Number of values in a pose: lat, lon, alt, roll, pitch, yaw,
+     * gimbal roll, gimbal elevation and gimbal azimuth
+     */
+    public static final int POSE_SIZE = 3 * NUM_VALUES;
+
+    final SampleRing position = new SampleRing(false);
+    final SampleRing attitude = new SampleRing(true);
+    final SampleRing gimbal = new SampleRing(true);
+
+
+    /*
+     * Ring of samples with 3 values each, ordered by time
+     */
+    static class SampleRing
+    {
+        final double[] times = new double[HISTORY_SIZE];
+        final double[] values = new double[HISTORY_SIZE * NUM_VALUES];
+        final boolean angles;
+        int head; // index of next sample
+        int count;
+
+        SampleRing(boolean angles)
+        {
+            this.angles = angles;
+        }
+
+        void add(double time, double v0, double v1, double v2)
+        {
+            if (count > 0)
+            {
+                double newest = times[(head - 1) & HISTORY_MASK];
+                if (newest - time > RESET_THRESHOLD)
+                    count = 0;
+                else if (time <= newest)
+                    return; // late sample
+            }
+
+            times[head] = time;
+            int i = head * NUM_VALUES;
+            values[i] = v0;
+            values[i+1] = v1;
+            values[i+2] = v2;
+            head = (head + 1) & HISTORY_MASK;
+            if (count < HISTORY_SIZE)
+                count++;
+        }
+
+        /*
+         * Write interpolated values to pose array at given offset
+         * Returns the time distance to the closest sample used or NaN if empty
+         */
+        double interpolate(double time, double[] pose, int offset)
+        {
+            if (count == 0)
+            {
+                for (int k = 0; k < NUM_VALUES; k++)
+                    pose[offset+k] = Double.NaN;
+                return Double.NaN;
+            }
+
+            // binary search first sample not older than requested time
+            int first = head - count;
+            int lo = 0, hi = count;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (times[(first + mid) & HISTORY_MASK] < time)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            // hold closest sample if outside of history
+            if (lo == 0 || lo == count)
+            {
+                int i = (first + (lo == 0 ? 0 : count-1)) & HISTORY_MASK;
+                System.arraycopy(values, i * NUM_VALUES, pose, offset, NUM_VALUES);
+                return Math.abs(time - times[i]);
+            }
+
+            int i0 = (first + lo - 1) & HISTORY_MASK;
+            int i1 = (first + lo) & HISTORY_MASK;
+            double t0 = times[i0];
+            double t1 = times[i1];
+            double a = (time - t0) / (t1 - t0);
+            for (int k = 0; k < NUM_VALUES; k++)
+            {
+                double v0 = values[i0 * NUM_VALUES + k];
+                double dv = values[i1 * NUM_VALUES + k] - v0;
+                if (angles)
+                    dv = normalizeAngle(dv);
+                double v = v0 + a * dv;
+                pose[offset+k] = angles ? normalizeAngle(v) : v;
+            }
+
+            return Math.min(time - t0, t1 - time);
+        }
+    }
+
+
+    /**
+     * Adds a position sample
+     * @param time sample time in seconds since 01/01/1970 UTC
+     * @param lat latitude in degrees
+     * @param lon longitude in degrees
+     * @param alt altitude in meters
+     */
+    public synchronized void addPosition(double time, double lat, double lon, double alt)
+    {
+        position.add(time, lat, lon, alt);
+    }
+
+
+    /**
+     * Adds an attitude sample
+     * @param time sample time in seconds since 01/01/1970 UTC
+     * @param roll roll angle in radians
+     * @param pitch pitch angle in radians
+     * @param yaw yaw angle in radians
+     */
+    public synchronized void addAttitude(double time, double roll, double pitch, double yaw)
+    {
+        attitude.add(time, roll, pitch, yaw);
+    }
+
+
+    /**
+     * Adds a gimbal orientation sample (relative to vehicle body)
+     * @param time sample time in seconds since 01/01/1970 UTC
+     * @param roll joint roll angle in radians
+     * @param el joint elevation angle in radians
+     * @param az joint azimuth angle in radians
+     */
+    public synchronized void addGimbal(double time, double roll, double el, double az)
+    {
+        gimbal.add(time, roll, el, az);
+    }
+
+
+    /**
+     * Computes the pose of the vehicle and its gimbal at the given time
+     * @param time time in seconds since 01/01/1970 UTC
+     * @param pose array of size {@link #POSE_SIZE} receiving the pose values,
+     * set to NaN for streams with no samples
+     * @param ages array of size 3 receiving the time distance in seconds
+     * between the requested time and the closest position, attitude and
+     * gimbal samples, or NaN if no sample was received
+     */
+    public synchronized void getPose(double time, double[] pose, double[] ages)
+    {
+        ages[0] = position.interpolate(time, pose, 0);
+        ages[1] = attitude.interpolate(time, pose, NUM_VALUES);
+        ages[2] = gimbal.interpolate(time, pose, 2 * NUM_VALUES);
+    }
+
+
+    public synchronized void clear()
+    {
+        position.count = 0;
+        attitude.count = 0;
+        gimbal.count = 0;
+    }
+
+
+    /*
+     * Bring angle back to [-PI, PI]
+     */
+    static double normalizeAngle(double a)
+    {
+        if (a > Math.PI || a < -Math.PI)
+            a -= 2 * Math.PI * Math.floor((a + Math.PI) / (2 * Math.PI));
+        return a;
+    }
+}
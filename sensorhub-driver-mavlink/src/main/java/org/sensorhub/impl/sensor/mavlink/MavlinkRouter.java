@@ -0,0 +1,378 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.sensorhub.api.comm.CommProviderConfig;
+import org.sensorhub.api.comm.ICommProvider;
+import org.sensorhub.api.common.SensorHubException;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+
+
+/**
+ * <p>
+ * Routes MAVLink packets between the vehicle link and additional endpoints,
+ * such as ground control stations, so they can share the vehicle link with
+ * the driver without an external router.<br/>
+ * Frames are forwarded as received, without being decoded and re-encoded.
+ * They are copied once into a reusable buffer and then queued on the pooled
+ * buffers of each destination sender, so forwarding never allocates and
+ * never blocks the reader threads.
+ * </p><p>
+ * Routes are learned from the system ID of the packets received on each
+ * link. Packets targeting a known system are only sent to the links where
+ * this system was seen, and other packets are broadcast to all links except
+ * the one they came from. Only packets received on the vehicle link are
+ * handled by the driver outputs.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkRouter
+{
+    static final int VEHICLE_LINK = 0;
+    static final int MAX_ENDPOINTS = 64; // so routes fit in a long mask
+    static final int MAX_MSG_ID = 1024;
+    static final int READ_BUFFER_SIZE = 1024;
+
+    /*
+     * Offset of target_system field in the payload of targeted messages (msgid, offset)
+     * Fields are sent sorted by decreasing type size so offsets follow from the field
+     * definitions of the generated message classes (checked by the unit tests)
+     */
+    static final int[] TARGET_OFFSETS_INIT = {
+        4, 12,    // PING
+        5, 0,     // CHANGE_OPERATOR_CONTROL
+        11, 4,    // SET_MODE
+        20, 2,    // PARAM_REQUEST_READ
+        21, 0,    // PARAM_REQUEST_LIST
+        23, 4,    // PARAM_SET
+        37, 4,    // MISSION_REQUEST_PARTIAL_LIST
+        38, 4,    // MISSION_WRITE_PARTIAL_LIST
+        39, 32,   // MISSION_ITEM
+        40, 2,    // MISSION_REQUEST
+        41, 2,    // MISSION_SET_CURRENT
+        43, 0,    // MISSION_REQUEST_LIST
+        44, 2,    // MISSION_COUNT
+        45, 0,    // MISSION_CLEAR_ALL
+        47, 0,    // MISSION_ACK
+        48, 12,   // SET_GPS_GLOBAL_ORIGIN
+        50, 18,   // PARAM_MAP_RC
+        51, 2,    // MISSION_REQUEST_INT
+        54, 24,   // SAFETY_SET_ALLOWED_AREA
+        66, 2,    // REQUEST_DATA_STREAM
+        70, 16,   // RC_CHANNELS_OVERRIDE
+        73, 32,   // MISSION_ITEM_INT
+        75, 30,   // COMMAND_INT
+        76, 30,   // COMMAND_LONG
+        82, 36,   // SET_ATTITUDE_TARGET
+        84, 50,   // SET_POSITION_TARGET_LOCAL_NED
+        86, 50,   // SET_POSITION_TARGET_GLOBAL_INT
+        110, 1,   // FILE_TRANSFER_PROTOCOL
+        117, 4,   // LOG_REQUEST_LIST
+        119, 10,  // LOG_REQUEST_DATA
+        121, 0,   // LOG_ERASE
+        122, 0,   // LOG_REQUEST_END
+        123, 0,   // GPS_INJECT_DATA
+        139, 41,  // SET_ACTUATOR_CONTROL_TARGET
+        151, 6,   // SET_MAG_OFFSETS
+        154, 6,   // DIGICAM_CONFIGURE
+        155, 4,   // DIGICAM_CONTROL
+        156, 0,   // MOUNT_CONFIGURE
+        157, 12,  // MOUNT_CONTROL
+        158, 12,  // MOUNT_STATUS
+        160, 8,   // FENCE_POINT
+        161, 0,   // FENCE_FETCH_POINT
+        175, 14,  // RALLY_POINT
+        176, 0,   // RALLY_FETCH_POINT
+        179, 26,  // CAMERA_STATUS
+        180, 42,  // CAMERA_FEEDBACK
+        183, 0,   // AUTOPILOT_VERSION_REQUEST
+        186, 0,   // LED_CONTROL
+        200, 40,  // GIMBAL_REPORT
+        201, 12,  // GIMBAL_CONTROL
+        202, 0,   // GIMBAL_RESET
+        204, 0,   // GIMBAL_SET_HOME_OFFSETS
+        206, 26,  // GIMBAL_SET_FACTORY_PARAMETERS
+        208, 4,   // GIMBAL_ERASE_FIRMWARE_AND_CONFIG
+        209, 0,   // GIMBAL_PERFORM_FACTORY_TESTS
+        215, 0,   // GOPRO_POWER_ON
+        216, 0,   // GOPRO_POWER_OFF
+        217, 0,   // GOPRO_COMMAND
+        243, 52,  // SET_HOME_POSITION
+        248, 3    // V2_EXTENSION
+    };
+    static final int[] TARGET_OFFSETS = computeTargetOffsets();
+
+    final MavlinkDriver driver;
+    final Endpoint[] endpoints;
+    final AtomicLongArray routes = new AtomicLongArray(256); // sysid -> mask of endpoints
+    final byte[] vehicleFrame = new byte[Parser.MAX_FRAME_LEN]; // only used by driver reader thread
+    volatile boolean started;
+
+
+    /*
+     * Link to which packets are routed
+     */
+    static class Endpoint
+    {
+        final int index;
+        final String name;
+        final MavlinkSender sender;
+        ICommProvider<?> commProvider;
+        InputStream is;
+        Thread thread;
+
+        Endpoint(int index, String name, MavlinkSender sender)
+        {
+            this.index = index;
+            this.name = name;
+            this.sender = sender;
+        }
+    }
+
+
+    public MavlinkRouter(MavlinkDriver driver, List<CommProviderConfig<?>> endpointConfigs)
+    {
+        this.driver = driver;
+
+        int numEndpoints = Math.min(MAX_ENDPOINTS, endpointConfigs.size() + 1);
+        if (numEndpoints <= endpointConfigs.size())
+            driver.getLogger().warn("Only the first {} routing endpoints are used", MAX_ENDPOINTS - 1);
+
+        // first endpoint is always the vehicle link managed by the driver
+        this.endpoints = new Endpoint[numEndpoints];
+        endpoints[VEHICLE_LINK] = new Endpoint(VEHICLE_LINK, "vehicle link", driver.sender);
+        for (int i = 1; i < numEndpoints; i++)
+        {
+            CommProviderConfig<?> config = endpointConfigs.get(i-1);
+            String name = (config.name != null) ? config.name : ("endpoint " + i);
+            endpoints[i] = new Endpoint(i, name, new MavlinkSender(driver, false));
+        }
+    }
+
+
+    /**
+     * Connects to all endpoints and starts routing.<br/>
+     * If an endpoint cannot be connected, the endpoints already connected
+     * are disconnected before the exception is thrown.
+     * @throws SensorHubException if an endpoint cannot be connected
+     */
+    public synchronized void start() throws SensorHubException
+    {
+        started = true;
+
+        for (int i = 1; i < endpoints.length; i++)
+        {
+            final Endpoint endpoint = endpoints[i];
+            try
+            {
+                CommProviderConfig<?> config = driver.getConfiguration().routeEndpoints.get(i-1);
+                endpoint.commProvider = config.getProvider();
+                endpoint.commProvider.start();
+                endpoint.is = endpoint.commProvider.getInputStream();
+                endpoint.sender.start(endpoint.commProvider.getOutputStream());
+            }
+            catch (IOException e)
+            {
+                stop();
+                throw new SensorHubException("Cannot connect to routing endpoint " + endpoint.name, e);
+            }
+            catch (SensorHubException e)
+            {
+                stop();
+                throw e;
+            }
+
+            endpoint.thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    readEndpoint(endpoint);
+                }
+            }, "MAVLink Router " + endpoint.name);
+            endpoint.thread.start();
+            driver.getLogger().info("Routing MAVLink packets to {}", endpoint.name);
+        }
+    }
+
+
+    /*
+     * Read loop of secondary endpoints
+     */
+    private void readEndpoint(final Endpoint endpoint)
+    {
+        final Parser parser = new Parser();
+        final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        final byte[] frame = new byte[Parser.MAX_FRAME_LEN];
+
+        Parser.PacketHandler handler = new Parser.PacketHandler()
+        {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                route(endpoint, packet, parser, frame);
+            }
+        };
+
+        try
+        {
+            int nBytes;
+            while (started && (nBytes = endpoint.is.read(readBuffer)) >= 0)
+                parser.parse(readBuffer, 0, nBytes, handler);
+        }
+        catch (IOException e)
+        {
+            if (started)
+                driver.getLogger().error("Error while reading from routing endpoint " + endpoint.name, e);
+        }
+    }
+
+
+    /**
+     * Forwards a packet received on the vehicle link.<br/>
+     * Must be called by the driver reader thread while the packet is handled by the parser.
+     * @param packet packet received on the vehicle link
+     * @param parser parser of the vehicle link
+     */
+    public void routeFromVehicle(MAVLinkPacket packet, Parser parser)
+    {
+        route(endpoints[VEHICLE_LINK], packet, parser, vehicleFrame);
+    }
+
+
+    /*
+     * Learn route to the sender and forward frame to the links where
+     * its target was seen, or to all other links
+     */
+    private void route(Endpoint source, MAVLinkPacket packet, Parser parser, byte[] frame)
+    {
+        if (!started)
+            return;
+
+        // learn route to sending system
+        long sourceBit = 1L << source.index;
+        long mask;
+        while (((mask = routes.get(packet.sysid)) & sourceBit) == 0)
+        {
+            if (routes.compareAndSet(packet.sysid, mask, mask | sourceBit))
+                driver.getLogger().info("Learned route to system {} via {}", packet.sysid, source.name);
+        }
+
+        // select destinations
+        long destMask = -1L;
+        int target = getTargetSystem(packet);
+        if (target > 0)
+        {
+            long targetMask = routes.get(target);
+            if (targetMask != 0)
+                destMask = targetMask;
+        }
+        destMask &= ~sourceBit;
+        if (destMask == 0)
+            return;
+
+        // copy frame once and queue it on all destination links
+        int frameLen = parser.getCurrentFrame(frame, 0);
+        for (int i = 0; i < endpoints.length; i++)
+        {
+            if ((destMask & (1L << i)) == 0)
+                continue;
+
+            Endpoint dest = endpoints[i];
+            if (!dest.sender.sendFrame(frame, 0, frameLen))
+                driver.getLogger().trace("Frame dropped on {}", dest.name);
+        }
+    }
+
+
+    /**
+     * @param packet MAVLink packet
+     * @return target system ID of packet, 0 for broadcast, or -1 if the message has no target
+     */
+    public static int getTargetSystem(MAVLinkPacket packet)
+    {
+        if (packet.msgid >= MAX_MSG_ID)
+            return -1;
+
+        int offset = TARGET_OFFSETS[packet.msgid];
+        if (offset < 0)
+            return -1;
+
+        // trailing zeros may have been truncated in MAVLink 2 frames
+        if (offset >= packet.len)
+            return 0;
+        return packet.payload.payload.get(offset) & 0xFF;
+    }
+
+
+    /**
+     * @param msgId message ID
+     * @return offset of target_system field in the payload of this message,
+     * or -1 if the message has no target
+     */
+    public static int getTargetOffset(int msgId)
+    {
+        if (msgId < 0 || msgId >= MAX_MSG_ID)
+            return -1;
+        return TARGET_OFFSETS[msgId];
+    }
+
+
+    /*
+     * Expand table of target offsets so it can be indexed by message ID
+     */
+    private static int[] computeTargetOffsets()
+    {
+        int[] offsets = new int[MAX_MSG_ID];
+        Arrays.fill(offsets, -1);
+        for (int i = 0; i < TARGET_OFFSETS_INIT.length; i += 2)
+            offsets[TARGET_OFFSETS_INIT[i]] = TARGET_OFFSETS_INIT[i+1];
+        return offsets;
+    }
+
+
+    public synchronized void stop()
+    {
+        started = false;
+
+        for (int i = 1; i < endpoints.length; i++)
+        {
+            Endpoint endpoint = endpoints[i];
+            endpoint.sender.stop();
+
+            if (endpoint.is != null)
+            {
+                try { endpoint.is.close(); }
+                catch (IOException e) { }
+                endpoint.is = null;
+            }
+
+            if (endpoint.commProvider != null)
+            {
+                try { endpoint.commProvider.stop(); }
+                catch (SensorHubException e) { }
+                endpoint.commProvider = null;
+            }
+
+            endpoint.thread = null;
+        }
+    }
+}
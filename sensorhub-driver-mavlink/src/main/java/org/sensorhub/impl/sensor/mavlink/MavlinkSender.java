@@ -0,0 +1,623 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import com.MAVLink.MAVLinkEncoder;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_command_int;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_set_position_target_global_int;
+import com.MAVLink.common.msg_set_position_target_local_ned;
+import com.MAVLink.enums.MAV_CMD;
+
+
+/**
+ * <p>
+ * Non-blocking outbound queue for MAVLink packets.<br/>
+ * Messages are encoded by the caller thread into direct buffers taken from
+ * a pool, so that no object is allocated for each packet, and the encoded
+ * frames are queued and written by a dedicated thread, so that sending a
+ * command never blocks on the link. All frames available in the queue are
+ * written with a single gathering write when the link is a channel, or
+ * coalesced into a single write followed by a single flush otherwise.
+ * Sequence numbers are assigned when frames are written, so they are
+ * always consecutive on the link. Frames forwarded from other links are sent
+ * as is, with their original sequence numbers.
+ * </p><p>
+ * Frames are written in priority order. Safety commands (RTL, LAND, flight
+ * termination) are written first, whether they come from the driver or are
+ * forwarded from another link, then other commands and messages in the
+ * order they were queued, then motion setpoints. Other frames forwarded from
+ * other links (e.g. parameter or log downloads by a ground station) are only
+ * written when nothing else is waiting, so that commands are never stuck
+ * behind bulk traffic when the link is saturated. Forwarded frames are
+ * classified with the same rules as messages sent by the driver, by reading
+ * the message ID and command fields from the raw frame.
+ * </p><p>
+ * Motion setpoints (position and velocity targets, yaw, gimbal control and
+ * region of interest) are coalesced: while a setpoint is waiting to be
+ * written, a new setpoint of the same kind for the same vehicle replaces it,
+ * so the vehicle never acts on stale setpoints when they are issued faster
+ * than the link can carry them. Setpoints still waiting when a safety
+ * command is sent to the same vehicle are discarded.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkSender
+{
+    static final int QUEUE_SIZE = 1024;
+    static final int BATCH_SIZE = 4096;
+    static final int MAX_GATHER = 64;
+    static final int URGENT_QUEUE_SIZE = 64;
+
+    // payload offsets of fields used to classify forwarded frames
+    static final int COMMAND_OFFSET = 28; // same in COMMAND_LONG and COMMAND_INT
+    static final int COMMAND_TARGET_OFFSET = 30;
+    static final int SETPOINT_TARGET_OFFSET = 50; // same in both SET_POSITION_TARGET messages
+
+    final MavlinkDriver driver;
+    final boolean recordFrames;
+    OutputStream os;
+    GatheringByteChannel channel;
+    final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    final BlockingQueue<ByteBuffer> urgentQueue = new ArrayBlockingQueue<ByteBuffer>(URGENT_QUEUE_SIZE);
+    final BlockingQueue<ByteBuffer> forwardUrgentQueue = new ArrayBlockingQueue<ByteBuffer>(URGENT_QUEUE_SIZE);
+    final BlockingQueue<ByteBuffer> forwardCommandQueue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    final BlockingQueue<ByteBuffer> forwardQueue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    final MavlinkSetpointQueue setpoints = new MavlinkSetpointQueue(); // guarded by encoder
+    final MavlinkSetpointQueue forwardSetpoints = new MavlinkSetpointQueue(); // guarded by encoder
+    final Semaphore numQueued = new Semaphore(0); // total number of frames in all queues
+    int numDiscarded; // discarded setpoints whose permit was not consumed yet, guarded by encoder
+    final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    final MAVLinkEncoder encoder = new MAVLinkEncoder(false);
+    final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    final byte[] batch = new byte[BATCH_SIZE];
+    final byte[] frame = new byte[Parser.MAX_FRAME_LEN];
+    final AtomicLong numCoalesced = new AtomicLong();
+    final AtomicLong numDropped = new AtomicLong();
+    int seq; // only used by writer thread
+    boolean forwarded; // true if last polled frame was forwarded, only used by writer thread
+    Thread thread;
+    volatile boolean started;
+
+
+    public MavlinkSender(MavlinkDriver driver)
+    {
+        this(driver, true);
+    }
+
+
+    /**
+     * @param driver parent driver
+     * @param recordFrames true to record frames sent by this sender in the driver tlog
+     */
+    public MavlinkSender(MavlinkDriver driver, boolean recordFrames)
+    {
+        this.driver = driver;
+        this.recordFrames = recordFrames;
+    }
+
+
+    /**
+     * Starts writing to an output stream
+     * @param os stream to write to
+     */
+    public void start(OutputStream os)
+    {
+        this.os = os;
+        this.channel = null;
+        startThread();
+    }
+
+
+    /**
+     * Starts writing to a channel, so that all queued frames are sent
+     * with a single gathering write
+     * @param channel channel to write to
+     */
+    public void start(GatheringByteChannel channel)
+    {
+        this.os = null;
+        this.channel = channel;
+        startThread();
+    }
+
+
+    private void startThread()
+    {
+        encoder.setMavlink2(driver.getConfiguration().protocolVersion == MavlinkConfig.ProtocolVersion.MAVLINK2);
+        started = true;
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                while (started)
+                    writeNextBatch();
+            }
+        }, "MAVLink Sender");
+        thread.start();
+    }
+
+
+    /**
+     * Encodes and queues a packet for sending
+     * @param pkt packet to send (can be reused after this call)
+     * @return true if the packet was queued, false if the sender is stopped
+     * or the queue is full
+     */
+    public boolean send(MAVLinkPacket pkt)
+    {
+        if (!started)
+            return false;
+
+        synchronized (encoder)
+        {
+            ByteBuffer buf = getBuffer();
+            encoder.encode(pkt, buf);
+            buf.flip();
+            return enqueue(queue, buf);
+        }
+    }
+
+
+    /**
+     * Encodes and queues a message for sending, without allocating a packet.<br/>
+     * Safety commands are queued ahead of all other frames, and motion
+     * setpoints replace the previous setpoint of the same kind if it is
+     * still waiting to be written.
+     * @param msg message to send (can be reused after this call)
+     * @return true if the message was queued, false if the sender is stopped
+     * or the queue is full
+     */
+    public boolean send(MAVLinkMessage msg)
+    {
+        if (!started)
+            return false;
+
+        synchronized (encoder)
+        {
+            ByteBuffer buf = getBuffer();
+            encoder.encode(msg, buf);
+            buf.flip();
+
+            int kind = getSetpointKind(msg);
+            if (kind >= 0)
+                return enqueueSetpoint(setpoints, kind, getTargetSystem(msg), buf);
+
+            if (isSafetyCommand(msg))
+            {
+                discardSetpoints(((msg_command_long)msg).target_system);
+                return enqueue(urgentQueue, buf);
+            }
+
+            return enqueue(queue, buf);
+        }
+    }
+
+
+    /**
+     * @param msg message to send
+     * @return kind of setpoint as defined by {@link MavlinkSetpointQueue#getKind(int, int)},
+     * or -1 if the message is not a setpoint that can be coalesced
+     */
+    static int getSetpointKind(MAVLinkMessage msg)
+    {
+        if (msg instanceof msg_command_long)
+            return MavlinkSetpointQueue.getKind(msg.msgid, ((msg_command_long)msg).command);
+
+        if (msg instanceof msg_set_position_target_local_ned || msg instanceof msg_set_position_target_global_int)
+            return MavlinkSetpointQueue.getKind(msg.msgid, 0);
+
+        return MavlinkSetpointQueue.NOT_A_SETPOINT;
+    }
+
+
+    /*
+     * Get target system of a setpoint message
+     */
+    private static int getTargetSystem(MAVLinkMessage msg)
+    {
+        if (msg instanceof msg_set_position_target_local_ned)
+            return ((msg_set_position_target_local_ned)msg).target_system;
+        if (msg instanceof msg_set_position_target_global_int)
+            return ((msg_set_position_target_global_int)msg).target_system;
+        return ((msg_command_long)msg).target_system;
+    }
+
+
+    /**
+     * @param msg message to send
+     * @return true if the message is a safety command that must be sent
+     * before any other frame
+     */
+    static boolean isSafetyCommand(MAVLinkMessage msg)
+    {
+        if (!(msg instanceof msg_command_long))
+            return false;
+
+        return isSafetyCommand(((msg_command_long)msg).command);
+    }
+
+
+    private static boolean isSafetyCommand(int command)
+    {
+        switch (command)
+        {
+            case MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH:
+            case MAV_CMD.MAV_CMD_NAV_LAND:
+            case MAV_CMD.MAV_CMD_DO_FLIGHTTERMINATION:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Queues a frame for sending as is, for instance to forward a packet
+     * received on another link without decoding and re-encoding it.<br/>
+     * The frame is prioritized like a message sent with {@link #send(MAVLinkMessage)}
+     * but keeps its original sequence number.
+     * @param frame array containing the raw frame (can be reused after this call)
+     * @param off offset of frame in array
+     * @param len length of frame
+     * @return true if the frame was queued, false if the sender is stopped
+     * or the queue is full
+     */
+    public boolean sendFrame(byte[] frame, int off, int len)
+    {
+        if (!started)
+            return false;
+
+        synchronized (encoder)
+        {
+            ByteBuffer buf = getBuffer();
+            buf.put(frame, off, len);
+            buf.flip();
+
+            boolean v2 = ((frame[off] & 0xFF) == MAVLinkPacket.MAVLINK_STX_MAVLINK2);
+            int payloadLen = frame[off+1] & 0xFF;
+            int payloadOff = off + (v2 ? MAVLinkPacket.MAVLINK2_HEADER_LEN : MAVLinkPacket.MAVLINK1_HEADER_LEN);
+            int msgId = v2 ? (frame[off+7] & 0xFF) | (frame[off+8] & 0xFF) << 8 | (frame[off+9] & 0xFF) << 16 : frame[off+5] & 0xFF;
+
+            switch (msgId)
+            {
+                case msg_set_position_target_local_ned.MAVLINK_MSG_ID_SET_POSITION_TARGET_LOCAL_NED:
+                case msg_set_position_target_global_int.MAVLINK_MSG_ID_SET_POSITION_TARGET_GLOBAL_INT:
+                    int sysid = getPayloadByte(frame, payloadOff, payloadLen, SETPOINT_TARGET_OFFSET);
+                    return enqueueSetpoint(forwardSetpoints, MavlinkSetpointQueue.getKind(msgId, 0), sysid, buf);
+
+                case msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG:
+                case msg_command_int.MAVLINK_MSG_ID_COMMAND_INT:
+                    int command = getPayloadByte(frame, payloadOff, payloadLen, COMMAND_OFFSET) |
+                                  getPayloadByte(frame, payloadOff, payloadLen, COMMAND_OFFSET+1) << 8;
+                    int target = getPayloadByte(frame, payloadOff, payloadLen, COMMAND_TARGET_OFFSET);
+                    if (isSafetyCommand(command))
+                    {
+                        discardSetpoints(target);
+                        return enqueue(forwardUrgentQueue, buf);
+                    }
+                    int kind = MavlinkSetpointQueue.getKind(msgId, command);
+                    if (kind >= 0)
+                        return enqueueSetpoint(forwardSetpoints, kind, target, buf);
+                    return enqueue(forwardCommandQueue, buf);
+
+                default:
+                    return enqueue(forwardQueue, buf);
+            }
+        }
+    }
+
+
+    /*
+     * Read a byte from a raw payload
+     * Trailing zeros may have been truncated in MAVLink 2 frames
+     */
+    private static int getPayloadByte(byte[] frame, int payloadOff, int payloadLen, int index)
+    {
+        if (index >= payloadLen)
+            return 0;
+        return frame[payloadOff + index] & 0xFF;
+    }
+
+
+    /*
+     * Get an empty buffer from the pool, or allocate a new one if all
+     * pooled buffers are in the queue
+     */
+    private ByteBuffer getBuffer()
+    {
+        ByteBuffer buf = bufferPool.poll();
+        if (buf == null)
+            buf = ByteBuffer.allocateDirect(Parser.MAX_FRAME_LEN);
+        buf.clear();
+        return buf;
+    }
+
+
+    /*
+     * Queue an encoded frame, or drop it if the queue is full
+     */
+    private boolean enqueue(BlockingQueue<ByteBuffer> queue, ByteBuffer buf)
+    {
+        if (queue.offer(buf))
+        {
+            numQueued.release();
+            return true;
+        }
+
+        bufferPool.offer(buf);
+        numDropped.incrementAndGet();
+        return false;
+    }
+
+
+    /*
+     * Queue a setpoint, replacing the waiting setpoint of the same kind
+     * for the same system. The replaced setpoint keeps its place in the queue
+     */
+    private boolean enqueueSetpoint(MavlinkSetpointQueue setpoints, int kind, int sysid, ByteBuffer buf)
+    {
+        ByteBuffer oldBuf = setpoints.put(kind, sysid, buf);
+        if (oldBuf != null)
+        {
+            bufferPool.offer(oldBuf);
+            numCoalesced.incrementAndGet();
+        }
+        else
+            numQueued.release();
+
+        return true;
+    }
+
+
+    /*
+     * Discard setpoints waiting to be sent to the given system,
+     * including forwarded ones
+     * Their permits are left for the writer to consume, since it may
+     * already have taken some of them
+     */
+    private void discardSetpoints(int sysid)
+    {
+        int count = setpoints.discard(sysid, bufferPool) + forwardSetpoints.discard(sysid, bufferPool);
+        numDiscarded += count;
+        numCoalesced.addAndGet(count);
+    }
+
+
+    /*
+     * Take oldest waiting setpoint
+     */
+    private ByteBuffer pollSetpoint(MavlinkSetpointQueue setpoints)
+    {
+        synchronized (encoder)
+        {
+            return setpoints.poll();
+        }
+    }
+
+
+    /*
+     * Consume the permit of one discarded setpoint
+     * Return false if there is none, i.e. queues were cleared by stop
+     */
+    private boolean consumeDiscardedPermit()
+    {
+        synchronized (encoder)
+        {
+            if (numDiscarded == 0)
+                return false;
+
+            numDiscarded--;
+            return true;
+        }
+    }
+
+
+    /*
+     * Take the next frame to write in priority order
+     * Frames from the driver go first at each priority level
+     */
+    private ByteBuffer pollNext()
+    {
+        ByteBuffer buf;
+
+        // safety commands from all sources
+        forwarded = false;
+        if ((buf = urgentQueue.poll()) != null)
+            return buf;
+        forwarded = true;
+        if ((buf = forwardUrgentQueue.poll()) != null)
+            return buf;
+
+        // other driver frames
+        forwarded = false;
+        if ((buf = queue.poll()) != null)
+            return buf;
+        if ((buf = pollSetpoint(setpoints)) != null)
+            return buf;
+
+        // other forwarded frames, bulk traffic last
+        forwarded = true;
+        if ((buf = forwardCommandQueue.poll()) != null)
+            return buf;
+        if ((buf = pollSetpoint(forwardSetpoints)) != null)
+            return buf;
+        return forwardQueue.poll();
+    }
+
+
+    /*
+     * Wait for at least one frame, then write all queued frames at once,
+     * in priority order
+     */
+    private void writeNextBatch()
+    {
+        int numBuffers = 0;
+
+        try
+        {
+            numQueued.acquire();
+            long now = System.currentTimeMillis();
+            boolean logEnabled = driver.getLogger().isTraceEnabled();
+
+            do
+            {
+                // a permit is only released after its frame was queued
+                // so all queues can only be empty if the frame was a discarded
+                // setpoint or if they were cleared by stop
+                ByteBuffer buf = pollNext();
+                if (buf == null)
+                {
+                    if (consumeDiscardedPermit())
+                        continue;
+                    break;
+                }
+
+                // forwarded frames keep their original sequence number
+                if (!forwarded)
+                {
+                    MAVLinkEncoder.updateSequence(buf, seq);
+                    seq = (seq + 1) & 0xFF;
+                }
+
+                gather[numBuffers++] = buf;
+                recordFrame(now, buf);
+                if (logEnabled)
+                    driver.getLogger().trace("MAVLink frame sent: {} bytes", buf.remaining());
+            }
+            while (numBuffers < MAX_GATHER && numQueued.tryAcquire());
+
+            if (numBuffers == 0)
+                return;
+
+            if (channel != null)
+                writeToChannel(numBuffers);
+            else
+                writeToStream(numBuffers);
+        }
+        catch (InterruptedException e)
+        {
+            // stop was called
+        }
+        catch (IOException e)
+        {
+            if (started)
+                driver.getLogger().error("Error while sending MAVLink packets", e);
+        }
+        finally
+        {
+            for (int i = 0; i < numBuffers; i++)
+            {
+                bufferPool.offer(gather[i]);
+                gather[i] = null;
+            }
+        }
+    }
+
+
+    /*
+     * Write all frames with a single gathering write
+     */
+    private void writeToChannel(int numBuffers) throws IOException
+    {
+        ByteBuffer last = gather[numBuffers-1];
+        while (last.hasRemaining())
+            channel.write(gather, 0, numBuffers);
+    }
+
+
+    /*
+     * Copy frames to the batch buffer and write it with a single write
+     */
+    private void writeToStream(int numBuffers) throws IOException
+    {
+        int batchLen = 0;
+
+        for (int i = 0; i < numBuffers; i++)
+        {
+            ByteBuffer buf = gather[i];
+            int frameLen = buf.remaining();
+
+            // write previous frames if this one doesn't fit
+            if (batchLen + frameLen > batch.length)
+            {
+                os.write(batch, 0, batchLen);
+                batchLen = 0;
+            }
+
+            buf.get(batch, batchLen, frameLen);
+            batchLen += frameLen;
+        }
+
+        os.write(batch, 0, batchLen);
+        os.flush();
+    }
+
+
+    /*
+     * Copy frame to tlog, only if recording is enabled
+     */
+    private void recordFrame(long time, ByteBuffer buf)
+    {
+        if (!recordFrames || driver.tlogWriter == null)
+            return;
+
+        // absolute reads so buffer position is left untouched for the write
+        int pos = buf.position();
+        int frameLen = buf.remaining();
+        for (int i = 0; i < frameLen; i++)
+            frame[i] = buf.get(pos + i);
+        driver.recordFrame(time, frame, frameLen);
+    }
+
+
+    public void stop()
+    {
+        started = false;
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread = null;
+        }
+
+        synchronized (encoder)
+        {
+            urgentQueue.clear();
+            queue.clear();
+            setpoints.clear();
+            forwardUrgentQueue.clear();
+            forwardCommandQueue.clear();
+            forwardSetpoints.clear();
+            forwardQueue.clear();
+            numQueued.drainPermits();
+            numDiscarded = 0;
+        }
+    }
+}
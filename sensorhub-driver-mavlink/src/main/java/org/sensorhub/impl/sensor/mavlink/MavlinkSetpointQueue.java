@@ -0,0 +1,192 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import com.MAVLink.common.msg_command_int;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_set_position_target_global_int;
+import com.MAVLink.common.msg_set_position_target_local_ned;
+import com.MAVLink.enums.MAV_CMD;
+
+
+/**
+ * <p>
+ * Queue of encoded motion setpoints keeping only the latest setpoint of each
+ * kind for each target system.<br/>
+ * Setpoints are stored in preallocated slots indexed by kind and target system,
+ * and the order in which slots were filled is kept in a circular array of slot
+ * indices, so queuing, replacing and polling setpoints never allocates. A
+ * setpoint replacing one that is still waiting keeps its place in the queue.
+ * </p><p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkSetpointQueue
+{
+    static final int NOT_A_SETPOINT = -1;
+    static final int NUM_COMMAND_KINDS = 3;
+    static final int NUM_KINDS = 2 + 2 * NUM_COMMAND_KINDS;
+    static final int NUM_SYSTEMS = 256;
+
+    final ByteBuffer[] slots = new ByteBuffer[NUM_KINDS * NUM_SYSTEMS]; // kind/sysid -> frame
+    final int[] order = new int[NUM_KINDS * NUM_SYSTEMS]; // circular array of filled slots
+    int head;
+    int size;
+
+
+    /**
+     * @param msgId message ID
+     * @param command command ID, only used for COMMAND_LONG and COMMAND_INT messages
+     * @return kind of setpoint, or -1 if the message is not a setpoint that can be coalesced
+     */
+    public static int getKind(int msgId, int command)
+    {
+        switch (msgId)
+        {
+            case msg_set_position_target_local_ned.MAVLINK_MSG_ID_SET_POSITION_TARGET_LOCAL_NED:
+                return 0;
+
+            case msg_set_position_target_global_int.MAVLINK_MSG_ID_SET_POSITION_TARGET_GLOBAL_INT:
+                return 1;
+
+            case msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG:
+                int longKind = getCommandKind(command);
+                return (longKind < 0) ? NOT_A_SETPOINT : 2 + longKind;
+
+            case msg_command_int.MAVLINK_MSG_ID_COMMAND_INT:
+                int intKind = getCommandKind(command);
+                return (intKind < 0) ? NOT_A_SETPOINT : 2 + NUM_COMMAND_KINDS + intKind;
+
+            default:
+                return NOT_A_SETPOINT;
+        }
+    }
+
+
+    private static int getCommandKind(int command)
+    {
+        switch (command)
+        {
+            case MAV_CMD.MAV_CMD_CONDITION_YAW:
+                return 0;
+
+            case MAV_CMD.MAV_CMD_DO_MOUNT_CONTROL:
+                return 1;
+
+            case MAV_CMD.MAV_CMD_DO_SET_ROI:
+                return 2;
+
+            default:
+                return NOT_A_SETPOINT;
+        }
+    }
+
+
+    /**
+     * Queues a setpoint, replacing the waiting setpoint of the same kind for the same system
+     * @param kind kind of setpoint as returned by {@link #getKind(int, int)}
+     * @param sysid target system ID
+     * @param buf encoded frame
+     * @return the replaced frame, or null if no setpoint of this kind was waiting
+     */
+    public ByteBuffer put(int kind, int sysid, ByteBuffer buf)
+    {
+        int slot = kind * NUM_SYSTEMS + (sysid & 0xFF);
+        ByteBuffer oldBuf = slots[slot];
+        slots[slot] = buf;
+
+        if (oldBuf == null)
+        {
+            order[(head + size) % order.length] = slot;
+            size++;
+        }
+
+        return oldBuf;
+    }
+
+
+    /**
+     * Takes the oldest waiting setpoint
+     * @return encoded frame or null if the queue is empty
+     */
+    public ByteBuffer poll()
+    {
+        if (size == 0)
+            return null;
+
+        int slot = order[head];
+        head = (head + 1) % order.length;
+        size--;
+
+        ByteBuffer buf = slots[slot];
+        slots[slot] = null;
+        return buf;
+    }
+
+
+    /**
+     * Removes all setpoints waiting to be sent to the given system
+     * @param sysid target system ID
+     * @param freeBuffers queue to which frames of removed setpoints are returned
+     * @return number of setpoints removed
+     */
+    public int discard(int sysid, Queue<ByteBuffer> freeBuffers)
+    {
+        int numRemoved = 0;
+        int numKept = 0;
+
+        // compact order array, keeping setpoints of other systems in place
+        for (int i = 0; i < size; i++)
+        {
+            int slot = order[(head + i) % order.length];
+            if (slot % NUM_SYSTEMS == (sysid & 0xFF))
+            {
+                freeBuffers.offer(slots[slot]);
+                slots[slot] = null;
+                numRemoved++;
+            }
+            else
+                order[(head + numKept++) % order.length] = slot;
+        }
+
+        size = numKept;
+        return numRemoved;
+    }
+
+
+    /**
+     * @return number of setpoints waiting
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Removes all setpoints
+     */
+    public void clear()
+    {
+        while (size > 0)
+            poll();
+        head = 0;
+    }
+}
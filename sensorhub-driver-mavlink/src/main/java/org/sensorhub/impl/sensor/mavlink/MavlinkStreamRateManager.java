@@ -0,0 +1,301 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import org.sensorhub.api.sensor.ISensorDataInterface;
+import org.sensorhub.impl.sensor.mavlink.MavlinkOutput.Priority;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.enums.MAV_CMD;
+
+
+/**
+ * <p>
+ * Requests MAVLink messages from vehicles at the rate needed by the outputs
+ * that consume them.<br/>
+ * Messages are requested (with MAV_CMD_SET_MESSAGE_INTERVAL) at the smallest
+ * sampling period required by the outputs that have listeners. Messages of
+ * outputs with no listener are kept at the configured idle rate so that their
+ * latest record remains available, or disabled if the idle rate is 0. Rates
+ * are updated as listeners come and go, and only intervals that changed are
+ * sent.
+ * </p><p>
+ * When the radio link is saturated, intervals are lengthened according to
+ * the priority of each message (see {@link MavlinkLinkThrottle}). Updates
+ * are coalesced so that only the latest rates are sent when they change
+ * faster than commands can be acknowledged.
+ * </p><p>
+ * If a vehicle rejects the command, the manager falls back to setting the
+ * legacy stream group parameters (SR1_*) of that vehicle. These are written
+ * in the background by the {@link MavlinkParamManager}.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkStreamRateManager
+{
+    static final long DISABLED = -1L;
+
+    final MavlinkDriver driver;
+    volatile Map<Integer, Long> requestedIntervals = Collections.emptyMap();
+    volatile long legacyInterval = Long.MAX_VALUE;
+    ExecutorService exec;
+
+
+    /*
+     * Intervals currently set on a vehicle, only accessed by executor thread
+     * except for the pending flag
+     */
+    static class StreamState
+    {
+        final AtomicBoolean updatePending = new AtomicBoolean();
+        final Map<Integer, Long> intervals = new HashMap<Integer, Long>();
+        boolean legacyMode;
+        float legacyRate = -1f;
+    }
+
+
+    public MavlinkStreamRateManager(MavlinkDriver driver)
+    {
+        this.driver = driver;
+    }
+
+
+    public synchronized void start()
+    {
+        computeIntervals();
+        exec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MAVLink Stream Rates");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Computes message intervals from the current listeners of all outputs
+     * and updates the rates of all known vehicles accordingly.<br/>
+     * This is called when a listener is registered or unregistered, and
+     * when the throttle level of the link changes.
+     */
+    public void updateRates()
+    {
+        computeIntervals();
+        for (MavlinkVehicle vehicle: driver.getAllVehicles())
+            updateRates(vehicle);
+    }
+
+
+    private void computeIntervals()
+    {
+        Map<Integer, Long> intervals = new HashMap<Integer, Long>();
+        Map<Integer, Priority> priorities = new HashMap<Integer, Priority>();
+        float idleRate = driver.getConfiguration().idleMessageRate;
+        for (ISensorDataInterface output: driver.getAllOutputs().values())
+        {
+            if (!(output instanceof MavlinkOutput))
+                continue;
+
+            // outputs with no listener only need the idle rate
+            MavlinkOutput mavOutput = (MavlinkOutput)output;
+            long interval;
+            if (mavOutput.hasListeners())
+                interval = (long)(mavOutput.getRequiredSamplingPeriod() * 1e6);
+            else if (idleRate > 0)
+                interval = (long)(1e6 / idleRate);
+            else
+                continue;
+
+            Priority priority = mavOutput.getPriority();
+            for (int msgId: mavOutput.getMessageIds())
+            {
+                Long current = intervals.get(msgId);
+                if (current == null || interval < current)
+                    intervals.put(msgId, interval);
+
+                // message gets the highest priority of all outputs consuming it
+                Priority currentPriority = priorities.get(msgId);
+                if (currentPriority == null || priority.compareTo(currentPriority) < 0)
+                    priorities.put(msgId, priority);
+            }
+        }
+
+        // stream groups are set at the highest rate of all messages
+        long minInterval = Long.MAX_VALUE;
+        for (long interval: intervals.values())
+            minInterval = Math.min(minInterval, interval);
+
+        // slow down messages if radio link is saturated
+        // stream groups carry messages of all priorities so they are
+        // throttled as a whole, as soon as the first level
+        MavlinkLinkThrottle throttle = driver.throttle;
+        if (throttle != null && throttle.getLevel() > 0)
+        {
+            for (Entry<Integer, Long> entry: intervals.entrySet())
+                entry.setValue(throttle.getThrottledInterval(entry.getValue(), priorities.get(entry.getKey())));
+            if (minInterval != Long.MAX_VALUE)
+                minInterval = throttle.getThrottledInterval(minInterval, Priority.LOW);
+        }
+
+        legacyInterval = minInterval;
+        requestedIntervals = intervals;
+    }
+
+
+    /**
+     * Updates the message rates of the given vehicle to match the current
+     * requests. This returns immediately and commands are sent in the
+     * background.<br/>
+     * Nothing is queued if an update of this vehicle is already pending,
+     * since it will use the latest requests when it runs.
+     * @param vehicle target vehicle
+     */
+    public synchronized void updateRates(final MavlinkVehicle vehicle)
+    {
+        if (exec == null)
+            return;
+
+        if (!vehicle.streamState.updatePending.compareAndSet(false, true))
+            return;
+
+        exec.execute(new Runnable() {
+            public void run()
+            {
+                vehicle.streamState.updatePending.set(false);
+                applyRates(vehicle);
+            }
+        });
+    }
+
+
+    /*
+     * Send interval commands for all messages whose rate changed
+     * Commands are sent one at a time because acks don't carry the message ID
+     * We stop early if requests changed since a new update is then queued
+     */
+    private void applyRates(MavlinkVehicle vehicle)
+    {
+        StreamState state = vehicle.streamState;
+        Map<Integer, Long> requested = requestedIntervals;
+
+        if (state.legacyMode)
+        {
+            setLegacyRates(vehicle, state);
+            return;
+        }
+
+        Set<Integer> msgIds = new HashSet<Integer>(requested.keySet());
+        msgIds.addAll(state.intervals.keySet());
+        for (int msgId: msgIds)
+        {
+            if (Thread.currentThread().isInterrupted() || requested != requestedIntervals)
+                return;
+
+            Long interval = requested.get(msgId);
+            if (interval == null)
+                interval = DISABLED;
+
+            // messages never requested are left to their stream group default
+            Long current = state.intervals.get(msgId);
+            if (interval.equals(current) || (current == null && interval == DISABLED))
+                continue;
+
+            msg_command_long cmd = new msg_command_long();
+            cmd.target_system = (short)vehicle.sysid;
+            cmd.target_component = (short)vehicle.compid;
+            cmd.command = MAV_CMD.MAV_CMD_SET_MESSAGE_INTERVAL;
+            cmd.param1 = msgId;
+            cmd.param2 = interval;
+            CommandStatus status = driver.sendCommand(cmd);
+            driver.commandTracker.waitForCompletion(status);
+
+            if (status.status == StatusCode.COMPLETED)
+            {
+                if (interval == DISABLED)
+                    state.intervals.remove(msgId);
+                else
+                    state.intervals.put(msgId, interval);
+                driver.getLogger().debug("Message {} interval set to {}us on vehicle {}", msgId, interval, vehicle.sysid);
+            }
+            else if (status.status == StatusCode.REJECTED)
+            {
+                driver.getLogger().warn("Vehicle {} doesn't support SET_MESSAGE_INTERVAL. Using stream group parameters", vehicle.sysid);
+                state.legacyMode = true;
+                setLegacyRates(vehicle, state);
+                return;
+            }
+            else
+            {
+                // will be retried on next update
+                driver.getLogger().warn("Could not set message {} interval on vehicle {}: {}", msgId, vehicle.sysid, status.message);
+            }
+        }
+    }
+
+
+    /*
+     * Enable stream groups at the highest requested rate if any message is requested
+     * This doesn't allow fine grained control but is supported by all versions of ArduPilot
+     * Parameters are written asynchronously so this doesn't hold the executor
+     */
+    private void setLegacyRates(MavlinkVehicle vehicle, StreamState state)
+    {
+        long minInterval = legacyInterval;
+        float rate = (minInterval == Long.MAX_VALUE) ? 0f : (float)Math.ceil(1e6 / Math.max(minInterval, 1));
+        if (rate == state.legacyRate)
+            return;
+
+        Map<String, Float> params = new HashMap<String, Float>();
+        params.put("SR1_POSITION", rate);
+        params.put("SR1_EXTRA1", rate);
+        params.put("SR1_EXTRA3", rate);
+        driver.paramManager.writeParams(vehicle, params);
+        state.legacyRate = rate;
+    }
+
+
+    /**
+     * @return map of message IDs to requested intervals in microseconds
+     */
+    public Map<Integer, Long> getRequestedIntervals()
+    {
+        return Collections.unmodifiableMap(requestedIntervals);
+    }
+
+
+    public synchronized void stop()
+    {
+        if (exec != null)
+        {
+            exec.shutdownNow();
+            exec = null;
+        }
+    }
+}
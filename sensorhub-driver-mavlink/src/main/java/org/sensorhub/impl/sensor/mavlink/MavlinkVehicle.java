@@ -0,0 +1,130 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.util.Map;
+import net.opengis.gml.v32.AbstractFeature;
+import net.opengis.swe.v20.DataBlock;
+import com.MAVLink.common.msg_log_entry;
+import com.MAVLink.common.msg_mission_item_int;
+
+
+/**
+ * <p>
+ * State of a single vehicle (i.e. MAVLink system) seen on the link.<br/>
+ * In multi-vehicle mode, the driver keeps one instance per system ID and
+ * each vehicle is exposed as a separate entity. In single vehicle mode, only
+ * one instance is used to keep track of the command target.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkVehicle
+{
+    final String entityID;
+    volatile int sysid;
+    volatile int compid = 1; // autopilot, until we receive its heartbeat
+    boolean autopilotFound;
+    AbstractFeature foi;
+    volatile long lastMsgTime;
+    volatile DataBlock[] latestRecords;
+    volatile MavlinkParamManager.ParamTable paramTable;
+    final MavlinkClock clock = new MavlinkClock();
+    final MavlinkStreamRateManager.StreamState streamState = new MavlinkStreamRateManager.StreamState();
+    volatile MavlinkMissionManager.MissionTransfer missionTransfer;
+    volatile msg_mission_item_int[] mission;
+    volatile MavlinkLogManager.LogTransfer logTransfer;
+    volatile Map<Integer, msg_log_entry> logEntries;
+    int systemStatus; // only used by reader thread
+    VehicleStateOutput.FusedState fusedState; // only used by reader thread
+    volatile MavlinkPoseHistory poseHistory; // written by reader thread, read by video threads
+
+
+    MavlinkVehicle(String entityID, int sysid)
+    {
+        this.entityID = entityID;
+        this.sysid = sysid;
+        this.latestRecords = new DataBlock[0];
+    }
+
+
+    /**
+     * @return ID of entity corresponding to this vehicle
+     */
+    public String getEntityID()
+    {
+        return entityID;
+    }
+
+
+    /**
+     * @return MAVLink system ID of the vehicle
+     */
+    public int getSystemID()
+    {
+        return sysid;
+    }
+
+
+    /**
+     * @return MAVLink component ID of the vehicle's autopilot
+     */
+    public int getComponentID()
+    {
+        return compid;
+    }
+
+
+    /**
+     * @return estimator of the offset between vehicle and local clocks
+     */
+    public MavlinkClock getClock()
+    {
+        return clock;
+    }
+
+
+    /**
+     * @return system time of last message received from this vehicle
+     */
+    public long getLastMessageTime()
+    {
+        return lastMsgTime;
+    }
+
+
+    protected DataBlock getLatestRecord(int outputIndex)
+    {
+        DataBlock[] records = latestRecords;
+        return (outputIndex < records.length) ? records[outputIndex] : null;
+    }
+
+
+    protected void setLatestRecord(int outputIndex, DataBlock rec)
+    {
+        // only called by reader thread
+        DataBlock[] records = latestRecords;
+        if (outputIndex >= records.length)
+        {
+            DataBlock[] newRecords = new DataBlock[outputIndex+1];
+            System.arraycopy(records, 0, newRecords, 0, records.length);
+            records = newRecords;
+        }
+
+        records[outputIndex] = rec;
+        latestRecords = records;
+    }
+}
@@ -0,0 +1,132 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import net.opengis.swe.v20.DataRecord;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.AbstractSensorOutput;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+import com.MAVLink.common.msg_mission_item_int;
+
+
+/**
+ * <p>
+ * Output publishing one record per mission item each time a mission is
+ * successfully uploaded to or downloaded from a vehicle.<br/>
+ * Items are published in sequence order, so a new mission starts with
+ * the record whose sequence number is 0.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MissionOutput extends AbstractSensorOutput<MavlinkDriver>
+{
+    DataRecord dataStruct;
+    DataEncoding dataEncoding;
+
+
+    public MissionOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "missionItems";
+    }
+
+
+    protected void init()
+    {
+        SWEHelper fac = new SWEHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(12);
+        dataStruct.setName(getName());
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+        dataStruct.addComponent("seq", fac.newCount(SWEHelper.getPropertyUri("MissionItemIndex"), "Item Index", "Sequence number of item in mission"));
+        dataStruct.addComponent("numItems", fac.newCount(SWEHelper.getPropertyUri("MissionItemCount"), "Item Count", "Total number of items in mission"));
+        dataStruct.addComponent("command", fac.newCount(SWEHelper.getPropertyUri("MissionCommand"), "Command", "MAV_CMD code of mission item"));
+        dataStruct.addComponent("frame", fac.newCount(SWEHelper.getPropertyUri("CoordinateFrame"), "Frame", "MAV_FRAME code of item coordinates"));
+        dataStruct.addComponent("param1", fac.newQuantity(SWEHelper.getPropertyUri("Param1"), "Param 1", null, null));
+        dataStruct.addComponent("param2", fac.newQuantity(SWEHelper.getPropertyUri("Param2"), "Param 2", null, null));
+        dataStruct.addComponent("param3", fac.newQuantity(SWEHelper.getPropertyUri("Param3"), "Param 3", null, null));
+        dataStruct.addComponent("param4", fac.newQuantity(SWEHelper.getPropertyUri("Param4"), "Param 4", null, null));
+        dataStruct.addComponent("x", fac.newCount(SWEHelper.getPropertyUri("Param5"), "X", "Latitude in degrees * 1e7 or local x in meters * 1e4"));
+        dataStruct.addComponent("y", fac.newCount(SWEHelper.getPropertyUri("Param6"), "Y", "Longitude in degrees * 1e7 or local y in meters * 1e4"));
+        dataStruct.addComponent("z", fac.newQuantity(SWEHelper.getPropertyUri("Param7"), "Z", "Altitude or local z", "m"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    protected void publishMission(MavlinkVehicle vehicle, msg_mission_item_int[] items)
+    {
+        double time = System.currentTimeMillis() / 1000.;
+
+        for (msg_mission_item_int item: items)
+        {
+            DataBlock dataBlock = (latestRecord == null) ? dataStruct.createDataBlock() : latestRecord.renew();
+            dataBlock.setDoubleValue(0, time);
+            dataBlock.setIntValue(1, item.seq);
+            dataBlock.setIntValue(2, items.length);
+            dataBlock.setIntValue(3, item.command);
+            dataBlock.setIntValue(4, item.frame);
+            dataBlock.setFloatValue(5, item.param1);
+            dataBlock.setFloatValue(6, item.param2);
+            dataBlock.setFloatValue(7, item.param3);
+            dataBlock.setFloatValue(8, item.param4);
+            dataBlock.setIntValue(9, item.x);
+            dataBlock.setIntValue(10, item.y);
+            dataBlock.setFloatValue(11, item.z);
+
+            latestRecord = dataBlock;
+            latestRecordTime = System.currentTimeMillis();
+            if (parentSensor.isMultiVehicle())
+                eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, vehicle.entityID, this, dataBlock));
+            else
+                eventHandler.publishEvent(new SensorDataEvent(latestRecordTime, this, dataBlock));
+        }
+    }
+
+
+    @Override
+    public double getAverageSamplingPeriod()
+    {
+        return Double.NaN;
+    }
+
+
+    @Override
+    public DataComponent getRecordDescription()
+    {
+        return dataStruct;
+    }
+
+
+    @Override
+    public DataEncoding getRecommendedEncoding()
+    {
+        return dataEncoding;
+    }
+}
@@ -0,0 +1,302 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import com.MAVLink.MAVLinkPacket;
+
+
+/**
+ * <p>
+ * Reader for MAVLink telemetry logs (tlog).<br/>
+ * The file is memory-mapped and scanned once to build a sparse time index
+ * so that replay can start at any time in the log without reading it from
+ * the beginning. Frames are replayed through an input stream with the time
+ * stamps removed, either paced according to the recorded time stamps (with
+ * an optional speed factor) or as fast as possible.
+ * </p>
+ *
+ * @see TLogWriter
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class TLogReader implements Closeable
+{
+    public static final int TIMESTAMP_LEN = 8;
+    static final long INDEX_PERIOD = 1000000L; // 1 index entry per second of log
+    static final long MAX_WAIT = 100000000L; // check for close every 100ms
+
+    RandomAccessFile file;
+    MappedByteBuffer buf;
+    int dataLength;
+    int numRecords;
+    long startTime;
+    long endTime;
+    long[] indexTimes = new long[256];
+    int[] indexPositions = new int[256];
+    int indexSize;
+
+
+    public TLogReader(File file) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        FileChannel channel = this.file.getChannel();
+        if (channel.size() > Integer.MAX_VALUE)
+        {
+            this.file.close();
+            throw new IOException("TLog files larger than 2GB are not supported");
+        }
+
+        this.buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        buildIndex();
+    }
+
+
+    /*
+     * Scan all records to compute time range and build time index
+     * The log is truncated at the first incomplete or invalid record
+     */
+    private void buildIndex()
+    {
+        int limit = buf.limit();
+        int pos = 0;
+        long nextIndexTime = Long.MIN_VALUE;
+
+        while (pos + TIMESTAMP_LEN < limit)
+        {
+            int frameLen = getFrameLength(buf, pos + TIMESTAMP_LEN, limit);
+            if (frameLen < 0 || pos + TIMESTAMP_LEN + frameLen > limit)
+                break;
+
+            long time = buf.getLong(pos);
+            if (numRecords == 0)
+                startTime = time;
+            endTime = Math.max(endTime, time);
+
+            if (time >= nextIndexTime)
+            {
+                if (indexSize == indexTimes.length)
+                {
+                    indexTimes = Arrays.copyOf(indexTimes, indexSize*2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize*2);
+                }
+
+                indexTimes[indexSize] = time;
+                indexPositions[indexSize] = pos;
+                indexSize++;
+                nextIndexTime = time + INDEX_PERIOD;
+            }
+
+            pos += TIMESTAMP_LEN + frameLen;
+            numRecords++;
+        }
+
+        dataLength = pos;
+    }
+
+
+    static int getFrameLength(ByteBuffer buf, int off, int limit)
+    {
+        if (off + 3 > limit)
+            return -1;
+
+        int stx = buf.get(off) & 0xFF;
+        int payloadLen = buf.get(off + 1) & 0xFF;
+        if (stx == MAVLinkPacket.MAVLINK_STX)
+            return 6 + payloadLen + 2;
+        else if (stx == MAVLinkPacket.MAVLINK_STX_MAVLINK2)
+            return MAVLinkPacket.MAVLINK2_HEADER_LEN + payloadLen + 2 + (((buf.get(off + 2) & MAVLinkPacket.MAVLINK_IFLAG_SIGNED) != 0) ? 13 : 0);
+        else
+            return -1;
+    }
+
+
+    /**
+     * @return the number of valid records in the log
+     */
+    public int getNumRecords()
+    {
+        return numRecords;
+    }
+
+
+    /**
+     * @return time stamp of first record in microseconds since 01/01/1970
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+
+    /**
+     * @return latest time stamp found in the log in microseconds since 01/01/1970
+     */
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+
+    /**
+     * Finds the position of the first record with a time stamp greater or
+     * equal to the given time
+     * @param timeUsec time in microseconds since 01/01/1970
+     * @return the position of the record in the file
+     */
+    public int seek(long timeUsec)
+    {
+        // find closest index entry before requested time
+        int i = Arrays.binarySearch(indexTimes, 0, indexSize, timeUsec);
+        if (i < 0)
+            i = Math.max(0, -i - 2);
+        int pos = (indexSize > 0) ? indexPositions[i] : 0;
+
+        // then scan records from there
+        while (pos < dataLength && buf.getLong(pos) < timeUsec)
+            pos += TIMESTAMP_LEN + getFrameLength(buf, pos + TIMESTAMP_LEN, dataLength);
+
+        return pos;
+    }
+
+
+    /**
+     * Creates a stream to replay the raw frames contained in the log
+     * @param startTimeUsec time of first record to replay, in microseconds since 01/01/1970
+     * @param speedFactor replay speed relative to real-time, or 0 to replay
+     * as fast as possible
+     * @return stream providing the raw MAVLink frames
+     */
+    public InputStream getInputStream(long startTimeUsec, double speedFactor)
+    {
+        return new ReplayInputStream(seek(startTimeUsec), speedFactor);
+    }
+
+
+    /*
+     * Stream returning frames without time stamps, with optional pacing
+     */
+    class ReplayInputStream extends InputStream
+    {
+        final ByteBuffer src = buf.duplicate();
+        final double speedFactor;
+        int pos; // position of next record
+        int frameRemaining;
+        long firstRecordTime = Long.MIN_VALUE;
+        long replayStartTime;
+        volatile boolean closed;
+
+        ReplayInputStream(int startPos, double speedFactor)
+        {
+            this.pos = startPos;
+            this.speedFactor = speedFactor;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return (n < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = 0;
+
+            while (n < len && !closed)
+            {
+                // move to next record if current frame was fully read
+                if (frameRemaining == 0)
+                {
+                    if (pos >= dataLength)
+                        break;
+
+                    // wait until record is due if replay is paced
+                    long time = src.getLong(pos);
+                    if (speedFactor > 0)
+                    {
+                        long delay = getReplayDelay(time);
+                        if (delay > 0)
+                        {
+                            // return data we already have before waiting
+                            if (n > 0)
+                                break;
+                            LockSupport.parkNanos(Math.min(delay, MAX_WAIT));
+                            continue;
+                        }
+                    }
+
+                    int frameLen = getFrameLength(src, pos + TIMESTAMP_LEN, dataLength);
+                    src.position(pos + TIMESTAMP_LEN);
+                    frameRemaining = frameLen;
+                    pos += TIMESTAMP_LEN + frameLen;
+                }
+
+                // copy as much of the frame as possible
+                int count = Math.min(frameRemaining, len - n);
+                src.get(b, off + n, count);
+                frameRemaining -= count;
+                n += count;
+            }
+
+            return (n == 0) ? -1 : n;
+        }
+
+        private long getReplayDelay(long recordTime)
+        {
+            long now = System.nanoTime();
+            if (firstRecordTime == Long.MIN_VALUE)
+            {
+                firstRecordTime = recordTime;
+                replayStartTime = now;
+            }
+
+            long replayTime = (long)(TimeUnit.MICROSECONDS.toNanos(recordTime - firstRecordTime) / speedFactor);
+            return replayStartTime + replayTime - now;
+        }
+
+        @Override
+        public int available()
+        {
+            return frameRemaining;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
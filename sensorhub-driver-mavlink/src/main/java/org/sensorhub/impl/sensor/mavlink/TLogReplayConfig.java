@@ -0,0 +1,37 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import org.sensorhub.api.comm.CommProviderConfig;
+import org.sensorhub.api.config.DisplayInfo;
+
+
+public class TLogReplayConfig extends CommProviderConfig<Object>
+{
+    @DisplayInfo(label="TLog File", desc="Path of MAVLink telemetry log file to replay")
+    public String tlogPath;
+    
+    @DisplayInfo(desc="Replay speed relative to real-time (e.g. 1.0 for real-time, 10.0 for 10x), or 0 to replay as fast as possible")
+    public double speedFactor = 1.0;
+    
+    @DisplayInfo(desc="Time offset from the beginning of the log at which to start replay, in seconds")
+    public double startOffset = 0.0;
+    
+    
+    public TLogReplayConfig()
+    {
+        this.moduleClass = TLogReplayProvider.class.getCanonicalName();
+    }
+}
@@ -0,0 +1,51 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import org.sensorhub.api.module.IModule;
+import org.sensorhub.api.module.IModuleProvider;
+import org.sensorhub.api.module.ModuleConfig;
+import org.sensorhub.impl.module.JarModuleProvider;
+
+
+public class TLogReplayModuleDescriptor extends JarModuleProvider implements IModuleProvider
+{
+    @Override
+    public String getModuleName()
+    {
+        return "MAVLink TLog Replay";
+    }
+
+
+    @Override
+    public String getModuleDescription()
+    {
+        return "Communication provider replaying a MAVLink telemetry log (tlog) file at real-time or custom speed";
+    }
+
+
+    @Override
+    public Class<? extends IModule<?>> getModuleClass()
+    {
+        return TLogReplayProvider.class;
+    }
+
+
+    @Override
+    public Class<? extends ModuleConfig> getModuleConfigClass()
+    {
+        return TLogReplayConfig.class;
+    }
+}
@@ -0,0 +1,111 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.sensorhub.api.comm.ICommProvider;
+import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.impl.module.AbstractModule;
+
+
+/**
+ * <p>
+ * Communication provider replaying a MAVLink telemetry log (tlog) as if it
+ * were received from a live link.<br/>
+ * Replay can be done in real-time, at a faster or slower pace, or as fast as
+ * possible for reprocessing and benchmarking. Everything written to the
+ * output stream (i.e. commands) is discarded.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class TLogReplayProvider extends AbstractModule<TLogReplayConfig> implements ICommProvider<TLogReplayConfig>
+{
+    TLogReader reader;
+    InputStream is;
+    
+    
+    @Override
+    public synchronized void start() throws SensorHubException
+    {
+        if (config.tlogPath == null)
+            throw new SensorHubException("No tlog file specified");
+        
+        try
+        {
+            reader = new TLogReader(new File(config.tlogPath));
+            long startTime = reader.getStartTime() + (long)(config.startOffset * 1e6);
+            is = reader.getInputStream(startTime, config.speedFactor);
+        }
+        catch (IOException e)
+        {
+            throw new SensorHubException("Cannot open tlog file " + config.tlogPath, e);
+        }
+    }
+    
+    
+    @Override
+    public synchronized void stop() throws SensorHubException
+    {
+        if (is != null)
+        {
+            try { is.close(); }
+            catch (IOException e) { }
+            is = null;
+        }
+        
+        if (reader != null)
+        {
+            try { reader.close(); }
+            catch (IOException e) { }
+            reader = null;
+        }
+    }
+    
+    
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return is;
+    }
+    
+    
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        };
+    }
+
+
+    @Override
+    public void cleanup() throws SensorHubException
+    {
+    }
+}
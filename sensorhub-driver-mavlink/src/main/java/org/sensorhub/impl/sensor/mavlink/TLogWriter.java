@@ -0,0 +1,89 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * <p>
+ * Writer for MAVLink telemetry logs (tlog) as produced by QGroundControl
+ * and MAVProxy.<br/>
+ * Each raw MAVLink frame is preceded by an 8 bytes big-endian time stamp
+ * giving the time of reception or emission in microseconds since
+ * 01/01/1970.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class TLogWriter implements Closeable
+{
+    static final int WRITE_BUFFER_SIZE = 64*1024;
+
+    OutputStream os;
+    byte[] timeStamp = new byte[TLogReader.TIMESTAMP_LEN];
+
+
+    public TLogWriter(File file) throws IOException
+    {
+        this(new FileOutputStream(file));
+    }
+
+
+    public TLogWriter(OutputStream os)
+    {
+        this.os = new BufferedOutputStream(os, WRITE_BUFFER_SIZE);
+    }
+
+
+    /**
+     * Appends a frame to the log
+     * @param timeUsec time stamp in microseconds since 01/01/1970
+     * @param frame array containing raw MAVLink frame
+     * @param off offset of frame in array
+     * @param len frame length
+     * @throws IOException
+     */
+    public synchronized void write(long timeUsec, byte[] frame, int off, int len) throws IOException
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            timeStamp[i] = (byte)timeUsec;
+            timeUsec >>>= 8;
+        }
+
+        os.write(timeStamp);
+        os.write(frame, off, len);
+    }
+
+
+    public synchronized void flush() throws IOException
+    {
+        os.flush();
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        os.close();
+    }
+}
@@ -0,0 +1,247 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.sensor.mavlink;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataType;
+import net.opengis.swe.v20.Vector;
+import org.sensorhub.api.sensor.SensorException;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEConstants;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.helper.GeoPosHelper;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.views.view_attitude_quaternion;
+import com.MAVLink.views.view_global_position_int;
+
+
+/**
+ * <p>
+ * Output combining the latest position, velocity and attitude of a vehicle
+ * in a single record, so consumers needing the full vehicle state don't
+ * have to subscribe to several outputs and join them by time.<br/>
+ * Time is divided in epochs at the configured rate. A record is published
+ * as soon as both GLOBAL_POSITION_INT and ATTITUDE_QUATERNION were received
+ * during the current epoch, or at the end of the epoch with what was
+ * received, in which case the samples older than the configured maximum
+ * age are flagged as stale. Samples are stored in primitive fields of a
+ * state kept for each vehicle, so only published records are allocated.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class VehicleStateOutput extends MavlinkOutput
+{
+    private static final String ORIENT_DEF = "http://sensorml.com/ont/swe/property/OrientationQuaternion";
+    private final view_global_position_int posMsg = new view_global_position_int();
+    private final view_attitude_quaternion attMsg = new view_attitude_quaternion();
+    long epochPeriod;
+    long maxAge;
+
+
+    /*
+     * Latest samples received from a vehicle
+     */
+    static class FusedState
+    {
+        long epoch = Long.MIN_VALUE;
+        boolean published;
+        boolean posUpdated;
+        boolean attUpdated;
+
+        long posTime = Long.MIN_VALUE; // system time of reception
+        long posBootTime;
+        double lat, lon, alt;
+        float vn, ve, vd;
+
+        long attTime = Long.MIN_VALUE;
+        long attBootTime;
+        float qx, qy, qz, qw;
+        float rollRate, pitchRate, yawRate;
+    }
+
+
+    public VehicleStateOutput(MavlinkDriver parentSensor)
+    {
+        super(parentSensor);
+    }
+
+
+    @Override
+    public String getName()
+    {
+        return "platformState";
+    }
+
+
+    @Override
+    protected Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+
+
+    @Override
+    protected double getRequiredSamplingPeriod()
+    {
+        return 1.0 / parentSensor.getConfiguration().stateOutputRate;
+    }
+
+
+    protected void init() throws SensorException
+    {
+        MavlinkConfig config = parentSensor.getConfiguration();
+        this.samplingPeriod = 1.0 / config.stateOutputRate;
+        this.epochPeriod = Math.max(1L, (long)(1000. / config.stateOutputRate));
+        this.maxAge = (long)(config.stateMaxAge * 1000.);
+
+        GeoPosHelper fac = new GeoPosHelper();
+
+        // create output structure
+        dataStruct = fac.newDataRecord(7);
+        dataStruct.setName(getName());
+
+        // UTC time stamp
+        dataStruct.addComponent("time", fac.newTimeStampIsoUTC());
+
+        // lat/lon/alt location
+        Vector loc = fac.newLocationVectorLLA(SWEConstants.DEF_PLATFORM_LOC);
+        loc.setLocalFrame("#" + MavlinkDriver.BODY_FRAME);
+        loc.getCoordinate("alt").setReferenceFrame(SWEConstants.VERT_DATUM_EGM96_MSL);
+        dataStruct.addComponent("loc", loc);
+
+        // ground velocity
+        Vector vel = fac.newVelocityVector(SWEHelper.getPropertyUri("PlatformVelocity"), SWEConstants.REF_FRAME_NED, "m/s");
+        vel.setDataType(DataType.FLOAT);
+        dataStruct.addComponent("velocity", vel);
+
+        // attitude quaternion
+        Vector att = fac.newQuatOrientationNED(ORIENT_DEF);
+        att.setLocalFrame("#" + MavlinkDriver.BODY_FRAME);
+        att.setDataType(DataType.FLOAT);
+        dataStruct.addComponent("attitude", att);
+
+        // body rates
+        Vector rates = fac.newAngularVelocityVector(SWEHelper.getPropertyUri("PlatformAngularRate"), "#" + MavlinkDriver.BODY_FRAME, "rad/s");
+        rates.setDataType(DataType.FLOAT);
+        dataStruct.addComponent("angularRate", rates);
+
+        // staleness flags
+        dataStruct.addComponent("posStale", fac.newBoolean(SWEHelper.getPropertyUri("PositionStale"), "Position Stale", "Set when position and velocity are older than the maximum sample age"));
+        dataStruct.addComponent("attStale", fac.newBoolean(SWEHelper.getPropertyUri("AttitudeStale"), "Attitude Stale", "Set when attitude and body rates are older than the maximum sample age"));
+
+        // text encoding
+        dataEncoding = new TextEncodingImpl(",", "\n");
+    }
+
+
+    @Override
+    protected int[] getMessageIds()
+    {
+        return new int[] {posMsg.getMsgId(), attMsg.getMsgId()};
+    }
+
+
+    protected void handleMessage(long msgTime, MAVLinkPacket pkt)
+    {
+        FusedState state = vehicle.fusedState;
+        if (state == null)
+            state = vehicle.fusedState = new FusedState();
+
+        // publish what we have if previous epoch wasn't complete
+        long epoch = msgTime / epochPeriod;
+        if (epoch != state.epoch)
+        {
+            if (!state.published && (state.posUpdated || state.attUpdated))
+                publish(state, msgTime);
+            state.epoch = epoch;
+            state.published = false;
+            state.posUpdated = false;
+            state.attUpdated = false;
+        }
+
+        if (posMsg.wrap(pkt))
+        {
+            state.posTime = msgTime;
+            state.posBootTime = posMsg.time_boot_ms();
+            state.lat = posMsg.lat() / 1e7;
+            state.lon = posMsg.lon() / 1e7;
+            state.alt = posMsg.alt() / 1e3;
+            state.vn = posMsg.vx() / 100f;
+            state.ve = posMsg.vy() / 100f;
+            state.vd = posMsg.vz() / 100f;
+            state.posUpdated = true;
+        }
+        else if (attMsg.wrap(pkt))
+        {
+            state.attTime = msgTime;
+            state.attBootTime = attMsg.time_boot_ms();
+            state.qx = attMsg.q2();
+            state.qy = attMsg.q3();
+            state.qz = attMsg.q4();
+            state.qw = attMsg.q1();
+            state.rollRate = attMsg.rollspeed();
+            state.pitchRate = attMsg.pitchspeed();
+            state.yawRate = attMsg.yawspeed();
+            state.attUpdated = true;
+        }
+        else
+            return;
+
+        // publish as soon as all samples of current epoch were received
+        if (state.posUpdated && state.attUpdated && !state.published)
+        {
+            publish(state, msgTime);
+            state.published = true;
+        }
+    }
+
+
+    protected void publish(FusedState state, long now)
+    {
+        // time stamp of newest sample
+        long bootTime = (state.posTime >= state.attTime) ? state.posBootTime : state.attBootTime;
+
+        DataBlock dataBlock = getNewDataBlock();
+        int i = 0;
+        dataBlock.setDoubleValue(i++, parentSensor.getUtcTimeFromBootMillis(bootTime));
+        dataBlock.setDoubleValue(i++, state.lat);
+        dataBlock.setDoubleValue(i++, state.lon);
+        dataBlock.setDoubleValue(i++, state.alt);
+        dataBlock.setFloatValue(i++, state.vn);
+        dataBlock.setFloatValue(i++, state.ve);
+        dataBlock.setFloatValue(i++, state.vd);
+        dataBlock.setFloatValue(i++, state.qx);
+        dataBlock.setFloatValue(i++, state.qy);
+        dataBlock.setFloatValue(i++, state.qz);
+        dataBlock.setFloatValue(i++, state.qw);
+        dataBlock.setFloatValue(i++, state.rollRate);
+        dataBlock.setFloatValue(i++, state.pitchRate);
+        dataBlock.setFloatValue(i++, state.yawRate);
+        dataBlock.setBooleanValue(i++, isStale(state.posTime, now));
+        dataBlock.setBooleanValue(i++, isStale(state.attTime, now));
+
+        updateSamplingPeriod(now);
+        sendOutput(now, dataBlock);
+    }
+
+
+    protected boolean isStale(long sampleTime, long now)
+    {
+        return sampleTime == Long.MIN_VALUE || now - sampleTime > maxAge;
+    }
+}
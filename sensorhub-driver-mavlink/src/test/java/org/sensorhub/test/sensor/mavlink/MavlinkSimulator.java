@@ -0,0 +1,644 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.ardupilotmega.msg_gimbal_report;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_battery_status;
+import com.MAVLink.common.msg_command_ack;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_param_request_list;
+import com.MAVLink.common.msg_param_request_read;
+import com.MAVLink.common.msg_param_set;
+import com.MAVLink.common.msg_param_value;
+import com.MAVLink.enums.MAV_AUTOPILOT;
+import com.MAVLink.enums.MAV_CMD;
+import com.MAVLink.enums.MAV_PARAM_TYPE;
+import com.MAVLink.enums.MAV_RESULT;
+import com.MAVLink.enums.MAV_STATE;
+import com.MAVLink.enums.MAV_TYPE;
+
+
+/**
+ * <p>
+ * Simulator of one or more MAVLink vehicles used to test the driver
+ * without an autopilot or SITL instance.<br/>
+ * Each simulated vehicle flies a circle and streams heartbeat, attitude,
+ * global position, battery and gimbal messages at the configured rates.
+ * Parameters are kept in a small table per vehicle and can be listed,
+ * read and written, and commands are acknowledged, including
+ * SET_MESSAGE_INTERVAL which changes the rate of the vehicle streams.
+ * </p><p>
+ * Vehicles are connected to the driver either through a pair of streams
+ * (e.g. pipes) or through UDP, in which case each frame is sent in its
+ * own datagram.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class MavlinkSimulator
+{
+    static final long TICK_NANOS = 1000000L;
+    static final double CIRCLE_RADIUS = 100.0; // m
+    static final double CIRCLE_SPEED = 0.1; // rad/s
+    static final double DEG_PER_METER = 1.0 / 111320.0;
+
+    // streamed messages
+    static final int HEARTBEAT = 0;
+    static final int ATTITUDE = 1;
+    static final int POSITION = 2;
+    static final int BATTERY = 3;
+    static final int GIMBAL = 4;
+    static final int[] STREAM_MSG_IDS = {
+        msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT,
+        msg_attitude.MAVLINK_MSG_ID_ATTITUDE,
+        msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT,
+        msg_battery_status.MAVLINK_MSG_ID_BATTERY_STATUS,
+        msg_gimbal_report.MAVLINK_MSG_ID_GIMBAL_REPORT
+    };
+
+    public float heartbeatRate = 1f;
+    public float attitudeRate = 10f;
+    public float positionRate = 5f;
+    public float batteryRate = 1f;
+    public float gimbalRate = 0f;
+    public boolean mavlink2 = true;
+
+    final SimVehicle[] vehicles;
+    final AtomicLong numPacketsSent = new AtomicLong();
+    final AtomicLong numBytesSent = new AtomicLong();
+    final AtomicLong numCommandsReceived = new AtomicLong();
+    final AtomicLong numParamsSent = new AtomicLong();
+    final AtomicLong numPositionsSent = new AtomicLong();
+    Link link;
+    Thread telemetryThread;
+    Thread receiveThread;
+    volatile boolean running;
+    long startTime;
+
+
+    /*
+     * State of a simulated vehicle
+     */
+    static class SimVehicle
+    {
+        final int sysid;
+        final double centerLat;
+        final double centerLon;
+        final long[] intervals = new long[STREAM_MSG_IDS.length]; // in ns, 0 if disabled
+        final long[] nextTimes = new long[STREAM_MSG_IDS.length];
+        final Map<String, Float> params = new LinkedHashMap<String, Float>();
+        int seq;
+        volatile long lastPositionTime;
+
+        SimVehicle(int sysid)
+        {
+            this.sysid = sysid;
+            this.centerLat = 43.6 + sysid * 0.01;
+            this.centerLon = 1.44;
+        }
+    }
+
+
+    /*
+     * Transport used to exchange frames with the driver
+     */
+    static abstract class Link
+    {
+        abstract void send(byte[] frame) throws IOException;
+        abstract int read(byte[] buf) throws IOException;
+        abstract void close();
+    }
+
+
+    static class StreamLink extends Link
+    {
+        final InputStream is;
+        final OutputStream os;
+
+        StreamLink(InputStream is, OutputStream os)
+        {
+            this.is = is;
+            this.os = os;
+        }
+
+        void send(byte[] frame) throws IOException
+        {
+            os.write(frame);
+            os.flush();
+        }
+
+        int read(byte[] buf) throws IOException
+        {
+            return is.read(buf);
+        }
+
+        void close()
+        {
+            try { os.close(); }
+            catch (IOException e) { }
+        }
+    }
+
+
+    static class UdpLink extends Link
+    {
+        final DatagramSocket socket;
+        final DatagramPacket receivePacket;
+        volatile SocketAddress remoteAddress;
+
+        UdpLink(DatagramSocket socket, SocketAddress remoteAddress)
+        {
+            this.socket = socket;
+            this.remoteAddress = remoteAddress;
+            this.receivePacket = new DatagramPacket(new byte[0], 0);
+        }
+
+        void send(byte[] frame) throws IOException
+        {
+            // nothing is sent until we know where the driver is
+            SocketAddress dest = remoteAddress;
+            if (dest != null)
+                socket.send(new DatagramPacket(frame, frame.length, dest));
+        }
+
+        int read(byte[] buf) throws IOException
+        {
+            receivePacket.setData(buf);
+            socket.receive(receivePacket);
+            remoteAddress = receivePacket.getSocketAddress();
+            return receivePacket.getLength();
+        }
+
+        void close()
+        {
+            socket.close();
+        }
+    }
+
+
+    /**
+     * Creates a simulator for vehicles with system IDs 1 to numVehicles
+     * @param numVehicles number of vehicles to simulate
+     */
+    public MavlinkSimulator(int numVehicles)
+    {
+        if (numVehicles < 1 || numVehicles > 254)
+            throw new IllegalArgumentException("Number of vehicles must be between 1 and 254");
+
+        vehicles = new SimVehicle[numVehicles];
+        for (int i = 0; i < numVehicles; i++)
+        {
+            SimVehicle vehicle = new SimVehicle(i+1);
+            vehicle.params.put("SYSID_THISMAV", (float)vehicle.sysid);
+            for (String name: new String[] {"SR1_RAW_SENS", "SR1_EXT_STAT", "SR1_RC_CHAN", "SR1_RAW_CTRL", "SR1_POSITION", "SR1_EXTRA1", "SR1_EXTRA2", "SR1_EXTRA3"})
+                vehicle.params.put(name, 0f);
+            vehicle.params.put("WPNAV_SPEED", 500f);
+            vehicle.params.put("RTL_ALT", 1500f);
+            vehicles[i] = vehicle;
+        }
+    }
+
+
+    /**
+     * Starts simulation with vehicles connected through the given streams
+     * @param is stream of frames sent by the driver
+     * @param os stream where vehicle frames are written
+     */
+    public void start(InputStream is, OutputStream os)
+    {
+        start(new StreamLink(is, os));
+    }
+
+
+    /**
+     * Starts simulation with vehicles connected through UDP
+     * @param localPort UDP port vehicles listen on
+     * @param driverAddress address of driver, or null to send to the address of the last datagram received
+     * @throws IOException if the socket cannot be opened
+     */
+    public void startUdp(int localPort, InetSocketAddress driverAddress) throws IOException
+    {
+        start(new UdpLink(new DatagramSocket(localPort), driverAddress));
+    }
+
+
+    protected synchronized void start(Link link)
+    {
+        this.link = link;
+        this.running = true;
+        this.startTime = System.nanoTime();
+
+        // spread vehicle messages over each period to avoid bursts
+        float[] rates = {heartbeatRate, attitudeRate, positionRate, batteryRate, gimbalRate};
+        for (SimVehicle vehicle: vehicles)
+        {
+            for (int i = 0; i < rates.length; i++)
+            {
+                vehicle.intervals[i] = (rates[i] > 0) ? (long)(1e9 / rates[i]) : 0;
+                vehicle.nextTimes[i] = startTime + vehicle.intervals[i] * (vehicle.sysid-1) / vehicles.length;
+            }
+        }
+
+        telemetryThread = new Thread(new Runnable() {
+            public void run()
+            {
+                runTelemetry();
+            }
+        }, "MAVLink Simulator Telemetry");
+        telemetryThread.setDaemon(true);
+        telemetryThread.start();
+
+        receiveThread = new Thread(new Runnable() {
+            public void run()
+            {
+                runReceiver();
+            }
+        }, "MAVLink Simulator Receiver");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+
+    /*
+     * Send all streamed messages that are due, then wait for next tick
+     */
+    private void runTelemetry()
+    {
+        try
+        {
+            while (running)
+            {
+                long now = System.nanoTime();
+                for (SimVehicle vehicle: vehicles)
+                {
+                    for (int i = 0; i < STREAM_MSG_IDS.length; i++)
+                    {
+                        long interval = vehicle.intervals[i];
+                        if (interval <= 0 || now < vehicle.nextTimes[i])
+                            continue;
+
+                        sendStreamMessage(vehicle, i, now);
+
+                        // don't try to catch up if we're late
+                        vehicle.nextTimes[i] += interval;
+                        if (vehicle.nextTimes[i] < now)
+                            vehicle.nextTimes[i] = now + interval;
+                    }
+                }
+
+                LockSupport.parkNanos(TICK_NANOS);
+            }
+        }
+        catch (IOException e)
+        {
+            if (running)
+                e.printStackTrace();
+        }
+    }
+
+
+    protected void sendStreamMessage(SimVehicle vehicle, int stream, long now) throws IOException
+    {
+        double t = (now - startTime) / 1e9;
+        long timeBootMs = (now - startTime) / 1000000L;
+        double angle = CIRCLE_SPEED * t + vehicle.sysid;
+        double heading = angle + Math.PI / 2;
+
+        switch (stream)
+        {
+            case HEARTBEAT:
+                msg_heartbeat hb = new msg_heartbeat();
+                hb.type = MAV_TYPE.MAV_TYPE_QUADROTOR;
+                hb.autopilot = MAV_AUTOPILOT.MAV_AUTOPILOT_ARDUPILOTMEGA;
+                hb.system_status = MAV_STATE.MAV_STATE_ACTIVE;
+                hb.mavlink_version = 3;
+                send(vehicle, hb.pack());
+                break;
+
+            case ATTITUDE:
+                msg_attitude att = new msg_attitude();
+                att.time_boot_ms = timeBootMs;
+                att.roll = 0.05f;
+                att.yaw = (float)normalizeAngle(heading);
+                att.yawspeed = (float)CIRCLE_SPEED;
+                send(vehicle, att.pack());
+                break;
+
+            case POSITION:
+                double speed = CIRCLE_SPEED * CIRCLE_RADIUS;
+                msg_global_position_int pos = new msg_global_position_int();
+                pos.time_boot_ms = timeBootMs;
+                pos.lat = (int)Math.round((vehicle.centerLat + CIRCLE_RADIUS * Math.cos(angle) * DEG_PER_METER) * 1e7);
+                pos.lon = (int)Math.round((vehicle.centerLon + CIRCLE_RADIUS * Math.sin(angle) * DEG_PER_METER / Math.cos(Math.toRadians(vehicle.centerLat))) * 1e7);
+                pos.alt = 150000;
+                pos.relative_alt = 30000;
+                pos.vx = (short)Math.round(speed * Math.cos(heading) * 100);
+                pos.vy = (short)Math.round(speed * Math.sin(heading) * 100);
+                pos.hdg = (int)Math.round(Math.toDegrees(normalizeAngle(heading)) * 100) % 36000;
+                vehicle.lastPositionTime = now;
+                numPositionsSent.incrementAndGet();
+                send(vehicle, pos.pack());
+                break;
+
+            case BATTERY:
+                msg_battery_status batt = new msg_battery_status();
+                batt.voltages[0] = 12600 - (int)(t * 0.1);
+                for (int i = 1; i < batt.voltages.length; i++)
+                    batt.voltages[i] = 0xFFFF;
+                batt.current_battery = 1500;
+                batt.battery_remaining = (byte)Math.max(0, 100 - (int)(t / 60));
+                send(vehicle, batt.pack());
+                break;
+
+            case GIMBAL:
+                msg_gimbal_report gimbal = new msg_gimbal_report();
+                gimbal.joint_el = (float)Math.toRadians(-45);
+                gimbal.joint_az = (float)(0.2 * Math.sin(t));
+                send(vehicle, gimbal.pack());
+                break;
+        }
+    }
+
+
+    private double normalizeAngle(double angle)
+    {
+        angle %= 2 * Math.PI;
+        return (angle < 0) ? angle + 2 * Math.PI : angle;
+    }
+
+
+    /*
+     * Read and answer commands and parameter requests sent by the driver
+     */
+    private void runReceiver()
+    {
+        Parser parser = new Parser();
+        Parser.PacketHandler handler = new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                try
+                {
+                    handleRequest(packet);
+                }
+                catch (IOException e)
+                {
+                    if (running)
+                        e.printStackTrace();
+                }
+            }
+        };
+
+        try
+        {
+            byte[] buf = new byte[2048];
+            int n;
+            while (running && (n = link.read(buf)) >= 0)
+                parser.parse(buf, 0, n, handler);
+        }
+        catch (IOException e)
+        {
+            // link closed
+        }
+    }
+
+
+    protected void handleRequest(MAVLinkPacket packet) throws IOException
+    {
+        switch (packet.msgid)
+        {
+            case msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG:
+                msg_command_long cmd = (msg_command_long)packet.unpack();
+                numCommandsReceived.incrementAndGet();
+                for (SimVehicle vehicle: getTargetVehicles(cmd.target_system))
+                {
+                    if (cmd.command == MAV_CMD.MAV_CMD_SET_MESSAGE_INTERVAL)
+                        setMessageInterval(vehicle, (int)cmd.param1, (long)cmd.param2);
+
+                    msg_command_ack ack = new msg_command_ack();
+                    ack.command = cmd.command;
+                    ack.result = MAV_RESULT.MAV_RESULT_ACCEPTED;
+                    send(vehicle, ack.pack());
+                }
+                break;
+
+            case msg_param_request_list.MAVLINK_MSG_ID_PARAM_REQUEST_LIST:
+                msg_param_request_list list = (msg_param_request_list)packet.unpack();
+                for (SimVehicle vehicle: getTargetVehicles(list.target_system))
+                {
+                    List<String> names = getParamNames(vehicle);
+                    for (int i = 0; i < names.size(); i++)
+                        sendParamValue(vehicle, names.get(i), i);
+                }
+                break;
+
+            case msg_param_request_read.MAVLINK_MSG_ID_PARAM_REQUEST_READ:
+                msg_param_request_read read = (msg_param_request_read)packet.unpack();
+                for (SimVehicle vehicle: getTargetVehicles(read.target_system))
+                {
+                    List<String> names = getParamNames(vehicle);
+                    if (read.param_index >= 0 && read.param_index < names.size())
+                        sendParamValue(vehicle, names.get(read.param_index), read.param_index);
+                    else if (names.contains(read.getParam_Id()))
+                        sendParamValue(vehicle, read.getParam_Id(), names.indexOf(read.getParam_Id()));
+                }
+                break;
+
+            case msg_param_set.MAVLINK_MSG_ID_PARAM_SET:
+                msg_param_set set = (msg_param_set)packet.unpack();
+                for (SimVehicle vehicle: getTargetVehicles(set.target_system))
+                {
+                    synchronized (vehicle.params)
+                    {
+                        vehicle.params.put(set.getParam_Id(), set.param_value);
+                    }
+                    sendParamValue(vehicle, set.getParam_Id(), getParamNames(vehicle).indexOf(set.getParam_Id()));
+                }
+                break;
+        }
+    }
+
+
+    /*
+     * Change rate of a streamed message, as requested by SET_MESSAGE_INTERVAL
+     * Interval is in us, -1 to disable the message and 0 to restore the default rate
+     */
+    protected void setMessageInterval(SimVehicle vehicle, int msgId, long interval)
+    {
+        for (int i = 0; i < STREAM_MSG_IDS.length; i++)
+        {
+            if (STREAM_MSG_IDS[i] != msgId)
+                continue;
+
+            synchronized (vehicle)
+            {
+                if (interval < 0)
+                    vehicle.intervals[i] = 0;
+                else if (interval > 0)
+                    vehicle.intervals[i] = interval * 1000L;
+            }
+        }
+    }
+
+
+    protected List<SimVehicle> getTargetVehicles(int targetSystem)
+    {
+        List<SimVehicle> targets = new ArrayList<SimVehicle>();
+        for (SimVehicle vehicle: vehicles)
+        {
+            if (targetSystem == 0 || targetSystem == vehicle.sysid)
+                targets.add(vehicle);
+        }
+        return targets;
+    }
+
+
+    protected List<String> getParamNames(SimVehicle vehicle)
+    {
+        synchronized (vehicle.params)
+        {
+            return new ArrayList<String>(vehicle.params.keySet());
+        }
+    }
+
+
+    protected void sendParamValue(SimVehicle vehicle, String name, int index) throws IOException
+    {
+        msg_param_value value = new msg_param_value();
+        synchronized (vehicle.params)
+        {
+            value.setParam_Id(name);
+            value.param_value = vehicle.params.get(name);
+            value.param_count = vehicle.params.size();
+        }
+        value.param_index = index;
+        value.param_type = MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32;
+        numParamsSent.incrementAndGet();
+        send(vehicle, value.pack());
+    }
+
+
+    /*
+     * Send packet from vehicle, called by both telemetry and receiver threads
+     */
+    protected void send(SimVehicle vehicle, MAVLinkPacket pkt) throws IOException
+    {
+        synchronized (this)
+        {
+            pkt.sysid = vehicle.sysid;
+            pkt.compid = 1;
+            pkt.seq = vehicle.seq++ & 0xFF;
+            pkt.isMavlink2 = mavlink2;
+            byte[] frame = pkt.encodePacket();
+            link.send(frame);
+            numPacketsSent.incrementAndGet();
+            numBytesSent.addAndGet(frame.length);
+        }
+    }
+
+
+    public void stop()
+    {
+        running = false;
+        if (link != null)
+            link.close();
+
+        try
+        {
+            if (telemetryThread != null)
+                telemetryThread.join(1000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @param sysid system ID of vehicle
+     * @return system time (as given by {@link System#nanoTime()}) at which the last position of the vehicle was sent
+     */
+    public long getLastPositionTime(int sysid)
+    {
+        return vehicles[sysid-1].lastPositionTime;
+    }
+
+
+    /**
+     * @return local UDP port or -1 if vehicles are not connected through UDP
+     */
+    public int getLocalPort()
+    {
+        if (link instanceof UdpLink)
+            return ((UdpLink)link).socket.getLocalPort();
+        return -1;
+    }
+
+
+    public int getNumVehicles()
+    {
+        return vehicles.length;
+    }
+
+
+    public long getNumPacketsSent()
+    {
+        return numPacketsSent.get();
+    }
+
+
+    public long getNumBytesSent()
+    {
+        return numBytesSent.get();
+    }
+
+
+    public long getNumPositionsSent()
+    {
+        return numPositionsSent.get();
+    }
+
+
+    public long getNumCommandsReceived()
+    {
+        return numCommandsReceived.get();
+    }
+
+
+    public long getNumParamsSent()
+    {
+        return numParamsSent.get();
+    }
+}
@@ -0,0 +1,139 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.AdsbTrafficTable;
+import static org.junit.Assert.*;
+
+
+public class TestAdsbTrafficTable
+{
+
+    @Test
+    public void testAddAndGet() throws Exception
+    {
+        AdsbTrafficTable table = new AdsbTrafficTable(4, 1000);
+        assertEquals(-1, table.get(0xA1B2C3));
+
+        int slot1 = table.add(0xA1B2C3, 0);
+        int slot2 = table.add(0x3C6444, 0);
+        assertTrue(slot1 >= 0 && slot2 >= 0 && slot1 != slot2);
+        assertEquals(slot1, table.get(0xA1B2C3));
+        assertEquals(slot2, table.get(0x3C6444));
+        assertEquals(0x3C6444, table.getAddress(slot2));
+        assertEquals(2, table.size());
+    }
+
+
+    @Test
+    public void testFullTable() throws Exception
+    {
+        AdsbTrafficTable table = new AdsbTrafficTable(3, 1000);
+        for (int i = 0; i < 3; i++)
+            assertTrue(table.add(i, 0) >= 0);
+
+        assertEquals(-1, table.add(100, 0));
+        assertEquals(-1, table.get(100));
+        assertEquals(3, table.size());
+    }
+
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        AdsbTrafficTable table = new AdsbTrafficTable(3, 1000);
+        int slot1 = table.add(1, 0);
+        int slot2 = table.add(2, 0);
+        int slot3 = table.add(3, 0);
+        table.touch(slot1, 800);
+
+        // evicted slots are reported
+        int[] evicted = new int[3];
+        assertEquals(0, table.evictStale(1000, evicted));
+        assertEquals(2, table.evictStale(1500, evicted));
+        assertTrue((evicted[0] == slot2 && evicted[1] == slot3) || (evicted[0] == slot3 && evicted[1] == slot2));
+        assertEquals(1, table.size());
+        assertEquals(slot1, table.get(1));
+        assertEquals(-1, table.get(2));
+        assertEquals(-1, table.get(3));
+        assertFalse(table.isStale(slot1, 1500));
+        assertTrue(table.isStale(slot1, 1801));
+
+        // freed slots are reused
+        assertTrue(table.add(4, 1500) >= 0);
+        assertTrue(table.add(5, 1500) >= 0);
+        assertEquals(-1, table.add(6, 1500));
+    }
+
+
+    @Test
+    public void testRandomChurn() throws Exception
+    {
+        // compare with a regular map while aircraft come and go
+        int capacity = 64;
+        AdsbTrafficTable table = new AdsbTrafficTable(capacity, 100);
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        Random random = new Random(42);
+
+        for (long time = 0; time < 20000; time++)
+        {
+            // addresses from a small range so probe chains collide a lot
+            int icao = random.nextInt(200) << 8;
+            int slot = table.get(icao);
+            if (slot >= 0)
+            {
+                assertTrue(expected.containsKey(icao));
+                table.touch(slot, time);
+                expected.put(icao, time);
+            }
+            else
+            {
+                assertFalse(expected.containsKey(icao));
+                slot = table.add(icao, time);
+                if (expected.size() < capacity)
+                {
+                    assertTrue(slot >= 0);
+                    expected.put(icao, time);
+                }
+                else
+                    assertEquals(-1, slot);
+            }
+
+            if (time % 10 == 0)
+            {
+                // second pass catches entries shifted across end of index
+                table.evictStale(time);
+                table.evictStale(time);
+
+                Iterator<Map.Entry<Integer, Long>> it = expected.entrySet().iterator();
+                while (it.hasNext())
+                {
+                    if (time - it.next().getValue() > 100)
+                        it.remove();
+                }
+
+                assertEquals(expected.size(), table.size());
+                for (int key: expected.keySet())
+                    assertTrue(table.get(key) >= 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.MavlinkFlightRecorder;
+import org.sensorhub.impl.sensor.mavlink.TLogReader;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_statustext;
+import static org.junit.Assert.*;
+
+
+public class TestFlightRecorder
+{
+    static final int CAPACITY = 64*1024;
+
+
+    protected byte[] encodeFrame(int i)
+    {
+        // mix of frame sizes so records don't align with end of buffer
+        MAVLinkPacket pkt;
+        if (i % 5 == 0)
+        {
+            msg_statustext msg = new msg_statustext();
+            msg.setText("message " + i);
+            pkt = msg.pack();
+        }
+        else
+        {
+            msg_attitude msg = new msg_attitude();
+            msg.roll = 0.01f * i;
+            pkt = msg.pack();
+        }
+
+        pkt.seq = i & 0xFF;
+        pkt.isMavlink2 = (i % 3 == 0);
+        return pkt.encodePacket();
+    }
+
+
+    /*
+     * Dump recorder to temp file and return sequence numbers of dumped
+     * frames, checking file is a valid tlog
+     */
+    protected List<Long> dumpAndRead(MavlinkFlightRecorder recorder) throws Exception
+    {
+        File file = File.createTempFile("flightrec", ".tlog");
+        file.deleteOnExit();
+        int numRecords = recorder.dump(file);
+        assertTrue("File larger than recorder", file.length() <= recorder.getCapacity());
+
+        TLogReader reader = new TLogReader(file);
+        assertEquals(numRecords, reader.getNumRecords());
+        final List<Long> times = new ArrayList<Long>();
+        if (numRecords > 0)
+        {
+            for (long t = reader.getStartTime(); t <= reader.getEndTime(); t++)
+                times.add(t);
+            assertEquals(numRecords, times.size());
+
+            // check all frames are intact
+            final int[] numPackets = new int[1];
+            InputStream is = reader.getInputStream(reader.getStartTime(), 0.0);
+            Parser parser = new Parser();
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = is.read(buf)) > 0)
+            {
+                parser.parse(buf, 0, n, new Parser.PacketHandler() {
+                    public void handlePacket(MAVLinkPacket packet)
+                    {
+                        numPackets[0]++;
+                    }
+                });
+            }
+            assertEquals(numRecords, numPackets[0]);
+            assertEquals(0, parser.stats.crcErrorCount);
+        }
+
+        reader.close();
+        file.delete();
+        return times;
+    }
+
+
+    @Test
+    public void testKeepsMostRecentFrames() throws Exception
+    {
+        MavlinkFlightRecorder recorder = new MavlinkFlightRecorder(CAPACITY);
+        assertTrue(dumpAndRead(recorder).isEmpty());
+
+        // time stamps are used as sequence numbers
+        int numFrames = 10000;
+        for (int i = 0; i < numFrames; i++)
+        {
+            byte[] frame = encodeFrame(i);
+            recorder.append(i, frame, 0, frame.length);
+            assertTrue(recorder.getSize() <= CAPACITY);
+        }
+
+        List<Long> times = dumpAndRead(recorder);
+        assertTrue(times.size() > 1000);
+        assertEquals(numFrames-1, times.get(times.size()-1).longValue());
+    }
+
+
+    @Test
+    public void testDumpWhileRecording() throws Exception
+    {
+        final MavlinkFlightRecorder recorder = new MavlinkFlightRecorder(16*CAPACITY);
+        final int numFrames = 200000;
+
+        // writer is much faster than a real link but slower than the disk
+        Thread writer = new Thread() {
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < numFrames; i++)
+                    {
+                        byte[] frame = encodeFrame(i);
+                        recorder.append(i, frame, 0, frame.length);
+                        if (i % 200 == 0)
+                            Thread.sleep(1);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        };
+        writer.start();
+
+        // dumps must contain consecutive intact frames even if the writer
+        // overwrites some of them while they are being saved
+        int numDumps = 0;
+        while (writer.isAlive())
+        {
+            dumpAndRead(recorder);
+            numDumps++;
+        }
+
+        writer.join();
+        List<Long> times = dumpAndRead(recorder);
+        assertEquals(numFrames-1, times.get(times.size()-1).longValue());
+        assertTrue(numDumps > 0);
+    }
+}
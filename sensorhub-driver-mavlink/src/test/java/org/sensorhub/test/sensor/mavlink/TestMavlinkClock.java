@@ -0,0 +1,140 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.util.Random;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.LatencyHistogram;
+import org.sensorhub.impl.sensor.mavlink.MavlinkClock;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkClock
+{
+    static final long MS = 1000000L;
+    static final long BOOT_TIME = 1479168000000L * MS; // local UTC time of vehicle boot
+    static final long TRUE_OFFSET = -BOOT_TIME;
+
+
+    /*
+     * Simulate a TIMESYNC exchange with given uplink/downlink delays
+     */
+    private boolean exchange(MavlinkClock clock, long sendTime, long upDelay, long downDelay)
+    {
+        long tc1 = sendTime + upDelay + TRUE_OFFSET;
+        long now = sendTime + upDelay + downDelay;
+        return clock.handleTimesync(tc1, sendTime, now);
+    }
+
+
+    @Test
+    public void testTimesyncConvergence()
+    {
+        MavlinkClock clock = new MavlinkClock();
+        assertFalse(clock.isSynchronized());
+        assertEquals(Long.MIN_VALUE, clock.toUtcNanos(1000));
+
+        Random rand = new Random(0);
+        long t = BOOT_TIME + 10000*MS;
+        for (int i = 0; i < 100; i++)
+        {
+            // asymmetric jitter of up to 4ms on each leg
+            long up = 10*MS + (long)(rand.nextDouble()*4*MS);
+            long down = 10*MS + (long)(rand.nextDouble()*4*MS);
+            exchange(clock, t, up, down);
+            t += 1000*MS;
+        }
+
+        assertTrue(clock.isSynchronized());
+        assertEquals(TRUE_OFFSET, clock.getOffset(), 2*MS);
+        assertEquals(BOOT_TIME + 5000*MS, clock.toUtcNanos(5000), 2*MS);
+    }
+
+
+    @Test
+    public void testOutlierRejection()
+    {
+        MavlinkClock clock = new MavlinkClock();
+        long t = BOOT_TIME;
+        for (int i = 0; i < 20; i++)
+        {
+            assertTrue(exchange(clock, t, 5*MS, 5*MS));
+            t += 1000*MS;
+        }
+
+        // reply delayed on downlink only would bias estimate by 200ms
+        assertFalse(exchange(clock, t, 5*MS, 400*MS));
+        assertEquals(TRUE_OFFSET, clock.getOffset(), MS);
+    }
+
+
+    @Test
+    public void testResetOnReboot()
+    {
+        MavlinkClock clock = new MavlinkClock();
+        long t = BOOT_TIME;
+        for (int i = 0; i < 20; i++)
+        {
+            exchange(clock, t, 5*MS, 5*MS);
+            t += 1000*MS;
+        }
+
+        // vehicle clock restarted from 0
+        long now = t + 10*MS;
+        assertTrue(clock.handleTimesync(5*MS, t, now));
+        assertEquals(5*MS - (t + 5*MS), clock.getOffset(), MS);
+    }
+
+
+    @Test
+    public void testPassiveEstimate()
+    {
+        MavlinkClock clock = new MavlinkClock();
+        Random rand = new Random(0);
+        for (int i = 0; i < 1000; i++)
+        {
+            long timeBootMs = 1000 + i*20;
+            long delay = 3*MS + (long)(rand.nextDouble()*30*MS);
+            clock.handleMessageTime(timeBootMs, BOOT_TIME + timeBootMs*MS + delay);
+        }
+
+        // estimate converges to smallest delay
+        assertFalse(clock.isSynchronized());
+        long utc = clock.toUtcNanos(50000);
+        assertTrue(utc - (BOOT_TIME + 50000*MS) >= 3*MS);
+        assertTrue(utc - (BOOT_TIME + 50000*MS) <= 4*MS);
+    }
+
+
+    @Test
+    public void testHistogramPercentiles()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+            h.record(i * 10000L); // 10us to 10ms
+
+        LatencyHistogram.Snapshot s = h.getSnapshotAndReset();
+        assertEquals(1000, s.getCount());
+        assertEquals(5.0, s.getPercentile(50), 5.0*0.2);
+        assertEquals(9.9, s.getPercentile(99), 9.9*0.2);
+        assertTrue(s.getMax() >= 10.0);
+        assertTrue(s.getMax() <= 10.0*1.2);
+
+        // histogram was reset
+        s = h.getSnapshotAndReset();
+        assertEquals(0, s.getCount());
+        assertTrue(Double.isNaN(s.getPercentile(50)));
+    }
+}
@@ -0,0 +1,1529 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.opengis.swe.v20.DataArray;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataChoice;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.comm.CommProviderConfig;
+import org.sensorhub.api.comm.ICommProvider;
+import org.sensorhub.api.common.CommandStatus;
+import org.sensorhub.api.common.CommandStatus.StatusCode;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.sensor.ISensorControlInterface;
+import org.sensorhub.api.sensor.ISensorDataInterface;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.module.AbstractModule;
+import org.sensorhub.impl.sensor.mavlink.MavlinkCommandTracker;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.MsgTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkDriver;
+import org.sensorhub.impl.sensor.mavlink.MavlinkLogManager;
+import org.sensorhub.impl.sensor.mavlink.MavlinkMissionManager;
+import org.sensorhub.impl.sensor.mavlink.MavlinkParamManager;
+import org.sensorhub.impl.sensor.mavlink.MavlinkSender;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_attitude_quaternion;
+import com.MAVLink.common.msg_command_ack;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_hil_sensor;
+import com.MAVLink.common.msg_log_data;
+import com.MAVLink.common.msg_log_entry;
+import com.MAVLink.common.msg_log_request_data;
+import com.MAVLink.common.msg_log_request_end;
+import com.MAVLink.common.msg_log_request_list;
+import com.MAVLink.common.msg_mission_ack;
+import com.MAVLink.common.msg_mission_count;
+import com.MAVLink.common.msg_mission_item_int;
+import com.MAVLink.common.msg_mission_request_int;
+import com.MAVLink.common.msg_mission_request_list;
+import com.MAVLink.common.msg_param_request_list;
+import com.MAVLink.common.msg_param_request_read;
+import com.MAVLink.common.msg_param_set;
+import com.MAVLink.common.msg_param_value;
+import com.MAVLink.common.msg_radio_status;
+import com.MAVLink.common.msg_set_position_target_local_ned;
+import com.MAVLink.enums.MAV_AUTOPILOT;
+import com.MAVLink.enums.MAV_CMD;
+import com.MAVLink.enums.MAV_FRAME;
+import com.MAVLink.enums.MAV_MISSION_RESULT;
+import com.MAVLink.enums.MAV_PARAM_TYPE;
+import com.MAVLink.enums.MAV_RESULT;
+import com.MAVLink.enums.MAV_TYPE;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkCommands
+{
+    static final int TIMEOUT = 200;
+    static final int RETRIES = 2;
+
+    MavlinkDriver driver;
+    PipeCommProvider commProvider;
+    AtomicInteger numCommandsReceived = new AtomicInteger();
+    volatile int numCommandsToDrop;
+    volatile int ackResult = MAV_RESULT.MAV_RESULT_ACCEPTED;
+    volatile boolean ackCommands = true;
+    volatile int lastConfirmation;
+    Map<Integer, Long> messageIntervals = new LinkedHashMap<Integer, Long>();
+    Map<String, Float> vehicleParams = new LinkedHashMap<String, Float>();
+    AtomicInteger numParamSetReceived = new AtomicInteger();
+    AtomicInteger numParamReadReceived = new AtomicInteger();
+    volatile boolean answerParamList = true;
+    volatile int dropParamIndexModulo = 0;
+    List<msg_mission_item_int> vehicleMission = new ArrayList<msg_mission_item_int>();
+    msg_mission_item_int[] uploadedItems;
+    Set<Integer> droppedMissionItems = new HashSet<Integer>();
+    AtomicInteger numMissionItemsReceived = new AtomicInteger();
+    AtomicInteger numMissionRequestsReceived = new AtomicInteger();
+    volatile int dropMissionItemModulo = 0;
+    volatile boolean missionAckReceived;
+    volatile boolean answerMissionRequests = true;
+    byte[] vehicleLog = new byte[0];
+    Set<Integer> droppedLogChunks = new HashSet<Integer>();
+    AtomicInteger numLogChunksSent = new AtomicInteger();
+    volatile int dropLogChunkModulo = 0;
+    List<long[]> hilSamples = new ArrayList<long[]>(); // reception time, sim time, xacc
+    List<String> vehicleTrace = new ArrayList<String>(); // commands and setpoints in reception order
+    volatile boolean vehicleReadPaused;
+    int lastDriverSeq = -1;
+    AtomicInteger numSeqGaps = new AtomicInteger();
+    volatile boolean logEndReceived;
+    File cacheDir;
+
+
+    /*
+     * Comm provider connected to a fake autopilot through pipes
+     */
+    public static class PipeCommProvider extends AbstractModule<PipeCommProviderConfig> implements ICommProvider<PipeCommProviderConfig>
+    {
+        PipedInputStream driverIn = new PipedInputStream(64*1024);
+        PipedOutputStream vehicleOut;
+        PipedInputStream vehicleIn = new PipedInputStream(64*1024);
+        PipedOutputStream driverOut;
+
+        public PipeCommProvider() throws IOException
+        {
+            vehicleOut = new PipedOutputStream(driverIn);
+            driverOut = new PipedOutputStream(vehicleIn);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return driverIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return driverOut;
+        }
+
+        @Override
+        public void start() throws SensorHubException
+        {
+        }
+
+        @Override
+        public void stop() throws SensorHubException
+        {
+        }
+
+        @Override
+        public void cleanup() throws SensorHubException
+        {
+        }
+    }
+
+
+    public static class PipeCommProviderConfig extends CommProviderConfig<Object>
+    {
+        transient PipeCommProvider provider;
+
+        @Override
+        public ICommProvider<?> getProvider()
+        {
+            return provider;
+        }
+    }
+
+
+    /*
+     * Reply to commands and parameter changes like an autopilot would,
+     * optionally dropping some of them to simulate a lossy link
+     */
+    protected void runVehicle()
+    {
+        final Parser parser = new Parser();
+        final byte[] buf = new byte[1024];
+
+        Thread t = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    sendToDriver(newHeartbeat());
+
+                    int n;
+                    while (waitIfPaused() && (n = commProvider.vehicleIn.read(buf)) > 0)
+                    {
+                        parser.parse(buf, 0, n, new Parser.PacketHandler() {
+                            public void handlePacket(MAVLinkPacket packet)
+                            {
+                                handleVehiclePacket(packet);
+                            }
+                        });
+                    }
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        });
+
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    /*
+     * Stop reading from the link while paused, so the pipe fills up
+     * like a congested radio link
+     */
+    protected boolean waitIfPaused()
+    {
+        try
+        {
+            while (vehicleReadPaused)
+                Thread.sleep(1);
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+    }
+
+
+    protected void handleVehiclePacket(MAVLinkPacket packet)
+    {
+        // sequence numbers must be consecutive even when frames are reordered
+        if (lastDriverSeq >= 0 && packet.seq != ((lastDriverSeq + 1) & 0xFF))
+            numSeqGaps.incrementAndGet();
+        lastDriverSeq = packet.seq;
+
+        if (packet.msgid == msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG)
+        {
+            msg_command_long cmd = (msg_command_long)packet.unpack();
+            if (cmd.command == MAV_CMD.MAV_CMD_SET_MESSAGE_INTERVAL)
+            {
+                synchronized (messageIntervals)
+                {
+                    messageIntervals.put((int)cmd.param1, (long)cmd.param2);
+                }
+            }
+            else
+            {
+                numCommandsReceived.incrementAndGet();
+                synchronized (vehicleTrace)
+                {
+                    vehicleTrace.add("CMD:" + cmd.command);
+                }
+            }
+            lastConfirmation = cmd.confirmation;
+            if (!ackCommands || numCommandsToDrop-- > 0)
+                return;
+
+            msg_command_ack ack = new msg_command_ack();
+            ack.command = cmd.command;
+            ack.result = (short)ackResult;
+            sendToDriver(ack.pack());
+        }
+        else if (packet.msgid == msg_param_set.MAVLINK_MSG_ID_PARAM_SET)
+        {
+            msg_param_set set = (msg_param_set)packet.unpack();
+            numParamSetReceived.incrementAndGet();
+            // vehicle clamps this one
+            float value = set.getParam_Id().equals("FENCE_ALT_MAX") ? 10f : set.param_value;
+            synchronized (vehicleParams)
+            {
+                vehicleParams.put(set.getParam_Id(), value);
+            }
+            sendParamValue(set.getParam_Id(), 65535);
+        }
+        else if (packet.msgid == msg_param_request_list.MAVLINK_MSG_ID_PARAM_REQUEST_LIST)
+        {
+            if (!answerParamList)
+                return;
+
+            // send all params, dropping some the first time
+            int modulo = dropParamIndexModulo;
+            dropParamIndexModulo = 0;
+            List<String> names = getParamNames();
+            for (int i = 0; i < names.size(); i++)
+            {
+                if (modulo == 0 || i % modulo != 0)
+                    sendParamValue(names.get(i), i);
+            }
+        }
+        else if (packet.msgid == msg_param_request_read.MAVLINK_MSG_ID_PARAM_REQUEST_READ)
+        {
+            msg_param_request_read req = (msg_param_request_read)packet.unpack();
+            numParamReadReceived.incrementAndGet();
+            sendParamValue(getParamNames().get(req.param_index), req.param_index);
+        }
+        else if (!handleLogPacket(packet))
+            handleMissionPacket(packet);
+    }
+
+
+    /*
+     * Mission protocol as implemented by autopilots, except that lost
+     * messages are only recovered thanks to the driver timeouts
+     */
+    protected void handleMissionPacket(MAVLinkPacket packet)
+    {
+        if (packet.msgid == msg_mission_count.MAVLINK_MSG_ID_MISSION_COUNT)
+        {
+            msg_mission_count msg = (msg_mission_count)packet.unpack();
+            uploadedItems = new msg_mission_item_int[msg.count];
+            if (msg.count == 0)
+                acceptUploadedMission();
+            else
+                requestMissionItem(0);
+        }
+        else if (packet.msgid == msg_mission_item_int.MAVLINK_MSG_ID_MISSION_ITEM_INT)
+        {
+            msg_mission_item_int item = (msg_mission_item_int)packet.unpack();
+            numMissionItemsReceived.incrementAndGet();
+            if (isMissionItemDropped(item.seq))
+                return;
+
+            uploadedItems[item.seq] = item;
+            if (item.seq + 1 < uploadedItems.length)
+                requestMissionItem(item.seq + 1);
+            else
+                acceptUploadedMission();
+        }
+        else if (packet.msgid == msg_mission_request_list.MAVLINK_MSG_ID_MISSION_REQUEST_LIST)
+        {
+            msg_mission_count msg = new msg_mission_count();
+            synchronized (vehicleMission)
+            {
+                msg.count = vehicleMission.size();
+            }
+            sendToDriver(msg.pack());
+        }
+        else if (packet.msgid == msg_mission_request_int.MAVLINK_MSG_ID_MISSION_REQUEST_INT)
+        {
+            msg_mission_request_int req = (msg_mission_request_int)packet.unpack();
+            numMissionRequestsReceived.incrementAndGet();
+            if (!answerMissionRequests || isMissionItemDropped(req.seq))
+                return;
+
+            synchronized (vehicleMission)
+            {
+                sendToDriver(vehicleMission.get(req.seq).pack());
+            }
+        }
+        else if (packet.msgid == msg_mission_ack.MAVLINK_MSG_ID_MISSION_ACK)
+        {
+            missionAckReceived = true;
+        }
+    }
+
+
+    /*
+     * Log protocol as implemented by ArduPilot, streaming all chunks
+     * of the requested range
+     */
+    protected boolean handleLogPacket(MAVLinkPacket packet)
+    {
+        if (packet.msgid == msg_log_request_list.MAVLINK_MSG_ID_LOG_REQUEST_LIST)
+        {
+            msg_log_entry entry = new msg_log_entry();
+            entry.id = 1;
+            entry.num_logs = 1;
+            entry.last_log_num = 1;
+            entry.size = vehicleLog.length;
+            sendToDriver(entry.pack());
+        }
+        else if (packet.msgid == msg_log_request_data.MAVLINK_MSG_ID_LOG_REQUEST_DATA)
+        {
+            msg_log_request_data req = (msg_log_request_data)packet.unpack();
+            long end = Math.min(vehicleLog.length, req.ofs + req.count);
+            for (long ofs = req.ofs; ofs < end; ofs += MavlinkLogManager.CHUNK_SIZE)
+            {
+                int chunk = (int)(ofs / MavlinkLogManager.CHUNK_SIZE);
+                int modulo = dropLogChunkModulo;
+                if (modulo > 0 && chunk % modulo == modulo - 1 && droppedLogChunks.add(chunk))
+                    continue;
+
+                msg_log_data data = new msg_log_data();
+                data.id = req.id;
+                data.ofs = ofs;
+                data.count = (short)Math.min(MavlinkLogManager.CHUNK_SIZE, end - ofs);
+                for (int i = 0; i < data.count; i++)
+                    data.data[i] = (short)(vehicleLog[(int)ofs + i] & 0xFF);
+                numLogChunksSent.incrementAndGet();
+                sendToDriver(data.pack());
+            }
+        }
+        else if (packet.msgid == msg_log_request_end.MAVLINK_MSG_ID_LOG_REQUEST_END)
+        {
+            logEndReceived = true;
+        }
+        else if (packet.msgid == msg_set_position_target_local_ned.MAVLINK_MSG_ID_SET_POSITION_TARGET_LOCAL_NED)
+        {
+            msg_set_position_target_local_ned setpoint = (msg_set_position_target_local_ned)packet.unpack();
+            synchronized (vehicleTrace)
+            {
+                vehicleTrace.add("VEL:" + (int)setpoint.vx);
+            }
+        }
+        else if (packet.msgid == msg_hil_sensor.MAVLINK_MSG_ID_HIL_SENSOR)
+        {
+            msg_hil_sensor hil = (msg_hil_sensor)packet.unpack();
+            synchronized (hilSamples)
+            {
+                hilSamples.add(new long[] {System.nanoTime(), hil.time_usec, (long)hil.xacc});
+            }
+        }
+        else
+            return false;
+
+        return true;
+    }
+
+
+    protected boolean isMissionItemDropped(int seq)
+    {
+        // each selected item is only dropped once
+        int modulo = dropMissionItemModulo;
+        return modulo > 0 && seq % modulo == modulo - 1 && droppedMissionItems.add(seq);
+    }
+
+
+    protected void requestMissionItem(int seq)
+    {
+        msg_mission_request_int req = new msg_mission_request_int();
+        req.seq = seq;
+        sendToDriver(req.pack());
+    }
+
+
+    protected void acceptUploadedMission()
+    {
+        synchronized (vehicleMission)
+        {
+            vehicleMission.clear();
+            vehicleMission.addAll(Arrays.asList(uploadedItems));
+        }
+
+        msg_mission_ack ack = new msg_mission_ack();
+        ack.type = MAV_MISSION_RESULT.MAV_MISSION_ACCEPTED;
+        sendToDriver(ack.pack());
+    }
+
+
+    protected List<msg_mission_item_int> newMission(int numItems)
+    {
+        List<msg_mission_item_int> items = new ArrayList<msg_mission_item_int>();
+        for (int i = 0; i < numItems; i++)
+        {
+            msg_mission_item_int item = new msg_mission_item_int();
+            item.command = MAV_CMD.MAV_CMD_NAV_WAYPOINT;
+            item.frame = MAV_FRAME.MAV_FRAME_GLOBAL_RELATIVE_ALT_INT;
+            item.seq = i;
+            item.x = 340000000 + i;
+            item.y = -860000000 - i;
+            item.z = 30f;
+            items.add(item);
+        }
+        return items;
+    }
+
+
+    protected List<String> getParamNames()
+    {
+        synchronized (vehicleParams)
+        {
+            return new ArrayList<String>(vehicleParams.keySet());
+        }
+    }
+
+
+    protected void sendParamValue(String name, int index)
+    {
+        msg_param_value val = new msg_param_value();
+        synchronized (vehicleParams)
+        {
+            val.setParam_Id(name);
+            val.param_value = vehicleParams.get(name);
+            val.param_count = vehicleParams.size();
+            val.param_index = index;
+            val.param_type = MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32;
+        }
+        sendToDriver(val.pack());
+    }
+
+
+    protected MAVLinkPacket newHeartbeat()
+    {
+        msg_heartbeat hb = new msg_heartbeat();
+        hb.type = MAV_TYPE.MAV_TYPE_QUADROTOR;
+        hb.autopilot = MAV_AUTOPILOT.MAV_AUTOPILOT_ARDUPILOTMEGA;
+        return hb.pack();
+    }
+
+
+    protected synchronized void sendToDriver(MAVLinkPacket pkt)
+    {
+        try
+        {
+            pkt.sysid = 1;
+            pkt.compid = 1;
+            commProvider.vehicleOut.write(pkt.encodePacket());
+            commProvider.vehicleOut.flush();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+
+    @Before
+    public void init() throws Exception
+    {
+        // vehicle parameter table
+        // some parameters already have the values set by the driver
+        for (int i = 0; i < 200; i++)
+            vehicleParams.put("PARAM_" + i, (float)i);
+        vehicleParams.put("SR1_RAW_SENS", 0f);
+        vehicleParams.put("SR1_EXT_STAT", 0f);
+        vehicleParams.put("SR1_RC_CHAN", 0f);
+        vehicleParams.put("SR1_RAW_CTRL", 0f);
+        vehicleParams.put("SR1_POSITION", 1f);
+        vehicleParams.put("SR1_EXTRA1", 1f);
+        vehicleParams.put("SR1_EXTRA2", 0f);
+        vehicleParams.put("SR1_EXTRA3", 1f);
+        vehicleParams.put("WPNAV_RADIUS", 500f);
+        vehicleParams.put("CIRCLE_RADIUS", 2000f);
+        vehicleParams.put("CIRCLE_RATE", 20f);
+        vehicleParams.put("FENCE_TYPE", 3f);
+        vehicleParams.put("FENCE_ALT_MAX", 100f);
+        vehicleParams.put("FENCE_RADIUS", 150f);
+        vehicleParams.put("FENCE_MARGIN", 2f);
+        vehicleParams.put("FENCE_ENABLE", 1f);
+
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "mavlink-params-" + UUID.randomUUID());
+        initDriver();
+    }
+
+
+    protected void initDriver() throws Exception
+    {
+        MavlinkConfig config = new MavlinkConfig();
+        config.id = UUID.randomUUID().toString();
+        config.vehicleID = "sim";
+        config.commandTimeout = TIMEOUT;
+        config.commandRetries = RETRIES;
+        config.paramCacheDir = cacheDir.getPath();
+        config.logDownloadDir = cacheDir.getPath();
+        config.maxAltitude = 50f;
+        config.maxTravelDistance = 150f;
+        config.stateOutputRate = 5f;
+        config.stateMaxAge = 0.5f;
+        config.activeMessages = EnumSet.of(MsgTypes.GLOBAL_POSITION, MsgTypes.RADIO_STATUS);
+        config.activeCommands = EnumSet.of(CmdTypes.RTL, CmdTypes.LAND, CmdTypes.VELOCITY, CmdTypes.LOITER, CmdTypes.UPLOAD_MISSION, CmdTypes.DOWNLOAD_MISSION, CmdTypes.HIL_SENSOR);
+        config.hilRate = 400f;
+        config.hilQueueSize = 256;
+
+        PipeCommProviderConfig commConfig = new PipeCommProviderConfig();
+        commConfig.provider = commProvider = new PipeCommProvider();
+        config.commSettings = commConfig;
+
+        driver = new MavlinkDriver();
+        driver.init(config);
+        runVehicle();
+    }
+
+
+    protected DataComponent newCommand(CmdTypes cmdType)
+    {
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        DataComponent cmd = navControl.getCommandDescription().copy();
+        cmd.assignNewDataBlock();
+        ((DataChoice)cmd).setSelectedItem(cmdType.name());
+        return cmd;
+    }
+
+
+    protected CommandStatus execRTL() throws Exception
+    {
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        return navControl.execCommand(newCommand(CmdTypes.RTL).getData());
+    }
+
+
+    @Test
+    public void testStartDoesNotBlock() throws Exception
+    {
+        // vehicle never acknowledges anything
+        ackCommands = false;
+        long t0 = System.currentTimeMillis();
+        driver.start();
+        assertTrue("start() is blocking", System.currentTimeMillis() - t0 < TIMEOUT);
+    }
+
+
+    @Test
+    public void testStartFailureStopsDriver() throws Exception
+    {
+        // tlog cannot be created in a missing directory
+        driver.getConfiguration().tlogPath = new File(cacheDir, "missing/flight.tlog").getPath();
+        try
+        {
+            driver.start();
+            fail("start() should fail when tlog cannot be created");
+        }
+        catch (SensorHubException e)
+        {
+        }
+
+        // sender and command tracker started before the failure were stopped
+        assertEquals(StatusCode.FAILED, execRTL().status);
+        Thread.sleep(TIMEOUT);
+        assertEquals(0, numCommandsReceived.get());
+    }
+
+
+    @Test
+    public void testCommandAccepted() throws Exception
+    {
+        driver.start();
+        CommandStatus status = execRTL();
+        assertEquals(StatusCode.COMPLETED, status.status);
+        assertEquals(1, numCommandsReceived.get());
+    }
+
+
+    @Test
+    public void testCommandRetried() throws Exception
+    {
+        driver.start();
+        numCommandsToDrop = RETRIES;
+        CommandStatus status = execRTL();
+        assertEquals(StatusCode.COMPLETED, status.status);
+        assertEquals(RETRIES + 1, numCommandsReceived.get());
+        assertEquals(RETRIES, lastConfirmation);
+    }
+
+
+    @Test
+    public void testCommandTimeout() throws Exception
+    {
+        driver.start();
+        ackCommands = false;
+        CommandStatus status = execRTL();
+        assertEquals(StatusCode.FAILED, status.status);
+        assertEquals(RETRIES + 1, numCommandsReceived.get());
+    }
+
+
+    @Test
+    public void testCommandDenied() throws Exception
+    {
+        driver.start();
+        ackResult = MAV_RESULT.MAV_RESULT_DENIED;
+        CommandStatus status = execRTL();
+        assertEquals(StatusCode.REJECTED, status.status);
+    }
+
+
+    /*
+     * Tracker sending to a buffer so that acknowledgements can be injected
+     */
+    protected MavlinkCommandTracker newStandaloneTracker(ByteArrayOutputStream os)
+    {
+        MavlinkSender sender = new MavlinkSender(driver, false);
+        sender.start(os);
+        MavlinkCommandTracker tracker = new MavlinkCommandTracker(driver, sender);
+        tracker.start();
+        return tracker;
+    }
+
+
+    protected MAVLinkPacket newCommandAck(int command, int result)
+    {
+        msg_command_ack ack = new msg_command_ack();
+        ack.command = command;
+        ack.result = (short)result;
+        MAVLinkPacket pkt = ack.pack();
+        pkt.sysid = 1;
+        return pkt;
+    }
+
+
+    protected int countMessages(ByteArrayOutputStream os, final int msgId)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        byte[] data = os.toByteArray();
+        new Parser().parse(data, 0, data.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                if (packet.msgid == msgId)
+                    count.incrementAndGet();
+            }
+        });
+        return count.get();
+    }
+
+
+    @Test
+    public void testCommandInProgressNotResent() throws Exception
+    {
+        driver.getConfiguration().commandProgressTimeout = TIMEOUT * 3;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MavlinkCommandTracker tracker = newStandaloneTracker(os);
+
+        msg_command_long cmd = new msg_command_long();
+        cmd.target_system = 1;
+        cmd.command = MAV_CMD.MAV_CMD_NAV_TAKEOFF;
+        CommandStatus status = tracker.sendCommand(cmd);
+
+        // progress updates keep the command alive longer than all retries
+        for (int i = 0; i < RETRIES + 2; i++)
+        {
+            tracker.handleCommandAck(newCommandAck(cmd.command, MAV_RESULT.MAV_RESULT_IN_PROGRESS));
+            assertEquals(StatusCode.EXECUTING, status.status);
+            Thread.sleep(TIMEOUT);
+        }
+
+        tracker.handleCommandAck(newCommandAck(cmd.command, MAV_RESULT.MAV_RESULT_ACCEPTED));
+        assertEquals(StatusCode.COMPLETED, status.status);
+        assertEquals(1, countMessages(os, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+
+        // command fails if progress updates stop
+        status = tracker.sendCommand(cmd);
+        tracker.handleCommandAck(newCommandAck(cmd.command, MAV_RESULT.MAV_RESULT_IN_PROGRESS));
+        assertTrue(tracker.waitForCompletion(status, TIMEOUT * 5));
+        assertEquals(StatusCode.FAILED, status.status);
+        assertEquals(2, countMessages(os, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        tracker.stop();
+    }
+
+
+    protected msg_param_value newParamValue(String name, float value, int type)
+    {
+        msg_param_value val = new msg_param_value();
+        val.setParam_Id(name);
+        val.param_value = value;
+        val.param_type = (short)type;
+        return val;
+    }
+
+
+    @Test
+    public void testParamStaleValueIgnored() throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MavlinkCommandTracker tracker = newStandaloneTracker(os);
+
+        msg_param_set set = new msg_param_set();
+        set.target_system = 1;
+        set.setParam_Id("WPNAV_RADIUS");
+        set.param_value = 100.1f;
+        set.param_type = MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32;
+        CommandStatus status = tracker.setParam(set);
+
+        // old value from a parameter list download doesn't fail the request
+        tracker.handleParamValue(1, newParamValue("WPNAV_RADIUS", 500f, MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32));
+        assertEquals(StatusCode.PENDING, status.status);
+
+        // echo of new value after float conversions
+        tracker.handleParamValue(1, newParamValue("WPNAV_RADIUS", 100.1f * 1.000001f, MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32));
+        assertEquals(StatusCode.COMPLETED, status.status);
+
+        // integer parameters are rounded by the vehicle
+        set.setParam_Id("FENCE_TYPE");
+        set.param_value = 2.9999f;
+        status = tracker.setParam(set);
+        tracker.handleParamValue(1, newParamValue("FENCE_TYPE", 3f, MAV_PARAM_TYPE.MAV_PARAM_TYPE_UINT8));
+        assertEquals(StatusCode.COMPLETED, status.status);
+
+        // request fails if vehicle keeps reporting another value
+        set.setParam_Id("FENCE_ALT_MAX");
+        set.param_value = 100f;
+        status = tracker.setParam(set);
+        tracker.handleParamValue(1, newParamValue("FENCE_ALT_MAX", 10f, MAV_PARAM_TYPE.MAV_PARAM_TYPE_REAL32));
+        assertTrue(tracker.waitForCompletion(status));
+        assertEquals(StatusCode.FAILED, status.status);
+        assertTrue(status.message.contains("10.0"));
+        assertEquals(RETRIES + 1 + 2, countMessages(os, msg_param_set.MAVLINK_MSG_ID_PARAM_SET));
+        tracker.stop();
+    }
+
+
+    @Test
+    public void testAsyncCommandStatus() throws Exception
+    {
+        driver.start();
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        assertTrue(navControl.isAsyncExecSupported());
+
+        ackCommands = false;
+        CommandStatus status = navControl.sendCommand(newCommand(CmdTypes.RTL).getData());
+        assertEquals(StatusCode.PENDING, status.status);
+        assertSame(status, navControl.getCommandStatus(status.id));
+
+        // new RTL command supersedes the pending one
+        ackCommands = true;
+        CommandStatus status2 = navControl.execCommand(newCommand(CmdTypes.RTL).getData());
+        assertEquals(StatusCode.CANCELLED, status.status);
+        assertEquals(StatusCode.COMPLETED, status2.status);
+    }
+
+
+    protected void waitForParamDownload() throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + TIMEOUT*(RETRIES+2)*4;
+        MavlinkParamManager paramManager = driver.getParamManager();
+        while (!paramManager.isDownloadComplete(driver.getDefaultVehicle()))
+        {
+            if (System.currentTimeMillis() > maxTime)
+                fail("Parameter download not completed before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    protected void waitForParamValue(String name, float value) throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + TIMEOUT*(RETRIES+2);
+        MavlinkParamManager paramManager = driver.getParamManager();
+        while (true)
+        {
+            Float currentValue = paramManager.getParamValue(driver.getDefaultVehicle(), name);
+            if (currentValue != null && currentValue == value)
+                break;
+            if (System.currentTimeMillis() > maxTime)
+                fail("Parameter " + name + " not set before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testParamSyncWritesOnlyChanged() throws Exception
+    {
+        // drop some params so they have to be requested individually
+        dropParamIndexModulo = 7;
+        driver.start();
+        waitForParamDownload();
+        waitForParamValue("WPNAV_RADIUS", 100f);
+        waitForParamValue("CIRCLE_RATE", 5f);
+
+        // only WPNAV_RADIUS, CIRCLE_RATE and FENCE_ALT_MAX differ
+        // FENCE_ALT_MAX is resent until the last retry times out
+        long maxTime = System.currentTimeMillis() + TIMEOUT*(RETRIES+2);
+        while (numParamSetReceived.get() < 3 + RETRIES && System.currentTimeMillis() < maxTime)
+            Thread.sleep(10);
+        Thread.sleep(TIMEOUT);
+        assertEquals(3 + RETRIES, numParamSetReceived.get());
+        assertEquals(getParamNames().size() / 7 + 1, numParamReadReceived.get());
+
+        // vehicle refused the altitude so table must show actual value
+        assertEquals(10f, driver.getParamManager().getParamValue(driver.getDefaultVehicle(), "FENCE_ALT_MAX"), 0.0f);
+        assertEquals(199f, driver.getParamManager().getParamValue(driver.getDefaultVehicle(), "PARAM_199"), 0.0f);
+    }
+
+
+    @Test
+    public void testParamCache() throws Exception
+    {
+        driver.start();
+        waitForParamDownload();
+        waitForParamValue("WPNAV_RADIUS", 100f);
+        driver.stop();
+
+        // check cache was saved with new values
+        File cacheFile = new File(cacheDir, "sim.param");
+        assertTrue("Cache file not created", cacheFile.exists());
+        BufferedReader reader = new BufferedReader(new FileReader(cacheFile));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null)
+            lines.add(line);
+        reader.close();
+        assertTrue(lines.contains("WPNAV_RADIUS,100.0"));
+        assertTrue(lines.contains("PARAM_12,12.0"));
+
+        // value changed on vehicle while we were disconnected
+        // and vehicle is now slow to send the list
+        synchronized (vehicleParams)
+        {
+            vehicleParams.put("CIRCLE_RATE", 30f);
+        }
+        answerParamList = false;
+        numParamSetReceived.set(0);
+
+        // on reconnect, only the param that differs in cache is written
+        // i.e. FENCE_ALT_MAX that is clamped by vehicle
+        initDriver();
+        driver.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(1, numParamSetReceived.get());
+
+        // once list is received, value changed on vehicle is also written
+        answerParamList = true;
+        waitForParamDownload();
+        waitForParamValue("CIRCLE_RATE", 5f);
+        assertEquals(3, numParamSetReceived.get());
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        try
+        {
+            if (driver != null)
+                driver.stop();
+        }
+        catch (Exception e)
+        {
+        }
+
+        if (cacheDir != null)
+        {
+            File[] files = cacheDir.listFiles();
+            if (files != null)
+            {
+                for (File f: files)
+                    f.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+
+    protected void waitForMessageInterval(int msgId, Long interval) throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + TIMEOUT*(RETRIES+2);
+        while (true)
+        {
+            synchronized (messageIntervals)
+            {
+                if (interval.equals(messageIntervals.get(msgId)))
+                    break;
+            }
+            if (System.currentTimeMillis() > maxTime)
+                fail("Interval of message " + msgId + " not set to " + interval + " before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testMessageRatesFollowListeners() throws Exception
+    {
+        int msgId = msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT;
+        driver.start();
+        waitForParamDownload();
+
+        // messages are requested at idle rate until someone listens
+        waitForMessageInterval(msgId, 1000000L);
+
+        ISensorDataInterface output = driver.getAllOutputs().get("platformLoc");
+        IEventListener listener1 = new IEventListener() {
+            public void handleEvent(Event<?> e) { }
+        };
+        IEventListener listener2 = new IEventListener() {
+            public void handleEvent(Event<?> e) { }
+        };
+
+        output.registerListener(listener1);
+        waitForMessageInterval(msgId, 100000L);
+
+        // rate is kept until last listener leaves
+        output.registerListener(listener2);
+        output.unregisterListener(listener1);
+        Thread.sleep(TIMEOUT);
+        synchronized (messageIntervals)
+        {
+            assertEquals(Long.valueOf(100000L), messageIntervals.get(msgId));
+        }
+
+        output.unregisterListener(listener2);
+        waitForMessageInterval(msgId, 1000000L);
+    }
+
+
+    protected void sendRadioStatus(int txbuf, int numReports)
+    {
+        for (int i = 0; i < numReports; i++)
+        {
+            msg_radio_status status = new msg_radio_status();
+            status.txbuf = (short)txbuf;
+            status.rssi = status.remrssi = 150;
+            status.noise = status.remnoise = 40;
+            sendToDriver(status.pack());
+        }
+    }
+
+
+    @Test
+    public void testMessageRatesFollowRadioStatus() throws Exception
+    {
+        int msgId = msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT;
+        driver.start();
+        waitForParamDownload();
+
+        ISensorDataInterface output = driver.getAllOutputs().get("platformLoc");
+        output.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e) { }
+        });
+        waitForMessageInterval(msgId, 100000L);
+
+        // position is high priority so it's only slowed down after
+        // lower priority messages were throttled
+        sendRadioStatus(10, 4);
+        Thread.sleep(TIMEOUT);
+        synchronized (messageIntervals)
+        {
+            assertEquals(Long.valueOf(100000L), messageIntervals.get(msgId));
+        }
+        sendRadioStatus(10, 1);
+        waitForMessageInterval(msgId, 200000L);
+
+        // rate is restored after enough good reports
+        sendRadioStatus(100, 3);
+        waitForMessageInterval(msgId, 100000L);
+
+        DataBlock status = driver.getAllOutputs().get("linkThrottle").getLatestRecord();
+        assertEquals(100, status.getIntValue(1));
+        assertEquals(4, status.getIntValue(7));
+        assertEquals("RECOVER", status.getStringValue(8));
+    }
+
+
+    protected DataBlock waitForState(List<DataBlock> records, int numRecords) throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + TIMEOUT;
+        while (true)
+        {
+            synchronized (records)
+            {
+                if (records.size() >= numRecords)
+                    return records.get(numRecords-1);
+            }
+            if (System.currentTimeMillis() > maxTime)
+                fail("Vehicle state not published before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    protected void sendPositionAndAttitude(boolean sendPos)
+    {
+        if (sendPos)
+        {
+            msg_global_position_int pos = new msg_global_position_int();
+            pos.lat = 434567890;
+            pos.lon = 12345678;
+            pos.alt = 120500;
+            pos.vx = 250;
+            pos.vz = -50;
+            sendToDriver(pos.pack());
+        }
+
+        msg_attitude_quaternion att = new msg_attitude_quaternion();
+        att.q1 = 1f;
+        att.yawspeed = 0.1f;
+        sendToDriver(att.pack());
+    }
+
+
+    @Test
+    public void testLegacyRatesThrottledAsGroup() throws Exception
+    {
+        // vehicle doesn't support SET_MESSAGE_INTERVAL
+        ackResult = MAV_RESULT.MAV_RESULT_DENIED;
+        driver.start();
+        waitForParamDownload();
+
+        ISensorDataInterface output = driver.getAllOutputs().get("platformLoc");
+        output.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e) { }
+        });
+        waitForParamValue("SR1_POSITION", 10f);
+
+        // stream groups are slowed down as soon as link is saturated
+        // even if they carry high priority messages
+        sendRadioStatus(10, 1);
+        waitForParamValue("SR1_POSITION", 5f);
+        waitForParamValue("SR1_EXTRA1", 5f);
+
+        sendRadioStatus(100, 3);
+        waitForParamValue("SR1_POSITION", 10f);
+    }
+
+
+    @Test
+    public void testVehicleStateFusesPositionAndAttitude() throws Exception
+    {
+        driver.start();
+        waitForParamDownload();
+
+        final List<DataBlock> records = new ArrayList<DataBlock>();
+        driver.getAllOutputs().get("platformState").registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e)
+            {
+                synchronized (records)
+                {
+                    records.add(((SensorDataEvent)e).getRecords()[0]);
+                }
+            }
+        });
+
+        // send both samples at start of a 200ms epoch
+        while (System.currentTimeMillis() % 200 > 50)
+            Thread.sleep(1);
+        sendPositionAndAttitude(true);
+
+        // record is published as soon as both samples are received
+        DataBlock rec = waitForState(records, 1);
+        assertEquals(43.456789, rec.getDoubleValue(1), 1e-7);
+        assertEquals(1.2345678, rec.getDoubleValue(2), 1e-7);
+        assertEquals(120.5, rec.getDoubleValue(3), 1e-3);
+        assertEquals(2.5f, rec.getFloatValue(4), 1e-6f);
+        assertEquals(-0.5f, rec.getFloatValue(6), 1e-6f);
+        assertEquals(1f, rec.getFloatValue(10), 0f);
+        assertEquals(0.1f, rec.getFloatValue(13), 0f);
+        assertFalse(rec.getBooleanValue(14));
+        assertFalse(rec.getBooleanValue(15));
+
+        // without position, incomplete epoch is published when the next one
+        // starts and old position is flagged as stale
+        Thread.sleep(600);
+        sendPositionAndAttitude(false);
+        Thread.sleep(200);
+        sendPositionAndAttitude(false);
+        rec = waitForState(records, 2);
+        assertEquals(43.456789, rec.getDoubleValue(1), 1e-7);
+        assertTrue(rec.getBooleanValue(14));
+        assertFalse(rec.getBooleanValue(15));
+    }
+
+
+    protected void sendVelocitySetpoints(int numSetpoints) throws Exception
+    {
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        DataComponent cmd = newCommand(CmdTypes.VELOCITY);
+        for (int k = 0; k < numSetpoints; k++)
+        {
+            cmd.getData().setFloatValue(2, k); // vy_ENU = vx_NED
+            navControl.sendCommand(cmd.getData());
+        }
+    }
+
+
+    protected List<String> waitForTrace(String lastEntry) throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + 5000;
+        while (true)
+        {
+            synchronized (vehicleTrace)
+            {
+                if (vehicleTrace.contains(lastEntry))
+                    return new ArrayList<String>(vehicleTrace);
+            }
+            if (System.currentTimeMillis() > maxTime)
+                fail(lastEntry + " not received before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testSetpointsCoalescedWhenLinkCongested() throws Exception
+    {
+        driver.start();
+        waitForParamDownload();
+
+        // more setpoints than the link and send queue can hold
+        int numSetpoints = 3000;
+        vehicleReadPaused = true;
+        sendVelocitySetpoints(numSetpoints);
+        Thread.sleep(100);
+        vehicleReadPaused = false;
+
+        // newest setpoint is always received, and stale ones are skipped
+        List<String> trace = waitForTrace("VEL:" + (numSetpoints-1));
+        int numReceived = 0;
+        int lastValue = -1;
+        for (String entry: trace)
+        {
+            if (!entry.startsWith("VEL:"))
+                continue;
+            int value = Integer.parseInt(entry.substring(4));
+            assertTrue("Setpoints received out of order", value > lastValue);
+            lastValue = value;
+            numReceived++;
+        }
+
+        System.out.println(numReceived + " setpoints received out of " + numSetpoints);
+        assertTrue(numReceived < numSetpoints);
+        assertEquals(0, numSeqGaps.get());
+    }
+
+
+    @Test
+    public void testSafetyCommandJumpsQueue() throws Exception
+    {
+        driver.start();
+        waitForParamDownload();
+
+        // congest link, then queue regular commands before RTL
+        vehicleReadPaused = true;
+        sendVelocitySetpoints(3000);
+        Thread.sleep(100);
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        for (int k = 0; k < 20; k++)
+            navControl.sendCommand(newCommand(CmdTypes.LOITER).getData());
+        navControl.sendCommand(newCommand(CmdTypes.RTL).getData());
+        vehicleReadPaused = false;
+
+        // RTL is received before the regular commands queued first
+        // and the setpoint waiting in queue is discarded
+        List<String> trace = waitForTrace("CMD:" + MAV_CMD.MAV_CMD_NAV_LOITER_UNLIM);
+        int rtlIndex = trace.indexOf("CMD:" + MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH);
+        int loiterIndex = trace.indexOf("CMD:" + MAV_CMD.MAV_CMD_NAV_LOITER_UNLIM);
+        assertTrue("RTL should be received before LOITER", rtlIndex >= 0 && rtlIndex < loiterIndex);
+        assertFalse(trace.contains("VEL:2999"));
+        assertEquals(0, numSeqGaps.get());
+    }
+
+
+    @Test
+    public void testForwardedSafetyCommandJumpsQueue() throws Exception
+    {
+        // output stream blocked until all frames are queued
+        final CountDownLatch writeAllowed = new CountDownLatch(1);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MavlinkSender sender = new MavlinkSender(driver, false);
+        sender.start(new OutputStream() {
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                try { writeAllowed.await(); }
+                catch (InterruptedException e) { throw new IOException(e); }
+                synchronized (os) { os.write(b, off, len); }
+            }
+        });
+
+        try
+        {
+            // first frame keeps the writer busy
+            msg_heartbeat hb = new msg_heartbeat();
+            sender.send(hb);
+            Thread.sleep(100);
+
+            // bulk traffic and driver commands forwarded before a GCS RTL
+            byte[] paramFrame = encode(new msg_param_request_read().pack(), 255);
+            for (int k = 0; k < 200; k++)
+                sender.sendFrame(paramFrame, 0, paramFrame.length);
+            msg_command_long loiter = new msg_command_long();
+            loiter.target_system = 1;
+            loiter.command = MAV_CMD.MAV_CMD_NAV_LOITER_UNLIM;
+            for (int k = 0; k < 20; k++)
+                sender.send(loiter);
+            msg_command_long rtl = new msg_command_long();
+            rtl.target_system = 1;
+            rtl.command = MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH;
+            byte[] rtlFrame = encode(rtl.pack(), 255);
+            sender.sendFrame(rtlFrame, 0, rtlFrame.length);
+            writeAllowed.countDown();
+
+            // RTL must come right after the first frame
+            final List<String> trace = new ArrayList<String>();
+            long maxTime = System.currentTimeMillis() + 5000;
+            while (trace.size() < 222 && System.currentTimeMillis() < maxTime)
+            {
+                Thread.sleep(10);
+                byte[] sent;
+                synchronized (os) { sent = os.toByteArray(); }
+                trace.clear();
+                new Parser().parse(sent, 0, sent.length, new Parser.PacketHandler() {
+                    public void handlePacket(MAVLinkPacket packet)
+                    {
+                        if (packet.msgid == msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG)
+                            trace.add("CMD:" + ((msg_command_long)packet.unpack()).command);
+                        else
+                            trace.add("MSG:" + packet.msgid);
+                    }
+                });
+            }
+
+            assertEquals(222, trace.size());
+            assertEquals("CMD:" + MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH, trace.get(1));
+            assertEquals("CMD:" + MAV_CMD.MAV_CMD_NAV_LOITER_UNLIM, trace.get(2));
+            assertEquals("MSG:" + msg_param_request_read.MAVLINK_MSG_ID_PARAM_REQUEST_READ, trace.get(22));
+        }
+        finally
+        {
+            sender.stop();
+        }
+    }
+
+
+    protected byte[] encode(MAVLinkPacket pkt, int sysid)
+    {
+        pkt.sysid = sysid;
+        pkt.compid = 190;
+        return pkt.encodePacket();
+    }
+
+
+    protected void waitForTransfer(CommandStatus status) throws Exception
+    {
+        long maxTime = System.currentTimeMillis() + TIMEOUT*(RETRIES+2)*10;
+        while (status.status == StatusCode.PENDING || status.status == StatusCode.EXECUTING)
+        {
+            if (System.currentTimeMillis() > maxTime)
+                fail("Transfer not completed before timeout");
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testMissionUploadResendsLostItems() throws Exception
+    {
+        int numItems = 500;
+        dropMissionItemModulo = 50;
+        driver.start();
+
+        MavlinkMissionManager missionManager = driver.getMissionManager();
+        CommandStatus status = missionManager.uploadMission(driver.getDefaultVehicle(), newMission(numItems));
+        waitForTransfer(status);
+        assertEquals(StatusCode.COMPLETED, status.status);
+
+        // only the dropped items have been sent twice
+        assertEquals(numItems + numItems/50, numMissionItemsReceived.get());
+        synchronized (vehicleMission)
+        {
+            assertEquals(numItems, vehicleMission.size());
+            for (int i = 0; i < numItems; i++)
+                assertEquals(340000000 + i, vehicleMission.get(i).x);
+        }
+    }
+
+
+    @Test
+    public void testMissionDownloadRequestsOnlyLostItems() throws Exception
+    {
+        int numItems = 500;
+        synchronized (vehicleMission)
+        {
+            vehicleMission.addAll(newMission(numItems));
+        }
+        dropMissionItemModulo = 50;
+        driver.start();
+
+        MavlinkMissionManager missionManager = driver.getMissionManager();
+        CommandStatus status = missionManager.downloadMission(driver.getDefaultVehicle());
+        waitForTransfer(status);
+        assertEquals(StatusCode.COMPLETED, status.status);
+        assertTrue(missionAckReceived);
+
+        // only the dropped items have been requested twice
+        assertEquals(numItems + numItems/50, numMissionRequestsReceived.get());
+        List<msg_mission_item_int> mission = missionManager.getMission(driver.getDefaultVehicle());
+        assertEquals(numItems, mission.size());
+        for (int i = 0; i < numItems; i++)
+        {
+            assertEquals(i, mission.get(i).seq);
+            assertEquals(-860000000 - i, mission.get(i).y);
+        }
+    }
+
+
+    @Test
+    public void testMissionDownloadTimeout() throws Exception
+    {
+        synchronized (vehicleMission)
+        {
+            vehicleMission.addAll(newMission(10));
+        }
+
+        // vehicle never answers item requests
+        answerMissionRequests = false;
+        driver.start();
+
+        CommandStatus status = driver.getMissionManager().downloadMission(driver.getDefaultVehicle());
+        waitForTransfer(status);
+        assertEquals(StatusCode.FAILED, status.status);
+        assertNull(driver.getMissionManager().getMission(driver.getDefaultVehicle()));
+    }
+
+
+    @Test
+    public void testLogDownloadRequestsOnlyLostChunks() throws Exception
+    {
+        // last chunk is incomplete
+        int numChunks = 1001;
+        vehicleLog = new byte[(numChunks-1) * MavlinkLogManager.CHUNK_SIZE + 45];
+        new Random(42).nextBytes(vehicleLog);
+        dropLogChunkModulo = 97;
+        driver.start();
+
+        MavlinkLogManager logManager = driver.getLogManager();
+        CommandStatus status = logManager.listLogs(driver.getDefaultVehicle());
+        waitForTransfer(status);
+        assertEquals(StatusCode.COMPLETED, status.status);
+        List<msg_log_entry> logs = logManager.getLogEntries(driver.getDefaultVehicle());
+        assertEquals(1, logs.size());
+        assertEquals(vehicleLog.length, logs.get(0).size);
+
+        status = logManager.downloadLog(driver.getDefaultVehicle(), 1);
+        waitForTransfer(status);
+        assertEquals(StatusCode.COMPLETED, status.status);
+        assertTrue(logEndReceived);
+
+        // only the dropped chunks have been sent twice
+        assertEquals(numChunks + numChunks/97, numLogChunksSent.get());
+        File logFile = new File(cacheDir, "sim_1_log1.bin");
+        assertArrayEquals(vehicleLog, Files.readAllBytes(logFile.toPath()));
+    }
+
+
+    protected CommandStatus sendHilSensorBatch(int firstSample, int numSamples, long periodUsec) throws Exception
+    {
+        ISensorControlInterface hilControl = driver.getCommandInputs().get("hilInputs");
+        DataComponent cmd = hilControl.getCommandDescription().copy();
+        cmd.assignNewDataBlock();
+        ((DataChoice)cmd).setSelectedItem(CmdTypes.HIL_SENSOR.name());
+        DataComponent batch = cmd.getComponent(CmdTypes.HIL_SENSOR.name());
+        batch.getComponent("numSamples").getData().setIntValue(numSamples);
+        ((DataArray)batch.getComponent("samples")).updateSize();
+
+        DataBlock data = cmd.getData();
+        for (int n = 0; n < numSamples; n++)
+        {
+            int i = 2 + n * 15;
+            int k = firstSample + n;
+            data.setDoubleValue(i, 1000.0 + k * periodUsec / 1e6);
+            data.setFloatValue(i+1, k);
+            data.setFloatValue(i+3, -9.81f);
+        }
+
+        return hilControl.execCommand(data);
+    }
+
+
+    @Test
+    public void testHilSamplesPacedBySimulationTime() throws Exception
+    {
+        driver.start();
+
+        // queue 0.5s of samples at 200Hz in two batches
+        int numSamples = 100;
+        long periodUsec = 5000;
+        long t0 = System.nanoTime();
+        assertEquals(StatusCode.COMPLETED, sendHilSensorBatch(0, numSamples/2, periodUsec).status);
+        assertEquals(StatusCode.COMPLETED, sendHilSensorBatch(numSamples/2, numSamples/2, periodUsec).status);
+        assertTrue("Batches must be queued without waiting", System.nanoTime() - t0 < 100000000L);
+
+        long maxTime = System.currentTimeMillis() + 5000;
+        while (true)
+        {
+            synchronized (hilSamples)
+            {
+                if (hilSamples.size() >= numSamples)
+                    break;
+            }
+            if (System.currentTimeMillis() > maxTime)
+                fail("Not all HIL samples received before timeout");
+            Thread.sleep(10);
+        }
+
+        // samples are received in order, at the pace of their simulation time
+        synchronized (hilSamples)
+        {
+            assertEquals(numSamples, hilSamples.size());
+            long[] first = hilSamples.get(0);
+            for (int k = 0; k < numSamples; k++)
+            {
+                long[] sample = hilSamples.get(k);
+                assertEquals(k, sample[2]);
+                assertEquals(1000000000L + k * periodUsec, sample[1]);
+                long simOffset = (sample[1] - first[1]) * 1000L;
+                long recvOffset = sample[0] - first[0];
+                assertEquals("Sample " + k + " not sent on time", simOffset, recvOffset, 50000000L);
+            }
+        }
+    }
+
+
+    @Test
+    public void testHilQueueFull() throws Exception
+    {
+        driver.start();
+
+        // samples spread over 9s can't be sent before the queue fills up
+        CommandStatus status = sendHilSensorBatch(0, 300, 30000);
+        assertEquals(StatusCode.FAILED, status.status);
+        assertTrue(status.message.contains("of 300 samples dropped"));
+    }
+}
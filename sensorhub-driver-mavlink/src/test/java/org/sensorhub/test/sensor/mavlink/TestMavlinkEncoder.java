@@ -0,0 +1,161 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import com.MAVLink.MAVLinkEncoder;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_set_position_target_local_ned;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkEncoder
+{
+
+    protected MAVLinkMessage[] createMessages()
+    {
+        msg_command_long cmd = new msg_command_long();
+        cmd.target_system = 1;
+        cmd.command = 22;
+        cmd.param7 = 10.0f;
+
+        msg_set_position_target_local_ned velcmd = new msg_set_position_target_local_ned();
+        velcmd.target_system = 2;
+        velcmd.type_mask = 0x1C7;
+        velcmd.vx = 1.5f;
+        velcmd.vz = -0.5f;
+
+        // heartbeat uses the allocating default pack method
+        msg_heartbeat hb = new msg_heartbeat();
+        hb.type = 6;
+
+        return new MAVLinkMessage[] {cmd, velcmd, hb};
+    }
+
+
+    protected void checkSameFrames(boolean mavlink2) throws Exception
+    {
+        MAVLinkEncoder encoder = new MAVLinkEncoder(mavlink2);
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAVLinkEncoder.MAX_FRAME_LEN);
+
+        for (int i = 0; i < 300; i++)
+        {
+            for (MAVLinkMessage msg: createMessages())
+            {
+                int seq = encoder.getSequence();
+                buf.clear();
+                int frameLen = encoder.encode(msg, buf);
+                assertEquals(frameLen, buf.position());
+
+                MAVLinkPacket pkt = msg.pack();
+                pkt.isMavlink2 = mavlink2;
+                pkt.seq = seq;
+                byte[] expected = pkt.encodePacket();
+
+                byte[] frame = new byte[frameLen];
+                buf.flip();
+                buf.get(frame);
+                assertArrayEquals(expected, frame);
+            }
+        }
+    }
+
+
+    @Test
+    public void testSameAsPacketEncodingV1() throws Exception
+    {
+        checkSameFrames(false);
+    }
+
+
+    @Test
+    public void testSameAsPacketEncodingV2() throws Exception
+    {
+        checkSameFrames(true);
+    }
+
+
+    @Test
+    public void testParseConsecutiveFrames() throws Exception
+    {
+        MAVLinkEncoder encoder = new MAVLinkEncoder(true);
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        encoder.setSequence(250);
+
+        // encode several frames back to back in the same buffer
+        MAVLinkMessage[] msgs = createMessages();
+        for (int i = 0; i < 10; i++)
+            encoder.encode(msgs[i % msgs.length], buf);
+        assertEquals(4, encoder.getSequence());
+
+        // packet object is reused by parser so record fields right away
+        final List<Integer> seqs = new ArrayList<Integer>();
+        final List<MAVLinkMessage> received = new ArrayList<MAVLinkMessage>();
+        new Parser().parse(buf.array(), 0, buf.position(), new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                seqs.add(packet.seq);
+                received.add(packet.unpack());
+            }
+        });
+
+        assertEquals(10, received.size());
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals((250 + i) & 0xFF, seqs.get(i).intValue());
+            assertEquals(msgs[i % msgs.length].msgid, received.get(i).msgid);
+        }
+
+        msg_set_position_target_local_ned velcmd = (msg_set_position_target_local_ned)received.get(1);
+        assertEquals(1.5f, velcmd.vx, 0.0f);
+        assertEquals(-0.5f, velcmd.vz, 0.0f);
+    }
+
+
+    @Test
+    public void testUpdateSequence() throws Exception
+    {
+        for (boolean mavlink2: new boolean[] {false, true})
+        {
+            MAVLinkEncoder encoder = new MAVLinkEncoder(mavlink2);
+            ByteBuffer buf = ByteBuffer.allocateDirect(MAVLinkEncoder.MAX_FRAME_LEN);
+
+            for (MAVLinkMessage msg: createMessages())
+            {
+                buf.clear();
+                encoder.encode(msg, buf);
+                buf.flip();
+                MAVLinkEncoder.updateSequence(buf, 123);
+
+                // frame must be identical to a frame encoded with this sequence number
+                MAVLinkPacket pkt = msg.pack();
+                pkt.isMavlink2 = mavlink2;
+                pkt.seq = 123;
+                byte[] expected = pkt.encodePacket();
+
+                byte[] frame = new byte[buf.remaining()];
+                buf.get(frame);
+                assertArrayEquals(expected, frame);
+            }
+        }
+    }
+}
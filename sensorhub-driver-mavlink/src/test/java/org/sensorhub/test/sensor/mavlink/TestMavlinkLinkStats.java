@@ -0,0 +1,138 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.MavlinkLinkStats;
+import org.sensorhub.impl.sensor.mavlink.MavlinkLinkStats.SourceStats;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_heartbeat;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkLinkStats
+{
+    static final int NUM_PACKETS = 600;
+
+
+    /*
+     * Generate frames from two components with independent sequence numbers,
+     * dropping and corrupting some of them
+     */
+    protected byte[] generateStream(int dropModulo, int corruptModulo)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < NUM_PACKETS; i++)
+        {
+            MAVLinkPacket pkt;
+            if (i % 2 == 0)
+            {
+                msg_attitude att = new msg_attitude();
+                att.time_boot_ms = i;
+                pkt = att.pack();
+                pkt.compid = 1;
+            }
+            else
+            {
+                msg_heartbeat hb = new msg_heartbeat();
+                pkt = hb.pack();
+                pkt.compid = 154;
+            }
+
+            pkt.sysid = 1;
+            pkt.seq = (i / 2) & 0xFF;
+            pkt.isMavlink2 = (i % 3 == 0);
+            byte[] frame = pkt.encodePacket();
+
+            if (i % dropModulo == 0)
+                continue;
+            if (i % corruptModulo == 0)
+                frame[frame.length-1] ^= 0x55;
+            os.write(frame, 0, frame.length);
+        }
+
+        return os.toByteArray();
+    }
+
+
+    @Test
+    public void testCounters() throws Exception
+    {
+        final MavlinkLinkStats stats = new MavlinkLinkStats();
+        final Parser parser = new Parser();
+        byte[] data = generateStream(10, 7);
+
+        // parse in chunks like the driver does
+        int off = 0;
+        while (off < data.length)
+        {
+            int len = Math.min(data.length - off, 256);
+            parser.parse(data, off, len, new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    int frameLen = parser.getCurrentFrameLength();
+                    assertEquals(packet.encodePacket().length, frameLen);
+                    stats.recordPacket(packet, frameLen, 1000);
+                }
+            });
+            stats.recordChunk(len, parser.stats.crcErrorCount, 0);
+            off += len;
+        }
+
+        // count expected packets
+        int numDropped = 0, numCorrupted = 0;
+        for (int i = 0; i < NUM_PACKETS; i++)
+        {
+            if (i % 10 == 0)
+                numDropped++;
+            else if (i % 7 == 0)
+                numCorrupted++;
+        }
+        int numReceived = NUM_PACKETS - numDropped - numCorrupted;
+
+        List<SourceStats> sources = stats.getSources();
+        assertEquals(2, sources.size());
+        assertEquals(1, sources.get(0).getSystemID());
+        assertEquals(154, sources.get(0).getComponentID()); // first attitude packet was dropped
+        assertEquals(1, sources.get(1).getComponentID());
+
+        // each missing frame is a gap in its source sequence, except if it was the first one
+        assertEquals(numDropped + numCorrupted - 1, sumLost(sources));
+        assertTrue(numCorrupted <= parser.stats.crcErrorCount);
+        assertEquals(numReceived, sumPackets(sources));
+    }
+
+
+    private long sumLost(List<SourceStats> sources)
+    {
+        long total = 0;
+        for (SourceStats source: sources)
+            total += source.getLostCount();
+        return total;
+    }
+
+
+    private long sumPackets(List<SourceStats> sources)
+    {
+        long total = 0;
+        for (SourceStats source: sources)
+            total += source.getPacketCount();
+        return total;
+    }
+}
@@ -0,0 +1,390 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataChoice;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.comm.CommProviderConfig;
+import org.sensorhub.api.comm.ICommProvider;
+import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.sensor.ISensorControlInterface;
+import org.sensorhub.impl.module.AbstractModule;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.MsgTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkDriver;
+import org.sensorhub.impl.sensor.mavlink.MavlinkOutput;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_adsb_vehicle;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.enums.MAV_AUTOPILOT;
+import com.MAVLink.enums.MAV_CMD;
+import com.MAVLink.enums.MAV_TYPE;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkMultiVehicle
+{
+    static final int NUM_VEHICLES = 100;
+    static final int NUM_SAMPLES = 200;
+    static final long TIMEOUT = 20000L;
+
+    MavlinkDriver driver;
+    MavlinkConfig config;
+    MemoryCommProvider commProvider;
+    int numPackets;
+
+
+    /*
+     * Comm provider reading from a pre-generated byte stream and
+     * collecting all bytes written to it
+     */
+    public static class MemoryCommProvider extends AbstractModule<MemoryCommProviderConfig> implements ICommProvider<MemoryCommProviderConfig>
+    {
+        InputStream is;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        public MemoryCommProvider(byte[] data)
+        {
+            this.is = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return is;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return os;
+        }
+
+        @Override
+        public void start() throws SensorHubException
+        {
+        }
+
+        @Override
+        public void stop() throws SensorHubException
+        {
+        }
+
+        @Override
+        public void cleanup() throws SensorHubException
+        {
+        }
+    }
+
+
+    public static class MemoryCommProviderConfig extends CommProviderConfig<Object>
+    {
+        transient MemoryCommProvider provider;
+
+        @Override
+        public ICommProvider<?> getProvider()
+        {
+            return provider;
+        }
+    }
+
+
+    protected void write(ByteArrayOutputStream os, MAVLinkPacket pkt, int sysid)
+    {
+        pkt.sysid = sysid;
+        pkt.compid = 1;
+        pkt.isMavlink2 = (sysid % 2 == 0);
+        byte[] frame = pkt.encodePacket();
+        os.write(frame, 0, frame.length);
+        numPackets++;
+    }
+
+
+    protected byte[] generateFleetStream()
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        // a GCS heartbeat that must not be seen as a vehicle
+        msg_heartbeat gcsHb = new msg_heartbeat();
+        gcsHb.type = MAV_TYPE.MAV_TYPE_GCS;
+        gcsHb.autopilot = MAV_AUTOPILOT.MAV_AUTOPILOT_INVALID;
+        write(os, gcsHb.pack(), 255);
+
+        for (int k = 0; k < NUM_SAMPLES; k++)
+        {
+            for (int sysid = 1; sysid <= NUM_VEHICLES; sysid++)
+            {
+                if (k % 50 == 0)
+                {
+                    msg_heartbeat hb = new msg_heartbeat();
+                    hb.type = MAV_TYPE.MAV_TYPE_QUADROTOR;
+                    hb.autopilot = MAV_AUTOPILOT.MAV_AUTOPILOT_ARDUPILOTMEGA;
+                    write(os, hb.pack(), sysid);
+                }
+
+                msg_global_position_int pos = new msg_global_position_int();
+                pos.time_boot_ms = k * 100;
+                pos.lat = getLat(sysid, k);
+                pos.lon = -860000000 - k;
+                pos.alt = 100000 + k;
+                write(os, pos.pack(), sysid);
+
+                msg_attitude att = new msg_attitude();
+                att.time_boot_ms = k * 100;
+                att.yaw = 0.01f * sysid;
+                write(os, att.pack(), sysid);
+            }
+        }
+
+        return os.toByteArray();
+    }
+
+
+    protected int getLat(int sysid, int k)
+    {
+        return 340000000 + sysid * 10000 + k;
+    }
+
+
+    @Before
+    public void init() throws Exception
+    {
+        config = new MavlinkConfig();
+        config.id = UUID.randomUUID().toString();
+        config.vehicleID = "fleet";
+        config.multiVehicle = true;
+        config.activeMessages = EnumSet.of(
+                MsgTypes.GLOBAL_POSITION,
+                MsgTypes.ATTITUDE);
+        config.activeCommands = EnumSet.of(
+                CmdTypes.RTL,
+                CmdTypes.LAND);
+
+        MemoryCommProviderConfig commConfig = new MemoryCommProviderConfig();
+        commConfig.provider = commProvider = new MemoryCommProvider(generateFleetStream());
+        config.commSettings = commConfig;
+
+        driver = new MavlinkDriver();
+        driver.init(config);
+    }
+
+
+    @Test
+    public void testDemuxHundredVehicles() throws Exception
+    {
+        MavlinkOutput posOutput = (MavlinkOutput)driver.getObservationOutputs().get("platformLoc");
+        String lastVehicle = Integer.toString(NUM_VEHICLES);
+        double lastLat = getLat(NUM_VEHICLES, NUM_SAMPLES-1) / 1e7;
+
+        long t0 = System.nanoTime();
+        driver.start();
+
+        // wait until last sample of last vehicle is received
+        long maxTime = System.currentTimeMillis() + TIMEOUT;
+        while (true)
+        {
+            DataBlock rec = posOutput.getLatestRecord(lastVehicle);
+            if (rec != null && rec.getDoubleValue(1) == lastLat)
+                break;
+            if (System.currentTimeMillis() > maxTime)
+                fail("Not all messages received before timeout");
+            Thread.sleep(1);
+        }
+
+        double dt = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%d packets from %d vehicles processed in %.3fs (%.0f packets/s)\n", numPackets, NUM_VEHICLES, dt, numPackets / dt);
+
+        // check we have one entity per vehicle with its own latest record
+        assertEquals(NUM_VEHICLES, driver.getEntityIDs().size());
+        assertEquals(NUM_VEHICLES, driver.getFeaturesOfInterest().size());
+        for (int sysid = 1; sysid <= NUM_VEHICLES; sysid++)
+        {
+            String entityID = Integer.toString(sysid);
+            assertNotNull(driver.getCurrentFeatureOfInterest(entityID));
+            DataBlock rec = posOutput.getLatestRecord(entityID);
+            assertEquals(getLat(sysid, NUM_SAMPLES-1) / 1e7, rec.getDoubleValue(1), 0.0);
+        }
+    }
+
+
+    @Test
+    public void testCommandRouting() throws Exception
+    {
+        // commands are never acknowledged here so don't resend them
+        config.commandTimeout = 100;
+        config.commandRetries = 0;
+        testDemuxHundredVehicles();
+
+        // send RTL to one vehicle
+        // status is FAILED since there is no ack but command must be sent
+        ISensorControlInterface navControl = driver.getCommandInputs().get("navCommands");
+        DataComponent cmd = navControl.getCommandDescription().copy();
+        cmd.assignNewDataBlock();
+        cmd.getComponent("vehicleID").getData().setStringValue("42");
+        ((DataChoice)cmd.getComponent("command")).setSelectedItem(CmdTypes.RTL.name());
+        navControl.execCommand(cmd.getData());
+
+        // command to unknown vehicle must fail
+        try
+        {
+            cmd.getComponent("vehicleID").getData().setStringValue("142");
+            navControl.execCommand(cmd.getData());
+            fail("Command to unknown vehicle should fail");
+        }
+        catch (Exception e)
+        {
+        }
+
+        // check RTL was only sent to vehicle 42
+        final List<Integer> rtlTargets = new ArrayList<Integer>();
+        byte[] sent = commProvider.os.toByteArray();
+        new Parser().parse(sent, 0, sent.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                if (packet.msgid == msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG)
+                {
+                    msg_command_long cmd = (msg_command_long)packet.unpack();
+                    if (cmd.command == MAV_CMD.MAV_CMD_NAV_RETURN_TO_LAUNCH)
+                        rtlTargets.add((int)cmd.target_system);
+                }
+            }
+        });
+
+        assertEquals(1, rtlTargets.size());
+        assertEquals(42, (int)rtlTargets.get(0));
+    }
+
+
+    @Test
+    public void testSingleVehicleEntity() throws Exception
+    {
+        // in single vehicle mode, the sensor itself is the only entity
+        config.multiVehicle = false;
+        driver = new MavlinkDriver();
+        driver.init(config);
+
+        String uid = driver.getUniqueIdentifier();
+        assertEquals(1, driver.getEntityIDs().size());
+        assertEquals(uid, driver.getEntityIDs().iterator().next());
+        assertEquals(1, driver.getFeaturesOfInterest().size());
+        assertEquals(uid, driver.getFeaturesOfInterestIDs().iterator().next());
+        assertNotNull(driver.getCurrentFeatureOfInterest(uid));
+        assertNotNull(driver.getCurrentDescription(uid));
+        assertNull(driver.getCurrentFeatureOfInterest("1"));
+    }
+
+
+    @Test
+    public void testSingleVehicleLatestRecord() throws Exception
+    {
+        // latest record is available for the sensor entity in single vehicle mode
+        config.multiVehicle = false;
+        driver = new MavlinkDriver();
+        driver.init(config);
+        MavlinkOutput posOutput = (MavlinkOutput)driver.getObservationOutputs().get("platformLoc");
+        String uid = driver.getUniqueIdentifier();
+        assertNull(posOutput.getLatestRecord(uid));
+        driver.start();
+
+        long maxTime = System.currentTimeMillis() + TIMEOUT;
+        while (posOutput.getLatestRecord(uid) == null)
+        {
+            if (System.currentTimeMillis() > maxTime)
+                fail("No record received before timeout");
+            Thread.sleep(1);
+        }
+
+        assertNull(posOutput.getLatestRecord("1"));
+    }
+
+
+    @Test
+    public void testAdsbAircraftEntities() throws Exception
+    {
+        // re-init with a stream of ADS-B traffic seen by vehicle 1
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg_heartbeat hb = new msg_heartbeat();
+        hb.type = MAV_TYPE.MAV_TYPE_QUADROTOR;
+        hb.autopilot = MAV_AUTOPILOT.MAV_AUTOPILOT_ARDUPILOTMEGA;
+        write(os, hb.pack(), 1);
+        for (int i = 0; i < 3; i++)
+        {
+            msg_adsb_vehicle adsb = new msg_adsb_vehicle();
+            adsb.ICAO_address = 0xA1B2C0 + i;
+            adsb.lat = 340000000 + i;
+            byte[] callsign = ("TEST" + i).getBytes();
+            System.arraycopy(callsign, 0, adsb.callsign, 0, callsign.length);
+            write(os, adsb.pack(), 1);
+        }
+
+        config.activeMessages = EnumSet.of(MsgTypes.ADSB_VEHICLE);
+        MemoryCommProviderConfig commConfig = new MemoryCommProviderConfig();
+        commConfig.provider = commProvider = new MemoryCommProvider(os.toByteArray());
+        config.commSettings = commConfig;
+        driver = new MavlinkDriver();
+        driver.init(config);
+        driver.start();
+
+        // each aircraft is an entity with its own FOI
+        String lastAircraft = "ICAO-A1B2C2";
+        long maxTime = System.currentTimeMillis() + TIMEOUT;
+        while (driver.getCurrentFeatureOfInterest(lastAircraft) == null)
+        {
+            if (System.currentTimeMillis() > maxTime)
+                fail("Aircraft entities not registered before timeout");
+            Thread.sleep(1);
+        }
+
+        assertEquals(4, driver.getEntityIDs().size());
+        assertTrue(driver.getEntityIDs().contains("ICAO-A1B2C0"));
+        assertEquals(4, driver.getFeaturesOfInterest().size());
+        assertEquals(4, driver.getFeaturesOfInterestIDs().size());
+        DataBlock rec = driver.getObservationOutputs().get("adsbTraffic").getLatestRecord();
+        assertEquals("A1B2C2", rec.getStringValue(1));
+        assertEquals("TEST2", rec.getStringValue(2));
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        try
+        {
+            if (driver != null)
+                driver.stop();
+        }
+        catch (Exception e)
+        {
+        }
+    }
+}
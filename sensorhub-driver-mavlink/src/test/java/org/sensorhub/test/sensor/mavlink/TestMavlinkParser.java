@@ -0,0 +1,362 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.ardupilotmega.CRC;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_heartbeat;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkParser
+{
+    static final int NUM_PACKETS = 1000;
+
+
+    protected MAVLinkMessage generateMessage(int i)
+    {
+        switch (i % 3)
+        {
+            case 0:
+                msg_attitude att = new msg_attitude();
+                att.time_boot_ms = i;
+                att.roll = 0.1f * i;
+                att.yaw = -0.2f * i;
+                return att;
+
+            case 1:
+                msg_heartbeat hb = new msg_heartbeat();
+                hb.custom_mode = i;
+                return hb;
+
+            default:
+                msg_global_position_int pos = new msg_global_position_int();
+                pos.time_boot_ms = i;
+                pos.lat = 340000000 + i;
+                pos.lon = -860000000 - i;
+                pos.alt = 100 * i;
+                return pos;
+        }
+    }
+
+
+    protected byte[] generateStream(List<String> expectedFrames, boolean addNoise)
+    {
+        return generateStream(expectedFrames, addNoise, false);
+    }
+
+
+    protected byte[] generateStream(List<String> expectedFrames, boolean addNoise, boolean mixVersions)
+    {
+        Random rand = new Random(42);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        for (int i = 0; i < NUM_PACKETS; i++)
+        {
+            MAVLinkMessage msg = generateMessage(i);
+            MAVLinkPacket pkt = msg.pack();
+            pkt.seq = i & 0xFF;
+            pkt.isMavlink2 = mixVersions && (i % 2 == 0);
+            byte[] frame = pkt.encodePacket();
+            os.write(frame, 0, frame.length);
+            expectedFrames.add(Arrays.toString(frame));
+
+            // insert random bytes between some frames
+            if (addNoise && rand.nextInt(10) == 0)
+            {
+                byte[] junk = new byte[rand.nextInt(20)];
+                rand.nextBytes(junk);
+                os.write(junk, 0, junk.length);
+            }
+        }
+
+        return os.toByteArray();
+    }
+
+
+    @Test
+    public void testParseWholeBuffer() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, false);
+
+        final List<String> frames = new ArrayList<String>();
+        int count = new Parser().parse(ByteBuffer.wrap(data), new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                frames.add(Arrays.toString(packet.encodePacket()));
+            }
+        });
+
+        assertEquals(NUM_PACKETS, count);
+        assertEquals(expectedFrames, frames);
+    }
+
+
+    @Test
+    public void testParseRandomChunks() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, true);
+
+        final List<String> frames = new ArrayList<String>();
+        Parser parser = new Parser();
+        Random rand = new Random(1);
+        int off = 0;
+        while (off < data.length)
+        {
+            int len = Math.min(data.length - off, 1 + rand.nextInt(300));
+            parser.parse(data, off, len, new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    frames.add(Arrays.toString(packet.encodePacket()));
+                }
+            });
+            off += len;
+        }
+
+        assertEquals(expectedFrames, frames);
+        assertEquals(NUM_PACKETS, parser.stats.receivedPacketCount);
+    }
+
+
+    @Test
+    public void testParseDirectBuffer() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, false);
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data).flip();
+
+        final List<String> frames = new ArrayList<String>();
+        new Parser().parse(buf, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                frames.add(Arrays.toString(packet.encodePacket()));
+            }
+        });
+
+        assertEquals(expectedFrames, frames);
+        assertFalse(buf.hasRemaining());
+    }
+
+
+    @Test
+    public void testCorruptedFrameIsSkipped() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, false);
+
+        // corrupt one payload byte of the first frame
+        data[8] ^= 0x55;
+
+        final List<String> frames = new ArrayList<String>();
+        Parser parser = new Parser();
+        parser.parse(data, 0, data.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                frames.add(Arrays.toString(packet.encodePacket()));
+            }
+        });
+
+        assertEquals(expectedFrames.subList(1, NUM_PACKETS), frames);
+        assertEquals(1, parser.stats.crcErrorCount);
+    }
+
+
+    @Test
+    public void testParseMixedVersionsRandomChunks() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, true, true);
+
+        final List<String> frames = new ArrayList<String>();
+        Parser parser = new Parser();
+        Random rand = new Random(2);
+        int off = 0;
+        while (off < data.length)
+        {
+            int len = Math.min(data.length - off, 1 + rand.nextInt(300));
+            parser.parse(data, off, len, new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    frames.add(Arrays.toString(packet.encodePacket()));
+                }
+            });
+            off += len;
+        }
+
+        assertEquals(expectedFrames, frames);
+        assertEquals(NUM_PACKETS, parser.stats.receivedPacketCount);
+    }
+
+
+    @Test
+    public void testMavlink2PayloadTruncation() throws Exception
+    {
+        // first send a packet with full payload to dirty the pooled buffers
+        msg_attitude full = new msg_attitude();
+        full.time_boot_ms = 1000;
+        full.roll = 1.0f;
+        full.pitch = 2.0f;
+        full.yaw = 3.0f;
+        full.rollspeed = 4.0f;
+        full.pitchspeed = 5.0f;
+        full.yawspeed = 6.0f;
+
+        msg_attitude trunc = new msg_attitude();
+        trunc.time_boot_ms = 2000;
+        trunc.roll = 0.5f;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++)
+        {
+            MAVLinkPacket pkt = (i % 2 == 0 ? full : trunc).pack();
+            pkt.isMavlink2 = true;
+            byte[] frame = pkt.encodePacket();
+            if (i % 2 == 1)
+                assertEquals(MAVLinkPacket.MAVLINK2_HEADER_LEN + 8 + 2, frame.length);
+            os.write(frame, 0, frame.length);
+        }
+
+        final List<String> messages = new ArrayList<String>();
+        byte[] data = os.toByteArray();
+        new Parser().parse(data, 0, data.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                assertTrue(packet.isMavlink2);
+                messages.add(packet.unpack().toString());
+            }
+        });
+
+        assertEquals(8, messages.size());
+        for (int i = 0; i < 8; i++)
+            assertEquals((i % 2 == 0 ? full : trunc).toString(), messages.get(i));
+    }
+
+
+    @Test
+    public void testMavlink2ExtendedMsgId() throws Exception
+    {
+        // PROTOCOL_VERSION message has a 24-bit ID
+        MAVLinkPacket pkt = new MAVLinkPacket();
+        pkt.isMavlink2 = true;
+        pkt.msgid = 300;
+        pkt.sysid = 1;
+        pkt.compid = 1;
+        pkt.len = 22;
+        pkt.payload.putUnsignedShort(200);
+        pkt.payload.putUnsignedShort(100);
+        pkt.payload.putUnsignedShort(200);
+        for (int i = 0; i < 16; i++)
+            pkt.payload.putByte((byte)0);
+        byte[] frame = pkt.encodePacket();
+        assertEquals(300, (frame[7] & 0xFF) | ((frame[8] & 0xFF) << 8));
+
+        // also append a signed frame with an unknown message ID
+        MAVLinkPacket unknown = new MAVLinkPacket();
+        unknown.isMavlink2 = true;
+        unknown.msgid = 0x123456;
+        unknown.len = 1;
+        unknown.payload.putByte((byte)1);
+        CRC.registerCrcExtra(0x123456, 77);
+        byte[] signed = Arrays.copyOf(unknown.encodePacket(), MAVLinkPacket.MAVLINK2_HEADER_LEN + 1 + 2 + 13);
+        signed[2] = MAVLinkPacket.MAVLINK_IFLAG_SIGNED;
+        int crc = CRC.CRC_INIT_VALUE;
+        for (int i = 1; i < MAVLinkPacket.MAVLINK2_HEADER_LEN + 1; i++)
+            crc = CRC.accumulate(signed[i], crc);
+        crc = CRC.accumulate(77, crc);
+        signed[MAVLinkPacket.MAVLINK2_HEADER_LEN + 1] = (byte)crc;
+        signed[MAVLinkPacket.MAVLINK2_HEADER_LEN + 2] = (byte)(crc >> 8);
+
+        ByteBuffer buf = ByteBuffer.allocate(frame.length + signed.length + frame.length);
+        buf.put(frame).put(signed).put(frame).flip();
+
+        final List<Integer> msgIds = new ArrayList<Integer>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+        new Parser().parse(buf, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                msgIds.add(packet.msgid);
+                lengths.add(packet.len);
+            }
+        });
+
+        assertEquals(Arrays.asList(300, 0x123456, 300), msgIds);
+        assertEquals(Arrays.asList(5, 1, 5), lengths);
+    }
+
+
+    @Test
+    public void testGetCurrentFrame() throws Exception
+    {
+        List<String> expectedFrames = new ArrayList<String>();
+        byte[] data = generateStream(expectedFrames, true, true);
+
+        final List<String> frames = new ArrayList<String>();
+        final Parser parser = new Parser();
+        final byte[] frame = new byte[Parser.MAX_FRAME_LEN];
+        Random rand = new Random(3);
+        int off = 0;
+        while (off < data.length)
+        {
+            int len = Math.min(data.length - off, 1 + rand.nextInt(100));
+            parser.parse(data, off, len, new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    int frameLen = parser.getCurrentFrame(frame, 0);
+                    frames.add(Arrays.toString(Arrays.copyOf(frame, frameLen)));
+                }
+            });
+            off += len;
+        }
+
+        assertEquals(expectedFrames, frames);
+        assertEquals(-1, parser.getCurrentFrame(frame, 0));
+    }
+
+
+    @Test
+    public void testCrcExtraLookup() throws Exception
+    {
+        assertEquals(50, CRC.getCrcExtra(0));
+        assertEquals(71, CRC.getCrcExtra(256));
+        assertEquals(217, CRC.getCrcExtra(300));
+        assertEquals(91, CRC.getCrcExtra(331));
+        assertEquals(-1, CRC.getCrcExtra(270));
+        assertEquals(-1, CRC.getCrcExtra(0xFFFFFF));
+
+        // registered ids are inserted in order and can be overriden
+        CRC.registerCrcExtra(270, 12);
+        CRC.registerCrcExtra(0xFFFFFF, 300);
+        assertEquals(12, CRC.getCrcExtra(270));
+        assertEquals(44, CRC.getCrcExtra(0xFFFFFF));
+        assertEquals(35, CRC.getCrcExtra(267));
+        assertEquals(19, CRC.getCrcExtra(299));
+        CRC.registerCrcExtra(270, 13);
+        assertEquals(13, CRC.getCrcExtra(270));
+    }
+}
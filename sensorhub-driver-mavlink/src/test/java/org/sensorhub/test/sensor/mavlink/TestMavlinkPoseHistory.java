@@ -0,0 +1,140 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.MavlinkPoseHistory;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkPoseHistory
+{
+    static final double T0 = 1479168000.0;
+    static final double EPS = 1e-5; // time resolution is ~0.2us at current epoch
+
+    double[] pose = new double[MavlinkPoseHistory.POSE_SIZE];
+    double[] ages = new double[3];
+
+
+    @Test
+    public void testEmptyHistory()
+    {
+        MavlinkPoseHistory history = new MavlinkPoseHistory();
+        history.getPose(T0, pose, ages);
+        for (double v: pose)
+            assertTrue(Double.isNaN(v));
+        for (double v: ages)
+            assertTrue(Double.isNaN(v));
+    }
+
+
+    @Test
+    public void testInterpolatePosition()
+    {
+        MavlinkPoseHistory history = new MavlinkPoseHistory();
+        for (int i = 0; i < 10; i++)
+            history.addPosition(T0 + i*0.1, 34.0 + i*1e-4, -86.0 - i*1e-4, 100.0 + i);
+
+        // between samples
+        history.getPose(T0 + 0.425, pose, ages);
+        assertEquals(34.0 + 4.25e-4, pose[0], 1e-9);
+        assertEquals(-86.0 - 4.25e-4, pose[1], 1e-9);
+        assertEquals(104.25, pose[2], EPS);
+        assertEquals(0.025, ages[0], EPS);
+
+        // exactly on a sample
+        history.getPose(T0 + 0.3, pose, ages);
+        assertEquals(103.0, pose[2], EPS);
+        assertEquals(0.0, ages[0], EPS);
+
+        // after newest sample
+        history.getPose(T0 + 1.2, pose, ages);
+        assertEquals(109.0, pose[2], EPS);
+        assertEquals(0.3, ages[0], EPS);
+
+        // before oldest sample
+        history.getPose(T0 - 0.5, pose, ages);
+        assertEquals(100.0, pose[2], EPS);
+        assertEquals(0.5, ages[0], EPS);
+
+        // other streams are still empty
+        assertTrue(Double.isNaN(pose[3]));
+        assertTrue(Double.isNaN(ages[1]));
+        assertTrue(Double.isNaN(ages[2]));
+    }
+
+
+    @Test
+    public void testInterpolateAnglesAcrossWrap()
+    {
+        MavlinkPoseHistory history = new MavlinkPoseHistory();
+        double yaw0 = Math.toRadians(170);
+        double yaw1 = Math.toRadians(-170);
+        history.addAttitude(T0, 0.0, 0.0, yaw0);
+        history.addAttitude(T0 + 0.1, 0.2, 0.0, yaw1);
+        history.addGimbal(T0, 0.0, Math.toRadians(-90), Math.toRadians(-179));
+        history.addGimbal(T0 + 0.1, 0.0, Math.toRadians(-80), Math.toRadians(179));
+
+        // yaw must go through 180, not through 0
+        history.getPose(T0 + 0.05, pose, ages);
+        assertEquals(0.1, pose[3], EPS);
+        assertEquals(Math.PI, Math.abs(pose[5]), EPS);
+        assertEquals(Math.toRadians(-85), pose[7], EPS);
+        assertEquals(Math.PI, Math.abs(pose[8]), EPS);
+
+        history.getPose(T0 + 0.075, pose, ages);
+        assertEquals(Math.toRadians(-175), pose[5], EPS);
+        assertEquals(Math.toRadians(179.5), pose[8], EPS);
+    }
+
+
+    @Test
+    public void testRingWrapAround()
+    {
+        MavlinkPoseHistory history = new MavlinkPoseHistory();
+        for (int i = 0; i < 1000; i++)
+            history.addPosition(T0 + i*0.02, 0.0, 0.0, i);
+
+        // recent samples are interpolated
+        history.getPose(T0 + 998.5*0.02, pose, ages);
+        assertEquals(998.5, pose[2], EPS);
+
+        // old samples have been overwritten
+        history.getPose(T0 + 10*0.02, pose, ages);
+        assertTrue(pose[2] > 800);
+        assertTrue(ages[0] > 1.0);
+    }
+
+
+    @Test
+    public void testLateAndResetSamples()
+    {
+        MavlinkPoseHistory history = new MavlinkPoseHistory();
+        history.addPosition(T0, 0.0, 0.0, 1.0);
+        history.addPosition(T0 + 0.2, 0.0, 0.0, 2.0);
+
+        // late sample is ignored
+        history.addPosition(T0 + 0.1, 0.0, 0.0, 50.0);
+        history.getPose(T0 + 0.1, pose, ages);
+        assertEquals(1.5, pose[2], EPS);
+
+        // large jump back in time restarts history
+        history.addPosition(T0 - 10.0, 0.0, 0.0, 3.0);
+        history.getPose(T0 + 0.1, pose, ages);
+        assertEquals(3.0, pose[2], EPS);
+        assertEquals(10.1, ages[0], EPS);
+    }
+}
@@ -0,0 +1,331 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Test;
+import org.sensorhub.api.comm.CommProviderConfig;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig;
+import org.sensorhub.impl.sensor.mavlink.MavlinkDriver;
+import org.sensorhub.impl.sensor.mavlink.MavlinkRouter;
+import org.sensorhub.test.sensor.mavlink.TestMavlinkCommands.PipeCommProvider;
+import org.sensorhub.test.sensor.mavlink.TestMavlinkCommands.PipeCommProviderConfig;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_mission_request_int;
+import com.MAVLink.common.msg_param_request_list;
+import com.MAVLink.enums.MAV_CMD;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkRouter
+{
+    static final int TIMEOUT = 2000;
+
+    MavlinkDriver driver;
+    File cacheDir;
+
+
+    /*
+     * Collects packets received on one side of a pipe link
+     */
+    static class LinkReader extends Thread
+    {
+        final InputStream is;
+        final List<MAVLinkPacket> packets = Collections.synchronizedList(new ArrayList<MAVLinkPacket>());
+
+        LinkReader(InputStream is)
+        {
+            this.is = is;
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            Parser parser = new Parser();
+            byte[] buf = new byte[1024];
+            Parser.PacketHandler handler = new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    packets.add(packet);
+                }
+            };
+
+            try
+            {
+                int nBytes;
+                while ((nBytes = is.read(buf)) >= 0)
+                    parser.parse(buf, 0, nBytes, handler);
+            }
+            catch (IOException e)
+            {
+            }
+        }
+
+        boolean waitFor(int sysid, int msgid) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (System.currentTimeMillis() < deadline)
+            {
+                if (contains(sysid, msgid))
+                    return true;
+                Thread.sleep(10);
+            }
+            return false;
+        }
+
+        boolean contains(int sysid, int msgid)
+        {
+            synchronized (packets)
+            {
+                for (MAVLinkPacket pkt: packets)
+                {
+                    if (pkt.sysid == sysid && pkt.msgid == msgid)
+                        return true;
+                }
+                return false;
+            }
+        }
+
+        int count(int sysid, int msgid)
+        {
+            synchronized (packets)
+            {
+                int count = 0;
+                for (MAVLinkPacket pkt: packets)
+                {
+                    if (pkt.sysid == sysid && pkt.msgid == msgid)
+                        count++;
+                }
+                return count;
+            }
+        }
+    }
+
+
+    protected int getTargetSystem(MAVLinkPacket pkt, boolean mavlink2)
+    {
+        // go through parser so we get packets truncated like on the link
+        pkt.isMavlink2 = mavlink2;
+        byte[] frame = pkt.encodePacket();
+        final List<Integer> targets = new ArrayList<Integer>();
+        new Parser().parse(frame, 0, frame.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                targets.add(MavlinkRouter.getTargetSystem(packet));
+            }
+        });
+
+        assertEquals(1, targets.size());
+        return targets.get(0);
+    }
+
+
+    @Test
+    public void testTargetSystem() throws Exception
+    {
+        for (boolean mavlink2: new boolean[] {false, true})
+        {
+            msg_command_long cmd = new msg_command_long();
+            cmd.target_system = 12;
+            cmd.param1 = 1.0f;
+            assertEquals(12, getTargetSystem(cmd.pack(), mavlink2));
+
+            msg_mission_request_int req = new msg_mission_request_int();
+            req.target_system = 3;
+            req.seq = 100;
+            assertEquals(3, getTargetSystem(req.pack(), mavlink2));
+
+            msg_param_request_list list = new msg_param_request_list();
+            assertEquals(0, getTargetSystem(list.pack(), mavlink2));
+
+            msg_heartbeat hb = new msg_heartbeat();
+            hb.type = 2;
+            assertEquals(-1, getTargetSystem(hb.pack(), mavlink2));
+        }
+    }
+
+
+    @Test
+    public void testTargetOffsetTable() throws Exception
+    {
+        // payload where each byte is set to its offset so that decoding
+        // the message with the generated class gives the offset of its fields
+        for (int msgId = 0; msgId < 1024; msgId++)
+        {
+            MAVLinkPacket pkt = new MAVLinkPacket();
+            pkt.msgid = msgId;
+            pkt.len = 255;
+            for (int i = 0; i < pkt.len; i++)
+                pkt.payload.add((byte)i);
+
+            MAVLinkMessage msg = pkt.unpack();
+            Field targetField = null;
+            if (msg != null)
+            {
+                try { targetField = msg.getClass().getField("target_system"); }
+                catch (NoSuchFieldException e) { }
+            }
+
+            int expectedOffset = -1;
+            if (targetField != null)
+                expectedOffset = ((Number)targetField.get(msg)).intValue();
+            assertEquals("Wrong target offset for message " + msgId, expectedOffset, MavlinkRouter.getTargetOffset(msgId));
+        }
+    }
+
+
+    protected void write(PipeCommProvider link, MAVLinkMessage msg, int sysid) throws IOException
+    {
+        MAVLinkPacket pkt = msg.pack();
+        pkt.sysid = sysid;
+        pkt.compid = 1;
+        OutputStream os = link.vehicleOut;
+        os.write(pkt.encodePacket());
+        os.flush();
+    }
+
+
+    protected msg_heartbeat newHeartbeat()
+    {
+        msg_heartbeat hb = new msg_heartbeat();
+        hb.type = 2;
+        return hb;
+    }
+
+
+    protected msg_command_long newCommand(int target, int command)
+    {
+        msg_command_long cmd = new msg_command_long();
+        cmd.target_system = (short)target;
+        cmd.target_component = 1;
+        cmd.command = command;
+        return cmd;
+    }
+
+
+    @Test
+    public void testRouteBetweenEndpoints() throws Exception
+    {
+        final int VEHICLE = 1;
+        final int GCS1 = 250; // driver uses 255
+        final int GCS2 = 251;
+        final int UNKNOWN = 200;
+
+        // driver with vehicle link and two ground stations, all connected through pipes
+        MavlinkConfig config = new MavlinkConfig();
+        config.id = UUID.randomUUID().toString();
+        config.vehicleID = "sim";
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "mavlink-router-" + UUID.randomUUID());
+        config.paramCacheDir = cacheDir.getPath();
+        config.logDownloadDir = cacheDir.getPath();
+
+        PipeCommProvider[] links = new PipeCommProvider[3];
+        LinkReader[] readers = new LinkReader[3];
+        config.routeEndpoints = new ArrayList<CommProviderConfig<?>>();
+        for (int i = 0; i < links.length; i++)
+        {
+            PipeCommProviderConfig commConfig = new PipeCommProviderConfig();
+            commConfig.provider = links[i] = new PipeCommProvider();
+            if (i == 0)
+                config.commSettings = commConfig;
+            else
+                config.routeEndpoints.add(commConfig);
+            readers[i] = new LinkReader(links[i].vehicleIn);
+            readers[i].start();
+        }
+        LinkReader vehicle = readers[0], gcs1 = readers[1], gcs2 = readers[2];
+
+        driver = new MavlinkDriver();
+        driver.init(config);
+        driver.start();
+
+        // heartbeats are broadcast and teach routes to each system
+        write(links[0], newHeartbeat(), VEHICLE);
+        assertTrue(gcs1.waitFor(VEHICLE, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+        assertTrue(gcs2.waitFor(VEHICLE, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+
+        write(links[1], newHeartbeat(), GCS1);
+        assertTrue(vehicle.waitFor(GCS1, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+        assertTrue(gcs2.waitFor(GCS1, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+
+        write(links[2], newHeartbeat(), GCS2);
+        assertTrue(vehicle.waitFor(GCS2, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+        assertTrue(gcs1.waitFor(GCS2, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+
+        // no packet is ever echoed back to its source
+        assertFalse(vehicle.contains(VEHICLE, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+        assertFalse(gcs1.contains(GCS1, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+        assertFalse(gcs2.contains(GCS2, msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT));
+
+        // packet targeting a known system only goes to the link where it was seen
+        write(links[2], newCommand(GCS1, MAV_CMD.MAV_CMD_DO_SET_MODE), GCS2);
+        assertTrue(gcs1.waitFor(GCS2, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+
+        // packet targeting a system only seen on its own source link is dropped
+        write(links[1], newCommand(GCS1, MAV_CMD.MAV_CMD_DO_SET_MODE), GCS1);
+
+        // packet targeting an unknown system is broadcast to other links
+        // and serves as a marker since links preserve order
+        write(links[1], newCommand(UNKNOWN, MAV_CMD.MAV_CMD_REQUEST_AUTOPILOT_CAPABILITIES), GCS1);
+        assertTrue(gcs2.waitFor(GCS1, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertTrue(vehicle.waitFor(GCS1, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+
+        // check targeted commands were not sent anywhere else
+        assertFalse(gcs1.contains(GCS1, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertEquals(1, gcs1.count(GCS2, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertFalse(gcs2.contains(GCS2, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertEquals(1, gcs2.count(GCS1, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertFalse(vehicle.contains(GCS2, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+        assertEquals(1, vehicle.count(GCS1, msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG));
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        try
+        {
+            if (driver != null)
+                driver.stop();
+        }
+        catch (Exception e)
+        {
+        }
+
+        if (cacheDir != null)
+        {
+            File[] files = cacheDir.listFiles();
+            if (files != null)
+            {
+                for (File f: files)
+                    f.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.MavlinkSetpointQueue;
+import com.MAVLink.common.msg_command_int;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_set_position_target_global_int;
+import com.MAVLink.common.msg_set_position_target_local_ned;
+import com.MAVLink.enums.MAV_CMD;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkSetpointQueue
+{
+    static final int LOCAL_NED = MavlinkSetpointQueue.getKind(msg_set_position_target_local_ned.MAVLINK_MSG_ID_SET_POSITION_TARGET_LOCAL_NED, 0);
+    static final int GLOBAL_INT = MavlinkSetpointQueue.getKind(msg_set_position_target_global_int.MAVLINK_MSG_ID_SET_POSITION_TARGET_GLOBAL_INT, 0);
+
+
+    @Test
+    public void testGetKind() throws Exception
+    {
+        int yawLong = MavlinkSetpointQueue.getKind(msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG, MAV_CMD.MAV_CMD_CONDITION_YAW);
+        int yawInt = MavlinkSetpointQueue.getKind(msg_command_int.MAVLINK_MSG_ID_COMMAND_INT, MAV_CMD.MAV_CMD_CONDITION_YAW);
+        int roiLong = MavlinkSetpointQueue.getKind(msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG, MAV_CMD.MAV_CMD_DO_SET_ROI);
+        assertTrue(LOCAL_NED >= 0 && GLOBAL_INT >= 0 && yawLong >= 0 && yawInt >= 0 && roiLong >= 0);
+        assertTrue(LOCAL_NED != GLOBAL_INT && yawLong != yawInt && yawLong != roiLong && yawLong != LOCAL_NED);
+
+        assertEquals(-1, MavlinkSetpointQueue.getKind(msg_command_long.MAVLINK_MSG_ID_COMMAND_LONG, MAV_CMD.MAV_CMD_NAV_LAND));
+        assertEquals(-1, MavlinkSetpointQueue.getKind(msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT, 0));
+    }
+
+
+    @Test
+    public void testFifoOrder() throws Exception
+    {
+        MavlinkSetpointQueue queue = new MavlinkSetpointQueue();
+        ByteBuffer b1 = ByteBuffer.allocate(1);
+        ByteBuffer b2 = ByteBuffer.allocate(1);
+        ByteBuffer b3 = ByteBuffer.allocate(1);
+
+        assertNull(queue.put(LOCAL_NED, 1, b1));
+        assertNull(queue.put(GLOBAL_INT, 1, b2));
+        assertNull(queue.put(LOCAL_NED, 2, b3));
+        assertEquals(3, queue.size());
+
+        assertSame(b1, queue.poll());
+        assertSame(b2, queue.poll());
+        assertSame(b3, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+
+    @Test
+    public void testReplaceKeepsPosition() throws Exception
+    {
+        MavlinkSetpointQueue queue = new MavlinkSetpointQueue();
+        ByteBuffer b1 = ByteBuffer.allocate(1);
+        ByteBuffer b2 = ByteBuffer.allocate(1);
+        ByteBuffer b3 = ByteBuffer.allocate(1);
+
+        queue.put(LOCAL_NED, 1, b1);
+        queue.put(LOCAL_NED, 2, b2);
+        assertSame(b1, queue.put(LOCAL_NED, 1, b3));
+        assertEquals(2, queue.size());
+
+        assertSame(b3, queue.poll());
+        assertSame(b2, queue.poll());
+        assertNull(queue.poll());
+    }
+
+
+    @Test
+    public void testDiscard() throws Exception
+    {
+        MavlinkSetpointQueue queue = new MavlinkSetpointQueue();
+        Queue<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+        ByteBuffer b1 = ByteBuffer.allocate(1);
+        ByteBuffer b2 = ByteBuffer.allocate(1);
+        ByteBuffer b3 = ByteBuffer.allocate(1);
+        ByteBuffer b4 = ByteBuffer.allocate(1);
+
+        queue.put(LOCAL_NED, 1, b1);
+        queue.put(LOCAL_NED, 2, b2);
+        queue.put(GLOBAL_INT, 1, b3);
+        queue.put(GLOBAL_INT, 3, b4);
+
+        assertEquals(2, queue.discard(1, freeBuffers));
+        assertEquals(2, freeBuffers.size());
+        assertTrue(freeBuffers.contains(b1) && freeBuffers.contains(b3));
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.discard(1, freeBuffers));
+
+        // discarded slots can be reused
+        ByteBuffer b5 = ByteBuffer.allocate(1);
+        assertNull(queue.put(LOCAL_NED, 1, b5));
+        assertSame(b2, queue.poll());
+        assertSame(b4, queue.poll());
+        assertSame(b5, queue.poll());
+        assertNull(queue.poll());
+    }
+
+
+    @Test
+    public void testWrapAround() throws Exception
+    {
+        MavlinkSetpointQueue queue = new MavlinkSetpointQueue();
+        Queue<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+        ByteBuffer[] bufs = new ByteBuffer[256];
+        for (int i = 0; i < bufs.length; i++)
+            bufs[i] = ByteBuffer.allocate(1);
+
+        // keep the queue partly filled so the head moves around the whole ring
+        for (int n = 0; n < 50; n++)
+        {
+            for (int i = 0; i < 100; i++)
+                queue.put(n % 2 == 0 ? LOCAL_NED : GLOBAL_INT, i, bufs[i]);
+            queue.discard(n % 100, freeBuffers);
+            for (int i = 0; i < 100; i++)
+            {
+                if (i == n % 100)
+                    continue;
+                assertSame(bufs[i], queue.poll());
+            }
+            assertNull(queue.poll());
+        }
+
+        queue.put(LOCAL_NED, 7, bufs[7]);
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,249 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.sensor.ISensorDataInterface;
+import org.sensorhub.api.sensor.SensorDataEvent;
+import org.sensorhub.impl.sensor.mavlink.LatencyHistogram;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.CmdTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkConfig.MsgTypes;
+import org.sensorhub.impl.sensor.mavlink.MavlinkDriver;
+import org.sensorhub.test.sensor.mavlink.TestMavlinkCommands.PipeCommProvider;
+import org.sensorhub.test.sensor.mavlink.TestMavlinkCommands.PipeCommProviderConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_command_ack;
+import com.MAVLink.common.msg_command_long;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_param_request_list;
+import com.MAVLink.common.msg_param_value;
+import com.MAVLink.enums.MAV_CMD;
+import com.MAVLink.enums.MAV_RESULT;
+import static org.junit.Assert.*;
+
+
+/**
+ * <p>
+ * Load test running the driver against simulated vehicles.<br/>
+ * The load test is ignored by default and has to be run manually. Number of
+ * vehicles and duration can be changed with the sim.vehicles and sim.duration
+ * (in seconds) system properties to run longer soak tests.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 15, 2016
+ */
+public class TestMavlinkSimulator
+{
+    static final Logger log = LoggerFactory.getLogger(TestMavlinkSimulator.class);
+    static final int NUM_VEHICLES = Integer.getInteger("sim.vehicles", 20);
+    static final int DURATION = Integer.getInteger("sim.duration", 5);
+    static final long TIMEOUT = 5000L;
+
+    MavlinkDriver driver;
+    MavlinkSimulator simulator;
+
+
+    @Test
+    @Ignore("Load test, run manually")
+    public void testDriverUnderLoad() throws Exception
+    {
+        MavlinkConfig config = new MavlinkConfig();
+        config.id = UUID.randomUUID().toString();
+        config.vehicleID = "fleet";
+        config.multiVehicle = true;
+        config.activeMessages = EnumSet.of(
+                MsgTypes.GLOBAL_POSITION,
+                MsgTypes.ATTITUDE,
+                MsgTypes.BATTERY_STATUS,
+                MsgTypes.GIMBAL_REPORT);
+        config.activeCommands = EnumSet.of(
+                CmdTypes.RTL,
+                CmdTypes.LAND);
+
+        PipeCommProviderConfig commConfig = new PipeCommProviderConfig();
+        PipeCommProvider commProvider = commConfig.provider = new PipeCommProvider();
+        config.commSettings = commConfig;
+
+        simulator = new MavlinkSimulator(NUM_VEHICLES);
+        simulator.attitudeRate = 50f;
+        simulator.positionRate = 10f;
+        simulator.gimbalRate = 10f;
+
+        driver = new MavlinkDriver();
+        driver.init(config);
+
+        // measure latency from the time the simulator sent the last position
+        // this is exact as long as positions are handled before the next one is sent
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong numRecords = new AtomicLong();
+        final Set<String> entities = new HashSet<String>();
+        ISensorDataInterface posOutput = driver.getAllOutputs().get("platformLoc");
+        posOutput.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e)
+            {
+                if (e instanceof SensorDataEvent)
+                {
+                    String entityID = ((SensorDataEvent)e).getRelatedEntityID();
+                    long sentTime = simulator.getLastPositionTime(Integer.parseInt(entityID));
+                    latency.record(System.nanoTime() - sentTime);
+                    numRecords.incrementAndGet();
+                    synchronized (entities)
+                    {
+                        entities.add(entityID);
+                    }
+                }
+            }
+        });
+
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = rt.totalMemory() - rt.freeMemory();
+
+        simulator.start(commProvider.vehicleIn, commProvider.vehicleOut);
+        driver.start();
+        Thread.sleep(DURATION * 1000L);
+
+        long numPackets = simulator.getNumPacketsSent();
+        long numBytes = simulator.getNumBytesSent();
+        LatencyHistogram.Snapshot stats = latency.getSnapshotAndReset();
+        System.gc();
+        long heapAfter = rt.totalMemory() - rt.freeMemory();
+
+        log.info(String.format("%d vehicles, %d packets in %ds (%.0f packets/s, %.1f kB/s)",
+                NUM_VEHICLES, numPackets, DURATION, (double)numPackets / DURATION, numBytes / 1024.0 / DURATION));
+        log.info(String.format("%d position records, latency p50=%.3fms, p99=%.3fms, max=%.3fms",
+                stats.getCount(), stats.getPercentile(50), stats.getPercentile(99), stats.getMax()));
+        log.info("Heap growth: {} kB", (heapAfter - heapBefore) / 1024);
+
+        // all vehicles must be seen and all positions received, except the last few
+        assertEquals(NUM_VEHICLES, driver.getEntityIDs().size());
+        synchronized (entities)
+        {
+            assertEquals(NUM_VEHICLES, entities.size());
+        }
+        long numPositions = simulator.getNumPositionsSent();
+        assertTrue("No position sent", numPositions > 0);
+        assertTrue("Too many position records lost", numRecords.get() > numPositions * 0.9);
+        assertTrue("Driver should have requested message rates", simulator.getNumCommandsReceived() > 0);
+    }
+
+
+    @Test
+    public void testUdpRequests() throws Exception
+    {
+        final DatagramSocket gcs = new DatagramSocket(0);
+        gcs.setSoTimeout((int)TIMEOUT);
+
+        simulator = new MavlinkSimulator(3);
+        simulator.startUdp(0, new InetSocketAddress("localhost", gcs.getLocalPort()));
+        InetSocketAddress simAddress = new InetSocketAddress("localhost", simulator.getLocalPort());
+
+        // request params from vehicle 2 and send command to all vehicles
+        msg_param_request_list list = new msg_param_request_list();
+        list.target_system = 2;
+        send(gcs, list.pack(), simAddress);
+
+        msg_command_long cmd = new msg_command_long();
+        cmd.target_system = 0;
+        cmd.command = MAV_CMD.MAV_CMD_SET_MESSAGE_INTERVAL;
+        cmd.param1 = msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT;
+        cmd.param2 = 50000;
+        send(gcs, cmd.pack(), simAddress);
+
+        // collect answers
+        final Set<Integer> heartbeatSystems = new HashSet<Integer>();
+        final Set<Integer> ackSystems = new HashSet<Integer>();
+        final int[] numParams = new int[2];
+        Parser parser = new Parser();
+        Parser.PacketHandler handler = new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                if (packet.msgid == msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT)
+                    heartbeatSystems.add(packet.sysid);
+                else if (packet.msgid == msg_command_ack.MAVLINK_MSG_ID_COMMAND_ACK)
+                {
+                    msg_command_ack ack = (msg_command_ack)packet.unpack();
+                    assertEquals(MAV_CMD.MAV_CMD_SET_MESSAGE_INTERVAL, ack.command);
+                    assertEquals(MAV_RESULT.MAV_RESULT_ACCEPTED, ack.result);
+                    ackSystems.add(packet.sysid);
+                }
+                else if (packet.msgid == msg_param_value.MAVLINK_MSG_ID_PARAM_VALUE)
+                {
+                    assertEquals(2, packet.sysid);
+                    numParams[0]++;
+                    numParams[1] = ((msg_param_value)packet.unpack()).param_count;
+                }
+            }
+        };
+
+        byte[] buf = new byte[2048];
+        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        long maxTime = System.currentTimeMillis() + TIMEOUT;
+        while (heartbeatSystems.size() < 3 || ackSystems.size() < 3 || numParams[0] == 0 || numParams[0] < numParams[1])
+        {
+            if (System.currentTimeMillis() > maxTime)
+                fail("Not all answers received before timeout");
+            gcs.receive(dp);
+            parser.parse(buf, 0, dp.getLength(), handler);
+        }
+
+        assertEquals(1, simulator.getNumCommandsReceived());
+        gcs.close();
+    }
+
+
+    protected void send(DatagramSocket socket, MAVLinkPacket pkt, InetSocketAddress dest) throws Exception
+    {
+        pkt.sysid = 255;
+        pkt.compid = 190;
+        byte[] frame = pkt.encodePacket();
+        socket.send(new DatagramPacket(frame, frame.length, dest));
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        if (simulator != null)
+            simulator.stop();
+
+        try
+        {
+            if (driver != null)
+                driver.stop();
+        }
+        catch (Exception e)
+        {
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.ardupilotmega.CRC;
+import com.MAVLink.common.msg_adsb_vehicle;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_battery_status;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.views.view_adsb_vehicle;
+import com.MAVLink.views.view_attitude;
+import com.MAVLink.views.view_battery_status;
+import com.MAVLink.views.view_global_position_int;
+import static org.junit.Assert.*;
+
+
+public class TestMavlinkViews
+{
+
+    protected MAVLinkPacket parse(MAVLinkMessage msg)
+    {
+        final MAVLinkPacket[] result = new MAVLinkPacket[1];
+        byte[] frame = msg.pack().encodePacket();
+        new Parser().parse(frame, 0, frame.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                result[0] = packet;
+            }
+        });
+
+        assertNotNull("Packet not parsed", result[0]);
+        return result[0];
+    }
+
+
+    @Test
+    public void testAttitudeView() throws Exception
+    {
+        msg_attitude msg = new msg_attitude();
+        msg.time_boot_ms = 0xF0000080L;
+        msg.roll = 0.1f;
+        msg.pitch = -0.2f;
+        msg.yaw = 3.1f;
+        msg.yawspeed = -1.5f;
+
+        MAVLinkPacket pkt = parse(msg);
+        view_attitude view = new view_attitude();
+        assertTrue(view.wrap(pkt));
+        assertEquals(msg.time_boot_ms, view.time_boot_ms());
+        assertEquals(msg.roll, view.roll(), 0.0);
+        assertEquals(msg.pitch, view.pitch(), 0.0);
+        assertEquals(msg.yaw, view.yaw(), 0.0);
+        assertEquals(msg.yawspeed, view.yawspeed(), 0.0);
+
+        // also check detached copy
+        msg_attitude copy = (msg_attitude)pkt.unpack();
+        assertEquals(msg.toString(), copy.toString());
+    }
+
+
+    @Test
+    public void testGlobalPositionView() throws Exception
+    {
+        msg_global_position_int msg = new msg_global_position_int();
+        msg.time_boot_ms = 123456;
+        msg.lat = -353632608;
+        msg.lon = 1491652351;
+        msg.alt = 584090;
+        msg.vz = -25;
+        msg.hdg = 35999;
+
+        view_global_position_int view = new view_global_position_int();
+        assertTrue(view.wrap(parse(msg)));
+        assertEquals(msg.time_boot_ms, view.time_boot_ms());
+        assertEquals(msg.lat, view.lat());
+        assertEquals(msg.lon, view.lon());
+        assertEquals(msg.alt, view.alt());
+        assertEquals(msg.vz, view.vz());
+        assertEquals(msg.hdg, view.hdg());
+    }
+
+
+    @Test
+    public void testBatteryStatusView() throws Exception
+    {
+        msg_battery_status msg = new msg_battery_status();
+        msg.current_consumed = 1200;
+        msg.temperature = -500;
+        msg.voltages[0] = 4150;
+        msg.voltages[9] = 65535;
+        msg.battery_remaining = 87;
+
+        view_battery_status view = new view_battery_status();
+        assertTrue(view.wrap(parse(msg)));
+        assertEquals(msg.current_consumed, view.current_consumed());
+        assertEquals(msg.temperature, view.temperature());
+        assertEquals(msg.voltages[0], view.voltages(0));
+        assertEquals(msg.voltages[9], view.voltages(9));
+        assertEquals(msg.battery_remaining, view.battery_remaining());
+    }
+
+
+    @Test
+    public void testAdsbVehicleView() throws Exception
+    {
+        msg_adsb_vehicle msg = new msg_adsb_vehicle();
+        msg.ICAO_address = 0xA1B2C3;
+        msg.lat = 437654321;
+        msg.lon = -1234567;
+        msg.altitude = 1523500;
+        msg.heading = 35999;
+        msg.hor_velocity = 6520;
+        msg.ver_velocity = -350;
+        msg.flags = 0x1F;
+        msg.squawk = 7700;
+        msg.altitude_type = 1;
+        msg.setCallsign("AFR1234");
+        msg.emitter_type = 3;
+        msg.tslc = 2;
+
+        view_adsb_vehicle view = new view_adsb_vehicle();
+        assertTrue(view.wrap(parse(msg)));
+        assertEquals(msg.ICAO_address, view.ICAO_address());
+        assertEquals(msg.lat, view.lat());
+        assertEquals(msg.lon, view.lon());
+        assertEquals(msg.altitude, view.altitude());
+        assertEquals(msg.heading, view.heading());
+        assertEquals(msg.hor_velocity, view.hor_velocity());
+        assertEquals(msg.ver_velocity, view.ver_velocity());
+        assertEquals(msg.flags, view.flags());
+        assertEquals(msg.squawk, view.squawk());
+        assertEquals(msg.altitude_type, view.altitude_type());
+        assertEquals('A', view.callsign(0));
+        assertEquals('4', view.callsign(6));
+        assertEquals(0, view.callsign(7));
+        assertEquals(msg.emitter_type, view.emitter_type());
+        assertEquals(msg.tslc, view.tslc());
+    }
+
+
+    @Test
+    public void testAdsbVehicleWireFormat() throws Exception
+    {
+        // frame built by hand from the released ADSB_VEHICLE definition
+        // so we accept messages sent by current autopilots
+        ByteBuffer payload = ByteBuffer.allocate(38).order(ByteOrder.LITTLE_ENDIAN);
+        payload.putInt(0, 0xA1B2C3);
+        payload.putInt(4, 437654321);
+        payload.putInt(8, -1234567);
+        payload.putInt(12, 1523500);
+        payload.putShort(16, (short)35999);
+        payload.putShort(18, (short)6520);
+        payload.putShort(20, (short)-350);
+        payload.putShort(22, (short)0x1F);
+        payload.putShort(24, (short)7700);
+        payload.put(26, (byte)1);
+        byte[] callsign = "AFR1234".getBytes();
+        for (int i = 0; i < callsign.length; i++)
+            payload.put(27 + i, callsign[i]);
+        payload.put(36, (byte)3);
+        payload.put(37, (byte)2);
+
+        byte[] frame = new byte[6 + 38 + 2];
+        frame[0] = (byte)MAVLinkPacket.MAVLINK_STX;
+        frame[1] = 38;
+        frame[3] = 1;
+        frame[4] = 1;
+        frame[5] = (byte)msg_adsb_vehicle.MAVLINK_MSG_ID_ADSB_VEHICLE;
+        System.arraycopy(payload.array(), 0, frame, 6, 38);
+        int crc = CRC.CRC_INIT_VALUE;
+        for (int i = 1; i < 6 + 38; i++)
+            crc = CRC.accumulate(frame[i] & 0xFF, crc);
+        crc = CRC.accumulate(184, crc);
+        frame[44] = (byte)crc;
+        frame[45] = (byte)(crc >> 8);
+
+        final MAVLinkPacket[] result = new MAVLinkPacket[1];
+        new Parser().parse(frame, 0, frame.length, new Parser.PacketHandler() {
+            public void handlePacket(MAVLinkPacket packet)
+            {
+                result[0] = packet;
+            }
+        });
+        assertNotNull("Packet rejected", result[0]);
+
+        view_adsb_vehicle view = new view_adsb_vehicle();
+        assertTrue(view.wrap(result[0]));
+        assertEquals(0xA1B2C3, view.ICAO_address());
+        assertEquals(1523500, view.altitude());
+        assertEquals(35999, view.heading());
+        assertEquals(6520, view.hor_velocity());
+        assertEquals(-350, view.ver_velocity());
+        assertEquals(7700, view.squawk());
+        assertEquals(1, view.altitude_type());
+        assertEquals('A', view.callsign(0));
+        assertEquals(0, view.callsign(7));
+        assertEquals(3, view.emitter_type());
+        assertEquals(2, view.tslc());
+
+        // generated class must produce the same payload
+        msg_adsb_vehicle msg = (msg_adsb_vehicle)result[0].unpack();
+        MAVLinkPacket packed = msg.pack();
+        assertEquals(38, packed.len);
+        for (int i = 0; i < 38; i++)
+            assertEquals("Byte " + i, payload.get(i), packed.payload.payload.get(i));
+    }
+
+
+    @Test
+    public void testWrongMsgIdNotWrapped() throws Exception
+    {
+        view_attitude view = new view_attitude();
+        assertFalse(view.wrap(parse(new msg_battery_status())));
+    }
+}
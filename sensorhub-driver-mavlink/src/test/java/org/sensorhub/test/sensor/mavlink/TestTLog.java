@@ -0,0 +1,167 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2016 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.sensor.mavlink;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.mavlink.TLogReader;
+import org.sensorhub.impl.sensor.mavlink.TLogWriter;
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.MAVLink.common.msg_attitude;
+import static org.junit.Assert.*;
+
+
+public class TestTLog
+{
+    static final int NUM_RECORDS = 5000;
+    static final long START_TIME = 1479168000000000L; // in us
+    static final long TIME_STEP = 1000L; // 1ms in us
+
+    File tlogFile;
+    List<String> expectedFrames = new ArrayList<String>();
+
+
+    @Before
+    public void writeLog() throws Exception
+    {
+        tlogFile = File.createTempFile("mavlink", ".tlog");
+        TLogWriter writer = new TLogWriter(tlogFile);
+
+        for (int i = 0; i < NUM_RECORDS; i++)
+        {
+            msg_attitude att = new msg_attitude();
+            att.time_boot_ms = i;
+            att.roll = 0.001f * i;
+            MAVLinkPacket pkt = att.pack();
+            pkt.seq = i & 0xFF;
+            pkt.isMavlink2 = (i % 3 == 0);
+            byte[] frame = pkt.encodePacket();
+            writer.write(START_TIME + i*TIME_STEP, frame, 0, frame.length);
+            expectedFrames.add(Arrays.toString(frame));
+        }
+
+        writer.close();
+    }
+
+
+    protected List<String> replay(InputStream is) throws Exception
+    {
+        final List<String> frames = new ArrayList<String>();
+        Parser parser = new Parser();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = is.read(buf)) > 0)
+        {
+            parser.parse(buf, 0, n, new Parser.PacketHandler() {
+                public void handlePacket(MAVLinkPacket packet)
+                {
+                    frames.add(Arrays.toString(packet.encodePacket()));
+                }
+            });
+        }
+
+        return frames;
+    }
+
+
+    @Test
+    public void testTimeRange() throws Exception
+    {
+        TLogReader reader = new TLogReader(tlogFile);
+        assertEquals(NUM_RECORDS, reader.getNumRecords());
+        assertEquals(START_TIME, reader.getStartTime());
+        assertEquals(START_TIME + (NUM_RECORDS-1)*TIME_STEP, reader.getEndTime());
+        reader.close();
+    }
+
+
+    @Test
+    public void testReplayAsFastAsPossible() throws Exception
+    {
+        TLogReader reader = new TLogReader(tlogFile);
+        List<String> frames = replay(reader.getInputStream(reader.getStartTime(), 0.0));
+        assertEquals(expectedFrames, frames);
+        reader.close();
+    }
+
+
+    @Test
+    public void testSeekAndReplay() throws Exception
+    {
+        TLogReader reader = new TLogReader(tlogFile);
+
+        int[] startIndexes = {0, 1, 999, 1000, 2500, 4999};
+        for (int startIndex: startIndexes)
+        {
+            long startTime = START_TIME + startIndex*TIME_STEP;
+            List<String> frames = replay(reader.getInputStream(startTime, 0.0));
+            assertEquals(expectedFrames.subList(startIndex, NUM_RECORDS), frames);
+        }
+
+        // seek after end of log
+        assertTrue(replay(reader.getInputStream(START_TIME + NUM_RECORDS*TIME_STEP, 0.0)).isEmpty());
+        reader.close();
+    }
+
+
+    @Test
+    public void testPacedReplay() throws Exception
+    {
+        TLogReader reader = new TLogReader(tlogFile);
+
+        // replay last 0.5s of log at 5x
+        int startIndex = NUM_RECORDS - 500;
+        long t0 = System.nanoTime();
+        List<String> frames = replay(reader.getInputStream(START_TIME + startIndex*TIME_STEP, 5.0));
+        double dt = (System.nanoTime() - t0) / 1e9;
+
+        assertEquals(expectedFrames.subList(startIndex, NUM_RECORDS), frames);
+        assertTrue("Replay too fast: " + dt + "s", dt > 0.09);
+        assertTrue("Replay too slow: " + dt + "s", dt < 1.0);
+        reader.close();
+    }
+
+
+    @Test
+    public void testTruncatedLog() throws Exception
+    {
+        // cut last record in half
+        RandomAccessFile raf = new RandomAccessFile(tlogFile, "rw");
+        raf.setLength(raf.length() - 20);
+        raf.close();
+
+        TLogReader reader = new TLogReader(tlogFile);
+        assertEquals(NUM_RECORDS-1, reader.getNumRecords());
+        List<String> frames = replay(reader.getInputStream(reader.getStartTime(), 0.0));
+        assertEquals(expectedFrames.subList(0, NUM_RECORDS-1), frames);
+        reader.close();
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        if (tlogFile != null)
+            tlogFile.delete();
+    }
+}
@@ -17,9 +17,10 @@ package org.sensorhub.impl.sensor.rtpcam;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vast.swe.Base64Decoder;
@@ -28,7 +29,11 @@ import org.vast.swe.Base64Decoder;
 /**
  * <p>
  * Demuxer for H264 streams received via RTP (RFC6184).<br/>
- * Only single NAL unit packets and FU-A fragmentation units are supported.
+ * Only single NAL unit packets, STAP-A and FU-A fragmentation units are supported.
+ * </p><p>
+ * Datagrams are received in a reusable direct buffer and RTP headers are
+ * parsed in place, so payload bytes are only copied once, into the buffer
+ * where the frame is assembled.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -38,6 +43,8 @@ public class RTPH264Receiver extends Thread
 {
     static final Logger log = LoggerFactory.getLogger(RTPH264Receiver.class);
     static final int MAX_DATAGRAM_SIZE = 64*1024;
+    static final int RECEIVE_BUFFER_SIZE = 4*1024*1024;
+    static final int RTP_HEADER_SIZE = 12;
     static final int MAX_FRAME_SIZE = 1024*1024;
     static final byte[] NAL_UNIT_MARKER = new byte[] {0x0, 0x0, 0x0, 0x1};
     static final int SINGLE_NALU_PACKET_TYPE = 23;
@@ -53,13 +60,15 @@ public class RTPH264Receiver extends Thread
     
     String remoteHost;
     int localPort;
-    DatagramSocket rtpSocket;
+    DatagramChannel rtpChannel;
     volatile boolean started;    
     RTPH264Callback callback;
     boolean spsReceived = false;
     boolean ppsReceived = false;
     boolean injectParamSets = false;
     byte[] sps, pps;
+    boolean discardNAL = false;
+    int lastSeqNum = -1;
     
     
     public RTPH264Receiver(String remoteHost, int localPort, RTPH264Callback callback)
@@ -108,155 +117,233 @@ public class RTPH264Receiver extends Thread
         try
         {
             // bind UDP port for receiving RTP packets
-            rtpSocket = new DatagramSocket(localPort);
-            rtpSocket.setReuseAddress(true);
-            rtpSocket.setReceiveBufferSize(MAX_DATAGRAM_SIZE);      
-
-            final byte[] receiveData = new byte[MAX_DATAGRAM_SIZE];
-            final DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            final byte[] payload = new byte[MAX_DATAGRAM_SIZE];            
-            final ByteBuffer dataBuf = ByteBuffer.allocate(MAX_FRAME_SIZE);
+            // socket buffer must hold a few large frames at high bitrate
+            rtpChannel = DatagramChannel.open();
+            rtpChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            rtpChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            rtpChannel.bind(new InetSocketAddress(localPort));
+            if (rtpChannel.getOption(StandardSocketOptions.SO_RCVBUF) < RECEIVE_BUFFER_SIZE)
+                log.warn("UDP receive buffer limited to {} bytes by OS. Packets may be lost at high bitrates", rtpChannel.getOption(StandardSocketOptions.SO_RCVBUF));
             
-            boolean discardNAL = false;
-            int lastSeqNum = 0;
+            final ByteBuffer packetBuf = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            final ByteBuffer dataBuf = ByteBuffer.allocate(MAX_FRAME_SIZE);
             
             while (started)
             {
-                rtpSocket.receive(receivePacket);
-                    
-                // create an RTPpacket object from the UDP payload
-                int length = receivePacket.getLength();
-                RTPPacket rtpPacket = new RTPPacket(receiveData, length);
-                if (log.isTraceEnabled())
+                packetBuf.clear();
+                rtpChannel.receive(packetBuf);
+                packetBuf.flip();
+                handlePacket(packetBuf, dataBuf);
+            }
+        }
+        catch (Throwable e)
+        {
+            if (started)
+                log.error("Error while demuxing H264 RTP stream", e);
+        }
+        finally
+        {
+            // in case we were stopped before the channel was opened
+            if (rtpChannel != null)
+            {
+                try { rtpChannel.close(); }
+                catch (IOException e) { }
+            }
+        }
+    }
+    
+    
+    /*
+     * Parse RTP header in place and append payload to frame buffer
+     * Payload bytes are only copied once, from the packet buffer to the frame buffer
+     */
+    protected void handlePacket(ByteBuffer packet, ByteBuffer dataBuf)
+    {
+        int length = packet.limit();
+        if (length < RTP_HEADER_SIZE)
+            return;
+        
+        // read fixed header fields
+        int b0 = packet.get(0) & 0xFF;
+        int version = b0 >> 6;
+        if (version != 2)
+            return;
+        boolean hasPadding = (b0 & 0x20) != 0;
+        boolean hasExtension = (b0 & 0x10) != 0;
+        int csrcCount = b0 & 0x0F;
+        int payloadType = packet.get(1) & 0x7F;
+        int seqNum = packet.getShort(2) & 0xFFFF;
+        long timeStamp = packet.getInt(4) & 0xFFFFFFFFL;
+        if (log.isTraceEnabled())
+            log.trace("RTP packet: seqNum={}, timeStamp={}, payloadType={}", seqNum, timeStamp, payloadType);
+        
+        // skip CSRC list and header extension, and remove padding
+        int offset = RTP_HEADER_SIZE + 4*csrcCount;
+        if (hasExtension)
+        {
+            if (offset + 4 > length)
+                return;
+            offset += 4 + 4*(packet.getShort(offset+2) & 0xFFFF);
+        }
+        int end = length;
+        if (hasPadding)
+            end -= packet.get(length-1) & 0xFF;
+        int payloadLength = end - offset;
+        if (payloadLength <= 0)
+            return;
+        
+        // to discard entire NAL unit when a packet is lost
+        if (lastSeqNum >= 0 && ((seqNum - lastSeqNum) & 0xFFFF) != 1)
+        {
+            log.trace("Packet Lost");
+            discardNAL = true;
+        }
+        lastSeqNum = seqNum;
+        
+        if (payloadType != 96)
+            return;
+        
+        int nalHeader = packet.get(offset) & 0xFF;
+        int packetType = (nalHeader & 0x1F);
+        log.trace("H264 RTP packet type = {}", packetType);
+        
+        // case of fragmented packet (FU-4)
+        if (packetType == FU4_PACKET_TYPE)
+        {
+            if (payloadLength < 2)
+                return;
+            int fuHeader = packet.get(offset+1) & 0xFF;
+            int nalUnitType = fuHeader & 0x1F;
+            boolean startNalUnit = (fuHeader & 0x80) != 0;
+            boolean endNalUnit = (fuHeader & 0x40) != 0;
+            
+            if (injectParamSets && startNalUnit)
+            {
+                // inject SPS and PPS before key frame
+                if (nalUnitType == NALU_KEYFRAME)
                 {
-                    log.trace("RTP packet: seqNum=" + rtpPacket.getSequenceNumber() +
-                              ", timeStamp=" + rtpPacket.getTimeStamp() +
-                              ", payloadType=" + rtpPacket.getPayloadType());
+                    log.trace("Injecting SPS and PPS NAL units");
+                    if (!hasRoom(dataBuf, 2*NAL_UNIT_MARKER.length + sps.length + pps.length))
+                        return;
+                    dataBuf.put(NAL_UNIT_MARKER);
+                    dataBuf.put(sps);
+                    dataBuf.put(NAL_UNIT_MARKER);
+                    dataBuf.put(pps);
+                    spsReceived = true;
+                    ppsReceived = true;
                 }
-    
-                // get the payload bitstream from the RTPpacket object
-                int payload_length = rtpPacket.getPayload(payload);
-                
-                // to discard entire NAL unit when a packet is lost
-                if (lastSeqNum > 0 && rtpPacket.sequenceNumber > lastSeqNum+1) {
-                    log.trace("Packet Lost");
-                    discardNAL = true;
+            }
+            
+            if (spsReceived && ppsReceived)
+            {
+                // if start of NAL unit
+                if (startNalUnit) 
+                {
+                    log.trace("FU-4: Start NAL unit, type = {}", nalUnitType);
+                    if (!hasRoom(dataBuf, NAL_UNIT_MARKER.length + 1))
+                        return;
+                    dataBuf.put(NAL_UNIT_MARKER);
+                    dataBuf.put((byte)((nalHeader & 0xE0) + nalUnitType));
                 }
-                lastSeqNum = rtpPacket.sequenceNumber;
                 
-                if (rtpPacket.payloadType == 96)
-                {
-                    int packetType = (payload[0] & 0x1F);
-                    log.trace("H264 RTP packet type = {}", packetType);
-                    
-                    // case of fragmented packet (FU-4)
-                    if (packetType == FU4_PACKET_TYPE)
-                    {
-                        int nalUnitType = payload[1] & 0x1F;
-                        boolean startNalUnit = (payload[1] & 0x80) != 0;
-                        
-                        if (injectParamSets && startNalUnit)
-                        {
-                            // inject SPS and PPS before key frame
-                            if (nalUnitType == NALU_KEYFRAME)
-                            {
-                                log.trace("Injecting SPS and PPS NAL units");
-                                dataBuf.put(NAL_UNIT_MARKER);
-                                dataBuf.put(sps);
-                                dataBuf.put(NAL_UNIT_MARKER);
-                                dataBuf.put(pps);
-                                spsReceived = true;
-                                ppsReceived = true;
-                            }
-                        }
+                // copy NAL fragment
+                if (!hasRoom(dataBuf, payloadLength-2))
+                    return;
+                copyPayload(packet, offset+2, end, dataBuf);
                         
-                        if (spsReceived && ppsReceived)
-                        {
-                            // if start of NAL unit
-                            if (startNalUnit) 
-                            {
-                                log.trace("FU-4: Start NAL unit, type = {}", nalUnitType);
-                                dataBuf.put(NAL_UNIT_MARKER);
-                                dataBuf.put((byte)((payload[0] & 0xE0) + nalUnitType));
-                            }
-                            
-                            // copy NAL fragment
-                            dataBuf.put(payload, 2, payload_length-2);
-                                    
-                            // if end of NAL unit
-                            if ((payload[1] & 0x40) != 0)
-                            {
-                                log.trace("FU-4: End NAL unit, type = {}", nalUnitType);
-                                
-                                if (!discardNAL)
-                                {
-                                    dataBuf.flip();
-                                    callback.onFrame(rtpPacket.getTimeStamp() & 0xFFFFFFFF, rtpPacket.getSequenceNumber(), dataBuf, discardNAL);
-                                    
-                                    // copy buffer
-                                    final ByteBuffer newBuf = ByteBuffer.allocate(dataBuf.limit());
-                                    newBuf.put(dataBuf);
-                                    newBuf.flip();
-                                }
-                                else
-                                    log.trace("FU-4: Discarded");
-                                
-                                discardNAL = false;
-                                dataBuf.clear();
-                            }
-                        }
-                    }
+                // if end of NAL unit
+                if (endNalUnit)
+                {
+                    log.trace("FU-4: End NAL unit, type = {}", nalUnitType);
                     
-                    // single time aggregation units
-                    else if (packetType == STAPA_PACKET_TYPE)
+                    if (!discardNAL)
                     {
-                        int index = 1;
-                        while (index+1 < payload_length)
-                        {
-                            int nalSize = ((payload[index] & 0xFF) << 8) | (payload[index+1] & 0xFF);
-                            if (nalSize == 0)
-                                break;
-                            
-                            index += 2;
-                            int nalUnitType = payload[index] & 0x1F;
-                            log.trace("STAP NAL unit, type = " + nalUnitType);
-                            
-                            // write nal unit to buffer with a marker
-                            dataBuf.put(NAL_UNIT_MARKER);
-                            dataBuf.put(payload, index, nalSize);                            
-                            index += nalSize;
-                            
-                            // mark when SPS and PPS are received
-                            if (nalUnitType == NALU_SPS)
-                                spsReceived = true;
-                            else if (nalUnitType == NALU_PPS)
-                                ppsReceived = true;
-                        }
+                        dataBuf.flip();
+                        callback.onFrame(timeStamp, seqNum, dataBuf, discardNAL);
                     }
+                    else
+                        log.trace("FU-4: Discarded");
                     
-                    // case of single NAL unit directly as payload
-                    else if (packetType <= SINGLE_NALU_PACKET_TYPE)
-                    {
-                        int nalUnitType = packetType;
-                        log.trace("Single NAL unit, type = " + packetType);
-                        
-                        dataBuf.put(NAL_UNIT_MARKER);
-                        dataBuf.put(payload, 0, payload_length);
-                        
-                        // mark when SPS and PPS are received
-                        if (nalUnitType == NALU_SPS)
-                            spsReceived = true;
-                        else if (nalUnitType == NALU_PPS)
-                            ppsReceived = true;
-                    }
+                    discardNAL = false;
+                    dataBuf.clear();
                 }
             }
         }
-        catch (Throwable e)
+        
+        // single time aggregation units
+        else if (packetType == STAPA_PACKET_TYPE)
         {
-            if (started)
-                log.error("Error while demuxing H264 RTP stream", e);
+            int index = offset + 1;
+            while (index+1 < end)
+            {
+                int nalSize = packet.getShort(index) & 0xFFFF;
+                if (nalSize == 0 || index + 2 + nalSize > end)
+                    break;
+                
+                index += 2;
+                int nalUnitType = packet.get(index) & 0x1F;
+                log.trace("STAP NAL unit, type = {}", nalUnitType);
+                
+                // write nal unit to buffer with a marker
+                if (!hasRoom(dataBuf, NAL_UNIT_MARKER.length + nalSize))
+                    return;
+                dataBuf.put(NAL_UNIT_MARKER);
+                copyPayload(packet, index, index + nalSize, dataBuf);
+                index += nalSize;
+                
+                // mark when SPS and PPS are received
+                if (nalUnitType == NALU_SPS)
+                    spsReceived = true;
+                else if (nalUnitType == NALU_PPS)
+                    ppsReceived = true;
+            }
         }
+        
+        // case of single NAL unit directly as payload
+        else if (packetType <= SINGLE_NALU_PACKET_TYPE)
+        {
+            int nalUnitType = packetType;
+            log.trace("Single NAL unit, type = {}", packetType);
+            
+            if (!hasRoom(dataBuf, NAL_UNIT_MARKER.length + payloadLength))
+                return;
+            dataBuf.put(NAL_UNIT_MARKER);
+            copyPayload(packet, offset, end, dataBuf);
+            
+            // mark when SPS and PPS are received
+            if (nalUnitType == NALU_SPS)
+                spsReceived = true;
+            else if (nalUnitType == NALU_PPS)
+                ppsReceived = true;
+        }
+    }
+    
+    
+    /*
+     * Copy bytes from packet buffer to frame buffer without intermediate array
+     */
+    private void copyPayload(ByteBuffer packet, int start, int end, ByteBuffer dataBuf)
+    {
+        int limit = packet.limit();
+        packet.limit(end).position(start);
+        dataBuf.put(packet);
+        packet.limit(limit).position(0);
+    }
+    
+    
+    /*
+     * Check there is enough room left in frame buffer
+     * If not, the frame being assembled is dropped
+     */
+    private boolean hasRoom(ByteBuffer dataBuf, int size)
+    {
+        if (dataBuf.remaining() >= size)
+            return true;
+        
+        log.warn("H264 frame larger than {} bytes. Discarding", MAX_FRAME_SIZE);
+        dataBuf.clear();
+        discardNAL = true;
+        return false;
     }
     
     
@@ -273,6 +360,11 @@ public class RTPH264Receiver extends Thread
     {
         started = false;
         super.interrupt();
-        rtpSocket.close();
+        
+        if (rtpChannel != null)
+        {
+            try { rtpChannel.close(); }
+            catch (IOException e) { }
+        }
     }
 }
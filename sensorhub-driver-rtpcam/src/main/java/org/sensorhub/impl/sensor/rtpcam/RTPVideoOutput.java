@@ -270,6 +270,9 @@ public class RTPVideoOutput<SensorType extends ISensorModule<?>> extends Abstrac
                 
         if (!packetLost)
         {
+            // time stamp frame as soon as it's complete so it can be
+            // synchronized with other sensors (e.g. platform attitude)
+            final double samplingTime = System.currentTimeMillis() / 1000.0;
             final byte[] frameBytes = new byte[frameBuf.limit()];
             frameBuf.get(frameBytes);
             
@@ -304,7 +307,6 @@ public class RTPVideoOutput<SensorType extends ISensorModule<?>> extends Abstrac
                         newRecord = latestRecord.renew();
                     
                     // set time stamp
-                    double samplingTime = System.currentTimeMillis() / 1000.0;
                     newRecord.setDoubleValue(0, samplingTime);
                     
                     // set encoded data
@@ -0,0 +1,196 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.impl.sensor.rtpcam;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.impl.sensor.rtpcam.RTPH264Callback;
+import org.sensorhub.impl.sensor.rtpcam.RTPH264Receiver;
+import static org.junit.Assert.*;
+
+
+public class TestRTPH264Receiver implements RTPH264Callback
+{
+    static final byte[] SPS = {0x67, 1, 2, 3};
+    static final byte[] PPS = {0x68, 4, 5};
+    
+    RTPH264Receiver receiver;
+    DatagramSocket socket;
+    int port;
+    List<byte[]> frames = new ArrayList<byte[]>();
+    List<Long> timeStamps = new ArrayList<Long>();
+    
+    
+    @Before
+    public void init() throws Exception
+    {
+        // find free port
+        DatagramSocket s = new DatagramSocket(0);
+        port = s.getLocalPort();
+        s.close();
+        
+        receiver = new RTPH264Receiver("localhost", port, this);
+        receiver.start();
+        socket = new DatagramSocket();
+        Thread.sleep(200); // let receiver bind its port
+    }
+    
+    
+    /*
+     * Build RTP packet with optional CSRC list, header extension and padding
+     */
+    protected byte[] rtpPacket(int seqNum, long timeStamp, int numCsrc, boolean extension, int padding, byte[] payload)
+    {
+        int extLen = extension ? 8 : 0;
+        ByteBuffer buf = ByteBuffer.allocate(12 + 4*numCsrc + extLen + payload.length + padding);
+        buf.put((byte)(0x80 | (padding > 0 ? 0x20 : 0) | (extension ? 0x10 : 0) | numCsrc));
+        buf.put((byte)96);
+        buf.putShort((short)seqNum);
+        buf.putInt((int)timeStamp);
+        buf.putInt(0x12345678);
+        for (int i = 0; i < numCsrc; i++)
+            buf.putInt(i);
+        if (extension)
+        {
+            buf.putShort((short)0xBEDE);
+            buf.putShort((short)1);
+            buf.putInt(0xFFFFFFFF);
+        }
+        buf.put(payload);
+        for (int i = 0; i < padding; i++)
+            buf.put((byte)(i == padding-1 ? padding : 0));
+        return buf.array();
+    }
+    
+    
+    protected void send(byte[] packet) throws Exception
+    {
+        socket.send(new DatagramPacket(packet, packet.length, InetAddress.getLoopbackAddress(), port));
+    }
+    
+    
+    protected byte[] stapA(byte[]... nalUnits)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.put((byte)24);
+        for (byte[] nal: nalUnits)
+        {
+            buf.putShort((short)nal.length);
+            buf.put(nal);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    
+    protected byte[] fuA(int nalType, boolean start, boolean end, byte... data)
+    {
+        byte[] payload = new byte[data.length + 2];
+        payload[0] = 0x7C; // NRI=3, type=28
+        payload[1] = (byte)((start ? 0x80 : 0) | (end ? 0x40 : 0) | nalType);
+        System.arraycopy(data, 0, payload, 2, data.length);
+        return payload;
+    }
+    
+    
+    protected synchronized void waitForFrames(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (frames.size() < count && System.currentTimeMillis() < deadline)
+            wait(100);
+    }
+    
+    
+    @Test
+    public void testFrameAssembly() throws Exception
+    {
+        // parameter sets, then key frame in 3 fragments
+        // sequence number wraps around during the frame
+        long ts = 0xF0000000L;
+        send(rtpPacket(65533, ts, 0, false, 0, stapA(SPS, PPS)));
+        send(rtpPacket(65534, ts, 0, false, 0, fuA(5, true, false, (byte)10, (byte)11, (byte)12)));
+        send(rtpPacket(65535, ts, 2, true, 0, fuA(5, false, false, (byte)13, (byte)14)));
+        send(rtpPacket(0, ts, 1, false, 3, fuA(5, false, true, (byte)15)));
+        
+        // delta frame with a lost fragment is discarded
+        send(rtpPacket(1, ts+3000, 0, false, 0, fuA(1, true, false, (byte)20)));
+        send(rtpPacket(3, ts+3000, 0, false, 0, fuA(1, false, true, (byte)22)));
+        
+        // next delta frame is received
+        send(rtpPacket(4, ts+6000, 0, false, 0, fuA(1, true, false, (byte)30)));
+        send(rtpPacket(5, ts+6000, 0, false, 0, fuA(1, false, true, (byte)31)));
+        
+        waitForFrames(2);
+        Thread.sleep(100);
+        assertEquals(2, frames.size());
+        
+        byte[] expected = {0,0,0,1, 0x67,1,2,3, 0,0,0,1, 0x68,4,5, 0,0,0,1, 0x65, 10,11,12,13,14,15};
+        assertArrayEquals(expected, frames.get(0));
+        assertEquals(ts, (long)timeStamps.get(0));
+        
+        expected = new byte[] {0,0,0,1, 0x61, 30,31};
+        assertArrayEquals(expected, frames.get(1));
+        assertEquals(ts+6000, (long)timeStamps.get(1));
+    }
+    
+    
+    @Test
+    public void testInjectParamSets() throws Exception
+    {
+        receiver.setParameterSets("Z0IAKeKQFAe2AtwEBAaQeJEV,aM48gA==");
+        
+        send(rtpPacket(100, 0, 0, false, 0, fuA(5, true, true, (byte)1, (byte)2)));
+        waitForFrames(1);
+        assertEquals(1, frames.size());
+        
+        // SPS and PPS must be inserted before key frame
+        byte[] frame = frames.get(0);
+        assertEquals(0x67, frame[4]);
+        assertEquals(0x65, frame[frame.length-3]);
+    }
+    
+    
+    @Override
+    public synchronized void onFrame(long timeStamp, int seqNum, ByteBuffer frameData, boolean packetLost)
+    {
+        byte[] frame = new byte[frameData.remaining()];
+        frameData.get(frame);
+        frames.add(frame);
+        timeStamps.add(timeStamp);
+        notifyAll();
+    }
+
+
+    @Override
+    public void onError(Throwable e)
+    {
+    }
+    
+    
+    @After
+    public void cleanup()
+    {
+        receiver.interrupt();
+        socket.close();
+    }
+}